@@ -17,16 +17,20 @@
 package org.jmonitor.agent.configuration.impl;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.lang.StringUtils;
 import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationListener;
 import org.jmonitor.agent.configuration.AgentConfigurationService;
 import org.jmonitor.agent.configuration.MetricConfiguration;
 import org.jmonitor.agent.configuration.ProbeConfiguration;
 import org.jmonitor.util.Bootstrap;
 import org.jmonitor.util.ConfigurationUtils;
-import org.jmonitor.util.UncheckedPropertyUtils;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
 
 /**
  * 
@@ -37,12 +41,17 @@ import org.jmonitor.util.UncheckedPropertyUtils;
 // TODO should this service only allow updates to full configuration?
 // then we could store only full configuration here and make atomic updates
 // instead of piece meal updates
-// or we could still allow updates to individual portions, but just create
-// and store new full configuration each time
-// also need to version full(?) configuration and prevent clobbering
+// TODO perform optimistic locking based on version to prevent clobbering
+//
+// configuration is published as immutable snapshots through volatile fields so that the probe
+// hot path is a single volatile read with no allocation, each update re-loads and publishes a
+// new snapshot (with a new version) and then notifies registered listeners
 public final class AgentConfigurationServiceImpl implements
 		AgentConfigurationService {
 
+	private static final Logger LOGGER = CollectorServiceLoggerFactory
+			.getLogger(AgentConfigurationServiceImpl.class);
+
 	private static final String CONFIGURATION_DEFAULTS_RESOURCE_NAME = "jmonitor-defaults.properties";
 
 	private static final AgentConfigurationServiceImpl INSTANCE = new AgentConfigurationServiceImpl();
@@ -54,57 +63,79 @@ public final class AgentConfigurationServiceImpl implements
 	private volatile ProbeConfiguration probeConfiguration;
 	private volatile MetricConfiguration metricConfiguration;
 
+	private final List<AgentConfigurationListener> listeners = new CopyOnWriteArrayList<AgentConfigurationListener>();
+
 	// used to prevent concurrent access to the configuration file
+	// and to guard lastVersion
 	private final Object lock = new Object();
 
+	private long lastVersion;
+
 	private AgentConfigurationServiceImpl() {
 	}
 
-	// returns defensive copy
+	// returns immutable snapshot
 	public AgentConfiguration getAgentConfiguration() {
-		if (agentConfiguration == null) {
-			// thread-safe, not ideal, but ok if multiple threads call this
-			// method concurrently
-			// (it has internal synchronization to prevent configuration file
-			// clobbering)
-			agentConfiguration = loadAgentConfiguration();
+		AgentConfiguration configuration = agentConfiguration;
+		if (configuration == null) {
+			synchronized (lock) {
+				if (agentConfiguration == null) {
+					agentConfiguration = loadAgentConfiguration();
+				}
+				configuration = agentConfiguration;
+			}
 		}
-		return copyOf(agentConfiguration);
+		return configuration;
 	}
 
-	// returns defensive copy
+	// returns immutable snapshot
 	public ProbeConfiguration getProbeConfiguration() {
-		if (probeConfiguration == null) {
-			// thread-safe, not ideal, but ok if multiple threads call this
-			// method concurrently
-			// (it has internal synchronization to prevent configuration file
-			// clobbering)
-			probeConfiguration = loadProbeConfiguration();
+		ProbeConfiguration configuration = probeConfiguration;
+		if (configuration == null) {
+			synchronized (lock) {
+				if (probeConfiguration == null) {
+					probeConfiguration = loadProbeConfiguration();
+				}
+				configuration = probeConfiguration;
+			}
 		}
-		return copyOf(probeConfiguration);
+		return configuration;
 	}
 
-	// returns defensive copy
+	// returns immutable snapshot
 	public MetricConfiguration getMetricConfiguration() {
-		if (metricConfiguration == null) {
-			// thread-safe, not ideal, but ok if multiple threads call this
-			// method concurrently
-			// (it has internal synchronization to prevent configuration file
-			// clobbering)
-			metricConfiguration = loadMetricConfiguration();
+		MetricConfiguration configuration = metricConfiguration;
+		if (configuration == null) {
+			synchronized (lock) {
+				if (metricConfiguration == null) {
+					metricConfiguration = loadMetricConfiguration();
+				}
+				configuration = metricConfiguration;
+			}
 		}
-		return copyOf(metricConfiguration);
+		return configuration;
 	}
 
+	// throws IllegalArgumentException if the configuration is invalid, in
+	// which case nothing is saved or published
 	public void updateAgentConfiguration(AgentConfiguration configuration) {
 
-		// save
-		ConfigurationUtils.saveIfNecessary(configuration,
-				Bootstrap.getConfigurationFilename(), AgentConfiguration.class,
-				"agent");
+		String validationError = validate(configuration, null);
+		if (validationError != null) {
+			throw new IllegalArgumentException(validationError);
+		}
+
+		synchronized (lock) {
+			// save
+			ConfigurationUtils.saveIfNecessary(configuration,
+					Bootstrap.getConfigurationFilename(),
+					AgentConfiguration.class, "agent");
 
-		// clear cached instance, it will be re-loaded on next access
-		agentConfiguration = null;
+			// re-load and publish new snapshot (the passed in instance is
+			// not published since the caller still holds a reference to it)
+			agentConfiguration = loadAgentConfiguration();
+		}
+		notifyListeners();
 	}
 
 	public void updateProbeConfiguration(ProbeConfiguration configuration) {
@@ -118,12 +149,15 @@ public final class AgentConfigurationServiceImpl implements
 			}
 		}
 
-		// save
-		ConfigurationUtils.saveIfNecessary(propertyMap,
-				Bootstrap.getConfigurationFilename(), "probe");
+		synchronized (lock) {
+			// save
+			ConfigurationUtils.saveIfNecessary(propertyMap,
+					Bootstrap.getConfigurationFilename(), "probe");
 
-		// clear cached instance, it will be re-loaded on next access
-		probeConfiguration = null;
+			// re-load and publish new snapshot
+			probeConfiguration = loadProbeConfiguration();
+		}
+		notifyListeners();
 	}
 
 	public void updateMetricConfiguration(MetricConfiguration configuration) {
@@ -137,12 +171,35 @@ public final class AgentConfigurationServiceImpl implements
 			}
 		}
 
-		// save
-		ConfigurationUtils.saveIfNecessary(propertyMap,
-				Bootstrap.getConfigurationFilename(), "metric");
+		synchronized (lock) {
+			// save
+			ConfigurationUtils.saveIfNecessary(propertyMap,
+					Bootstrap.getConfigurationFilename(), "metric");
 
-		// clear cached instance, it will be re-loaded on next access
-		metricConfiguration = null;
+			// re-load and publish new snapshot
+			metricConfiguration = loadMetricConfiguration();
+		}
+		notifyListeners();
+	}
+
+	public void addConfigurationListener(AgentConfigurationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeConfigurationListener(AgentConfigurationListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void notifyListeners() {
+		for (AgentConfigurationListener listener : listeners) {
+			try {
+				listener.onChange();
+			} catch (RuntimeException e) {
+				// one bad listener should not prevent other listeners from
+				// being notified
+				LOGGER.error(e.getMessage(), e);
+			}
+		}
 	}
 
 	private AgentConfiguration loadAgentConfiguration() {
@@ -155,8 +212,14 @@ public final class AgentConfigurationServiceImpl implements
 					CONFIGURATION_DEFAULTS_RESOURCE_NAME,
 					AgentConfiguration.class, "agent");
 
+			// the configuration file may have been edited by hand, in which
+			// case only the invalid properties are reset to their defaults
+			validate(configuration, new AgentConfiguration());
+
 			ConfigurationUtils.saveIfNecessary(configuration,
 					configurationFilename, AgentConfiguration.class, "agent");
+
+			configuration.freeze(++lastVersion);
 		}
 		return configuration;
 	}
@@ -165,75 +228,149 @@ public final class AgentConfigurationServiceImpl implements
 
 		String configurationFilename = Bootstrap.getConfigurationFilename();
 
-		Map<String, String> probeConfigurationMap = ConfigurationUtils.load(
-				configurationFilename, CONFIGURATION_DEFAULTS_RESOURCE_NAME,
-				"probe");
-
-		ProbeConfiguration configuration = new ProbeConfiguration();
-		for (Map.Entry<String, String> entry : probeConfigurationMap.entrySet()) {
-			String probeName = StringUtils.substringBefore(entry.getKey(), ".");
-			String propertyName = StringUtils.substringAfter(entry.getKey(),
-					".");
-			configuration
-					.setProperty(probeName, propertyName, entry.getValue());
+		synchronized (lock) {
+			Map<String, String> probeConfigurationMap = ConfigurationUtils
+					.load(configurationFilename,
+							CONFIGURATION_DEFAULTS_RESOURCE_NAME, "probe");
+
+			ProbeConfiguration configuration = new ProbeConfiguration();
+			for (Map.Entry<String, String> entry : probeConfigurationMap
+					.entrySet()) {
+				String probeName = StringUtils.substringBefore(entry.getKey(),
+						".");
+				String propertyName = StringUtils.substringAfter(
+						entry.getKey(), ".");
+				configuration.setProperty(probeName, propertyName,
+						entry.getValue());
+			}
+			configuration.freeze(++lastVersion);
+			return configuration;
 		}
-		return configuration;
 	}
 
 	private MetricConfiguration loadMetricConfiguration() {
 
 		String configurationFilename = Bootstrap.getConfigurationFilename();
 
-		Map<String, String> metricConfigurationMap = ConfigurationUtils.load(
-				configurationFilename, CONFIGURATION_DEFAULTS_RESOURCE_NAME,
-				"metric");
-
-		MetricConfiguration configuration = new MetricConfiguration();
-		for (Map.Entry<String, String> entry : metricConfigurationMap
-				.entrySet()) {
-			String metricName = StringUtils
-					.substringBefore(entry.getKey(), ".");
-			String propertyName = StringUtils.substringAfter(entry.getKey(),
-					".");
-			configuration.setProperty(metricName, propertyName,
-					entry.getValue());
+		synchronized (lock) {
+			Map<String, String> metricConfigurationMap = ConfigurationUtils
+					.load(configurationFilename,
+							CONFIGURATION_DEFAULTS_RESOURCE_NAME, "metric");
+
+			MetricConfiguration configuration = new MetricConfiguration();
+			for (Map.Entry<String, String> entry : metricConfigurationMap
+					.entrySet()) {
+				String metricName = StringUtils.substringBefore(
+						entry.getKey(), ".");
+				String propertyName = StringUtils.substringAfter(
+						entry.getKey(), ".");
+				configuration.setProperty(metricName, propertyName,
+						entry.getValue());
+			}
+			configuration.freeze(++lastVersion);
+			return configuration;
 		}
-		return configuration;
 	}
 
-	private static AgentConfiguration copyOf(AgentConfiguration configuration) {
-		
-		AgentConfiguration copy = new AgentConfiguration();
-		// copy over all properties
-		UncheckedPropertyUtils.copyProperties(copy, configuration);
-		return copy;
-	}
-
-	private static ProbeConfiguration copyOf(ProbeConfiguration configuration) {
-		
-		ProbeConfiguration copy = new ProbeConfiguration();
-		for (String probeName : configuration.getProbeNames()) {
-			for (String propertyName : configuration
-					.getPropertyNames(probeName)) {
-				copy.setProperty(probeName, propertyName,
-						configuration.getProperty(probeName, propertyName));
+	// returns the first validation error, or null if the configuration is
+	// valid
+	//
+	// if defaults is not null, each invalid property is instead logged and
+	// reset to its default (and null is returned)
+	//
+	// e.g. a max stack trace depth below -1 would make every
+	// ThreadMXBean.getThreadInfo() call fail, and a jvm profiler interval of
+	// 0 would keep the profiler thread sampling without a pause
+	private static String validate(AgentConfiguration configuration,
+			AgentConfiguration defaults) {
+
+		int maxStackTraceDepth = configuration.getMaxStackTraceDepth();
+		if (maxStackTraceDepth < AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED) {
+			String error = "invalid maxStackTraceDepth " + maxStackTraceDepth
+					+ " (must be -1 for no limit, or 0 or more)";
+			if (defaults == null) {
+				return error;
 			}
+			warnUsingDefault(error);
+			configuration.setMaxStackTraceDepth(defaults.getMaxStackTraceDepth());
 		}
-		return copy;
-	}
-
-	private static MetricConfiguration copyOf(
-			MetricConfiguration configuration) {
-		
-		MetricConfiguration copy = new MetricConfiguration();
-		for (String metricName : configuration.getMetricNames()) {
-			for (String propertyName : configuration
-					.getPropertyNames(metricName)) {
-				copy.setProperty(metricName, propertyName,
-						configuration.getProperty(metricName, propertyName));
+		int jvmProfilerIntervalMillis = configuration
+				.getJvmProfilerIntervalMillis();
+		if (jvmProfilerIntervalMillis < 1) {
+			String error = "invalid jvmProfilerIntervalMillis "
+					+ jvmProfilerIntervalMillis + " (must be 1 or more)";
+			if (defaults == null) {
+				return error;
+			}
+			warnUsingDefault(error);
+			configuration.setJvmProfilerIntervalMillis(defaults
+					.getJvmProfilerIntervalMillis());
+		}
+		int jvmProfilerWindowSeconds = configuration
+				.getJvmProfilerWindowSeconds();
+		if (jvmProfilerWindowSeconds < 1) {
+			String error = "invalid jvmProfilerWindowSeconds "
+					+ jvmProfilerWindowSeconds + " (must be 1 or more)";
+			if (defaults == null) {
+				return error;
+			}
+			warnUsingDefault(error);
+			configuration.setJvmProfilerWindowSeconds(defaults
+					.getJvmProfilerWindowSeconds());
+		}
+		double traceSamplingRate = configuration.getTraceSamplingRate();
+		// written this way so that NaN is rejected too
+		if (!(traceSamplingRate >= 0 && traceSamplingRate <= 1)) {
+			String error = "invalid traceSamplingRate " + traceSamplingRate
+					+ " (must be between 0 and 1)";
+			if (defaults == null) {
+				return error;
 			}
+			warnUsingDefault(error);
+			configuration.setTraceSamplingRate(defaults.getTraceSamplingRate());
 		}
-		return copy;
+		int completedOperationQueueCapacity = configuration
+				.getCompletedOperationQueueCapacity();
+		if (completedOperationQueueCapacity < 1) {
+			String error = "invalid completedOperationQueueCapacity "
+					+ completedOperationQueueCapacity + " (must be 1 or more)";
+			if (defaults == null) {
+				return error;
+			}
+			warnUsingDefault(error);
+			configuration.setCompletedOperationQueueCapacity(defaults
+					.getCompletedOperationQueueCapacity());
+		}
+		int traceMemoryBudgetKilobytes = configuration
+				.getTraceMemoryBudgetKilobytes();
+		if (traceMemoryBudgetKilobytes < -1) {
+			String error = "invalid traceMemoryBudgetKilobytes "
+					+ traceMemoryBudgetKilobytes
+					+ " (must be -1 for no limit, or 0 or more)";
+			if (defaults == null) {
+				return error;
+			}
+			warnUsingDefault(error);
+			configuration.setTraceMemoryBudgetKilobytes(defaults
+					.getTraceMemoryBudgetKilobytes());
+		}
+		int traceMemorySoftLimitPercent = configuration
+				.getTraceMemorySoftLimitPercent();
+		if (traceMemorySoftLimitPercent < 0 || traceMemorySoftLimitPercent > 100) {
+			String error = "invalid traceMemorySoftLimitPercent "
+					+ traceMemorySoftLimitPercent + " (must be between 0 and 100)";
+			if (defaults == null) {
+				return error;
+			}
+			warnUsingDefault(error);
+			configuration.setTraceMemorySoftLimitPercent(defaults
+					.getTraceMemorySoftLimitPercent());
+		}
+		return null;
+	}
+
+	private static void warnUsingDefault(String validationError) {
+		LOGGER.warn(validationError + ", using the default instead");
 	}
 
 	public static AgentConfigurationServiceImpl getInstance() {
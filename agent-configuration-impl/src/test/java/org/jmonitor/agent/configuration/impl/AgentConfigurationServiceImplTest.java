@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.configuration.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AgentConfigurationServiceImplTest {
+
+	private AgentConfiguration originalConfiguration;
+
+	@Before
+	public void setUp() {
+		originalConfiguration = AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration();
+	}
+
+	@After
+	public void tearDown() {
+		AgentConfigurationServiceImpl.getInstance().updateAgentConfiguration(
+				originalConfiguration.copy());
+	}
+
+	@Test
+	public void testMaxStackTraceDepth() {
+		updateMaxStackTraceDepth(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+		updateMaxStackTraceDepth(0);
+		updateMaxStackTraceDepth(100);
+	}
+
+	@Test
+	public void testInvalidMaxStackTraceDepth() {
+		updateMaxStackTraceDepth(100);
+		AgentConfiguration configuration = AgentConfigurationServiceImpl
+				.getInstance().getAgentConfiguration().copy();
+		configuration.setMaxStackTraceDepth(-2);
+		try {
+			AgentConfigurationServiceImpl.getInstance()
+					.updateAgentConfiguration(configuration);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// the previous configuration is still in effect
+		assertEquals(100, AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration().getMaxStackTraceDepth());
+	}
+
+	@Test
+	public void testInvalidRanges() {
+		AgentConfiguration configuration = copy();
+		configuration.setJvmProfilerIntervalMillis(0);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setJvmProfilerWindowSeconds(0);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setTraceSamplingRate(1.5);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setTraceSamplingRate(Double.NaN);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setCompletedOperationQueueCapacity(0);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setTraceMemoryBudgetKilobytes(-2);
+		assertInvalid(configuration);
+
+		configuration = copy();
+		configuration.setTraceMemorySoftLimitPercent(101);
+		assertInvalid(configuration);
+	}
+
+	@Test
+	public void testValidRangeBoundaries() {
+		AgentConfiguration configuration = copy();
+		configuration.setJvmProfilerIntervalMillis(1);
+		configuration.setJvmProfilerWindowSeconds(1);
+		configuration.setTraceSamplingRate(0);
+		configuration.setCompletedOperationQueueCapacity(1);
+		configuration.setTraceMemoryBudgetKilobytes(-1);
+		configuration.setTraceMemorySoftLimitPercent(100);
+		AgentConfigurationServiceImpl.getInstance().updateAgentConfiguration(
+				configuration);
+		assertEquals(0, AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration().getTraceSamplingRate(), 0);
+	}
+
+	private static AgentConfiguration copy() {
+		return AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration().copy();
+	}
+
+	private static void assertInvalid(AgentConfiguration configuration) {
+		long version = AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration().getVersion();
+		try {
+			AgentConfigurationServiceImpl.getInstance()
+					.updateAgentConfiguration(configuration);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// nothing was published
+		assertEquals(version, AgentConfigurationServiceImpl.getInstance()
+				.getAgentConfiguration().getVersion());
+	}
+
+	private static void updateMaxStackTraceDepth(int maxStackTraceDepth) {
+		AgentConfiguration configuration = AgentConfigurationServiceImpl
+				.getInstance().getAgentConfiguration().copy();
+		configuration.setMaxStackTraceDepth(maxStackTraceDepth);
+		AgentConfigurationServiceImpl.getInstance().updateAgentConfiguration(
+				configuration);
+		assertEquals(maxStackTraceDepth, AgentConfigurationServiceImpl
+				.getInstance().getAgentConfiguration().getMaxStackTraceDepth());
+	}
+}
@@ -27,8 +27,9 @@ import org.jmonitor.util.annotation.DefaultValue;
  * @author Trask Stalnaker
  * @since 1.0
  */
-// most uses of configuration don't need to modify. This interface is exposed to
-// avoid accidental modification.
+// instances returned from AgentConfigurationService are immutable snapshots that are shared
+// across all threads (so that reading configuration on the probe hot path is just a volatile
+// read), use copy() to obtain a mutable instance
 // default values should be conservative
 public class AgentConfiguration implements Serializable {
 
@@ -36,10 +37,20 @@ public class AgentConfiguration implements Serializable {
 
 	public static int TRACE_EVENTS_LIMIT_DISABLED = -1;
 	public static int THRESHOLD_DISABLED = -1;
+	public static int STACK_TRACE_DEPTH_UNLIMITED = -1;
+	public static int TRACE_MEMORY_BUDGET_UNLIMITED = -1;
 
-	// TODO add versioning and perform optimistic locking when updating
-	// configuration
-	// private long configurationVersion = 0;
+	public static String OVERFLOW_POLICY_DROP_NEWEST = "DROP_NEWEST";
+	public static String OVERFLOW_POLICY_DROP_OLDEST = "DROP_OLDEST";
+	public static String OVERFLOW_POLICY_SUMMARY_ONLY = "SUMMARY_ONLY";
+
+	// incremented each time a new snapshot is published by AgentConfigurationService
+	// TODO perform optimistic locking when updating configuration
+	private long version;
+
+	// set once this instance is published as a snapshot, after which all setters throw
+	// IllegalStateException (not serialized so that deserialized copies are mutable)
+	private transient boolean immutable;
 
 	// if monitoring is disabled mid-operation there should be no issue
 	// active operations will not accumulate additional contextual trace
@@ -58,28 +69,127 @@ public class AgentConfiguration implements Serializable {
 			+ "(though stuck threshold can still be used in this case)")
 	private int thresholdMillis = 30000;
 
-	// minimum is imposed because of Agent#AGENT_POLLING_INTERVAL_MILLIS
-	@Comment("-1 means no stuck messages are gathered, should be minimum 100 milliseconds")
+	@Comment("-1 means no stuck messages are gathered")
 	private int stuckThresholdMillis = 600000;
 
-	// minimum is imposed because of Agent#AGENT_POLLING_INTERVAL_MILLIS
 	@DefaultValue("5000")
-	@Comment("-1 means no stack traces are gathered, should be minimum 100 milliseconds")
+	@Comment("-1 means no stack traces are gathered")
 	private int stackTraceInitialDelayMillis = 10000;
 
 	private int stackTracePeriodMillis = 1000;
 
+	@Comment("used to limit the cost of capturing stack traces (the outermost frames of deeper "
+			+ "stack traces are not captured), -1 means no limit")
+	private int maxStackTraceDepth = 500;
+
+	@Comment("sample the stack traces of all live threads (not only those of slow operations) "
+			+ "and merge them into a single call tree per jvmProfilerWindowSeconds")
+	private boolean jvmProfilerEnabled = false;
+
+	@Comment("interval between jvm profiler samples, e.g. 50 means 20 samples per second")
+	private int jvmProfilerIntervalMillis = 50;
+
+	@Comment("the jvm profiler call tree is collected (and restarted) at the end of each window")
+	private int jvmProfilerWindowSeconds = 60;
+
 	@Comment("used to limit memory requirement, also used to help limit log file size, "
 			+ "0 means don't capture any operations, -1 means no limit")
 	private int maxTraceEventsPerOperation = 1000;
 
+	@Comment("once an operation reaches maxTraceEventsPerOperation, repeated executions of the "
+			+ "same template (e.g. the same sql in a loop) are folded into the previous trace "
+			+ "event (with their count, total and max duration) instead of being dropped from "
+			+ "the trace")
+	private boolean traceEventFoldingEnabled = true;
+
+	@Comment("fraction of operations that are fully traced, e.g. 0.01 means 1 in 100, the "
+			+ "remaining operations only capture metric data (but are still logged, with "
+			+ "stack traces, if they exceed the thresholds)")
+	private double traceSamplingRate = 1.0;
+
+	@Comment("max number of completed operations waiting to be logged (only read at startup)")
+	private int completedOperationQueueCapacity = 1000;
+
+	@Comment("what to do when operations complete faster than they can be logged, DROP_NEWEST, "
+			+ "DROP_OLDEST or SUMMARY_ONLY (once the queue is half full only the operation summary "
+			+ "is queued, without trace or stack traces, and once full the newest are dropped)")
+	private String completedOperationOverflowPolicy = OVERFLOW_POLICY_DROP_NEWEST;
+
+	@Comment("estimated memory (in kilobytes) that the traces of all active operations together "
+			+ "may hold, above the soft limit active operations stop capturing trace events and "
+			+ "new operations only capture metric data, and above the budget new operations are "
+			+ "not captured at all, -1 means no limit")
+	private int traceMemoryBudgetKilobytes = 65536;
+
+	@Comment("the soft limit as a percentage of traceMemoryBudgetKilobytes")
+	private int traceMemorySoftLimitPercent = 80;
+
+	@Comment("track a latency histogram for each metric data item so that percentiles (p50, "
+			+ "p95, p99, p99.9) can be reported, costs a fixed ~2.5kb per metric data item of "
+			+ "each operation (allocated on first use), and per operation name in the aggregates")
+	private boolean metricHistogramsEnabled = false;
+
+	@Comment("capture the thread cpu time and allocated bytes of each operation (read at the "
+			+ "start and end of the operation, allocated bytes require a sun / oracle jvm)")
+	private boolean resourceUsageEnabled = false;
+
+	@Comment("capture the time each operation's thread spent blocked on monitors and waiting "
+			+ "(and the number of times), this enables thread contention monitoring in the jvm "
+			+ "which adds some overhead to every contended monitor")
+	private boolean contentionMonitoringEnabled = false;
+
+	@Comment("store the trace events of new operations in compact primitive arrays instead of an"
+			+ " object per trace event (reduces the memory held by large traces)")
+	private boolean compactTraceEnabled = false;
+
 	private boolean warnOnTraceEventOutsideOperation = false;
 
+	public long getVersion() {
+		return version;
+	}
+
+	// returns a mutable copy (with the same version)
+	public AgentConfiguration copy() {
+		AgentConfiguration copy = new AgentConfiguration();
+		copy.version = version;
+		copy.enabled = enabled;
+		copy.thresholdMillis = thresholdMillis;
+		copy.stuckThresholdMillis = stuckThresholdMillis;
+		copy.stackTraceInitialDelayMillis = stackTraceInitialDelayMillis;
+		copy.stackTracePeriodMillis = stackTracePeriodMillis;
+		copy.maxStackTraceDepth = maxStackTraceDepth;
+		copy.jvmProfilerEnabled = jvmProfilerEnabled;
+		copy.jvmProfilerIntervalMillis = jvmProfilerIntervalMillis;
+		copy.jvmProfilerWindowSeconds = jvmProfilerWindowSeconds;
+		copy.maxTraceEventsPerOperation = maxTraceEventsPerOperation;
+		copy.traceEventFoldingEnabled = traceEventFoldingEnabled;
+		copy.traceSamplingRate = traceSamplingRate;
+		copy.completedOperationQueueCapacity = completedOperationQueueCapacity;
+		copy.completedOperationOverflowPolicy = completedOperationOverflowPolicy;
+		copy.traceMemoryBudgetKilobytes = traceMemoryBudgetKilobytes;
+		copy.traceMemorySoftLimitPercent = traceMemorySoftLimitPercent;
+		copy.metricHistogramsEnabled = metricHistogramsEnabled;
+		copy.resourceUsageEnabled = resourceUsageEnabled;
+		copy.contentionMonitoringEnabled = contentionMonitoringEnabled;
+		copy.compactTraceEnabled = compactTraceEnabled;
+		copy.warnOnTraceEventOutsideOperation = warnOnTraceEventOutsideOperation;
+		return copy;
+	}
+
+	// stamps the version and makes this instance immutable, should only be called by
+	// AgentConfigurationService prior to publishing this instance
+	public void freeze(long version) {
+		checkMutable();
+		this.version = version;
+		immutable = true;
+	}
+
 	public boolean isEnabled() {
 		return enabled;
 	}
 
 	public void setEnabled(boolean enabled) {
+		checkMutable();
 		this.enabled = enabled;
 	}
 
@@ -88,6 +198,7 @@ public class AgentConfiguration implements Serializable {
 	}
 
 	public void setThresholdMillis(int thresholdMillis) {
+		checkMutable();
 		this.thresholdMillis = thresholdMillis;
 	}
 
@@ -96,6 +207,7 @@ public class AgentConfiguration implements Serializable {
 	}
 
 	public void setStuckThresholdMillis(int stuckThresholdMillis) {
+		checkMutable();
 		this.stuckThresholdMillis = stuckThresholdMillis;
 	}
 
@@ -104,6 +216,7 @@ public class AgentConfiguration implements Serializable {
 	}
 
 	public void setStackTraceInitialDelayMillis(int stackTraceInitialDelayMillis) {
+		checkMutable();
 		this.stackTraceInitialDelayMillis = stackTraceInitialDelayMillis;
 	}
 
@@ -112,23 +225,159 @@ public class AgentConfiguration implements Serializable {
 	}
 
 	public void setStackTracePeriodMillis(int stackTracePeriodMillis) {
+		checkMutable();
 		this.stackTracePeriodMillis = stackTracePeriodMillis;
 	}
 
+	public int getMaxStackTraceDepth() {
+		return maxStackTraceDepth;
+	}
+
+	public void setMaxStackTraceDepth(int maxStackTraceDepth) {
+		checkMutable();
+		this.maxStackTraceDepth = maxStackTraceDepth;
+	}
+
+	public boolean isJvmProfilerEnabled() {
+		return jvmProfilerEnabled;
+	}
+
+	public void setJvmProfilerEnabled(boolean jvmProfilerEnabled) {
+		checkMutable();
+		this.jvmProfilerEnabled = jvmProfilerEnabled;
+	}
+
+	public int getJvmProfilerIntervalMillis() {
+		return jvmProfilerIntervalMillis;
+	}
+
+	public void setJvmProfilerIntervalMillis(int jvmProfilerIntervalMillis) {
+		checkMutable();
+		this.jvmProfilerIntervalMillis = jvmProfilerIntervalMillis;
+	}
+
+	public int getJvmProfilerWindowSeconds() {
+		return jvmProfilerWindowSeconds;
+	}
+
+	public void setJvmProfilerWindowSeconds(int jvmProfilerWindowSeconds) {
+		checkMutable();
+		this.jvmProfilerWindowSeconds = jvmProfilerWindowSeconds;
+	}
+
 	public int getMaxTraceEventsPerOperation() {
 		return maxTraceEventsPerOperation;
 	}
 
 	public void setMaxTraceEventsPerOperation(int maxTraceEventsPerOperation) {
+		checkMutable();
 		this.maxTraceEventsPerOperation = maxTraceEventsPerOperation;
 	}
 
+	public boolean isTraceEventFoldingEnabled() {
+		return traceEventFoldingEnabled;
+	}
+
+	public void setTraceEventFoldingEnabled(boolean traceEventFoldingEnabled) {
+		checkMutable();
+		this.traceEventFoldingEnabled = traceEventFoldingEnabled;
+	}
+
+	public double getTraceSamplingRate() {
+		return traceSamplingRate;
+	}
+
+	public void setTraceSamplingRate(double traceSamplingRate) {
+		checkMutable();
+		this.traceSamplingRate = traceSamplingRate;
+	}
+
+	public int getCompletedOperationQueueCapacity() {
+		return completedOperationQueueCapacity;
+	}
+
+	public void setCompletedOperationQueueCapacity(int completedOperationQueueCapacity) {
+		checkMutable();
+		this.completedOperationQueueCapacity = completedOperationQueueCapacity;
+	}
+
+	public String getCompletedOperationOverflowPolicy() {
+		return completedOperationOverflowPolicy;
+	}
+
+	public void setCompletedOperationOverflowPolicy(String completedOperationOverflowPolicy) {
+		checkMutable();
+		this.completedOperationOverflowPolicy = completedOperationOverflowPolicy;
+	}
+
+	public int getTraceMemoryBudgetKilobytes() {
+		return traceMemoryBudgetKilobytes;
+	}
+
+	public void setTraceMemoryBudgetKilobytes(int traceMemoryBudgetKilobytes) {
+		checkMutable();
+		this.traceMemoryBudgetKilobytes = traceMemoryBudgetKilobytes;
+	}
+
+	public int getTraceMemorySoftLimitPercent() {
+		return traceMemorySoftLimitPercent;
+	}
+
+	public void setTraceMemorySoftLimitPercent(int traceMemorySoftLimitPercent) {
+		checkMutable();
+		this.traceMemorySoftLimitPercent = traceMemorySoftLimitPercent;
+	}
+
+	public boolean isMetricHistogramsEnabled() {
+		return metricHistogramsEnabled;
+	}
+
+	public void setMetricHistogramsEnabled(boolean metricHistogramsEnabled) {
+		checkMutable();
+		this.metricHistogramsEnabled = metricHistogramsEnabled;
+	}
+
+	public boolean isResourceUsageEnabled() {
+		return resourceUsageEnabled;
+	}
+
+	public void setResourceUsageEnabled(boolean resourceUsageEnabled) {
+		checkMutable();
+		this.resourceUsageEnabled = resourceUsageEnabled;
+	}
+
+	public boolean isContentionMonitoringEnabled() {
+		return contentionMonitoringEnabled;
+	}
+
+	public void setContentionMonitoringEnabled(boolean contentionMonitoringEnabled) {
+		checkMutable();
+		this.contentionMonitoringEnabled = contentionMonitoringEnabled;
+	}
+
+	public boolean isCompactTraceEnabled() {
+		return compactTraceEnabled;
+	}
+
+	public void setCompactTraceEnabled(boolean compactTraceEnabled) {
+		checkMutable();
+		this.compactTraceEnabled = compactTraceEnabled;
+	}
+
 	public boolean isWarnOnTraceEventOutsideOperation() {
 		return warnOnTraceEventOutsideOperation;
 	}
 
 	public void setWarnOnTraceEventOutsideOperation(
 			boolean warnOnTraceEventOutsideOperation) {
+		checkMutable();
 		this.warnOnTraceEventOutsideOperation = warnOnTraceEventOutsideOperation;
 	}
+
+	private void checkMutable() {
+		if (immutable) {
+			throw new IllegalStateException("Configuration snapshot is immutable,"
+					+ " use copy() to obtain a mutable instance");
+		}
+	}
 }
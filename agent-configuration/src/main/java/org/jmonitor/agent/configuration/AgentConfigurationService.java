@@ -24,13 +24,14 @@ package org.jmonitor.agent.configuration;
  */
 public interface AgentConfigurationService {
 
-	// returns a copy
+	// returns the current immutable snapshot, this is just a volatile read so it is ok to call
+	// on every probe execution
 	AgentConfiguration getAgentConfiguration();
 
-	// returns a copy
+	// returns the current immutable snapshot
 	ProbeConfiguration getProbeConfiguration();
 
-	// returns a copy
+	// returns the current immutable snapshot
 	MetricConfiguration getMetricConfiguration();
 
 	void updateAgentConfiguration(AgentConfiguration configuration);
@@ -38,4 +39,8 @@ public interface AgentConfigurationService {
 	void updateProbeConfiguration(ProbeConfiguration configuration);
 
 	void updateMetricConfiguration(MetricConfiguration configuration);
+
+	void addConfigurationListener(AgentConfigurationListener listener);
+
+	void removeConfigurationListener(AgentConfigurationListener listener);
 }
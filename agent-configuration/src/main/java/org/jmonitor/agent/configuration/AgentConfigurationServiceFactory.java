@@ -30,7 +30,7 @@ public final class AgentConfigurationServiceFactory {
 	// TODO break "cyclic" dependency by getting impl class name from
 	// META-INF/services/org.jmonitor.agent.configuration.AgentConfigurationService
 	// ??
-	private static final String AGENT_CONFIGURATION_SERVICE_IMPL = "org.jmonitor.agent.configuration.impl.AgentConfigurationImpl";
+	private static final String AGENT_CONFIGURATION_SERVICE_IMPL = "org.jmonitor.agent.configuration.impl.AgentConfigurationServiceImpl";
 
 	// cached for performance
 	private static final AgentConfigurationService SERVICE = createService();
@@ -21,6 +21,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.jmonitor.api.metric.MetricPool;
+
 /**
  * 
  * 
@@ -31,12 +33,50 @@ public class MetricConfiguration implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	// TODO add versioning and perform optimistic locking when updating
-	// configuration
-	// private long configurationVersion = 0;
+	// pool level properties are stored under the pool name in place of a metric name, e.g.
+	// metric.FAST.intervalMillis=1000
+	public static final String POOL_INTERVAL_MILLIS_PROPERTY_NAME = "intervalMillis";
+	public static final String POOL_HISTORY_SIZE_PROPERTY_NAME = "historySize";
+
+	// by default, the fast pool retains an hour of one second samples and the slow pool retains
+	// a day of one minute samples
+	private static final int DEFAULT_FAST_INTERVAL_MILLIS = 1000;
+	private static final int DEFAULT_FAST_HISTORY_SIZE = 3600;
+	private static final int DEFAULT_SLOW_INTERVAL_MILLIS = 60000;
+	private static final int DEFAULT_SLOW_HISTORY_SIZE = 1440;
+
+	// incremented each time a new snapshot is published by AgentConfigurationService
+	// TODO perform optimistic locking when updating configuration
+	private long version;
+
+	// set once this instance is published as a snapshot, after which setProperty() throws
+	// IllegalStateException (not serialized so that deserialized copies are mutable)
+	private transient boolean immutable;
 
 	private volatile Map<String, Map<String, String>> propertyMaps = new HashMap<String, Map<String, String>>();
 
+	public long getVersion() {
+		return version;
+	}
+
+	// returns a mutable copy (with the same version)
+	public MetricConfiguration copy() {
+		MetricConfiguration copy = new MetricConfiguration();
+		copy.version = version;
+		for (Map.Entry<String, Map<String, String>> entry : propertyMaps.entrySet()) {
+			copy.propertyMaps.put(entry.getKey(), new HashMap<String, String>(entry.getValue()));
+		}
+		return copy;
+	}
+
+	// stamps the version and makes this instance immutable, should only be called by
+	// AgentConfigurationService prior to publishing this instance
+	public void freeze(long version) {
+		checkMutable();
+		this.version = version;
+		immutable = true;
+	}
+
 	// never returns null
 	public String getProperty(String metricName, String propertyName) {
 		Map<String, String> propertyMap = propertyMaps.get(metricName);
@@ -51,6 +91,28 @@ public class MetricConfiguration implements Serializable {
 		}
 	}
 
+	// number of milliseconds between collections of the metrics in the given pool
+	public int getPoolIntervalMillis(MetricPool pool) {
+		if (pool == MetricPool.FAST) {
+			return getPositiveIntProperty(pool.name(), POOL_INTERVAL_MILLIS_PROPERTY_NAME,
+					DEFAULT_FAST_INTERVAL_MILLIS);
+		} else {
+			return getPositiveIntProperty(pool.name(), POOL_INTERVAL_MILLIS_PROPERTY_NAME,
+					DEFAULT_SLOW_INTERVAL_MILLIS);
+		}
+	}
+
+	// number of samples retained for each metric in the given pool
+	public int getPoolHistorySize(MetricPool pool) {
+		if (pool == MetricPool.FAST) {
+			return getPositiveIntProperty(pool.name(), POOL_HISTORY_SIZE_PROPERTY_NAME,
+					DEFAULT_FAST_HISTORY_SIZE);
+		} else {
+			return getPositiveIntProperty(pool.name(), POOL_HISTORY_SIZE_PROPERTY_NAME,
+					DEFAULT_SLOW_HISTORY_SIZE);
+		}
+	}
+
 	public Iterable<String> getMetricNames() {
 		return propertyMaps.keySet();
 	}
@@ -66,6 +128,7 @@ public class MetricConfiguration implements Serializable {
 
 	public void setProperty(String metricName, String propertyName,
 			String propertyValue) {
+		checkMutable();
 		Map<String, String> propertyMap = propertyMaps.get(metricName);
 		if (propertyMap == null) {
 			propertyMap = new HashMap<String, String>();
@@ -73,4 +136,26 @@ public class MetricConfiguration implements Serializable {
 		}
 		propertyMap.put(propertyName, propertyValue);
 	}
+
+	// returns the default value if the property is missing, invalid or not positive
+	private int getPositiveIntProperty(String metricName, String propertyName,
+			int defaultValue) {
+		try {
+			int value = Integer.parseInt(getProperty(metricName, propertyName).trim());
+			if (value > 0) {
+				return value;
+			} else {
+				return defaultValue;
+			}
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private void checkMutable() {
+		if (immutable) {
+			throw new IllegalStateException("Configuration snapshot is immutable,"
+					+ " use copy() to obtain a mutable instance");
+		}
+	}
 }
@@ -31,12 +31,38 @@ public class ProbeConfiguration implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	// TODO add versioning and perform optimistic locking when updating
-	// configuration
-	// private long configurationVersion = 0;
+	// incremented each time a new snapshot is published by AgentConfigurationService
+	// TODO perform optimistic locking when updating configuration
+	private long version;
+
+	// set once this instance is published as a snapshot, after which setProperty() throws
+	// IllegalStateException (not serialized so that deserialized copies are mutable)
+	private transient boolean immutable;
 
 	private volatile Map<String, Map<String, String>> propertyMaps = new HashMap<String, Map<String, String>>();
 
+	public long getVersion() {
+		return version;
+	}
+
+	// returns a mutable copy (with the same version)
+	public ProbeConfiguration copy() {
+		ProbeConfiguration copy = new ProbeConfiguration();
+		copy.version = version;
+		for (Map.Entry<String, Map<String, String>> entry : propertyMaps.entrySet()) {
+			copy.propertyMaps.put(entry.getKey(), new HashMap<String, String>(entry.getValue()));
+		}
+		return copy;
+	}
+
+	// stamps the version and makes this instance immutable, should only be called by
+	// AgentConfigurationService prior to publishing this instance
+	public void freeze(long version) {
+		checkMutable();
+		this.version = version;
+		immutable = true;
+	}
+
 	// never returns null
 	public String getProperty(String probeName, String propertyName) {
 		Map<String, String> propertyMap = propertyMaps.get(probeName);
@@ -66,6 +92,7 @@ public class ProbeConfiguration implements Serializable {
 
 	public void setProperty(String probeName, String propertyName,
 			String propertyValue) {
+		checkMutable();
 		Map<String, String> propertyMap = propertyMaps.get(probeName);
 		if (propertyMap == null) {
 			propertyMap = new HashMap<String, String>();
@@ -73,4 +100,11 @@ public class ProbeConfiguration implements Serializable {
 		}
 		propertyMap.put(propertyName, propertyValue);
 	}
+
+	private void checkMutable() {
+		if (immutable) {
+			throw new IllegalStateException("Configuration snapshot is immutable,"
+					+ " use copy() to obtain a mutable instance");
+		}
+	}
 }
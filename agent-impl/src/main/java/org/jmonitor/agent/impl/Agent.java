@@ -16,28 +16,42 @@
 
 package org.jmonitor.agent.impl;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
 import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationListener;
 import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
 import org.jmonitor.agent.configuration.MetricConfiguration;
 import org.jmonitor.agent.configuration.ProbeConfiguration;
+import org.jmonitor.agent.impl.aggregate.AggregateBucket;
+import org.jmonitor.agent.impl.aggregate.OperationAggregator;
+import org.jmonitor.agent.impl.metric.MetricCollector;
+import org.jmonitor.agent.impl.model.AgentTrace;
+import org.jmonitor.agent.impl.model.CompactTraceSafeImpl;
 import org.jmonitor.agent.impl.model.OperationSafeImpl;
-import org.jmonitor.agent.impl.model.TraceEventSafeImpl;
+import org.jmonitor.agent.impl.model.TraceSafeImpl;
+import org.jmonitor.agent.impl.util.ThreadResourceUsage;
+import org.jmonitor.agent.impl.util.collection.RegistrationList;
 import org.jmonitor.agent.service.AgentService;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.collector.service.CollectorService;
+import org.jmonitor.collector.service.CollectorServiceFactory;
+import org.jmonitor.collector.service.model.ProfileData;
 import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
-import org.jmonitor.util.NanoUtils;
 import org.slf4j.Logger;
 
 /**
@@ -47,222 +61,251 @@ import org.slf4j.Logger;
  * @author Trask Stalnaker
  * @since 1.0
  */
-public final class Agent implements AgentService, Runnable {
+public final class Agent implements AgentService {
 
     private static final Logger LOGGER = CollectorServiceLoggerFactory.getLogger(Agent.class);
 
-    private static final int AGENT_POLLING_INTERVAL_MILLIS = 100;
-
-    private static final Agent INSTANCE = new Agent();
+    private static final String COMPLETED_OPERATION_PIPELINE_OBJECT_NAME =
+            "org.jmonitor:type=CompletedOperationPipeline";
 
-    // collection of active running operations
-    private final Collection<OperationSafeImpl> operations =
-            new ConcurrentLinkedQueue<OperationSafeImpl>();
+    private static final String OPERATION_AGGREGATOR_OBJECT_NAME =
+            "org.jmonitor:type=OperationAggregator";
 
-    // active running operation being executed by the current thread
-    private final ThreadLocal<OperationSafeImpl> currentOperationHolder =
-            new ThreadLocal<OperationSafeImpl>();
+    private static final String METRIC_COLLECTOR_OBJECT_NAME = "org.jmonitor:type=MetricCollector";
 
-    // this is used to disable monitoring of the current operation
-    // it is used in case monitoring is later enabled while this operation is still active
-    // in which case monitoring should stay disabled for the operation
-    //
-    // we interpret null as false so we can clear out the ThreadLocal in a finally block to make
-    // sure we don't leave the thread local lying around attached to an inactive thread
-    private final ThreadLocal<Boolean> currentOperationDisabledHolder = new ThreadLocal<Boolean>();
+    private static final String TRACE_MEMORY_BUDGET_OBJECT_NAME =
+            "org.jmonitor:type=TraceMemoryBudget";
 
-    // use a separate thread to log (and email as needed) completed operations
-    // so that we don't impact user response time
-    private final ExecutorService completedOperationLogExecutor =
-            Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+    private static final String JVM_PROFILER_OBJECT_NAME = "org.jmonitor:type=JvmProfiler";
 
-    // used for scheduling stack traces to be captured and stuck operation logging to occur
-    private final ScheduledExecutorService stackTraceCaptureScheduledExecutor =
-            Executors.newScheduledThreadPool(1, new DaemonThreadFactory());
+    // completed aggregate buckets are harvested with this granularity
+    private static final long AGGREGATE_HARVEST_INTERVAL_MILLIS = 1000;
 
-    // this needs its own thread pool since logging stuck threads can take some
-    // time if there is lots of data to log
-    private final ScheduledExecutorService stuckOperationLogScheduledExecutor =
-            Executors.newScheduledThreadPool(1, new DaemonThreadFactory());
-
-    private Agent() {
-        // we cannot schedule stack trace and stuck thread commands for every thread b/c there's no
-        // way to preemptively remove those commands from the scheduled queue until their time has
-        // come (we can cancel them, but they remain in the scheduled queue taking up memory until
-        // their time has come at which point they are not run if they have already been cancelled)
-        // so we create a single scheduled command to poll the current operation and wait to
-        // schedule stack trace and stuck thread commands until they are within
-        // AGENT_POLLING_INTERVAL_MILLIS from needing to start
-        stackTraceCaptureScheduledExecutor.scheduleWithFixedDelay(this, 0,
-                AGENT_POLLING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
-    }
-
-    public void run() {
-        try {
-            runInternal();
-        } catch (Exception e) {
-            // log and terminate this thread successfully
-            LOGGER.error(e.getMessage(), e);
-        } catch (Error e) {
-            // log and re-throw serious error which will terminate subsequent scheduled executions
-            // (see ScheduledExecutorService.scheduleWithFixedDelay())
-            LOGGER.error(e.getMessage(), e);
-            throw e;
-        }
-    }
-
-    // look for operations that will exceed the stack trace initial delay threshold
-    // or stuck threshold within the next polling interval and respectively schedule stack
-    // trace capture or stuck message generation to occur at the appropriate time(s)
-    private void runInternal() {
-
-        AgentConfiguration configuration =
-                AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+    private static final Agent INSTANCE = new Agent();
 
-        long currentNanoTime = System.nanoTime();
+    // collection of active running operations, ordered by start time
+    // (add and remove are O(1) so they don't impact user response time, see RegistrationList)
+    private final RegistrationList<OperationSafeImpl> operations =
+            new RegistrationList<OperationSafeImpl>();
 
-        if (configuration.getStackTraceInitialDelayMillis() != AgentConfiguration.THRESHOLD_DISABLED) {
+    // all per-thread state (current operation, disabled flag) is kept in a single context object
+    // so that each probe execution only performs a single thread local lookup
+    //
+    // the context is removed from the thread as soon as it is no longer needed (when the thread's
+    // operation completes, see popTraceEvent()), since a context left attached to a pooled thread
+    // would pin the agent's class loader (e.g. after the web application is undeployed)
+    private final ThreadLocal<AgentThreadContext> threadContextHolder =
+            new ThreadLocal<AgentThreadContext>();
 
-            // stack trace threshold is not disabled
+    // use a separate thread to log (and email as needed) completed operations
+    // so that we don't impact user response time
+    private final CompletedOperationPipeline completedOperationPipeline;
 
-            long stackTraceThresholdNanoTime =
-                    currentNanoTime
-                            - TimeUnit.MILLISECONDS.toNanos(configuration.getStackTraceInitialDelayMillis()
-                                    - AGENT_POLLING_INTERVAL_MILLIS);
+    // aggregate data across all operations (including those below the threshold)
+    private final OperationAggregator operationAggregator = new OperationAggregator();
 
-            for (OperationSafeImpl operation : operations) {
+    // used for operation summary data recorded outside of an operation
+    private final OperationAggregator.Entry noOperationAggregatorEntry =
+            operationAggregator.getEntry(OperationAggregator.NO_OPERATION_NAME);
 
-                // if the operation is within AGENT_POLLING_INTERVAL_MILLIS from hitting
-                // the stack trace initial delay threshold
-                // and the stack trace capture hasn't already been scheduled then schedule it
-                if (NanoUtils.isLessThan(operation.getStartNanoTime(), stackTraceThresholdNanoTime)
-                        && operation.getCaptureStackTraceScheduledFuture() == null) {
+    // used to feed the per-operation cpu time into the aggregates
+    private final OperationSummaryKey cpuTimeKey = OperationSummaryKeyRegistry.getInstance()
+            .getOperationSummaryKey(OperationAggregator.CPU_TIME_NAME);
 
-                    // schedule stack traces to be taken every X seconds
-                    long initialDelayMillis =
-                            getMillisUntilOperationReachesThreshold(operation,
-                                    configuration.getStackTraceInitialDelayMillis());
-                    ScheduledFuture<?> captureStackTraceScheduledFuture =
-                            stackTraceCaptureScheduledExecutor.scheduleWithFixedDelay(
-                                    new StackTraceCaptureCommand(operation), initialDelayMillis,
-                                    configuration.getStackTracePeriodMillis(),
-                                    TimeUnit.MILLISECONDS);
-                    operation.setCaptureStackTraceScheduledFuture(captureStackTraceScheduledFuture);
+    // used to feed the per-operation contention times into the aggregates
+    private final OperationSummaryKey blockedTimeKey = OperationSummaryKeyRegistry.getInstance()
+            .getOperationSummaryKey(OperationAggregator.BLOCKED_TIME_NAME);
+    private final OperationSummaryKey waitedTimeKey = OperationSummaryKeyRegistry.getInstance()
+            .getOperationSummaryKey(OperationAggregator.WAITED_TIME_NAME);
 
-                } else {
+    // estimated memory held by the traces of all active operations
+    private final TraceMemoryBudget traceMemoryBudget = new TraceMemoryBudget();
 
-                    // since we are iterating over a queue ordered by start time, if this operation
-                    // didn't meet the threshold then we know that no subsequent operations will
-                    // meet the threshold and we can break here
-                    break;
-                }
-            }
-        }
+    // periodically collects the available metrics (e.g. cpu) on its own threads
+    private final MetricCollector metricCollector =
+            new MetricCollector(new DaemonThreadFactory());
 
-        if (configuration.getStuckThresholdMillis() != AgentConfiguration.THRESHOLD_DISABLED) {
+    // samples all live threads on its own thread (which only runs while the profiler is enabled)
+    private final JvmProfiler jvmProfiler = new JvmProfiler(new DaemonThreadFactory());
 
-            // stuck threshold is not disabled
+    // restores the jvm's contention monitoring setting once contention monitoring is switched off
+    private final AgentConfigurationListener contentionMonitoringListener =
+            new ContentionMonitoringListener();
 
-            long stuckMessageThresholdNanoTime =
-                    currentNanoTime
-                            - TimeUnit.MILLISECONDS.toNanos(configuration.getStuckThresholdMillis()
-                                    - AGENT_POLLING_INTERVAL_MILLIS);
+    // operations started after shutdown don't enable contention monitoring in the jvm again
+    private volatile boolean shutdown;
 
-            for (OperationSafeImpl operation : operations) {
+    // only the mbeans that were actually registered by this agent are unregistered on shutdown
+    // (another instance of the agent in this jvm may have registered the same names)
+    private final List<ObjectName> registeredMBeanNames =
+            Collections.synchronizedList(new ArrayList<ObjectName>());
 
-                // if the operation is within AGENT_POLLING_INTERVAL_MILLIS from hitting the stuck
-                // thread threshold and the stuck thread messaging hasn't already been scheduled
-                // then schedule it
-                if (NanoUtils.isLessThan(operation.getStartNanoTime(),
-                        stuckMessageThresholdNanoTime)
-                        && operation.getStuckCommandScheduledFuture() == null) {
+    // drives the operation timer which owns all stack trace capture and stuck operation deadlines
+    private final ScheduledExecutorService operationTimerScheduledExecutor =
+            Executors.newScheduledThreadPool(1, new DaemonThreadFactory());
 
-                    // schedule stuck thread message
-                    long initialDelayMillis =
-                            getMillisUntilOperationReachesThreshold(operation,
-                                    configuration.getStuckThresholdMillis());
-                    ScheduledFuture<?> stuckCommandScheduledFuture =
-                            stuckOperationLogScheduledExecutor.schedule(new StuckOperationCommand(
-                                    operation), initialDelayMillis, TimeUnit.MILLISECONDS);
-                    operation.setStuckCommandScheduledFuture(stuckCommandScheduledFuture);
+    // this needs its own thread since logging stuck threads can take some
+    // time if there is lots of data to log
+    private final ExecutorService stuckOperationLogExecutor =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory());
 
-                } else {
+    // harvesting gets its own thread so that it can never delay the operation timer's ticks
+    // (summarizing the metrics and handing the buckets to the collector take longer than a tick
+    // when there are many operation names)
+    private final ScheduledExecutorService aggregateHarvestScheduledExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
 
-                    // since we are iterating over a queue ordered by start time, if this operation
-                    // didn't meet the threshold then we know that no subsequent operations will
-                    // meet the threshold and we can break here
-                    break;
+    private Agent() {
+        // the queue capacity is only read at startup
+        int completedOperationQueueCapacity =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration()
+                        .getCompletedOperationQueueCapacity();
+        completedOperationPipeline =
+                new CompletedOperationPipeline(Math.max(completedOperationQueueCapacity, 1),
+                        new DaemonThreadFactory());
+        completedOperationPipeline.start();
+        registerMBean(completedOperationPipeline, COMPLETED_OPERATION_PIPELINE_OBJECT_NAME);
+        registerMBean(operationAggregator, OPERATION_AGGREGATOR_OBJECT_NAME);
+        metricCollector.start();
+        registerMBean(metricCollector, METRIC_COLLECTOR_OBJECT_NAME);
+        registerMBean(traceMemoryBudget, TRACE_MEMORY_BUDGET_OBJECT_NAME);
+        jvmProfiler.start();
+        registerMBean(jvmProfiler, JVM_PROFILER_OBJECT_NAME);
+        AgentConfigurationServiceFactory.getService().addConfigurationListener(
+                contentionMonitoringListener);
+
+        // per-operation deadlines are kept in a timing wheel owned by a single timer thread (see
+        // OperationTimer), so there is no per-operation scheduling or cancellation work performed
+        // by the request threads, and deadlines are honored with a granularity of
+        // OperationTimer.TICK_MILLIS
+        operationTimerScheduledExecutor.scheduleWithFixedDelay(new OperationTimer(operations,
+                stuckOperationLogExecutor), 0, OperationTimer.TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        aggregateHarvestScheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    for (AggregateBucket bucket : operationAggregator.harvest()) {
+                        // the metrics are summarized over the same interval as the aggregates
+                        // so that they line up in the collector's history (the collector
+                        // queues these up so this doesn't block)
+                        CollectorService collector = CollectorServiceFactory.getService();
+                        collector.collectAggregateData(bucket);
+                        collector.collectSystemData(metricCollector.getSystemData(bucket
+                                .getStartTime().getTime(), bucket.getDurationMillis()));
+                    }
+                } catch (Exception e) {
+                    // an exception would cancel the scheduled harvesting
+                    LOGGER.error(e.getMessage(), e);
                 }
             }
-        }
+        }, AGGREGATE_HARVEST_INTERVAL_MILLIS, AGGREGATE_HARVEST_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
-    private long getMillisUntilOperationReachesThreshold(OperationSafeImpl operation,
-            int thresholdMillis) {
-        long operationDurationNanoTime = System.nanoTime() - operation.getStartNanoTime();
-        return thresholdMillis - TimeUnit.NANOSECONDS.toMillis(operationDurationNanoTime);
+    // stops the timers, the aggregate harvesting, the metric collection, the jvm profiler, the
+    // completed operation pipeline and the collector, restores the jvm's contention monitoring
+    // setting and unregisters the mbeans, e.g. when the agent was loaded by a web application's
+    // class loader and the web application is undeployed
+    //
+    // in-flight operations are not affected, but stack traces are no longer captured for them,
+    // their deadlines are no longer honored and they are no longer collected once they complete
+    public void shutdown() {
+        shutdown = true;
+        operationTimerScheduledExecutor.shutdownNow();
+        stuckOperationLogExecutor.shutdownNow();
+        aggregateHarvestScheduledExecutor.shutdownNow();
+        metricCollector.shutdown();
+        jvmProfiler.shutdown();
+        completedOperationPipeline.stop();
+        // after the pipeline has stopped so that nothing more is handed to the collector
+        CollectorServiceFactory.getService().shutdown();
+        AgentConfigurationServiceFactory.getService().removeConfigurationListener(
+                contentionMonitoringListener);
+        ThreadResourceUsage.restoreContentionMonitoring();
+        unregisterMBeans();
     }
 
     // it is very important that calls to pushTraceEvent() are wrapped in try block with
     // a finally block executing popTraceEvent()
-    public TraceEventSafeImpl pushTraceEvent(ProbeExecution probeExecution) {
+    //
+    // traced is only used when this starts a new operation (see OperationSafeImpl.isTraced())
+    //
+    // returns the index of the trace event which is then passed to popTraceEvent()
+    int pushTraceEvent(AgentThreadContext threadContext, ProbeExecution probeExecution,
+            boolean traced, long startNanoTime) {
 
-        // trace element limit is handled inside ProbeExecutionManagerImpl
+        // trace element limit and trace sampling are handled inside ProbeExecutionManagerImpl
 
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
+        OperationSafeImpl currentOperation = threadContext.getOperation();
 
         if (currentOperation == null) {
-            currentOperation = new OperationSafeImpl(probeExecution);
-            currentOperationHolder.set(currentOperation);
-            operations.add(currentOperation);
-            return currentOperation.getTrace().getRootElement();
+            AgentConfiguration configuration =
+                    AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+            AgentTrace trace;
+            if (configuration.isCompactTraceEnabled()) {
+                trace = new CompactTraceSafeImpl(probeExecution, startNanoTime);
+            } else {
+                trace = new TraceSafeImpl(probeExecution, startNanoTime);
+            }
+            currentOperation = new OperationSafeImpl(trace, traced,
+                    configuration.isMetricHistogramsEnabled(),
+                    configuration.isResourceUsageEnabled(),
+                    configuration.isContentionMonitoringEnabled() && !shutdown);
+            threadContext.setOperation(currentOperation);
+            currentOperation.setRegistration(operations.add(currentOperation));
+            // the root trace event
+            reserveTraceMemory(currentOperation, 1);
+            return 0;
         } else {
-            return currentOperation.getTrace().pushElement(probeExecution);
+            int index = currentOperation.getTrace().pushElement(probeExecution, startNanoTime);
+            // reserves for indexes 1 through RESERVATION_EVENTS, and so on, so that operations
+            // with just the root trace event (e.g. not selected by trace sampling) only reserve
+            // for that one
+            if ((index & (TraceMemoryBudget.RESERVATION_EVENTS - 1)) == 1) {
+                reserveTraceMemory(currentOperation, TraceMemoryBudget.RESERVATION_EVENTS);
+            }
+            return index;
         }
     }
 
-    public void popTraceEvent(TraceEventSafeImpl traceEvent) {
-        popTraceEvent(traceEvent, System.nanoTime());
+    private void reserveTraceMemory(OperationSafeImpl operation, int traceEvents) {
+        long bytes = (long) traceEvents * (operation.getTrace().getEstimatedBytesPerElement()
+                + TraceMemoryBudget.ESTIMATED_PROBE_EXECUTION_BYTES);
+        operation.addReservedTraceBytes(bytes);
+        traceMemoryBudget.reserve(bytes);
     }
 
     // typically pop() methods don't require the element to pop, but for safety we are passing
     // in the element to pop just to make sure it is the one on top
     // (and if not we pop until we find it, preventing any nasty bugs from a forgotten pop
     // which could lead to an operation never being marked as completed)
-    public void popTraceEvent(TraceEventSafeImpl traceEvent, long elementEndNanoTime) {
+    void popTraceEvent(AgentThreadContext threadContext, int traceEventIndex,
+            long elementEndNanoTime) {
 
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
-        currentOperation.getTrace().popElement(traceEvent, elementEndNanoTime);
+        OperationSafeImpl currentOperation = threadContext.getOperation();
+        currentOperation.getTrace().popElement(traceEventIndex, elementEndNanoTime);
 
         if (currentOperation.isCompleted()) {
             // we have popped off the root trace element
-            cancelScheduledFuture(currentOperation.getCaptureStackTraceScheduledFuture());
-            cancelScheduledFuture(currentOperation.getStuckCommandScheduledFuture());
-            currentOperationHolder.remove();
-            operations.remove(currentOperation);
+            threadContext.setOperation(null);
+            // the root trace element is the outermost probe execution on this thread (nothing
+            // else can be holding on to the context at this point, see
+            // ProbeExecutionManagerImpl.execute())
+            threadContextHolder.remove();
+            // this also (lazily) cancels the operation's deadlines, see OperationTimer
+            currentOperation.getRegistration().remove();
+            // the completed operation may still be held on to for a while by the completed
+            // operation pipeline, but that is bounded separately by its queue capacity
+            traceMemoryBudget.release(currentOperation.getReservedTraceBytes());
+            // this must be captured on the operation's thread
+            currentOperation.captureResourceUsage();
+            currentOperation.captureContention();
+            recordResourceUsage(threadContext, currentOperation);
+            recordContention(threadContext, currentOperation);
             handleCompletedOperation(currentOperation);
         }
     }
 
-    private void cancelScheduledFuture(ScheduledFuture<?> scheduledFuture) {
-
-        if (scheduledFuture == null) {
-            return;
-        }
-
-        boolean success = scheduledFuture.cancel(false);
-        if (!success) {
-            // execution failed due to an error (probably programming error)
-            try {
-                scheduledFuture.get();
-            } catch (InterruptedException e) {
-                LOGGER.error(e.getMessage(), e);
-            } catch (ExecutionException e) {
-                LOGGER.error(e.getMessage(), e);
-            }
-        }
-    }
-
     private void handleCompletedOperation(OperationSafeImpl completedOperation) {
 
         AgentConfiguration configuration =
@@ -282,31 +325,152 @@ public final class Agent implements AgentService, Runnable {
 
             // to prevent the thread from being held up while logging is performed, the logging is
             // queued up to be performed in a separate thread
-            completedOperationLogExecutor.execute(new CompletedOperationLogCommand(
-                    completedOperation));
+            completedOperationPipeline.submit(completedOperation,
+                    configuration.getCompletedOperationOverflowPolicy());
         }
     }
 
-    public void recordOperationSummaryData(String operationSummaryKey, long timeInNanoseconds) {
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
-        // we only track aggregate info within an active operation
+    // root is true for the operation's root trace event, see OperationAggregator.Entry.recordRoot()
+    //
+    // threadContext is null when this thread is not inside of an operation (see
+    // getExistingThreadContext())
+    void recordOperationSummaryData(AgentThreadContext threadContext,
+            OperationSummaryKey operationSummaryKey, long timeInNanoseconds, boolean root) {
+
+        if (threadContext == null) {
+            // there is no context to take the stripe from, and it's not worth creating one just
+            // for this, so the stripe is derived from the thread id the same as in the context
+            noOperationAggregatorEntry.record((int) Thread.currentThread().getId(),
+                    operationSummaryKey, timeInNanoseconds);
+            return;
+        }
+        OperationSafeImpl currentOperation = threadContext.getOperation();
+        // we only track per-operation aggregate info within an active operation
         if (currentOperation != null) {
-            currentOperation.recordOperationSummaryData(operationSummaryKey, timeInNanoseconds);
+            currentOperation.recordOperationSummaryData(threadContext.getStripe(),
+                    operationSummaryKey, timeInNanoseconds);
+            if (root) {
+                getAggregatorEntry(currentOperation).recordRoot(threadContext.getStripe(),
+                        operationSummaryKey, timeInNanoseconds);
+            } else {
+                getAggregatorEntry(currentOperation).record(threadContext.getStripe(),
+                        operationSummaryKey, timeInNanoseconds);
+            }
+        } else {
+            noOperationAggregatorEntry.record(threadContext.getStripe(), operationSummaryKey,
+                    timeInNanoseconds);
         }
-        // TODO also send to the metric subsystem
     }
 
-    public TraceEventSafeImpl getCurrentTraceEvent() {
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
+    // the cpu time is recorded in the aggregates under its own operation summary key and the
+    // allocated bytes as a value (nothing is recorded if resource usage was not captured for the
+    // operation)
+    private void recordResourceUsage(AgentThreadContext threadContext,
+            OperationSafeImpl completedOperation) {
+
+        long cpuTimeInNanoseconds = completedOperation.getCpuTimeInNanoseconds();
+        long allocatedBytes = completedOperation.getAllocatedBytes();
+        if (cpuTimeInNanoseconds != -1) {
+            getAggregatorEntry(completedOperation).record(threadContext.getStripe(), cpuTimeKey,
+                    cpuTimeInNanoseconds);
+        }
+        if (allocatedBytes != -1) {
+            getAggregatorEntry(completedOperation).recordValue(threadContext.getStripe(),
+                    OperationAggregator.ALLOCATED_BYTES, allocatedBytes);
+        }
+    }
+
+    // the times are recorded in nanoseconds like the other times (though they only have millisecond
+    // resolution), and the counts are recorded as values (nothing is recorded if contention was
+    // not captured for the operation)
+    private void recordContention(AgentThreadContext threadContext,
+            OperationSafeImpl completedOperation) {
+
+        if (completedOperation.getBlockedCount() == -1) {
+            return;
+        }
+        OperationAggregator.Entry aggregatorEntry = getAggregatorEntry(completedOperation);
+        int stripe = threadContext.getStripe();
+        aggregatorEntry.recordValue(stripe, OperationAggregator.BLOCKED_COUNT,
+                completedOperation.getBlockedCount());
+        aggregatorEntry.recordValue(stripe, OperationAggregator.WAITED_COUNT,
+                completedOperation.getWaitedCount());
+        if (completedOperation.getBlockedTimeInMilliseconds() != -1) {
+            aggregatorEntry.record(stripe, blockedTimeKey, TimeUnit.MILLISECONDS
+                    .toNanos(completedOperation.getBlockedTimeInMilliseconds()));
+        }
+        if (completedOperation.getWaitedTimeInMilliseconds() != -1) {
+            aggregatorEntry.record(stripe, waitedTimeKey, TimeUnit.MILLISECONDS
+                    .toNanos(completedOperation.getWaitedTimeInMilliseconds()));
+        }
+    }
+
+    // the entry is cached on the operation so that it is only looked up once per operation
+    private OperationAggregator.Entry getAggregatorEntry(OperationSafeImpl operation) {
+        OperationAggregator.Entry aggregatorEntry = operation.getAggregatorEntry();
+        if (aggregatorEntry == null) {
+            aggregatorEntry = operationAggregator.getEntry(operation.getOperationName());
+            operation.setAggregatorEntry(aggregatorEntry);
+        }
+        return aggregatorEntry;
+    }
+
+    public OperationAggregator getOperationAggregator() {
+        return operationAggregator;
+    }
+
+    TraceMemoryBudget getTraceMemoryBudget() {
+        return traceMemoryBudget;
+    }
+
+    public MetricCollector getMetricCollector() {
+        return metricCollector;
+    }
+
+    public ProfileData getProfileData() {
+        return jvmProfiler.getProfileData();
+    }
+
+    // the thread local lookup is performed once per probe execution, after which the context is
+    // passed along explicitly
+    //
+    // returns null if this thread is not inside of an operation (or inside of a probe execution
+    // that disabled nested monitoring)
+    AgentThreadContext getExistingThreadContext() {
+        return threadContextHolder.get();
+    }
+
+    // the context must be removed again once it is no longer needed, see popTraceEvent() and
+    // removeThreadContext()
+    AgentThreadContext getThreadContext() {
+        AgentThreadContext threadContext = threadContextHolder.get();
+        if (threadContext == null) {
+            threadContext = new AgentThreadContext();
+            threadContextHolder.set(threadContext);
+        }
+        return threadContext;
+    }
+
+    void removeThreadContext() {
+        threadContextHolder.remove();
+    }
+
+    public ProbeExecution getCurrentProbeExecution() {
+        OperationSafeImpl currentOperation = getCurrentOperation();
         if (currentOperation == null) {
             return null;
         } else {
-            return currentOperation.getTrace().getCurrentElement();
+            return currentOperation.getTrace().getCurrentProbeExecution();
         }
     }
 
     public OperationSafeImpl getCurrentOperation() {
-        return currentOperationHolder.get();
+        AgentThreadContext threadContext = threadContextHolder.get();
+        if (threadContext == null) {
+            return null;
+        } else {
+            return threadContext.getOperation();
+        }
     }
 
     public boolean isEnabled() {
@@ -317,42 +481,80 @@ public final class Agent implements AgentService, Runnable {
         return configuration.isEnabled();
     }
 
-    public boolean isCurrentOperationDisabled() {
-        return currentOperationDisabledHolder.get() != null && currentOperationDisabledHolder.get();
+    // used by tests only
+    public void clearCurrentOperation() {
+        OperationSafeImpl currentOperation = getCurrentOperation();
+        threadContextHolder.remove();
+        if (currentOperation != null) {
+            currentOperation.getRegistration().remove();
+            traceMemoryBudget.release(currentOperation.getReservedTraceBytes());
+        }
     }
 
-    public void setCurrentOperationDisabled(boolean disabled) {
-        if (disabled) {
-            currentOperationDisabledHolder.set(true);
-        } else {
-            // clear out thread local
-            currentOperationDisabledHolder.set(null);
+    public Collection<OperationSafeImpl> getOperationsExceptCurrent() {
+        OperationSafeImpl currentOperation = getCurrentOperation();
+        List<OperationSafeImpl> operationsExceptCurrent = new ArrayList<OperationSafeImpl>();
+        for (OperationSafeImpl operation : operations) {
+            if (operation != currentOperation) {
+                operationsExceptCurrent.add(operation);
+            }
         }
+        return operationsExceptCurrent;
     }
 
-    // used by tests only
-    public void clearCurrentOperation() {
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
-        currentOperationHolder.remove();
-        operations.remove(currentOperation);
+    // when embedded, the agent reads its configuration directly from the (same jvm)
+    // AgentConfigurationService which has already published the new snapshot by the time these
+    // are called, so there is nothing more to do here
+    public void updateConfiguration(AgentConfiguration agentConfiguration) {
     }
 
-    public Collection<OperationSafeImpl> getOperationsExceptCurrent() {
-        OperationSafeImpl currentOperation = currentOperationHolder.get();
-        if (currentOperation == null) {
-            return operations;
-        } else {
-            List<OperationSafeImpl> operationsExceptCurrent =
-                    new ArrayList<OperationSafeImpl>(operations);
-            operationsExceptCurrent.remove(currentOperation);
-            return operationsExceptCurrent;
-        }
+    public void updateConfiguration(ProbeConfiguration probeConfiguration) {
+    }
+
+    public void updateConfiguration(MetricConfiguration metricConfiguration) {
     }
 
     public static Agent getInstance() {
         return INSTANCE;
     }
 
+    private void registerMBean(Object mbean, String objectName) {
+        try {
+            ObjectInstance objectInstance =
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                            new ObjectName(objectName));
+            registeredMBeanNames.add(objectInstance.getObjectName());
+        } catch (JMException e) {
+            // e.g. another instance of the agent was already registered in this jvm
+            LOGGER.warn("could not register mbean " + objectName + ": " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBeans() {
+        synchronized (registeredMBeanNames) {
+            for (ObjectName objectName : registeredMBeanNames) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (JMException e) {
+                    LOGGER.warn("could not unregister mbean " + objectName + ": "
+                            + e.getMessage());
+                }
+            }
+            registeredMBeanNames.clear();
+        }
+    }
+
+    private static final class ContentionMonitoringListener implements
+            AgentConfigurationListener {
+
+        public void onChange() {
+            if (!AgentConfigurationServiceFactory.getService().getAgentConfiguration()
+                    .isContentionMonitoringEnabled()) {
+                ThreadResourceUsage.restoreContentionMonitoring();
+            }
+        }
+    }
+
     // use daemon threads for executors so that they will not prevent JVM from
     // exiting normally
     private static final class DaemonThreadFactory implements ThreadFactory {
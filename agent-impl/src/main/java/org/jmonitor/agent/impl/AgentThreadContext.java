@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+
+/**
+ * Per-thread agent state. A single instance is held per thread (see
+ * {@link Agent#getThreadContext()}) so that a probe execution needs only one thread local lookup,
+ * after which the context is passed along explicitly. The instance only lives as long as the
+ * thread's operation (see {@link Agent#popTraceEvent(AgentThreadContext, int, long)}).
+ * 
+ * Instances are only ever accessed by their own thread, so no synchronization is needed.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+final class AgentThreadContext {
+
+    // the stripe is derived from the thread id (see OperationAggregator.record()), so that a
+    // thread keeps recording into the same stripe from one operation to the next, and so that
+    // creating a context doesn't contend on a shared counter
+    //
+    // (the context itself is still created per operation, since holding on to it in the thread
+    // local for the life of the thread would pin the agent's class loader, see
+    // Agent.popTraceEvent())
+    private final int stripe = (int) Thread.currentThread().getId();
+
+    // active running operation being executed by this thread
+    private OperationSafeImpl operation;
+
+    // this is used to disable monitoring of the current operation
+    // it is used in case monitoring is later enabled while this operation is still active
+    // in which case monitoring should stay disabled for the operation
+    private boolean operationDisabled;
+
+    OperationSafeImpl getOperation() {
+        return operation;
+    }
+
+    void setOperation(OperationSafeImpl operation) {
+        this.operation = operation;
+    }
+
+    boolean isOperationDisabled() {
+        return operationDisabled;
+    }
+
+    void setOperationDisabled(boolean operationDisabled) {
+        this.operationDisabled = operationDisabled;
+    }
+
+    int getStripe() {
+        return stripe;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+import org.jmonitor.agent.impl.util.collection.BoundedRingBuffer;
+import org.jmonitor.collector.service.CollectorService;
+import org.jmonitor.collector.service.CollectorServiceFactory;
+import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Hands off completed operations from the request threads to a single thread which logs them (and
+ * emails them as needed) via the {@link CollectorService}.
+ * 
+ * The handoff queue is bounded so that a slow collector can't hold on to an unbounded number of
+ * completed operations (and their traces). Request threads never block, when the queue is full
+ * operations are dropped according to the configured overflow policy (see
+ * {@link AgentConfiguration#getCompletedOperationOverflowPolicy()}).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CompletedOperationPipeline implements CompletedOperationPipelineMBean {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(CompletedOperationPipeline.class);
+
+    // under DROP_OLDEST, other request threads can be competing for the freed up slot
+    private static final int MAX_DROP_OLDEST_ATTEMPTS = 3;
+
+    // drops are logged on the first drop and then every so often
+    private static final int DROPPED_LOG_INTERVAL = 1000;
+
+    // bounds how long stop() waits for the operation currently being collected
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    private final CollectorService collector = CollectorServiceFactory.getService();
+
+    private final BoundedRingBuffer<Operation> queue;
+
+    private final Thread consumerThread;
+
+    // set by the consumer thread just before it parks, so that request threads only need to
+    // unpark it when it is actually waiting
+    private volatile boolean consumerParked;
+
+    private volatile boolean stopped;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong summarizedCount = new AtomicLong();
+    private final AtomicLong collectedCount = new AtomicLong();
+
+    private volatile long lagNanos;
+
+    CompletedOperationPipeline(int capacity, ThreadFactory threadFactory) {
+        queue = new BoundedRingBuffer<Operation>(capacity);
+        consumerThread = threadFactory.newThread(new Consumer());
+    }
+
+    void start() {
+        consumerThread.start();
+    }
+
+    // operations that are still queued are not collected, and operations submitted afterwards
+    // just sit in the (bounded) queue
+    void stop() {
+        stopped = true;
+        // the interrupt also wakes up the consumer thread if it is parked
+        consumerThread.interrupt();
+        try {
+            consumerThread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (consumerThread.isAlive()) {
+            LOGGER.warn("completed operation consumer thread did not stop within "
+                    + STOP_TIMEOUT_MILLIS + " milliseconds");
+        }
+    }
+
+    // this is called by the request thread and never blocks
+    void submit(OperationSafeImpl operation, String overflowPolicy) {
+
+        Operation element = operation;
+        if (AgentConfiguration.OVERFLOW_POLICY_SUMMARY_ONLY.equals(overflowPolicy)
+                && queue.size() >= queue.getCapacity() / 2) {
+            // the collector is falling behind, so only queue the summary which allows the trace
+            // and stack traces to be garbage collected right away
+            element = operation.toSummary();
+        }
+
+        if (queue.offer(element)) {
+            enqueued(element != operation);
+            return;
+        }
+        if (AgentConfiguration.OVERFLOW_POLICY_DROP_OLDEST.equals(overflowPolicy)) {
+            for (int i = 0; i < MAX_DROP_OLDEST_ATTEMPTS; i++) {
+                if (queue.poll() != null) {
+                    dropped();
+                }
+                if (queue.offer(element)) {
+                    enqueued(false);
+                    return;
+                }
+            }
+        }
+        // DROP_NEWEST (also used for SUMMARY_ONLY once the queue is full)
+        dropped();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSummarizedCount() {
+        return summarizedCount.get();
+    }
+
+    public long getCollectedCount() {
+        return collectedCount.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+
+    public long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lagNanos);
+    }
+
+    private void enqueued(boolean summarized) {
+        enqueuedCount.incrementAndGet();
+        if (summarized) {
+            summarizedCount.incrementAndGet();
+        }
+        if (consumerParked) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    private void dropped() {
+        long count = droppedCount.incrementAndGet();
+        if (count % DROPPED_LOG_INTERVAL == 1) {
+            LOGGER.warn("completed operation queue is full (capacity " + queue.getCapacity()
+                    + "), " + count + " completed operations have been dropped so far");
+        }
+    }
+
+    private void collect(Operation operation) {
+        try {
+            collector.collect(operation);
+        } catch (Exception e) {
+            // log and continue with the next operation
+            LOGGER.error(e.getMessage(), e);
+        } catch (Error e) {
+            // log and re-throw serious error
+            LOGGER.error(e.getMessage(), e);
+            throw e;
+        }
+        collectedCount.incrementAndGet();
+        lagNanos = System.nanoTime() - operation.getEndNanoTime();
+    }
+
+    private class Consumer implements Runnable {
+
+        public void run() {
+            // the stopped flag is checked (and not just the interrupt status) since the collector
+            // may swallow the interrupt
+            while (!stopped) {
+                Operation operation = queue.poll();
+                if (operation == null) {
+                    consumerParked = true;
+                    // re-check after publishing the flag so that an operation enqueued in between
+                    // (by a request thread which didn't see the flag yet) isn't left waiting
+                    if (queue.size() == 0 && !stopped) {
+                        LockSupport.park(this);
+                    }
+                    consumerParked = false;
+                } else {
+                    collect(operation);
+                }
+            }
+        }
+    }
+}
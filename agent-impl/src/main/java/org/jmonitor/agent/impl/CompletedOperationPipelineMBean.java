@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+/**
+ * JMX view of the {@link CompletedOperationPipeline} counters.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface CompletedOperationPipelineMBean {
+
+    long getEnqueuedCount();
+
+    // number of operations that were not logged because the queue was full
+    long getDroppedCount();
+
+    // number of operations that were queued without their trace and stack traces
+    long getSummarizedCount();
+
+    long getCollectedCount();
+
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    // time between completion and logging of the most recently logged operation
+    long getLagMillis();
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.lang.Thread.State;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationListener;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.model.SampledHotspotTreeSafeImpl;
+import org.jmonitor.collector.service.CollectorServiceFactory;
+import org.jmonitor.collector.service.model.ProfileData;
+import org.jmonitor.collector.service.model.SampledHotspotTree;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Samples the stack traces of all live threads at a fixed (low) frequency, independent of any
+ * operation, and merges them into a single call tree per window. This covers what the per
+ * operation stack traces miss, e.g. background threads, work that isn't captured as an operation,
+ * and cpu that is spread across many fast operations.
+ * 
+ * All threads are captured in a single {@link ThreadMXBean#getThreadInfo(long[], int)} call per
+ * sample (the same as {@link StackTraceSampler}), but only threads that are runnable or blocked
+ * are added to the call tree, since idle threads (e.g. pool threads waiting for work) would
+ * otherwise dominate it. Note that threads waiting on native i/o (e.g. a socket read) are reported
+ * as runnable by the jvm.
+ * 
+ * Frames are interned (see SampledHotspotTreeSafeImpl) and the number of nodes per window is
+ * capped at {@link #MAX_NODE_COUNT}. At the end of each window its call tree is passed to the
+ * collector and kept as the latest profile (see {@link #getProfileData()}), and a new call tree is
+ * started.
+ * 
+ * The profiler thread only runs while the profiler is enabled. It is started when the profiler is
+ * enabled (at startup or via a configuration change), and it exits on its own once it finds the
+ * profiler disabled (the partial window is discarded). The configuration is re-read before each
+ * sample, so interval and window changes apply right away.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class JvmProfiler implements JvmProfilerMBean, AgentConfigurationListener {
+
+    private static final Logger LOGGER = CollectorServiceLoggerFactory.getLogger(JvmProfiler.class);
+
+    // bounds the memory of each window's call tree (each node is roughly 100 bytes)
+    private static final int MAX_NODE_COUNT = 50000;
+
+    // guards against a misconfigured interval turning the profiler into a busy loop
+    private static final int MIN_INTERVAL_MILLIS = 10;
+
+    // bounds how long shutdown() waits for the sample that is currently being captured
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private final ThreadFactory threadFactory;
+
+    // null while the profiler is disabled, guarded by this
+    private Thread profilerThread;
+
+    // guarded by this
+    private boolean shutdown;
+
+    // only written by the profiler thread
+    private volatile Window currentWindow;
+
+    // null until the first window completes, and while the profiler is disabled
+    private volatile Window lastWindow;
+
+    // only written by the profiler thread
+    private volatile long sampleCount;
+    private volatile long samplingTimeNanos;
+    private volatile long windowCount;
+
+    JvmProfiler(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    // starts the profiler thread if the profiler is enabled, and listens for the profiler to be
+    // enabled later on
+    void start() {
+        AgentConfigurationServiceFactory.getService().addConfigurationListener(this);
+        onChange();
+    }
+
+    // stops the profiler thread (if running) and stops listening for configuration changes
+    void shutdown() {
+        AgentConfigurationServiceFactory.getService().removeConfigurationListener(this);
+        Thread thread;
+        synchronized (this) {
+            shutdown = true;
+            thread = profilerThread;
+        }
+        if (thread == null) {
+            return;
+        }
+        // the profiler thread needs the lock on its way out, so it is not held while joining
+        thread.interrupt();
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void onChange() {
+        if (!shutdown && profilerThread == null && isEnabled(getConfiguration())) {
+            profilerThread = threadFactory.newThread(new Sampler());
+            profilerThread.start();
+        }
+    }
+
+    // returns true if the profiler thread is running
+    synchronized boolean isRunning() {
+        return profilerThread != null;
+    }
+
+    // returns null if the profiler is disabled or hasn't completed a window yet
+    ProfileData getProfileData() {
+        return lastWindow;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSamplingTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(samplingTimeNanos);
+    }
+
+    public long getWindowCount() {
+        return windowCount;
+    }
+
+    public int getCurrentNodeCount() {
+        Window window = currentWindow;
+        if (window == null) {
+            return 0;
+        } else {
+            return window.sampledHotspotTree.getNodeCount();
+        }
+    }
+
+    public int getCurrentTruncatedSampleCount() {
+        Window window = currentWindow;
+        if (window == null) {
+            return 0;
+        } else {
+            return window.sampledHotspotTree.getTruncatedSampleCount();
+        }
+    }
+
+    // this is only called by the profiler thread
+    private void sample(AgentConfiguration configuration) {
+
+        long captureTime = System.currentTimeMillis();
+        Window window = currentWindow;
+        if (window == null) {
+            window = new Window(captureTime);
+            currentWindow = window;
+        } else if (captureTime - window.startTime >= configuration.getJvmProfilerWindowSeconds()
+                * 1000L) {
+            completeWindow(window, captureTime);
+            window = new Window(captureTime);
+            currentWindow = window;
+        }
+
+        int maxDepth = configuration.getMaxStackTraceDepth();
+        if (maxDepth == AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED) {
+            maxDepth = Integer.MAX_VALUE;
+        }
+
+        long startNanoTime = System.nanoTime();
+        long[] threadIds = threadBean.getAllThreadIds();
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, maxDepth);
+        long profilerThreadId = Thread.currentThread().getId();
+        for (int i = 0; i < threadInfos.length; i++) {
+            // thread info is null if the thread is no longer alive
+            if (threadInfos[i] == null || threadIds[i] == profilerThreadId) {
+                continue;
+            }
+            State threadState = threadInfos[i].getThreadState();
+            if (threadState == State.RUNNABLE || threadState == State.BLOCKED) {
+                window.sampledHotspotTree.addStackTrace(threadInfos[i]);
+            }
+        }
+        window.sampleCount++;
+        sampleCount++;
+        samplingTimeNanos += System.nanoTime() - startNanoTime;
+    }
+
+    private void completeWindow(Window window, long endTime) {
+        window.durationMillis = endTime - window.startTime;
+        lastWindow = window;
+        windowCount++;
+        // the collector queues this up so this doesn't block
+        CollectorServiceFactory.getService().collectProfileData(window);
+    }
+
+    // returns true if the profiler thread should exit, this is only called by the profiler thread
+    private synchronized boolean exitIfDisabled(AgentConfiguration configuration) {
+        // the configuration is checked while holding the lock so that the profiler can't be
+        // re-enabled (see onChange()) in between this thread deciding to exit and clearing
+        // profilerThread
+        if (shutdown || !isEnabled(configuration)) {
+            profilerThread = null;
+            currentWindow = null;
+            lastWindow = null;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private static AgentConfiguration getConfiguration() {
+        return AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+    }
+
+    private static boolean isEnabled(AgentConfiguration configuration) {
+        return configuration.isEnabled() && configuration.isJvmProfilerEnabled();
+    }
+
+    private class Sampler implements Runnable {
+
+        // failures are only logged once (until sampling succeeds again) since the same failure
+        // would otherwise be logged on every sample
+        private boolean failing;
+
+        public void run() {
+            while (true) {
+                AgentConfiguration configuration = getConfiguration();
+                if (exitIfDisabled(configuration)) {
+                    return;
+                }
+                try {
+                    sample(configuration);
+                    failing = false;
+                } catch (Exception e) {
+                    // catching exception (and not letting it escape) since anything thrown from
+                    // here would stop the profiler until it is re-enabled
+                    if (!failing) {
+                        LOGGER.error(e.getMessage(), e);
+                        failing = true;
+                    }
+                }
+                try {
+                    Thread.sleep(Math.max(configuration.getJvmProfilerIntervalMillis(),
+                            MIN_INTERVAL_MILLIS));
+                } catch (InterruptedException e) {
+                    // interrupted by shutdown() (after setting the shutdown flag), the loop exits
+                    // via exitIfDisabled()
+                    continue;
+                }
+            }
+        }
+    }
+
+    // the call tree is only added to by the profiler thread, and the window is not modified once
+    // it has been completed (it is handed off to other threads via the volatile lastWindow and the
+    // collector's queue)
+    private static class Window implements ProfileData {
+
+        private final long startTime;
+        private long durationMillis;
+        private int sampleCount;
+        private final SampledHotspotTreeSafeImpl sampledHotspotTree =
+                new SampledHotspotTreeSafeImpl(MAX_NODE_COUNT);
+
+        private Window(long startTime) {
+            this.startTime = startTime;
+        }
+
+        public Date getStartTime() {
+            return new Date(startTime);
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public int getTruncatedSampleCount() {
+            return sampledHotspotTree.getTruncatedSampleCount();
+        }
+
+        public SampledHotspotTree getSampledHotspotTree() {
+            return sampledHotspotTree;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+/**
+ * JMX view of the {@link JvmProfiler} counters.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface JvmProfilerMBean {
+
+    // number of times the live threads have been sampled
+    long getSampleCount();
+
+    // total time spent capturing and merging samples, this is the overhead of the profiler
+    long getSamplingTimeMillis();
+
+    // number of windows that have been collected
+    long getWindowCount();
+
+    // nodes in the call tree of the current window
+    int getCurrentNodeCount();
+
+    // samples in the current window that were cut short because of the max number of nodes
+    int getCurrentTruncatedSampleCount();
+}
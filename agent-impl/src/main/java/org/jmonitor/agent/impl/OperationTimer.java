@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+import org.jmonitor.agent.impl.util.collection.RegistrationList;
+import org.jmonitor.agent.impl.util.collection.TimingWheel;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.jmonitor.util.NanoUtils;
+import org.slf4j.Logger;
+
+/**
+ * Owns all per-operation deadlines (stack trace capture and stuck operation logging) using a
+ * single {@link TimingWheel}. Stack traces for all operations that are due in a given tick are
+ * captured together by {@link StackTraceSampler}.
+ * 
+ * Request threads do no scheduling work at all. New operations are discovered on each tick via a
+ * cursor over the agent's active operation registry, and completed operations are cancelled (in
+ * O(1)) when they are purged from the registry.
+ * 
+ * Designed to be run by a single thread at a fixed delay of {@link #TICK_MILLIS}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+class OperationTimer implements Runnable, RegistrationList.RemovalListener<OperationSafeImpl> {
+
+    static final int TICK_MILLIS = 10;
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(OperationTimer.class);
+
+    // 512 ticks of 10 milliseconds gives a wheel rotation of just over 5 seconds, longer deadlines
+    // (e.g. the default stuck threshold) simply wait a number of rotations
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final RegistrationList<OperationSafeImpl> operations;
+
+    // used to discover operations that have been added to the registry since the last tick
+    private final RegistrationList<OperationSafeImpl>.Cursor newOperationCursor;
+
+    private final TimingWheel wheel;
+
+    private final StackTraceSampler stackTraceSampler = new StackTraceSampler();
+
+    // logging stuck operations can take some time if there is lots of data to log, so it is
+    // performed on a separate thread in order to not delay other deadlines
+    private final Executor stuckOperationLogExecutor;
+
+    // the configuration is only read once per tick, and when its version changes all active
+    // operations are re-scheduled
+    private AgentConfiguration configuration;
+
+    OperationTimer(RegistrationList<OperationSafeImpl> operations,
+            Executor stuckOperationLogExecutor) {
+
+        this.operations = operations;
+        this.stuckOperationLogExecutor = stuckOperationLogExecutor;
+        newOperationCursor = operations.newCursor();
+        wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), TICKS_PER_WHEEL,
+                System.nanoTime());
+    }
+
+    public void run() {
+        try {
+            runInternal();
+        } catch (Exception e) {
+            // log and terminate this thread successfully
+            LOGGER.error(e.getMessage(), e);
+        } catch (Error e) {
+            // log and re-throw serious error which will terminate subsequent scheduled executions
+            // (see ScheduledExecutorService.scheduleWithFixedDelay())
+            LOGGER.error(e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    private void runInternal() {
+
+        // cancel deadlines for completed operations (see removed() below)
+        operations.purge(this);
+
+        AgentConfiguration previousConfiguration = configuration;
+        configuration = AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+
+        // schedule newly started operations
+        OperationSafeImpl operation;
+        while ((operation = newOperationCursor.next()) != null) {
+            OperationTimeout timeout = new OperationTimeout(operation);
+            operation.setTimeout(timeout);
+            scheduleNext(timeout);
+        }
+
+        if (previousConfiguration != null
+                && previousConfiguration.getVersion() != configuration.getVersion()) {
+            // thresholds may have changed
+            for (OperationSafeImpl activeOperation : operations) {
+                OperationTimeout timeout = (OperationTimeout) activeOperation.getTimeout();
+                if (timeout != null) {
+                    scheduleNext(timeout);
+                }
+            }
+        }
+
+        wheel.advance(System.nanoTime());
+
+        stackTraceSampler.capturePending(configuration.getMaxStackTraceDepth());
+    }
+
+    public void removed(OperationSafeImpl operation) {
+        TimingWheel.Timeout timeout = operation.getTimeout();
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+    }
+
+    private void expire(OperationTimeout timeout) {
+
+        OperationSafeImpl operation = timeout.operation;
+        if (operation.isCompleted()) {
+            // it will be cancelled when it is purged from the registry
+            return;
+        }
+
+        long currentNanoTime = System.nanoTime();
+
+        if (isStackTraceEnabled()
+                && NanoUtils.isLessThan(getNextStackTraceNanoTime(timeout), currentNanoTime)) {
+            // the stack trace is captured (together with any others that are due) at the end of
+            // this tick
+            stackTraceSampler.add(operation);
+            timeout.lastStackTraceNanoTime = currentNanoTime;
+            timeout.stackTraceCaptured = true;
+        }
+
+        if (isStuckPending(timeout)
+                && NanoUtils.isLessThan(getStuckNanoTime(timeout), currentNanoTime)) {
+            timeout.stuckCommandSubmitted = true;
+            stuckOperationLogExecutor.execute(new StuckOperationCommand(operation));
+        }
+
+        scheduleNext(timeout);
+    }
+
+    private void scheduleNext(OperationTimeout timeout) {
+
+        boolean stackTraceEnabled = isStackTraceEnabled();
+        boolean stuckPending = isStuckPending(timeout);
+
+        if (stackTraceEnabled && stuckPending) {
+            long stackTraceNanoTime = getNextStackTraceNanoTime(timeout);
+            long stuckNanoTime = getStuckNanoTime(timeout);
+            if (NanoUtils.isLessThan(stackTraceNanoTime, stuckNanoTime)) {
+                wheel.schedule(timeout, stackTraceNanoTime);
+            } else {
+                wheel.schedule(timeout, stuckNanoTime);
+            }
+        } else if (stackTraceEnabled) {
+            wheel.schedule(timeout, getNextStackTraceNanoTime(timeout));
+        } else if (stuckPending) {
+            wheel.schedule(timeout, getStuckNanoTime(timeout));
+        } else {
+            wheel.cancel(timeout);
+        }
+    }
+
+    private boolean isStackTraceEnabled() {
+        return configuration.getStackTraceInitialDelayMillis()
+                != AgentConfiguration.THRESHOLD_DISABLED;
+    }
+
+    private boolean isStuckPending(OperationTimeout timeout) {
+        return configuration.getStuckThresholdMillis() != AgentConfiguration.THRESHOLD_DISABLED
+                && !timeout.stuckCommandSubmitted;
+    }
+
+    private long getNextStackTraceNanoTime(OperationTimeout timeout) {
+        if (timeout.stackTraceCaptured) {
+            return timeout.lastStackTraceNanoTime
+                    + TimeUnit.MILLISECONDS.toNanos(configuration.getStackTracePeriodMillis());
+        } else {
+            return timeout.operation.getStartNanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                    configuration.getStackTraceInitialDelayMillis());
+        }
+    }
+
+    private long getStuckNanoTime(OperationTimeout timeout) {
+        return timeout.operation.getStartNanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(configuration.getStuckThresholdMillis());
+    }
+
+    // only accessed by the timer thread
+    private final class OperationTimeout extends TimingWheel.Timeout {
+
+        private final OperationSafeImpl operation;
+
+        private boolean stackTraceCaptured;
+        private long lastStackTraceNanoTime;
+        private boolean stuckCommandSubmitted;
+
+        private OperationTimeout(OperationSafeImpl operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        protected void expire() {
+            OperationTimer.this.expire(this);
+        }
+    }
+}
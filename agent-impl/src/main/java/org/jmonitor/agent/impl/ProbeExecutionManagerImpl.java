@@ -16,15 +16,24 @@
 
 package org.jmonitor.agent.impl;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.jmonitor.agent.configuration.AgentConfiguration;
 import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.model.AgentTrace;
 import org.jmonitor.agent.impl.model.OperationSafeImpl;
-import org.jmonitor.agent.impl.model.TraceEventSafeImpl;
+import org.jmonitor.api.probe.BooleanProbeProperty;
+import org.jmonitor.api.probe.IntegerProbeProperty;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
 import org.jmonitor.api.probe.ProbeExecutionCreator;
 import org.jmonitor.api.probe.ProbeExecutionManager;
 import org.jmonitor.api.probe.ProbeExecutionWithUpdate;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreatorWithTemplate;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.jmonitor.api.probe.StringSetProbeProperty;
 import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
 import org.jmonitor.collector.shared.logging.LoggerImpl;
 import org.slf4j.Logger;
@@ -43,11 +52,49 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
 
     private static final ProbeExecutionManagerImpl INSTANCE = new ProbeExecutionManagerImpl();
 
+    // adapts the older (per-call instance) creator api to the stateless creator api
+    private static final StatelessProbeExecutionCreator<ProbeExecutionCreator, Void> ADAPTER =
+            new StatelessProbeExecutionCreator<ProbeExecutionCreator, Void>() {
+                public ProbeExecution createProbeExecution(ProbeExecutionCreator target,
+                        Void argument) {
+                    return target.createProbeExecution();
+                }
+            };
+
+    // used for trace sampling decisions, see isTraceSampled()
+    private final AtomicLong rootOperationCounter = new AtomicLong();
+
     public String getProperty(String probeName, String propertyName) {
         return AgentConfigurationServiceFactory.getService().getProbeConfiguration().getProperty(
                 probeName, propertyName);
     }
 
+    public BooleanProbeProperty getBooleanProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getBooleanProperty(probeName, propertyName);
+    }
+
+    public IntegerProbeProperty getIntegerProperty(String probeName, String propertyName,
+            int defaultValue) {
+        return ProbePropertyRegistry.getInstance().getIntegerProperty(probeName, propertyName,
+                defaultValue);
+    }
+
+    public StringProbeProperty getStringProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getStringProperty(probeName, propertyName);
+    }
+
+    public StringSetProbeProperty getStringSetProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getStringSetProperty(probeName, propertyName);
+    }
+
+    public OperationSummaryKey getOperationSummaryKey(String name) {
+        if (name == null) {
+            // this is passed through from the methods below which accept a (nullable) name
+            return null;
+        }
+        return OperationSummaryKeyRegistry.getInstance().getOperationSummaryKey(name);
+    }
+
     public Logger getProbeLogger(Class<?> clazz) {
         return new LoggerImpl(LoggerFactory.getLogger(clazz));
     }
@@ -68,48 +115,160 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
             ProceedingJoinPoint joinPoint, String operationSummaryKey,
             boolean requiresExistingOperation) throws Throwable {
 
+        return execute(ADAPTER, probeExecutionCreator, null, joinPoint,
+                getOperationSummaryKey(operationSummaryKey), requiresExistingOperation);
+    }
+
+    public <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator,
+            T target, A argument, ProceedingJoinPoint joinPoint, String operationSummaryKey,
+            boolean requiresExistingOperation) throws Throwable {
+
+        return execute(probeExecutionCreator, target, argument, joinPoint,
+                getOperationSummaryKey(operationSummaryKey), requiresExistingOperation);
+    }
+
+    // none of the paths that end up in proceedAndDisableNested() or proceedAndRecordMetricData()
+    // allocate, so probes using this method cost nothing on the heap when monitoring is disabled,
+    // when the operation is not being traced, when the trace limit has been exceeded or when the
+    // trace memory budget is being degraded (see TraceMemoryBudget)
+    public <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator,
+            T target, A argument, ProceedingJoinPoint joinPoint,
+            OperationSummaryKey operationSummaryKey, boolean requiresExistingOperation)
+            throws Throwable {
+
         AgentConfiguration configuration =
                 AgentConfigurationServiceFactory.getService().getAgentConfiguration();
 
+        // this is the only thread local lookup, the context is passed along from here
+        // (it is null unless this thread is already inside of an operation or inside of a probe
+        // execution that disabled nested monitoring, see Agent.getExistingThreadContext())
+        AgentThreadContext threadContext = Agent.getInstance().getExistingThreadContext();
+
         // this should be the first check to avoid any additional overhead when monitoring is
         // disabled
         if (!configuration.isEnabled()) {
-            return proceedAndDisableNested(joinPoint);
+            return proceedAndDisableNested(threadContext, joinPoint);
         }
 
-        if (requiresExistingOperation && !isInOperation()) {
+        OperationSafeImpl currentOperation =
+                threadContext == null ? null : threadContext.getOperation();
+
+        if (requiresExistingOperation && currentOperation == null) {
             if (configuration.isWarnOnTraceEventOutsideOperation()) {
                 LOGGER.warn("jdbc call occurred outside of operation", new IllegalStateException());
             }
-            return proceedAndDisableNested(joinPoint);
+            return proceedAndDisableNested(threadContext, joinPoint);
         }
 
-        if (Agent.getInstance().isCurrentOperationDisabled()) {
+        if (threadContext != null && threadContext.isOperationDisabled()) {
             // monitor was enabled after the current operation had started
             // we still gather metric data
-            return proceedAndRecordMetricData(joinPoint, operationSummaryKey);
+            return proceedAndRecordMetricData(threadContext, joinPoint, operationSummaryKey);
+        }
+
+        // this is a single volatile read unless the level is being degraded
+        TraceMemoryBudget traceMemoryBudget = Agent.getInstance().getTraceMemoryBudget();
+        int traceMemoryLevel = traceMemoryBudget.getLevel();
+
+        if (currentOperation == null) {
+            if (traceMemoryLevel == TraceMemoryBudget.NO_CAPTURE) {
+                // the trace memory budget has been exceeded, so new operations are not captured
+                // at all until the active operations complete
+                traceMemoryBudget.skippedOperation();
+                // a context is created (and removed again afterwards) in this case so that nested
+                // probe executions don't start an operation of their own once the level recovers
+                return proceedAndDisableNested(Agent.getInstance().getThreadContext(), joinPoint);
+            }
+            // the context is removed again when the root trace event is popped, see
+            // Agent.popTraceEvent()
+            threadContext = Agent.getInstance().getThreadContext();
+            if (traceMemoryLevel == TraceMemoryBudget.METRICS_ONLY) {
+                // the trace memory soft limit has been exceeded, so new operations only capture
+                // the root trace event and metric data (same as not selected by trace sampling)
+                traceMemoryBudget.untracedOperation();
+                return proceedAndTrace(threadContext, probeExecutionCreator, target, argument,
+                        joinPoint, operationSummaryKey, false);
+            }
+            // this is the root of a new operation, operations that are not selected by trace
+            // sampling still get registered (with just the root trace event) so that they are
+            // captured with stack traces if they turn out to be slow or stuck
+            return proceedAndTrace(threadContext, probeExecutionCreator, target, argument,
+                    joinPoint, operationSummaryKey, isTraceSampled(configuration));
+        }
+
+        if (traceMemoryLevel != TraceMemoryBudget.NORMAL) {
+            // the trace memory soft limit (or the budget) has been exceeded, so active operations
+            // stop adding trace events
+            // we still gather metric data
+            return proceedAndRecordMetricData(threadContext, joinPoint, operationSummaryKey);
         }
 
-        // TODO fix this very long line below
-        OperationSafeImpl currentOperation = Agent.getInstance().getCurrentOperation();
-        if (currentOperation != null
-                && currentOperation.getTrace().getSize() >= configuration.getMaxTraceEventsPerOperation()) {
+        if (!currentOperation.isTraced()) {
+            // operation was not selected by trace sampling
+            // we still gather metric data
+            return proceedAndRecordMetricData(threadContext, joinPoint, operationSummaryKey);
+        }
+
+        int maxTraceEvents = configuration.getMaxTraceEventsPerOperation();
+        if (maxTraceEvents != AgentConfiguration.TRACE_EVENTS_LIMIT_DISABLED
+                && currentOperation.getTrace().getSize() >= maxTraceEvents) {
             // trace limit has been exceeded
+            if (configuration.isTraceEventFoldingEnabled()
+                    && hasFoldTarget(currentOperation.getTrace(), probeExecutionCreator, target,
+                            argument)) {
+                return proceedAndFold(threadContext, probeExecutionCreator, target, argument,
+                        joinPoint, operationSummaryKey);
+            }
             // we still gather metric data
-            return proceedAndRecordMetricData(joinPoint, operationSummaryKey);
+            return proceedAndRecordMetricData(threadContext, joinPoint, operationSummaryKey);
         }
 
-        return proceedAndTrace(probeExecutionCreator, joinPoint, operationSummaryKey);
+        return proceedAndTrace(threadContext, probeExecutionCreator, target, argument, joinPoint,
+                operationSummaryKey, true);
     }
 
-    private Object proceedAndTrace(ProbeExecutionCreator probeExecutionCreator,
-            ProceedingJoinPoint joinPoint, String operationSummaryKey) throws Throwable {
+    // sampling is deterministic (evenly spaced) rather than random, e.g. a rate of 0.01 traces
+    // exactly every 100th operation
+    private boolean isTraceSampled(AgentConfiguration configuration) {
+        double rate = configuration.getTraceSamplingRate();
+        if (rate >= 1) {
+            return true;
+        }
+        if (rate <= 0) {
+            return false;
+        }
+        long count = rootOperationCounter.incrementAndGet();
+        // true each time count * rate crosses an integer boundary
+        return (long) (count * rate) != (long) ((count - 1) * rate);
+    }
 
-        ProbeExecution probeExecution = probeExecutionCreator.createProbeExecution();
+    // creators with a template are matched against the fold targets before the probe execution is
+    // created, so that e.g. a jdbc execution past the trace limit with a different sql than the
+    // fold targets doesn't copy its bind parameters just to be dropped
+    private static <T, A> boolean hasFoldTarget(AgentTrace trace,
+            StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target, A argument) {
+
+        if (probeExecutionCreator instanceof StatelessProbeExecutionCreatorWithTemplate) {
+            String template =
+                    ((StatelessProbeExecutionCreatorWithTemplate<T, A>) probeExecutionCreator)
+                            .getDescriptionTemplate(target, argument);
+            return template != null && trace.hasFoldTarget(template);
+        }
+        return trace.hasFoldTarget();
+    }
+
+    private <T, A> Object proceedAndTrace(AgentThreadContext threadContext,
+            StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target, A argument,
+            ProceedingJoinPoint joinPoint, OperationSummaryKey operationSummaryKey,
+            boolean traced) throws Throwable {
+
+        ProbeExecution probeExecution =
+                probeExecutionCreator.createProbeExecution(target, argument);
 
         // start trace element
-        TraceEventSafeImpl traceEvent =
-                Agent.getInstance().pushTraceEvent(probeExecution);
+        long startNanoTime = System.nanoTime();
+        int traceEventIndex = Agent.getInstance().pushTraceEvent(threadContext, probeExecution,
+                traced, startNanoTime);
 
         try {
             return joinPoint.proceed();
@@ -117,7 +276,8 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
         } finally {
 
             if (probeExecution instanceof ProbeExecutionWithUpdate) {
-                ((ProbeExecutionWithUpdate) probeExecution).setProbeExecutionHolder(traceEvent);
+                ((ProbeExecutionWithUpdate) probeExecution).setProbeExecutionHolder(threadContext
+                        .getOperation().getTrace().getElementHolder(traceEventIndex));
             }
 
             // we want to minimize the number of calls to the clock timer since they are relatively
@@ -127,63 +287,133 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
             // record aggregate timing data
             if (operationSummaryKey != null) {
                 // only record aggregate timing data for the top most servlet or filter
-                Agent.getInstance().recordOperationSummaryData(operationSummaryKey,
-                        endNanoTime - traceEvent.getStartNanoTime());
+                Agent.getInstance().recordOperationSummaryData(threadContext,
+                        operationSummaryKey, endNanoTime - startNanoTime, traceEventIndex == 0);
             }
 
             // end trace element needs to be the last thing we do, at least when this is a root
             // trace element
-            Agent.getInstance().popTraceEvent(traceEvent, endNanoTime);
+            Agent.getInstance().popTraceEvent(threadContext, traceEventIndex, endNanoTime);
+        }
+    }
+
+    // the probe execution is created (so that its template can be compared) but it is not added
+    // to the trace, it is either folded into a previous trace event (see AgentTrace.foldElement())
+    // or dropped
+    private <T, A> Object proceedAndFold(AgentThreadContext threadContext,
+            StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target, A argument,
+            ProceedingJoinPoint joinPoint, OperationSummaryKey operationSummaryKey)
+            throws Throwable {
+
+        ProbeExecution probeExecution =
+                probeExecutionCreator.createProbeExecution(target, argument);
+        AgentTrace trace = threadContext.getOperation().getTrace();
+
+        // this is normally false, but is restored either way instead of assuming so
+        boolean previouslyDisabled = threadContext.isOperationDisabled();
+        long startNanoTime = System.nanoTime();
+        try {
+            // nested probe executions can't be folded into the children of the current trace
+            // event so they only record metric data (see execute())
+            threadContext.setOperationDisabled(true);
+            return joinPoint.proceed();
+
+        } finally {
+
+            threadContext.setOperationDisabled(previouslyDisabled);
+
+            long endNanoTime = System.nanoTime();
+
+            // record aggregate timing data
+            if (operationSummaryKey != null) {
+                Agent.getInstance().recordOperationSummaryData(threadContext,
+                        operationSummaryKey, endNanoTime - startNanoTime, false);
+            }
+
+            Object elementHolder = trace.foldElement(probeExecution, startNanoTime, endNanoTime);
+            if (elementHolder != null && probeExecution instanceof ProbeExecutionWithUpdate) {
+                // later updates (e.g. the jdbc row count) re-flush the folded trace event
+                ((ProbeExecutionWithUpdate) probeExecution).setProbeExecutionHolder(elementHolder);
+            }
         }
     }
 
     public Object proceedAndRecordMetricData(ProceedingJoinPoint joinPoint,
             String operationSummaryKey) throws Throwable {
 
+        return proceedAndRecordMetricData(joinPoint, getOperationSummaryKey(operationSummaryKey));
+    }
+
+    public Object proceedAndRecordMetricData(ProceedingJoinPoint joinPoint,
+            OperationSummaryKey operationSummaryKey) throws Throwable {
+
+        return proceedAndRecordMetricData(Agent.getInstance().getExistingThreadContext(),
+                joinPoint, operationSummaryKey);
+    }
+
+    // threadContext is null if this thread is not inside of an operation
+    private Object proceedAndRecordMetricData(AgentThreadContext threadContext,
+            ProceedingJoinPoint joinPoint, OperationSummaryKey operationSummaryKey)
+            throws Throwable {
+
         long startNanoTime = System.nanoTime();
         try {
             return joinPoint.proceed();
         } finally {
             long endNanoTime = System.nanoTime();
             // record aggregate timing data
-            Agent.getInstance().recordOperationSummaryData(operationSummaryKey,
-                    endNanoTime - startNanoTime);
+            if (operationSummaryKey != null) {
+                Agent.getInstance().recordOperationSummaryData(threadContext,
+                        operationSummaryKey, endNanoTime - startNanoTime, false);
+            }
         }
     }
 
     public void handleProbeExecutionUpdate(ProbeExecutionWithUpdate probeExecution) {
 
+        Object elementHolder = probeExecution.getProbeExecutionHolder();
+        if (elementHolder == null) {
+            // the probe execution was created past the trace limit but was not folded into the
+            // trace (see proceedAndFold())
+            return;
+        }
         Agent.getInstance().getCurrentOperation().getTrace().justUpdatedCompletedElement(
-                (TraceEventSafeImpl) probeExecution.getProbeExecutionHolder());
+                elementHolder);
     }
 
     public ProbeExecution getRootProbeExecution() {
-        TraceEventSafeImpl element = Agent.getInstance().getCurrentTraceEvent();
-        if (element == null) {
-            return null;
-        } else {
-            return element.getProbeExecution();
-        }
+        return Agent.getInstance().getCurrentProbeExecution();
     }
 
     public boolean isEnabled() {
-        return Agent.getInstance().isEnabled() && !Agent.getInstance().isCurrentOperationDisabled();
+        AgentThreadContext threadContext = Agent.getInstance().getExistingThreadContext();
+        return Agent.getInstance().isEnabled()
+                && (threadContext == null || !threadContext.isOperationDisabled());
     }
 
-    private boolean isInOperation() {
-        return Agent.getInstance().getCurrentOperation() != null;
-    }
-
-    private Object proceedAndDisableNested(ProceedingJoinPoint joinPoint) throws Throwable {
+    // threadContext is null if this thread is not inside of an operation, in which case no context
+    // is created just to disable nested monitoring (creating and removing it on every call would
+    // add an allocation to the disabled path), the trade-off being that a nested probe execution
+    // can start an operation if monitoring is re-enabled in the meantime
+    private Object proceedAndDisableNested(AgentThreadContext threadContext,
+            ProceedingJoinPoint joinPoint) throws Throwable {
 
-        boolean previouslyDisabled = Agent.getInstance().isCurrentOperationDisabled();
+        if (threadContext == null) {
+            return joinPoint.proceed();
+        }
+        boolean previouslyDisabled = threadContext.isOperationDisabled();
         try {
             // disable current operation so that nested trace elements will not be captured even
             // if monitoring is re-enabled mid-operation
-            Agent.getInstance().setCurrentOperationDisabled(true);
+            threadContext.setOperationDisabled(true);
             return joinPoint.proceed();
         } finally {
-            Agent.getInstance().setCurrentOperationDisabled(previouslyDisabled);
+            threadContext.setOperationDisabled(previouslyDisabled);
+            if (!previouslyDisabled && threadContext.getOperation() == null) {
+                // this was the outermost probe execution on this thread, see
+                // Agent.popTraceEvent()
+                Agent.getInstance().removeThreadContext();
+            }
         }
     }
 
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.jmonitor.agent.configuration.AgentConfigurationListener;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.configuration.ProbeConfiguration;
+import org.jmonitor.api.probe.BooleanProbeProperty;
+import org.jmonitor.api.probe.IntegerProbeProperty;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.jmonitor.api.probe.StringSetProbeProperty;
+
+/**
+ * Holds the typed probe property handles handed out by ProbeExecutionManagerImpl and re-parses
+ * them whenever a new probe configuration snapshot is published.
+ * 
+ * There is a single handle per probe property (and type), so asking for the same property again
+ * (e.g. from a probe that is loaded by more than one class loader) returns the existing handle.
+ * Handles are only ever parsed under the lock on the registry, and never from an older snapshot
+ * than the one they were last parsed from.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public final class ProbePropertyRegistry implements AgentConfigurationListener {
+
+    private static final ProbePropertyRegistry INSTANCE = create();
+
+    // keyed by type, probe name and property name (see getKey())
+    private final ConcurrentMap<String, ProbePropertyBase> properties =
+            new ConcurrentHashMap<String, ProbePropertyBase>();
+
+    // version of the probe configuration snapshot that the handles were last parsed from
+    // (agent and metric configuration changes also trigger onChange())
+    //
+    // only accessed under lock on this
+    private long probeConfigurationVersion;
+
+    private ProbePropertyRegistry() {
+    }
+
+    public BooleanProbeProperty getBooleanProperty(String probeName, String propertyName) {
+        String key = getKey("boolean", probeName, propertyName);
+        ProbePropertyBase property = properties.get(key);
+        if (property == null) {
+            property = register(key, new BooleanProbePropertyImpl(probeName, propertyName));
+        }
+        return (BooleanProbeProperty) property;
+    }
+
+    // the default value is part of the key, since it is what an unparseable value falls back to
+    public IntegerProbeProperty getIntegerProperty(String probeName, String propertyName,
+            int defaultValue) {
+        String key = getKey("integer:" + defaultValue, probeName, propertyName);
+        ProbePropertyBase property = properties.get(key);
+        if (property == null) {
+            property = register(key, new IntegerProbePropertyImpl(probeName, propertyName,
+                    defaultValue));
+        }
+        return (IntegerProbeProperty) property;
+    }
+
+    public StringProbeProperty getStringProperty(String probeName, String propertyName) {
+        String key = getKey("string", probeName, propertyName);
+        ProbePropertyBase property = properties.get(key);
+        if (property == null) {
+            property = register(key, new StringProbePropertyImpl(probeName, propertyName));
+        }
+        return (StringProbeProperty) property;
+    }
+
+    public StringSetProbeProperty getStringSetProperty(String probeName, String propertyName) {
+        String key = getKey("string-set", probeName, propertyName);
+        ProbePropertyBase property = properties.get(key);
+        if (property == null) {
+            property = register(key, new StringSetProbePropertyImpl(probeName, propertyName));
+        }
+        return (StringSetProbeProperty) property;
+    }
+
+    // listeners can be called concurrently (and so complete out of order) by threads that update
+    // the configuration, but since the latest snapshot is read under the lock, a handle never
+    // goes back to an older snapshot
+    public synchronized void onChange() {
+        ProbeConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getProbeConfiguration();
+        if (configuration.getVersion() <= probeConfigurationVersion) {
+            return;
+        }
+        for (ProbePropertyBase property : properties.values()) {
+            property.update(configuration);
+        }
+        probeConfigurationVersion = configuration.getVersion();
+    }
+
+    // returns the existing handle if another thread registered the same property in the meantime
+    private synchronized ProbePropertyBase register(String key, ProbePropertyBase property) {
+        ProbePropertyBase existingProperty = properties.get(key);
+        if (existingProperty != null) {
+            return existingProperty;
+        }
+        // the latest snapshot is never older than the one the other handles were last parsed from,
+        // and a newer snapshot that is published concurrently is picked up by onChange() once
+        // this returns
+        property.update(AgentConfigurationServiceFactory.getService().getProbeConfiguration());
+        properties.put(key, property);
+        return property;
+    }
+
+    public static ProbePropertyRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    // probe and property names are simple names, so they don't contain line breaks
+    private static String getKey(String type, String probeName, String propertyName) {
+        return type + "\n" + probeName + "\n" + propertyName;
+    }
+
+    private static ProbePropertyRegistry create() {
+        ProbePropertyRegistry registry = new ProbePropertyRegistry();
+        AgentConfigurationServiceFactory.getService().addConfigurationListener(registry);
+        return registry;
+    }
+
+    private abstract static class ProbePropertyBase {
+
+        private final String probeName;
+        private final String propertyName;
+
+        private ProbePropertyBase(String probeName, String propertyName) {
+            this.probeName = probeName;
+            this.propertyName = propertyName;
+        }
+
+        void update(ProbeConfiguration configuration) {
+            parse(configuration.getProperty(probeName, propertyName));
+        }
+
+        // value is never null
+        protected abstract void parse(String value);
+    }
+
+    private static final class BooleanProbePropertyImpl extends ProbePropertyBase implements
+            BooleanProbeProperty {
+
+        private volatile boolean value;
+
+        private BooleanProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public boolean get() {
+            return value;
+        }
+
+        @Override
+        protected void parse(String value) {
+            this.value = Boolean.valueOf(value);
+        }
+    }
+
+    private static final class IntegerProbePropertyImpl extends ProbePropertyBase implements
+            IntegerProbeProperty {
+
+        private final int defaultValue;
+        private volatile int value;
+
+        private IntegerProbePropertyImpl(String probeName, String propertyName, int defaultValue) {
+            super(probeName, propertyName);
+            this.defaultValue = defaultValue;
+        }
+
+        public int get() {
+            return value;
+        }
+
+        @Override
+        protected void parse(String value) {
+            try {
+                this.value = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                this.value = defaultValue;
+            }
+        }
+    }
+
+    private static final class StringProbePropertyImpl extends ProbePropertyBase implements
+            StringProbeProperty {
+
+        private volatile String value;
+
+        private StringProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public String get() {
+            return value;
+        }
+
+        @Override
+        protected void parse(String value) {
+            this.value = value;
+        }
+    }
+
+    private static final class StringSetProbePropertyImpl extends ProbePropertyBase implements
+            StringSetProbeProperty {
+
+        private volatile Set<String> value;
+
+        private StringSetProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public Set<String> get() {
+            return value;
+        }
+
+        @Override
+        protected void parse(String value) {
+            Set<String> values = new HashSet<String>();
+            for (String item : StringUtils.split(value, ',')) {
+                values.add(item.trim());
+            }
+            // the new set is fully built before being published
+            this.value = Collections.unmodifiableSet(values);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+
+/**
+ * Captures stack traces for all operations that are due for a sample in a single
+ * {@link ThreadMXBean#getThreadInfo(long[], int)} call (per timer tick), which keeps the number
+ * of safepoint pauses down when many operations are slow at the same time, and then distributes
+ * the stack traces to each operation's sampled hotspot tree.
+ * 
+ * This class is not thread safe, it is designed to be used only by {@link OperationTimer}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+class StackTraceSampler {
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    // operations that are due for a sample, re-used across ticks
+    private final List<OperationSafeImpl> pendingOperations = new ArrayList<OperationSafeImpl>();
+
+    void add(OperationSafeImpl operation) {
+        pendingOperations.add(operation);
+    }
+
+    void capturePending(int maxStackTraceDepth) {
+
+        if (pendingOperations.isEmpty()) {
+            return;
+        }
+        try {
+            capturePendingInternal(maxStackTraceDepth);
+        } finally {
+            // cleared even if capturing fails (e.g. the thread mxbean throws), otherwise the same
+            // operations (and everything they reference) would pile up here tick after tick
+            pendingOperations.clear();
+        }
+    }
+
+    private void capturePendingInternal(int maxStackTraceDepth) {
+
+        // operations are compacted to the front of the list as their thread ids are collected
+        // (threads that have been garbage collected can't be sampled)
+        int size = 0;
+        long[] threadIds = new long[pendingOperations.size()];
+        for (int i = 0; i < pendingOperations.size(); i++) {
+            OperationSafeImpl operation = pendingOperations.get(i);
+            Thread thread = operation.getThread();
+            if (thread != null) {
+                pendingOperations.set(size, operation);
+                threadIds[size++] = thread.getId();
+            }
+        }
+        if (size < threadIds.length) {
+            long[] trimmedThreadIds = new long[size];
+            System.arraycopy(threadIds, 0, trimmedThreadIds, 0, size);
+            threadIds = trimmedThreadIds;
+        }
+
+        int maxDepth;
+        if (maxStackTraceDepth == AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED) {
+            maxDepth = Integer.MAX_VALUE;
+        } else {
+            maxDepth = maxStackTraceDepth;
+        }
+
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, maxDepth);
+
+        for (int i = 0; i < size; i++) {
+            OperationSafeImpl operation = pendingOperations.get(i);
+            // thread info is null if the thread is no longer alive
+            if (threadInfos[i] != null && !operation.isCompleted()) {
+                operation.addStackTrace(threadInfos[i]);
+            }
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package org.jmonitor.agent.impl;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.ScheduledExecutorService;
 
 import org.jmonitor.agent.impl.model.OperationSafeImpl;
 import org.jmonitor.collector.service.CollectorService;
@@ -26,29 +25,25 @@ import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
 import org.slf4j.Logger;
 
 /**
- * TODO update doc
- * 
  * Logs all data captured for a stuck {@link OperationSafeImpl}. The first time the operation is
  * logged as stuck, an email alert is also sent.
  * 
  * If the {@link OperationSafeImpl} is complete it does nothing.
  * 
- * Designed to be scheduled and run in a separate thread as soon as the operation exceeds a given
- * threshold, and then again at specified intervals after that (e.g. via
- * {@link ScheduledExecutorService#scheduleWithFixedDelay}).
+ * Designed to be submitted by {@link OperationTimer} to a separate thread as soon as the operation
+ * exceeds the stuck threshold.
  * 
  * @author Trask Stalnaker
  * @since 1.0
  */
-// TODO update javadoc
 public class StuckOperationCommand implements Runnable {
 
     private static final Logger LOGGER = CollectorServiceLoggerFactory.getLogger(StuckOperationCommand.class);
 
     private final CollectorService collector = CollectorServiceFactory.getService();
 
-    // since it's possible for this scheduled command to live for a while after the operation has
-    // completed we use a weak reference to make sure it won't prevent larger operations from being
+    // since it's possible for this command to wait in the executor queue for a while after the
+    // operation has completed we use a weak reference to make sure it won't prevent larger operations from being
     // garbage collected
     private final WeakReference<OperationSafeImpl> operationHolder;
 
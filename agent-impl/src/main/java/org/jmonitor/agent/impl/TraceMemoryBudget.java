@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Tracks an estimate of the memory held by the traces of all active operations against the
+ * configured budget (see {@link AgentConfiguration#getTraceMemoryBudgetKilobytes()}).
+ * 
+ * Operations reserve memory in batches of {@link #RESERVATION_EVENTS} trace events (see
+ * Agent.pushTraceEvent()) and release it all when they complete, so the shared counter is only
+ * updated once every so many trace events. The resulting level is a volatile read for
+ * ProbeExecutionManagerImpl, which degrades to metric data only above the soft limit and stops
+ * capturing new operations altogether above the budget.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TraceMemoryBudget implements TraceMemoryBudgetMBean {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(TraceMemoryBudget.class);
+
+    static final int NORMAL = 0;
+    static final int METRICS_ONLY = 1;
+    static final int NO_CAPTURE = 2;
+
+    private static final String[] LEVEL_NAMES = { "normal", "metrics only", "no capture" };
+
+    // must be a power of two
+    static final int RESERVATION_EVENTS = 16;
+
+    // rough average size of a probe execution including its strings (e.g. jdbc sql and parameters)
+    static final int ESTIMATED_PROBE_EXECUTION_BYTES = 128;
+
+    // a level is only lowered once the estimate drops this far (as a percentage of the watermark)
+    // below the watermark that raised it, so that hovering around a watermark doesn't flap
+    private static final int HYSTERESIS_PERCENT = 10;
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    // read by every probe execution
+    private volatile int level = NORMAL;
+
+    private final AtomicLong metricsOnlyTransitionCount = new AtomicLong();
+    private final AtomicLong noCaptureTransitionCount = new AtomicLong();
+    private final AtomicLong untracedOperationCount = new AtomicLong();
+    private final AtomicLong skippedOperationCount = new AtomicLong();
+
+    int getLevel() {
+        return level;
+    }
+
+    // these are called by the request threads
+    void reserve(long bytes) {
+        updateLevel(estimatedBytes.addAndGet(bytes));
+    }
+
+    void release(long bytes) {
+        if (bytes != 0) {
+            updateLevel(estimatedBytes.addAndGet(-bytes));
+        }
+    }
+
+    // new operation that was started without its trace because of the soft limit
+    void untracedOperation() {
+        untracedOperationCount.incrementAndGet();
+    }
+
+    // new operation that was not captured at all because of the budget
+    void skippedOperation() {
+        skippedOperationCount.incrementAndGet();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    public String getLevelName() {
+        return LEVEL_NAMES[level];
+    }
+
+    public long getMetricsOnlyTransitionCount() {
+        return metricsOnlyTransitionCount.get();
+    }
+
+    public long getNoCaptureTransitionCount() {
+        return noCaptureTransitionCount.get();
+    }
+
+    public long getUntracedOperationCount() {
+        return untracedOperationCount.get();
+    }
+
+    public long getSkippedOperationCount() {
+        return skippedOperationCount.get();
+    }
+
+    private void updateLevel(long bytes) {
+        int currentLevel = level;
+        if (getLevel(bytes, currentLevel) != currentLevel) {
+            changeLevel();
+        }
+    }
+
+    // transitions are rare so they are simply serialized, and the level is recomputed from the
+    // latest estimate in case another thread has changed it in the meantime
+    private synchronized void changeLevel() {
+        int oldLevel = level;
+        long bytes = estimatedBytes.get();
+        int newLevel = getLevel(bytes, oldLevel);
+        if (newLevel == oldLevel) {
+            return;
+        }
+        level = newLevel;
+        String message = "estimated trace memory is " + bytes / 1024 + "kb, changed from \""
+                + LEVEL_NAMES[oldLevel] + "\" to \"" + LEVEL_NAMES[newLevel] + "\"";
+        if (newLevel > oldLevel) {
+            if (newLevel == METRICS_ONLY) {
+                metricsOnlyTransitionCount.incrementAndGet();
+            } else {
+                noCaptureTransitionCount.incrementAndGet();
+            }
+            LOGGER.warn(message);
+        } else {
+            LOGGER.info(message);
+        }
+    }
+
+    private static int getLevel(long bytes, int currentLevel) {
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+        int budgetKilobytes = configuration.getTraceMemoryBudgetKilobytes();
+        if (budgetKilobytes == AgentConfiguration.TRACE_MEMORY_BUDGET_UNLIMITED) {
+            return NORMAL;
+        }
+        long hardLimit = budgetKilobytes * 1024L;
+        long softLimit = hardLimit * configuration.getTraceMemorySoftLimitPercent() / 100;
+        if (bytes >= hardLimit) {
+            return NO_CAPTURE;
+        }
+        if (currentLevel == NO_CAPTURE && bytes >= lowerBy(hardLimit)) {
+            return NO_CAPTURE;
+        }
+        if (bytes >= softLimit) {
+            return METRICS_ONLY;
+        }
+        if (currentLevel != NORMAL && bytes >= lowerBy(softLimit)) {
+            return METRICS_ONLY;
+        }
+        return NORMAL;
+    }
+
+    private static long lowerBy(long watermark) {
+        return watermark - watermark * HYSTERESIS_PERCENT / 100;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+/**
+ * JMX view of the {@link TraceMemoryBudget} counters.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface TraceMemoryBudgetMBean {
+
+    // estimated memory held by the traces of all active operations
+    long getEstimatedBytes();
+
+    // "normal", "metrics only" or "no capture"
+    String getLevelName();
+
+    // number of times the soft limit was exceeded
+    long getMetricsOnlyTransitionCount();
+
+    // number of times the budget was exceeded
+    long getNoCaptureTransitionCount();
+
+    // number of new operations that were started without their trace because of the soft limit
+    long getUntracedOperationCount();
+
+    // number of new operations that were not captured because of the budget
+    long getSkippedOperationCount();
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jmonitor.collector.service.model.AggregateData;
+
+/**
+ * Immutable aggregate data for all operation names / operation summary keys that were recorded
+ * during a single (completed) bucket.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AggregateBucket implements AggregateData {
+
+    private final long startTimeMillis;
+    private final long durationMillis;
+    private final List<AggregateItem> items;
+    private final List<AggregateValue> valueItems;
+
+    AggregateBucket(long startTimeMillis, long durationMillis, List<AggregateItem> items,
+            List<AggregateValue> valueItems) {
+
+        this.startTimeMillis = startTimeMillis;
+        this.durationMillis = durationMillis;
+        this.items = Collections.unmodifiableList(items);
+        this.valueItems = Collections.unmodifiableList(valueItems);
+    }
+
+    public Date getStartTime() {
+        return new Date(startTimeMillis);
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public List<AggregateItem> getItems() {
+        return items;
+    }
+
+    public List<AggregateValue> getValueItems() {
+        return valueItems;
+    }
+
+    // e.g. requests per second when the item is the operation's root ("http request")
+    public double getRatePerSecond(AggregateItem item) {
+        return item.getCount() * 1000.0 / durationMillis;
+    }
+}
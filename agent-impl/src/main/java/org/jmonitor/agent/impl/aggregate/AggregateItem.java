@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import org.jmonitor.agent.impl.util.LogLinearHistogram;
+import org.jmonitor.collector.service.model.AggregateDataItem;
+
+/**
+ * Immutable aggregate data for a single operation name / operation summary key pair over a single
+ * bucket. The name (see {@link #getName()}) is the operation summary key, e.g. "http request" or
+ * "jdbc execute".
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AggregateItem implements AggregateDataItem {
+
+    private final String operationName;
+    private final String name;
+    private final long count;
+    private final long totalTimeInNanoseconds;
+    private final long minimumTimeInNanoseconds;
+    private final long maximumTimeInNanoseconds;
+
+    // null if histograms are disabled
+    private final LogLinearHistogram histogram;
+
+    AggregateItem(String operationName, String name, long count, long totalTimeInNanoseconds,
+            long minimumTimeInNanoseconds, long maximumTimeInNanoseconds,
+            LogLinearHistogram histogram) {
+
+        this.operationName = operationName;
+        this.name = name;
+        this.count = count;
+        this.totalTimeInNanoseconds = totalTimeInNanoseconds;
+        this.minimumTimeInNanoseconds = minimumTimeInNanoseconds;
+        this.maximumTimeInNanoseconds = maximumTimeInNanoseconds;
+        this.histogram = histogram;
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalTimeInNanoseconds() {
+        return totalTimeInNanoseconds;
+    }
+
+    public long getMinimumTimeInNanoseconds() {
+        return minimumTimeInNanoseconds;
+    }
+
+    public long getMaximumTimeInNanoseconds() {
+        return maximumTimeInNanoseconds;
+    }
+
+    public long getAverageTimeInNanoseconds() {
+        return totalTimeInNanoseconds / count;
+    }
+
+    public long getPercentileTimeInNanoseconds(double percentile) {
+        if (histogram == null || histogram.getTotalCount() == 0) {
+            return -1;
+        } else {
+            // the histogram only knows which bucket the value is in, the maximum is exact
+            return Math.min(histogram.getValueAtPercentile(percentile),
+                    getMaximumTimeInNanoseconds());
+        }
+    }
+
+    // returns a new item combining this item and the given item (e.g. from another bucket), the
+    // histogram is only retained if both items have one
+    AggregateItem merge(AggregateItem item) {
+        LogLinearHistogram mergedHistogram = null;
+        if (histogram != null && item.histogram != null) {
+            mergedHistogram = new LogLinearHistogram();
+            mergedHistogram.merge(histogram);
+            mergedHistogram.merge(item.histogram);
+        }
+        return new AggregateItem(operationName, name, count + item.count,
+                totalTimeInNanoseconds + item.totalTimeInNanoseconds, Math.min(
+                        minimumTimeInNanoseconds, item.minimumTimeInNanoseconds), Math.max(
+                        maximumTimeInNanoseconds, item.maximumTimeInNanoseconds),
+                mergedHistogram);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import org.jmonitor.collector.service.model.AggregateValueItem;
+
+/**
+ * Immutable aggregate data for a single operation name / value pair over a single bucket, see
+ * {@link OperationAggregator.Entry#recordValue}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AggregateValue implements AggregateValueItem {
+
+    private final String operationName;
+    private final String name;
+    private final String unit;
+    private final long count;
+    private final long total;
+    private final long minimum;
+    private final long maximum;
+
+    AggregateValue(String operationName, String name, String unit, long count, long total,
+            long minimum, long maximum) {
+
+        this.operationName = operationName;
+        this.name = name;
+        this.unit = unit;
+        this.count = count;
+        this.total = total;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMinimum() {
+        return minimum;
+    }
+
+    public long getMaximum() {
+        return maximum;
+    }
+
+    public double getAverage() {
+        return (double) total / count;
+    }
+
+    // returns a new value combining this value and the given value (e.g. from another bucket)
+    AggregateValue merge(AggregateValue value) {
+        return new AggregateValue(operationName, name, unit, count + value.count, total
+                + value.total, Math.min(minimum, value.minimum), Math.max(maximum,
+                value.maximum));
+    }
+}
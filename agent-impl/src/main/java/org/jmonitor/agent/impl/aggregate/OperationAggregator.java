@@ -0,0 +1,482 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.util.LogLinearHistogram;
+import org.jmonitor.api.probe.OperationSummaryKey;
+
+/**
+ * Aggregates operation summary data (count, total, minimum and maximum time) across all
+ * operations, keyed by operation name (e.g. the servlet request uri) and operation summary key
+ * (e.g. "http request", "jdbc execute"), into fixed time buckets. Optionally, each operation name
+ * also gets a latency histogram (see {@link LogLinearHistogram}) of its root operation summary
+ * key, see {@link Entry#recordRoot}. Per-operation values other than times (e.g. allocated bytes)
+ * are aggregated separately by operation name, see {@link Entry#recordValue}.
+ * 
+ * Unlike trace capture, this is always on (whenever monitoring is enabled) and covers every
+ * operation regardless of threshold or trace sampling, which gives throughput and response time
+ * for the fast operations that never get logged.
+ * 
+ * Recording is done by the request threads into striped accumulators (see
+ * {@link StripedAccumulator}) and doesn't lock or allocate (other than the first time a given
+ * operation name / operation summary key pair is seen). Callers resolve the {@link Entry} for an
+ * operation name once (e.g. once per operation) and then record by operation summary key id, so
+ * there is no hashing on the recording path. Completed buckets are harvested by a single
+ * background thread (see {@link #harvest()}) into a bounded history.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class OperationAggregator implements OperationAggregatorMBean {
+
+    // used for operation summary data recorded outside of an operation
+    public static final String NO_OPERATION_NAME = "(no operation)";
+
+    // used once MAX_OPERATION_NAMES is reached, e.g. when request uris contain ids
+    public static final String OTHER_OPERATION_NAME = "(other)";
+
+    // operation summary keys for the per-operation cpu time (see
+    // AgentConfiguration.isResourceUsageEnabled()) and contention (see
+    // AgentConfiguration.isContentionMonitoringEnabled())
+    public static final String CPU_TIME_NAME = "cpu time";
+    public static final String BLOCKED_TIME_NAME = "blocked time";
+    public static final String WAITED_TIME_NAME = "waited time";
+
+    // the per-operation values other than times, see Entry.recordValue()
+    public static final int ALLOCATED_BYTES = 0;
+    public static final int BLOCKED_COUNT = 1;
+    public static final int WAITED_COUNT = 2;
+
+    // indexed by the values above
+    private static final String[] VALUE_NAMES =
+            new String[] { "allocated bytes", "blocked count", "waited count" };
+    private static final String[] VALUE_UNITS = new String[] { "bytes", "", "" };
+
+    public static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // the number of completed buckets that are retained
+    private static final int MAX_BUCKETS = 60;
+
+    private static final int MAX_OPERATION_NAMES = 1000;
+
+    // buckets are harvested a little after they end so that recordings which read the time just
+    // before the end of the bucket have completed
+    private static final long HARVEST_DELAY_MILLIS = 1000;
+
+    // stripes are only added when threads actually contend (see StripedAccumulator), and there is
+    // no point in more stripes than there are threads that can run at the same time
+    private final int maxStripes;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // counts the entries other than OTHER_OPERATION_NAME
+    private final AtomicInteger operationNameCount = new AtomicInteger();
+
+    // once MAX_OPERATION_NAMES is reached, unknown operation names go straight to this entry
+    private final Entry otherEntry;
+
+    // only accessed by the harvest thread
+    private long lastHarvestedBucket;
+
+    // guarded by itself
+    private final LinkedList<AggregateBucket> buckets = new LinkedList<AggregateBucket>();
+
+    public OperationAggregator() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int powerOfTwo = 1;
+        while (powerOfTwo < processors) {
+            powerOfTwo <<= 1;
+        }
+        maxStripes = powerOfTwo;
+        otherEntry = new Entry(OTHER_OPERATION_NAME, maxStripes);
+        entries.put(OTHER_OPERATION_NAME, otherEntry);
+        // the current (partial) bucket is the first one to be harvested
+        lastHarvestedBucket = System.currentTimeMillis() / BUCKET_MILLIS - 1;
+    }
+
+    // the returned entry should be retained by the caller for subsequent recordings
+    public Entry getEntry(String operationName) {
+        Entry entry = entries.get(operationName);
+        if (entry != null) {
+            return entry;
+        }
+        if (operationNameCount.get() >= MAX_OPERATION_NAMES) {
+            // this is the common case once the limit is reached (e.g. request uris containing
+            // ids), so it must not allocate
+            return otherEntry;
+        }
+        entry = new Entry(operationName, maxStripes);
+        Entry existingEntry = entries.putIfAbsent(operationName, entry);
+        if (existingEntry == null) {
+            // racing threads can push the count slightly past the limit, which is harmless
+            operationNameCount.incrementAndGet();
+            return entry;
+        } else {
+            return existingEntry;
+        }
+    }
+
+    // this should be called periodically (more often than once per bucket) by a single thread,
+    // returns the buckets that were completed since the last call (usually none or one)
+    public List<AggregateBucket> harvest() {
+
+        long lastCompletedBucket =
+                (System.currentTimeMillis() - HARVEST_DELAY_MILLIS) / BUCKET_MILLIS - 1;
+        // each accumulator only has two slots, so if harvesting has fallen further behind than
+        // that, the older buckets have already been mixed in with the newer ones
+        long bucket = Math.max(lastHarvestedBucket + 1, lastCompletedBucket - 1);
+        List<AggregateBucket> harvestedBuckets = new ArrayList<AggregateBucket>();
+        for (; bucket <= lastCompletedBucket; bucket++) {
+            List<AggregateItem> items = new ArrayList<AggregateItem>();
+            List<AggregateValue> valueItems = new ArrayList<AggregateValue>();
+            for (Entry entry : entries.values()) {
+                entry.harvest(bucket, items);
+                entry.harvestValues(bucket, valueItems);
+            }
+            AggregateBucket harvestedBucket =
+                    new AggregateBucket(bucket * BUCKET_MILLIS, BUCKET_MILLIS, items, valueItems);
+            addBucket(harvestedBucket);
+            harvestedBuckets.add(harvestedBucket);
+            lastHarvestedBucket = bucket;
+        }
+        return harvestedBuckets;
+    }
+
+    // returns completed buckets, oldest first
+    public List<AggregateBucket> getBuckets() {
+        synchronized (buckets) {
+            return new ArrayList<AggregateBucket>(buckets);
+        }
+    }
+
+    // returns null if no bucket has been completed yet
+    public AggregateBucket getLastBucket() {
+        synchronized (buckets) {
+            if (buckets.isEmpty()) {
+                return null;
+            } else {
+                return buckets.getLast();
+            }
+        }
+    }
+
+    public long getBucketMillis() {
+        return BUCKET_MILLIS;
+    }
+
+    public int getOperationNameCount() {
+        return operationNameCount.get();
+    }
+
+    // combines the items with the same operation name and operation summary key across all of
+    // the retained buckets
+    public List<AggregateItem> getMergedItems() {
+        Map<String, Map<String, AggregateItem>> mergedItems =
+                new LinkedHashMap<String, Map<String, AggregateItem>>();
+        for (AggregateBucket bucket : getBuckets()) {
+            for (AggregateItem item : bucket.getItems()) {
+                Map<String, AggregateItem> map = mergedItems.get(item.getOperationName());
+                if (map == null) {
+                    map = new LinkedHashMap<String, AggregateItem>();
+                    mergedItems.put(item.getOperationName(), map);
+                }
+                AggregateItem mergedItem = map.get(item.getName());
+                if (mergedItem == null) {
+                    map.put(item.getName(), item);
+                } else {
+                    map.put(item.getName(), mergedItem.merge(item));
+                }
+            }
+        }
+        List<AggregateItem> items = new ArrayList<AggregateItem>();
+        for (Map<String, AggregateItem> map : mergedItems.values()) {
+            items.addAll(map.values());
+        }
+        return items;
+    }
+
+    // same as getMergedItems(), but for the values
+    public List<AggregateValue> getMergedValueItems() {
+        // keyed by operation name and value name
+        Map<List<String>, AggregateValue> mergedItems =
+                new LinkedHashMap<List<String>, AggregateValue>();
+        for (AggregateBucket bucket : getBuckets()) {
+            for (AggregateValue item : bucket.getValueItems()) {
+                List<String> key = Arrays.asList(item.getOperationName(), item.getName());
+                AggregateValue mergedItem = mergedItems.get(key);
+                if (mergedItem == null) {
+                    mergedItems.put(key, item);
+                } else {
+                    mergedItems.put(key, mergedItem.merge(item));
+                }
+            }
+        }
+        return new ArrayList<AggregateValue>(mergedItems.values());
+    }
+
+    public String[] getLastBucketSummary() {
+        AggregateBucket bucket = getLastBucket();
+        if (bucket == null) {
+            return new String[0];
+        }
+        return getSummary(bucket.getItems(), bucket.getValueItems(), bucket.getDurationMillis());
+    }
+
+    public String[] getMergedSummary() {
+        int bucketCount;
+        synchronized (buckets) {
+            bucketCount = buckets.size();
+        }
+        return getSummary(getMergedItems(), getMergedValueItems(), bucketCount * BUCKET_MILLIS);
+    }
+
+
+    private void addBucket(AggregateBucket bucket) {
+        synchronized (buckets) {
+            buckets.add(bucket);
+            if (buckets.size() > MAX_BUCKETS) {
+                buckets.removeFirst();
+            }
+        }
+    }
+
+    private static String[] getSummary(List<AggregateItem> items,
+            List<AggregateValue> valueItems, long durationMillis) {
+
+        List<String> lines = new ArrayList<String>();
+        for (AggregateItem item : items) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%s, %s: count=%d, rate=%.2f/s, average=%.3fms,"
+                    + " minimum=%.3fms, maximum=%.3fms", item.getOperationName(),
+                    item.getName(), item.getCount(), item.getCount() * 1000.0 / durationMillis,
+                    toMillis(item.getAverageTimeInNanoseconds()),
+                    toMillis(item.getMinimumTimeInNanoseconds()),
+                    toMillis(item.getMaximumTimeInNanoseconds())));
+            if (item.getPercentileTimeInNanoseconds(50) != -1) {
+                line.append(String.format(", p50=%.3fms, p95=%.3fms, p99=%.3fms, p99.9=%.3fms",
+                        toMillis(item.getPercentileTimeInNanoseconds(50)),
+                        toMillis(item.getPercentileTimeInNanoseconds(95)),
+                        toMillis(item.getPercentileTimeInNanoseconds(99)),
+                        toMillis(item.getPercentileTimeInNanoseconds(99.9))));
+            }
+            lines.add(line.toString());
+        }
+        for (AggregateValue item : valueItems) {
+            if (item.getUnit().equals("bytes")) {
+                lines.add(String.format("%s, %s: count=%d, average=%.1fKB, minimum=%.1fKB,"
+                        + " maximum=%.1fKB", item.getOperationName(), item.getName(),
+                        item.getCount(), item.getAverage() / 1024, item.getMinimum() / 1024.0,
+                        item.getMaximum() / 1024.0));
+            } else {
+                lines.add(String.format("%s, %s: count=%d, average=%.1f, minimum=%d,"
+                        + " maximum=%d", item.getOperationName(), item.getName(),
+                        item.getCount(), item.getAverage(), item.getMinimum(),
+                        item.getMaximum()));
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private static double toMillis(long nanoseconds) {
+        return nanoseconds / 1000000.0;
+    }
+
+    /**
+     * The accumulators for a single operation name, indexed by operation summary key id, and the
+     * optional histogram of the operation name's root operation summary key.
+     */
+    public static final class Entry {
+
+        private final String operationName;
+        private final int maxStripes;
+
+        // copy on write, null for ids that have not been recorded
+        private volatile StripedAccumulator[] accumulators = new StripedAccumulator[0];
+
+        // histogram bucket counts (see LogLinearHistogram.getIndex()) for each slot (see
+        // StripedAccumulator), null if histograms are disabled
+        //
+        // this is shared by the entry's operation summary keys rather than kept per key, since
+        // only the root operation summary key is recorded into it (see recordRoot())
+        private final AtomicLongArray histogramCounts;
+
+        // the id of the root operation summary key that the histogram is recorded for, -1 until
+        // the first call to recordRoot()
+        private volatile int histogramKeyId = -1;
+
+        // indexed by ALLOCATED_BYTES, etc, created on first use
+        private final AtomicReferenceArray<StripedAccumulator> valueAccumulators =
+                new AtomicReferenceArray<StripedAccumulator>(VALUE_NAMES.length);
+
+        private Entry(String operationName, int maxStripes) {
+            this.operationName = operationName;
+            this.maxStripes = maxStripes;
+            // histograms are only enabled / disabled for new entries
+            if (AgentConfigurationServiceFactory.getService().getAgentConfiguration()
+                    .isMetricHistogramsEnabled()) {
+                histogramCounts =
+                        new AtomicLongArray(StripedAccumulator.SLOTS
+                                * LogLinearHistogram.BUCKET_COUNT);
+            } else {
+                histogramCounts = null;
+            }
+        }
+
+        // stripe is assigned per thread, see AgentThreadContext
+        public void record(int stripe, OperationSummaryKey operationSummaryKey,
+                long timeInNanoseconds) {
+
+            long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+            getAccumulator(operationSummaryKey).record(stripe, bucket, timeInNanoseconds);
+        }
+
+        // same as record(), but for the operation summary key of the operation's root trace event
+        // (e.g. "http request"), which is the one that the histogram (if enabled) is recorded
+        // for, since it gives the response time percentiles of the operation name
+        //
+        // an operation name normally always has the same root operation summary key, if not, the
+        // histogram sticks with the first one
+        public void recordRoot(int stripe, OperationSummaryKey operationSummaryKey,
+                long timeInNanoseconds) {
+
+            long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+            getAccumulator(operationSummaryKey).record(stripe, bucket, timeInNanoseconds);
+            if (histogramCounts == null) {
+                return;
+            }
+            int id = operationSummaryKey.getId();
+            if (histogramKeyId == -1) {
+                claimHistogram(id);
+            }
+            if (histogramKeyId == id) {
+                histogramCounts.incrementAndGet(StripedAccumulator.getSlot(bucket)
+                        * LogLinearHistogram.BUCKET_COUNT
+                        + LogLinearHistogram.getIndex(timeInNanoseconds));
+            }
+        }
+
+        // valueId is ALLOCATED_BYTES, etc, these are per operation (as opposed to per operation
+        // summary key) so there is no root / nested distinction
+        public void recordValue(int stripe, int valueId, long value) {
+            long bucket = System.currentTimeMillis() / BUCKET_MILLIS;
+            StripedAccumulator accumulator = valueAccumulators.get(valueId);
+            if (accumulator == null) {
+                // if two threads race here, one of the two new accumulators is simply discarded
+                valueAccumulators.compareAndSet(valueId, null, new StripedAccumulator(
+                        operationName, VALUE_NAMES[valueId], maxStripes));
+                accumulator = valueAccumulators.get(valueId);
+            }
+            accumulator.record(stripe, bucket, value);
+        }
+
+        // only called by the aggregator's harvest thread (and by tests)
+        void harvestValues(long bucket, List<AggregateValue> valueItems) {
+            for (int valueId = 0; valueId < VALUE_NAMES.length; valueId++) {
+                StripedAccumulator accumulator = valueAccumulators.get(valueId);
+                if (accumulator != null) {
+                    AggregateValue valueItem =
+                            accumulator.harvestValue(bucket, VALUE_UNITS[valueId]);
+                    if (valueItem != null) {
+                        valueItems.add(valueItem);
+                    }
+                }
+            }
+        }
+
+        // only called by the aggregator's harvest thread (and by tests)
+        void harvest(long bucket, List<AggregateItem> items) {
+            LogLinearHistogram histogram = harvestHistogram(bucket);
+            StripedAccumulator[] currentAccumulators = accumulators;
+            for (int id = 0; id < currentAccumulators.length; id++) {
+                StripedAccumulator accumulator = currentAccumulators[id];
+                if (accumulator != null) {
+                    AggregateItem item =
+                            accumulator.harvest(bucket, id == histogramKeyId ? histogram : null);
+                    if (item != null) {
+                        items.add(item);
+                    }
+                }
+            }
+        }
+
+        // returns null if histograms are disabled
+        private LogLinearHistogram harvestHistogram(long bucket) {
+            if (histogramCounts == null) {
+                return null;
+            }
+            LogLinearHistogram histogram = new LogLinearHistogram();
+            int offset = StripedAccumulator.getSlot(bucket) * LogLinearHistogram.BUCKET_COUNT;
+            for (int i = 0; i < LogLinearHistogram.BUCKET_COUNT; i++) {
+                long histogramCount = histogramCounts.getAndSet(offset + i, 0);
+                if (histogramCount != 0) {
+                    histogram.add(i, histogramCount);
+                }
+            }
+            return histogram;
+        }
+
+        private synchronized void claimHistogram(int id) {
+            if (histogramKeyId == -1) {
+                histogramKeyId = id;
+            }
+        }
+
+        private StripedAccumulator getAccumulator(OperationSummaryKey operationSummaryKey) {
+            StripedAccumulator[] currentAccumulators = accumulators;
+            int id = operationSummaryKey.getId();
+            if (id < currentAccumulators.length && currentAccumulators[id] != null) {
+                return currentAccumulators[id];
+            }
+            return createAccumulator(operationSummaryKey);
+        }
+
+        private synchronized StripedAccumulator createAccumulator(
+                OperationSummaryKey operationSummaryKey) {
+
+            int id = operationSummaryKey.getId();
+            StripedAccumulator[] currentAccumulators = accumulators;
+            if (id < currentAccumulators.length && currentAccumulators[id] != null) {
+                // created in the meantime by another thread
+                return currentAccumulators[id];
+            }
+            StripedAccumulator accumulator =
+                    new StripedAccumulator(operationName, operationSummaryKey.getName(),
+                            maxStripes);
+            StripedAccumulator[] newAccumulators =
+                    new StripedAccumulator[Math.max(currentAccumulators.length, id + 1)];
+            System.arraycopy(currentAccumulators, 0, newAccumulators, 0,
+                    currentAccumulators.length);
+            newAccumulators[id] = accumulator;
+            accumulators = newAccumulators;
+            return accumulator;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+/**
+ * JMX view of the {@link OperationAggregator}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface OperationAggregatorMBean {
+
+    long getBucketMillis();
+
+    // number of distinct operation names being aggregated (not including the "(other)" name)
+    int getOperationNameCount();
+
+    // one line per operation name / operation summary key for the most recently completed bucket
+    String[] getLastBucketSummary();
+
+    // same as above, but combined across all of the retained buckets
+    String[] getMergedSummary();
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jmonitor.agent.impl.util.LogLinearHistogram;
+
+/**
+ * Accumulates count, total, minimum and maximum for a single operation name / operation summary
+ * key pair (in nanoseconds, see {@link AggregateItem}) or for a single operation name / value
+ * pair (see {@link AggregateValue}).
+ * 
+ * Values are recorded into stripes. There is only a single stripe until two threads actually
+ * record into the same stripe at the same time, after which the number of stripes is doubled (up
+ * to the maximum given by the aggregator) so that concurrent recordings end up in different
+ * stripes, see {@link OperationAggregator.Entry#record}. Each stripe has two slots which alternate
+ * between buckets (even / odd) so that the current bucket can be recorded into while the previous
+ * bucket is being harvested and reset.
+ * 
+ * Stripes are not padded out to a cache line, since the vast majority of pairs are only ever
+ * recorded into by one thread at a time and so never grow beyond their first stripe.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+class StripedAccumulator {
+
+    static final int SLOTS = 2;
+
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MINIMUM = 2;
+    private static final int MAXIMUM = 3;
+
+    private static final int CELL_SIZE = 4;
+
+    private final String operationName;
+    // the operation summary key or the value name
+    private final String name;
+
+    private final int maxStripes;
+
+    // the length is always a power of two, replaced (never modified) when more stripes are
+    // needed, existing stripes keep their position so that recordings into a stripe of the
+    // previous array are still harvested
+    private volatile AtomicLongArray[] stripes;
+
+    // maxStripes must be a power of two
+    StripedAccumulator(String operationName, String name, int maxStripes) {
+        this.operationName = operationName;
+        this.name = name;
+        this.maxStripes = maxStripes;
+        stripes = new AtomicLongArray[] { newStripe() };
+    }
+
+    // this is called by the request threads so it must not allocate (other than when expanding
+    // the stripes)
+    void record(int stripe, long bucket, long value) {
+
+        AtomicLongArray[] currentStripes = stripes;
+        AtomicLongArray cells = currentStripes[stripe & (currentStripes.length - 1)];
+        int cellIndex = getSlot(bucket) * CELL_SIZE;
+        long count = cells.get(cellIndex + COUNT);
+        if (!cells.compareAndSet(cellIndex + COUNT, count, count + 1)) {
+            // another thread recorded into the same stripe at the same moment
+            if (currentStripes.length < maxStripes) {
+                expand(currentStripes);
+            }
+            cells.incrementAndGet(cellIndex + COUNT);
+        }
+        cells.addAndGet(cellIndex + TOTAL, value);
+        while (true) {
+            long minimum = cells.get(cellIndex + MINIMUM);
+            if (value >= minimum || cells.compareAndSet(cellIndex + MINIMUM, minimum, value)) {
+                break;
+            }
+        }
+        while (true) {
+            long maximum = cells.get(cellIndex + MAXIMUM);
+            if (value <= maximum || cells.compareAndSet(cellIndex + MAXIMUM, maximum, value)) {
+                break;
+            }
+        }
+    }
+
+    // the histogram (if any) is the entry's histogram for the same bucket, see
+    // OperationAggregator.Entry
+    //
+    // this is only called by the aggregator's harvest thread, and only after the bucket has ended
+    AggregateItem harvest(long bucket, LogLinearHistogram histogram) {
+        long[] sums = harvestSums(bucket);
+        if (sums == null) {
+            return null;
+        } else {
+            return new AggregateItem(operationName, name, sums[COUNT], sums[TOTAL],
+                    sums[MINIMUM], sums[MAXIMUM], histogram);
+        }
+    }
+
+    // same as harvest(), but for accumulators of values other than times
+    AggregateValue harvestValue(long bucket, String unit) {
+        long[] sums = harvestSums(bucket);
+        if (sums == null) {
+            return null;
+        } else {
+            return new AggregateValue(operationName, name, unit, sums[COUNT], sums[TOTAL],
+                    sums[MINIMUM], sums[MAXIMUM]);
+        }
+    }
+
+    // sums up the bucket across all stripes and resets its slot so that it can be reused two
+    // buckets later, returns null if nothing was recorded during the bucket
+    private long[] harvestSums(long bucket) {
+        int cellIndex = getSlot(bucket) * CELL_SIZE;
+        long count = 0;
+        long total = 0;
+        long minimum = Long.MAX_VALUE;
+        long maximum = Long.MIN_VALUE;
+        for (AtomicLongArray cells : stripes) {
+            count += cells.get(cellIndex + COUNT);
+            total += cells.get(cellIndex + TOTAL);
+            minimum = Math.min(minimum, cells.get(cellIndex + MINIMUM));
+            maximum = Math.max(maximum, cells.get(cellIndex + MAXIMUM));
+            reset(cells, cellIndex);
+        }
+        if (count == 0) {
+            return null;
+        }
+        long[] sums = new long[CELL_SIZE];
+        sums[COUNT] = count;
+        sums[TOTAL] = total;
+        sums[MINIMUM] = minimum;
+        sums[MAXIMUM] = maximum;
+        return sums;
+    }
+
+    // used by tests
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    private synchronized void expand(AtomicLongArray[] expectedStripes) {
+        if (stripes != expectedStripes) {
+            // already expanded by another thread
+            return;
+        }
+        AtomicLongArray[] newStripes = new AtomicLongArray[expectedStripes.length * 2];
+        System.arraycopy(expectedStripes, 0, newStripes, 0, expectedStripes.length);
+        for (int i = expectedStripes.length; i < newStripes.length; i++) {
+            newStripes[i] = newStripe();
+        }
+        stripes = newStripes;
+    }
+
+    static int getSlot(long bucket) {
+        return (int) (bucket & 1);
+    }
+
+    private static AtomicLongArray newStripe() {
+        AtomicLongArray cells = new AtomicLongArray(SLOTS * CELL_SIZE);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            reset(cells, slot * CELL_SIZE);
+        }
+        return cells;
+    }
+
+    private static void reset(AtomicLongArray cells, int cellIndex) {
+        cells.set(cellIndex + COUNT, 0);
+        cells.set(cellIndex + TOTAL, 0);
+        cells.set(cellIndex + MINIMUM, Long.MAX_VALUE);
+        cells.set(cellIndex + MAXIMUM, Long.MIN_VALUE);
+    }
+}
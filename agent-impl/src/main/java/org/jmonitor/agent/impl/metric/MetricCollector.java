@@ -0,0 +1,276 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.metric;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.configuration.MetricConfiguration;
+import org.jmonitor.api.metric.Metric;
+import org.jmonitor.api.metric.MetricPool;
+import org.jmonitor.collector.service.model.SystemData;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Discovers the available {@link Metric} implementations and periodically collects them into
+ * fixed size {@link MetricSeries}.
+ * 
+ * Metric implementations are listed (one class name per line) in classpath resources named
+ * {@link #AVAILABLE_METRICS_RESOURCE_NAME}, and only those which report that they are available
+ * in the current jvm are collected.
+ * 
+ * The {@link MetricPool#FAST} and {@link MetricPool#SLOW} pools are collected by separate threads
+ * on their own schedules, so that a slow metric cannot delay the collection of the fast ones. The
+ * collection intervals and the number of samples retained for each metric are read from the
+ * {@link MetricConfiguration} at startup.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class MetricCollector implements MetricCollectorMBean {
+
+    private static final Logger LOGGER = CollectorServiceLoggerFactory
+            .getLogger(MetricCollector.class);
+
+    public static final String AVAILABLE_METRICS_RESOURCE_NAME = "jmonitor-available-metrics";
+
+    private final ThreadFactory threadFactory;
+
+    // keyed by metric name, not modified after construction
+    private final Map<String, MetricSeries> series = new LinkedHashMap<String, MetricSeries>();
+
+    private final PoolCollector fastPoolCollector;
+    private final PoolCollector slowPoolCollector;
+
+    public MetricCollector(ThreadFactory threadFactory) {
+        this(loadAvailableMetrics(MetricCollector.class.getClassLoader()), threadFactory);
+    }
+
+    // the metrics are passed in directly by tests
+    MetricCollector(List<Metric> availableMetrics, ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        MetricConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getMetricConfiguration();
+        List<Metric> fastMetrics = new ArrayList<Metric>();
+        List<Metric> slowMetrics = new ArrayList<Metric>();
+        for (Metric metric : availableMetrics) {
+            if (series.containsKey(metric.getName())) {
+                LOGGER.warn("more than one metric is named '" + metric.getName()
+                        + "', ignoring " + metric.getClass().getName());
+                continue;
+            }
+            MetricPool pool = metric.getPool();
+            series.put(metric.getName(), new MetricSeries(metric.getName(),
+                    metric.getDescription(), configuration.getPoolHistorySize(pool)));
+            if (pool == MetricPool.FAST) {
+                fastMetrics.add(metric);
+            } else {
+                slowMetrics.add(metric);
+            }
+        }
+        fastPoolCollector = new PoolCollector(fastMetrics,
+                configuration.getPoolIntervalMillis(MetricPool.FAST));
+        slowPoolCollector = new PoolCollector(slowMetrics,
+                configuration.getPoolIntervalMillis(MetricPool.SLOW));
+    }
+
+    public void start() {
+        fastPoolCollector.start();
+        slowPoolCollector.start();
+    }
+
+    // stops the collection threads (see Agent.shutdown()), the series retain their samples
+    public void shutdown() {
+        fastPoolCollector.shutdown();
+        slowPoolCollector.shutdown();
+    }
+
+    // returns null if there is no such metric available
+    public MetricSeries getSeries(String metricName) {
+        return series.get(metricName);
+    }
+
+    public Collection<MetricSeries> getAllSeries() {
+        return Collections.unmodifiableCollection(series.values());
+    }
+
+    // summarizes each metric over the given interval (e.g. for the collector's time series
+    // store), metrics with no samples in the interval are left out
+    public SystemData getSystemData(long startTime, long durationMillis) {
+        List<SystemDataImpl.Item> items = new ArrayList<SystemDataImpl.Item>();
+        for (MetricSeries metricSeries : series.values()) {
+            double average = metricSeries.getAverage(startTime, startTime + durationMillis);
+            if (!Double.isNaN(average)) {
+                items.add(new SystemDataImpl.Item(metricSeries.getName(), average));
+            }
+        }
+        return new SystemDataImpl(startTime, durationMillis, items);
+    }
+
+    public String[] getMetricNames() {
+        return series.keySet().toArray(new String[series.size()]);
+    }
+
+    public String[] getLatestValues() {
+        List<String> latestValues = new ArrayList<String>();
+        for (MetricSeries metricSeries : series.values()) {
+            latestValues.add(metricSeries.getName() + "=" + metricSeries.getLatestValue());
+        }
+        return latestValues.toArray(new String[latestValues.size()]);
+    }
+
+    public int getFastIntervalMillis() {
+        return fastPoolCollector.intervalMillis;
+    }
+
+    public int getSlowIntervalMillis() {
+        return slowPoolCollector.intervalMillis;
+    }
+
+    // metrics that can't be loaded or that aren't available are logged and skipped
+    static List<Metric> loadAvailableMetrics(ClassLoader classLoader) {
+        List<Metric> metrics = new ArrayList<Metric>();
+        for (String className : readAvailableMetricClassNames(classLoader)) {
+            try {
+                Metric metric =
+                        (Metric) Class.forName(className, true, classLoader).newInstance();
+                if (metric.isAvailable()) {
+                    metrics.add(metric);
+                } else {
+                    LOGGER.debug("metric '" + metric.getName() + "' is not available in this jvm");
+                }
+            } catch (Exception e) {
+                LOGGER.warn("could not load metric " + className + ": " + e.getMessage());
+            } catch (LinkageError e) {
+                // e.g. NoClassDefFoundError for a metric that depends on vendor specific classes
+                LOGGER.warn("could not load metric " + className + ": " + e.getMessage());
+            }
+        }
+        return metrics;
+    }
+
+    private static List<String> readAvailableMetricClassNames(ClassLoader classLoader) {
+        List<String> classNames = new ArrayList<String>();
+        Enumeration<URL> resources;
+        try {
+            resources = classLoader.getResources(AVAILABLE_METRICS_RESOURCE_NAME);
+        } catch (IOException e) {
+            LOGGER.error(e.getMessage(), e);
+            return classNames;
+        }
+        while (resources.hasMoreElements()) {
+            URL resource = resources.nextElement();
+            InputStream in = null;
+            try {
+                in = resource.openStream();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String className = line.trim();
+                    if (className.length() > 0 && !className.startsWith("#")
+                            && !classNames.contains(className)) {
+                        classNames.add(className);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("could not read " + resource + ": " + e.getMessage(), e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return classNames;
+    }
+
+    // collects all of the metrics in a single pool on its own thread
+    private class PoolCollector implements Runnable {
+
+        private final Metric[] metrics;
+        private final MetricSeries[] metricSeries;
+        // failures are only logged once per metric (until it succeeds again) since the same
+        // failure would otherwise be logged on every collection
+        private final boolean[] failing;
+
+        private final int intervalMillis;
+
+        // null until started (and stays null if there are no metrics in the pool)
+        private volatile ScheduledExecutorService executor;
+
+        private PoolCollector(List<Metric> metrics, int intervalMillis) {
+            this.metrics = metrics.toArray(new Metric[metrics.size()]);
+            metricSeries = new MetricSeries[metrics.size()];
+            for (int i = 0; i < metricSeries.length; i++) {
+                metricSeries[i] = series.get(this.metrics[i].getName());
+            }
+            failing = new boolean[metrics.size()];
+            this.intervalMillis = intervalMillis;
+        }
+
+        private void start() {
+            if (metrics.length == 0) {
+                // no need for a thread
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            executor.scheduleAtFixedRate(this, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void shutdown() {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        public void run() {
+            // all metrics in the pool share the same capture time so that they line up
+            long captureTime = System.currentTimeMillis();
+            for (int i = 0; i < metrics.length; i++) {
+                double value;
+                try {
+                    value = metrics[i].collect();
+                    failing[i] = false;
+                } catch (Throwable t) {
+                    // catching throwable (and not letting it escape) since anything thrown from
+                    // here would cancel all future collections for the pool
+                    if (!failing[i]) {
+                        LOGGER.error("could not collect metric '" + metrics[i].getName() + "': "
+                                + t.getMessage(), t);
+                        failing[i] = true;
+                    }
+                    value = Double.NaN;
+                }
+                metricSeries[i].add(captureTime, value);
+            }
+        }
+    }
+}
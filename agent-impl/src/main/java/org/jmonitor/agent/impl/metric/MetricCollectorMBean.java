@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.metric;
+
+/**
+ * JMX view of the metrics collected by {@link MetricCollector}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface MetricCollectorMBean {
+
+    String[] getMetricNames();
+
+    // most recently collected value of each metric, e.g. "cpu=0.25"
+    String[] getLatestValues();
+
+    int getFastIntervalMillis();
+
+    int getSlowIntervalMillis();
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.metric;
+
+/**
+ * Fixed size history of a single metric's samples, kept in preallocated primitive arrays so that
+ * collecting a sample neither boxes nor allocates. Once full, each new sample overwrites the
+ * oldest one.
+ * 
+ * Samples are added by a single collection thread (see {@link MetricCollector}) and can be read
+ * by other threads at the same time.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class MetricSeries {
+
+    private final String name;
+    private final String description;
+
+    // guarded by "this"
+    private final long[] captureTimes;
+    private final double[] values;
+    private int next;
+    private int size;
+
+    MetricSeries(String name, String description, int capacity) {
+        this.name = name;
+        this.description = description;
+        captureTimes = new long[capacity];
+        values = new double[capacity];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    // a sample is taken at most once a second per metric, so an uncontended lock is cheap enough
+    // here and keeps the capture time and value together for readers
+    synchronized void add(long captureTime, double value) {
+        captureTimes[next] = captureTime;
+        values[next] = value;
+        next = (next + 1) % values.length;
+        if (size < values.length) {
+            size++;
+        }
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    // returns NaN if no samples have been collected yet
+    public synchronized double getLatestValue() {
+        if (size == 0) {
+            return Double.NaN;
+        }
+        return values[(next - 1 + values.length) % values.length];
+    }
+
+    // average of the samples captured in [from, to), excluding samples that could not be
+    // collected, returns NaN if there are no such samples
+    public synchronized double getAverage(long from, long to) {
+        double total = 0;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (captureTimes[i] >= from && captureTimes[i] < to && !Double.isNaN(values[i])) {
+                total += values[i];
+                count++;
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        return total / count;
+    }
+
+    // returns a copy of the retained samples, oldest first
+    public synchronized Snapshot getSnapshot() {
+        long[] snapshotCaptureTimes = new long[size];
+        double[] snapshotValues = new double[size];
+        int start = (next - size + values.length) % values.length;
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % values.length;
+            snapshotCaptureTimes[i] = captureTimes[index];
+            snapshotValues[i] = values[index];
+        }
+        return new Snapshot(snapshotCaptureTimes, snapshotValues);
+    }
+
+    /**
+     * Copy of the samples in a {@link MetricSeries}, oldest first. A value of NaN means that the
+     * metric could not be collected at that time.
+     */
+    public static class Snapshot {
+
+        private final long[] captureTimes;
+        private final double[] values;
+
+        private Snapshot(long[] captureTimes, double[] values) {
+            this.captureTimes = captureTimes;
+            this.values = values;
+        }
+
+        public int getSize() {
+            return values.length;
+        }
+
+        public long getCaptureTime(int index) {
+            return captureTimes[index];
+        }
+
+        public double getValue(int index) {
+            return values[index];
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.metric;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jmonitor.collector.service.model.SystemData;
+import org.jmonitor.collector.service.model.SystemDataItem;
+
+/**
+ * Immutable summary of the metrics over a single interval, see
+ * {@link MetricCollector#getSystemData(long, long)}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class SystemDataImpl implements SystemData {
+
+    private final long startTimeMillis;
+    private final long durationMillis;
+    private final List<Item> items;
+
+    SystemDataImpl(long startTimeMillis, long durationMillis, List<Item> items) {
+        this.startTimeMillis = startTimeMillis;
+        this.durationMillis = durationMillis;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    public Date getStartTime() {
+        return new Date(startTimeMillis);
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * A single metric's average over the interval.
+     */
+    public static class Item implements SystemDataItem {
+
+        private final String name;
+        private final double value;
+
+        Item(String name, double value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.collector.service.model.Trace;
+import org.jmonitor.collector.service.model.TraceEvent;
+
+/**
+ * The trace of an active operation as seen by the agent.
+ * 
+ * Only the operation's thread pushes and pops trace events, while other threads read and flush
+ * the trace at the same time (see {@link Trace}). Trace events are referred to by their index
+ * (which is per operation and starts at 0 for the root trace event) so that implementations are
+ * free to store them without an object per trace event (see {@link CompactTraceSafeImpl}).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface AgentTrace extends Trace {
+
+    // returns the index of the new trace event
+    int pushElement(ProbeExecution probeExecution, long startNanoTime);
+
+    // the index must be on the stack (see TraceSafeImpl.popElement() for the handling of a
+    // forgotten pop)
+    void popElement(int index, long endNanoTime);
+
+    // returns the object which is passed back to justUpdatedCompletedElement() when the probe
+    // execution is updated after the trace event has completed (see ProbeExecutionWithUpdate)
+    //
+    // the index must be on the stack
+    Object getElementHolder(int index);
+
+    void justUpdatedCompletedElement(Object elementHolder);
+
+    // once the trace limit is reached, repeated executions (see ProbeExecutionWithTemplate) are
+    // folded into one of the few most recently completed children of the current trace event
+    // which has the same template
+    //
+    // returns false if none of those trace events have a template, in which case there is no
+    // point in creating the probe execution to compare its template
+    //
+    // this is called for every probe execution past the trace limit so it must not allocate
+    boolean hasFoldTarget();
+
+    // same as hasFoldTarget(), but only considers trace events with the given template (see
+    // StatelessProbeExecutionCreatorWithTemplate), so that the probe execution doesn't need to be
+    // created when it can't be folded
+    boolean hasFoldTarget(String descriptionTemplate);
+
+    // returns the holder (see getElementHolder()) of the trace event that the completed probe
+    // execution was folded into, or null if it didn't match any of them
+    Object foldElement(ProbeExecution probeExecution, long startNanoTime, long endNanoTime);
+
+    // returns a trace event which can be held on to (e.g. by an operation summary) without
+    // holding on to the rest of the trace
+    TraceEvent getRootElement();
+
+    ProbeExecution getRootProbeExecution();
+
+    // returns null if the root trace event has been popped
+    ProbeExecution getCurrentProbeExecution();
+
+    int getSize();
+
+    // rough estimate of the memory held per trace event, not including the probe execution,
+    // used for the agent's trace memory budget
+    int getEstimatedBytesPerElement();
+
+    long getStartNanoTime();
+
+    long getEndNanoTime();
+
+    long getDurationInNanoseconds();
+
+    boolean isCompleted();
+
+    boolean wasCompletedBy(long nanoTime);
+
+    // returns the trace events which have not been flushed yet (along with a few surrounding
+    // trace events for context and any previously flushed trace events that have been updated
+    // since)
+    Trace flush();
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.collector.service.model.Trace;
+import org.jmonitor.collector.service.model.TraceEvent;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.jmonitor.util.NanoUtils;
+import org.slf4j.Logger;
+
+/**
+ * Same as {@link TraceSafeImpl}, but stores the trace events in primitive arrays (one per field)
+ * instead of an object per trace event, and uses an int array for the stack.
+ * 
+ * The arrays are allocated in fixed size chunks which are never copied, so pushing a trace event
+ * only allocates when it starts a new chunk. Trace events are published to other threads by the
+ * (volatile) size, and the only field which changes afterwards (the duration) is stored in an
+ * {@link AtomicLongArray} so that it is read consistently.
+ * 
+ * The {@link TraceEvent}s returned by {@link #getEvents()} and {@link #flush()} are views that are
+ * created during iteration (which is only done by the threads writing out the operation).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CompactTraceSafeImpl implements AgentTrace {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(CompactTraceSafeImpl.class);
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // the same number of trace events that TraceSafeImpl keeps for context (see FlushableList)
+    private static final int FIRST_X = 10;
+    private static final int LAST_X = 10;
+
+    private final long startNanoTime;
+    private volatile long endNanoTime;
+
+    private volatile boolean completed;
+
+    private final ProbeExecution rootProbeExecution;
+
+    // only written by the operation's thread, replaced (never modified other than filling in the
+    // next chunk) when more chunks are needed
+    private volatile Chunk[] chunks = new Chunk[1];
+
+    // only written by the operation's thread, after the trace event has been written to its chunk
+    private volatile int size;
+
+    // only accessed by the operation's thread
+    private int[] stack = new int[16];
+    private int stackSize;
+
+    // the most recently completed trace events which have a template, most recent first, padded
+    // with -1 (see TraceSafeImpl.hasFoldTarget())
+    // this is lazy created and only accessed by the operation's thread
+    private int[] foldTargets;
+
+    // folding only happens once the trace limit is reached and typically only into a handful of
+    // trace events, so these are kept by index off to the side instead of in the chunks
+    // lazy created and only written by the operation's thread
+    private volatile ConcurrentMap<Integer, FoldedExecutions> foldedExecutions;
+
+    private final Object flushLock = new Object();
+
+    // the size as of the last flush, updates are guarded by flushLock
+    private volatile int flushedSize;
+
+    // previously flushed trace events which have been updated since the last flush
+    // lazy created and guarded by flushLock
+    private BitSet updatedIndexes;
+
+    public CompactTraceSafeImpl(ProbeExecution probeExecution, long startNanoTime) {
+        this.startNanoTime = startNanoTime;
+        rootProbeExecution = probeExecution;
+        add(probeExecution, startNanoTime, -1, 0);
+    }
+
+    public int pushElement(ProbeExecution probeExecution, long elementStartNanoTime) {
+        int parentIndex = stack[stackSize - 1];
+        Chunk parentChunk = chunks[parentIndex >>> CHUNK_BITS];
+        return add(probeExecution, elementStartNanoTime, parentIndex,
+                parentChunk.levels[parentIndex & CHUNK_MASK] + 1);
+    }
+
+    // see TraceSafeImpl.popElement()
+    public void popElement(int index, long elementEndNanoTime) {
+
+        int pop = removeLast();
+        if (pop != index) {
+            // maybe 'pop' didn't pop itself correctly so we log it
+            LOGGER.error("found " + getProbeExecution(pop).getDescription()
+                    + " at the top of the stack when expecting the trace event at index "
+                    + index, new IllegalStateException());
+            while (pop != index) {
+                pop = removeLast();
+            }
+        }
+
+        Chunk chunk = chunks[index >>> CHUNK_BITS];
+        int i = index & CHUNK_MASK;
+        chunk.setDuration(i, elementEndNanoTime - chunk.startNanoTimes[i]);
+        justUpdatedCompletedElement(index);
+        if (FoldedExecutions.hasTemplate(chunk.probeExecutions[i])) {
+            addFoldTarget(index);
+        }
+
+        if (stackSize == 0) {
+            endNanoTime = elementEndNanoTime;
+            completed = true;
+        }
+    }
+
+    // this boxes the index, which unlike TraceSafeImpl's holder is only allocated for probe
+    // executions that are updated after they complete (and only for indexes above the Integer
+    // cache)
+    public Integer getElementHolder(int index) {
+        return index;
+    }
+
+    public void justUpdatedCompletedElement(Object elementHolder) {
+        justUpdatedCompletedElement(((Integer) elementHolder).intValue());
+    }
+
+    public boolean hasFoldTarget() {
+        return getFoldTarget(null, null) != -1;
+    }
+
+    public boolean hasFoldTarget(String descriptionTemplate) {
+        return getFoldTarget(null, descriptionTemplate) != -1;
+    }
+
+    public Integer foldElement(ProbeExecution probeExecution, long foldedStartNanoTime,
+            long foldedEndNanoTime) {
+
+        int index = getFoldTarget(probeExecution, null);
+        if (index == -1) {
+            return null;
+        }
+        if (foldedExecutions == null) {
+            foldedExecutions = new ConcurrentHashMap<Integer, FoldedExecutions>();
+        }
+        Chunk chunk = chunks[index >>> CHUNK_BITS];
+        int i = index & CHUNK_MASK;
+        // the chunk keeps the duration of the trace event's own execution, the trace event now
+        // spans up to the end of the folded execution (see TraceEventView), which is published
+        // together with the count and durations as a single immutable object
+        foldedExecutions.put(index, FoldedExecutions.add(foldedExecutions.get(index),
+                chunk.getDuration(i), foldedEndNanoTime - foldedStartNanoTime, foldedEndNanoTime));
+        justUpdatedCompletedElement(index);
+        return index;
+    }
+
+    // returns a copy of the root trace event as of now
+    public TraceEventSafeImpl getRootElement() {
+        TraceEventSafeImpl rootElement =
+                new TraceEventSafeImpl(rootProbeExecution, startNanoTime, startNanoTime, 0, -1, 0);
+        long duration = chunks[0].getDuration(0);
+        if (duration != -1) {
+            rootElement.setEndNanoTime(startNanoTime + duration);
+            rootElement.setCompleted(true);
+        }
+        return rootElement;
+    }
+
+    public ProbeExecution getRootProbeExecution() {
+        return rootProbeExecution;
+    }
+
+    public ProbeExecution getCurrentProbeExecution() {
+        if (stackSize == 0) {
+            return null;
+        } else {
+            return getProbeExecution(stack[stackSize - 1]);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // start time, duration, parent index, level and the probe execution reference, spread across
+    // the chunk's arrays
+    public int getEstimatedBytesPerElement() {
+        return 32;
+    }
+
+    public long getStartNanoTime() {
+        return startNanoTime;
+    }
+
+    public long getEndNanoTime() {
+        return endNanoTime;
+    }
+
+    public long getDurationInNanoseconds() {
+        return endNanoTime - startNanoTime;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public boolean wasCompletedBy(long nanoTime) {
+        return completed && NanoUtils.isLessThan(endNanoTime, nanoTime);
+    }
+
+    // same as TraceSafeImpl, this returns the first few trace events, any previously flushed
+    // trace events that have been updated since the last flush and then the trace events since
+    // the last flush (padded with previously flushed trace events to a minimum number of
+    // consecutive trace events)
+    public Iterable<TraceEvent> getEvents() {
+        synchronized (flushLock) {
+            return getEventsSince(flushedSize, size);
+        }
+    }
+
+    public Trace flush() {
+        synchronized (flushLock) {
+            int currentSize = size;
+            final Iterable<TraceEvent> flushedEvents = getEventsSince(flushedSize, currentSize);
+            flushedSize = currentSize;
+            if (updatedIndexes != null) {
+                updatedIndexes.clear();
+            }
+            return new Trace() {
+                public Iterable<TraceEvent> getEvents() {
+                    return flushedEvents;
+                }
+            };
+        }
+    }
+
+    // must be called under flushLock
+    private Iterable<TraceEvent> getEventsSince(int fromIndex, int toIndex) {
+        int consecutiveStart = Math.max(Math.min(fromIndex, toIndex - LAST_X), 0);
+        int firstXEnd = Math.min(FIRST_X, consecutiveStart);
+        int[] updated;
+        if (updatedIndexes == null) {
+            updated = new int[0];
+        } else {
+            BitSet priorUpdatedIndexes = updatedIndexes.get(firstXEnd, consecutiveStart);
+            updated = new int[priorUpdatedIndexes.cardinality()];
+            int j = 0;
+            for (int i = priorUpdatedIndexes.nextSetBit(0); i >= 0; i =
+                    priorUpdatedIndexes.nextSetBit(i + 1)) {
+                updated[j++] = firstXEnd + i;
+            }
+        }
+        return new Events(firstXEnd, updated, consecutiveStart, toIndex);
+    }
+
+    // only called by the operation's thread
+    private int add(ProbeExecution probeExecution, long elementStartNanoTime, int parentIndex,
+            int level) {
+
+        int index = size;
+        Chunk[] currentChunks = chunks;
+        int chunkIndex = index >>> CHUNK_BITS;
+        if (chunkIndex == currentChunks.length) {
+            Chunk[] newChunks = new Chunk[currentChunks.length * 2];
+            System.arraycopy(currentChunks, 0, newChunks, 0, currentChunks.length);
+            chunks = newChunks;
+            currentChunks = newChunks;
+        }
+        Chunk chunk = currentChunks[chunkIndex];
+        if (chunk == null) {
+            chunk = new Chunk();
+            currentChunks[chunkIndex] = chunk;
+        }
+        int i = index & CHUNK_MASK;
+        chunk.startNanoTimes[i] = elementStartNanoTime;
+        chunk.parentIndexes[i] = parentIndex;
+        chunk.levels[i] = level;
+        chunk.probeExecutions[i] = probeExecution;
+        // publishes the trace event to other threads
+        size = index + 1;
+
+        if (stackSize == stack.length) {
+            int[] newStack = new int[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+        stack[stackSize++] = index;
+        return index;
+    }
+
+    // throws NoSuchElementException if the stack is empty (same as TraceSafeImpl)
+    private int removeLast() {
+        if (stackSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return stack[--stackSize];
+    }
+
+    private void justUpdatedCompletedElement(int index) {
+        // the update (e.g. the duration) has already been written, so either a concurrent flush
+        // sees the update or this sees the flush
+        if (index < flushedSize) {
+            synchronized (flushLock) {
+                if (updatedIndexes == null) {
+                    updatedIndexes = new BitSet();
+                }
+                updatedIndexes.set(index);
+            }
+        }
+    }
+
+    private ProbeExecution getProbeExecution(int index) {
+        return chunks[index >>> CHUNK_BITS].probeExecutions[index & CHUNK_MASK];
+    }
+
+    private int getParentIndex(int index) {
+        return chunks[index >>> CHUNK_BITS].parentIndexes[index & CHUNK_MASK];
+    }
+
+    // see TraceSafeImpl.getFoldTarget(), returns -1 if there is none
+    private int getFoldTarget(ProbeExecution probeExecution, String descriptionTemplate) {
+        if (foldTargets == null || stackSize == 0) {
+            return -1;
+        }
+        int currentIndex = stack[stackSize - 1];
+        for (int foldTarget : foldTargets) {
+            if (foldTarget != -1
+                    && getParentIndex(foldTarget) == currentIndex
+                    && (probeExecution == null || FoldedExecutions.isFoldable(probeExecution,
+                            getProbeExecution(foldTarget)))
+                    && (descriptionTemplate == null || FoldedExecutions.hasTemplate(
+                            getProbeExecution(foldTarget), descriptionTemplate))) {
+                return foldTarget;
+            }
+        }
+        return -1;
+    }
+
+    private void addFoldTarget(int index) {
+        if (foldTargets == null) {
+            foldTargets = new int[FoldedExecutions.FOLD_TARGETS];
+            Arrays.fill(foldTargets, -1);
+        }
+        System.arraycopy(foldTargets, 0, foldTargets, 1, foldTargets.length - 1);
+        foldTargets[0] = index;
+    }
+
+    // returns null if nothing has been folded into the trace event
+    private FoldedExecutions getFoldedExecutions(int index) {
+        ConcurrentMap<Integer, FoldedExecutions> currentFoldedExecutions = foldedExecutions;
+        if (currentFoldedExecutions == null) {
+            return null;
+        } else {
+            return currentFoldedExecutions.get(index);
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long[] startNanoTimes = new long[CHUNK_SIZE];
+
+        // the duration plus one so that the initial value (0) means not completed
+        private final AtomicLongArray durations = new AtomicLongArray(CHUNK_SIZE);
+
+        private final int[] parentIndexes = new int[CHUNK_SIZE];
+        private final int[] levels = new int[CHUNK_SIZE];
+        private final ProbeExecution[] probeExecutions = new ProbeExecution[CHUNK_SIZE];
+
+        // returns -1 if not completed
+        private long getDuration(int i) {
+            return durations.get(i) - 1;
+        }
+
+        private void setDuration(int i, long durationInNanoseconds) {
+            // guard against the nano time going backwards (which would read as not completed)
+            durations.set(i, Math.max(durationInNanoseconds, 0) + 1);
+        }
+    }
+
+    // the first trace events up to firstXEnd, then the updated trace events, then the
+    // consecutive trace events from consecutiveStart up to size
+    private class Events implements Iterable<TraceEvent> {
+
+        private final int firstXEnd;
+        private final int[] updated;
+        private final int consecutiveStart;
+        private final int size;
+
+        private Events(int firstXEnd, int[] updated, int consecutiveStart, int size) {
+            this.firstXEnd = firstXEnd;
+            this.updated = updated;
+            this.consecutiveStart = consecutiveStart;
+            this.size = size;
+        }
+
+        public Iterator<TraceEvent> iterator() {
+            return new Iterator<TraceEvent>() {
+                private int position;
+                private final int count =
+                        firstXEnd + updated.length + size - consecutiveStart;
+
+                public boolean hasNext() {
+                    return position < count;
+                }
+
+                public TraceEvent next() {
+                    if (position == count) {
+                        throw new NoSuchElementException();
+                    }
+                    int index;
+                    if (position < firstXEnd) {
+                        index = position;
+                    } else if (position < firstXEnd + updated.length) {
+                        index = updated[position - firstXEnd];
+                    } else {
+                        index = consecutiveStart + position - firstXEnd - updated.length;
+                    }
+                    position++;
+                    return new TraceEventView(index);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    private class TraceEventView implements TraceEvent {
+
+        private final int index;
+        private final Chunk chunk;
+        private final int i;
+
+        private TraceEventView(int index) {
+            this.index = index;
+            chunk = chunks[index >>> CHUNK_BITS];
+            i = index & CHUNK_MASK;
+        }
+
+        public String getDescription() {
+            return chunk.probeExecutions[i].getDescription();
+        }
+
+        public ProbeExecutionContext getContext() {
+            return chunk.probeExecutions[i].createContext();
+        }
+
+        public long getOffsetInNanoseconds() {
+            return chunk.startNanoTimes[i] - startNanoTime;
+        }
+
+        // only meaningful once completed (same as TraceEventSafeImpl)
+        public long getDurationInNanoseconds() {
+            FoldedExecutions folded = getFoldedExecutions(index);
+            if (folded == null) {
+                return chunk.getDuration(i);
+            } else {
+                return folded.getEndNanoTime() - chunk.startNanoTimes[i];
+            }
+        }
+
+        public int getCount() {
+            FoldedExecutions folded = getFoldedExecutions(index);
+            if (folded == null) {
+                return 1;
+            } else {
+                return folded.getCount();
+            }
+        }
+
+        public long getTotalDurationInNanoseconds() {
+            FoldedExecutions folded = getFoldedExecutions(index);
+            if (folded == null) {
+                return chunk.getDuration(i);
+            } else {
+                return folded.getTotalDurationInNanoseconds();
+            }
+        }
+
+        public long getMaxDurationInNanoseconds() {
+            FoldedExecutions folded = getFoldedExecutions(index);
+            if (folded == null) {
+                return chunk.getDuration(i);
+            } else {
+                return folded.getMaxDurationInNanoseconds();
+            }
+        }
+
+        public boolean isCompleted() {
+            return chunk.getDuration(i) != -1;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getParentIndex() {
+            return chunk.parentIndexes[i];
+        }
+
+        public int getLevel() {
+            return chunk.levels[i];
+        }
+    }
+}
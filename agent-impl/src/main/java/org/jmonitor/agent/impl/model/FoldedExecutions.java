@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionWithTemplate;
+
+/**
+ * Count, total and maximum duration of the executions that have been folded into a single trace
+ * event (see {@link ProbeExecutionWithTemplate}), and the end of the last folded execution (which
+ * is where the trace event now ends).
+ * 
+ * This is immutable and replaced on each fold, so that readers on other threads always see a
+ * consistent count, total, maximum and end time.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+final class FoldedExecutions {
+
+    // number of recently completed trace events that are kept as fold targets, so that e.g. a
+    // loop over two different sql statements is folded into two trace events
+    static final int FOLD_TARGETS = 4;
+
+    private final int count;
+    private final long totalDurationInNanoseconds;
+    private final long maxDurationInNanoseconds;
+    private final long endNanoTime;
+
+    private FoldedExecutions(int count, long totalDurationInNanoseconds,
+            long maxDurationInNanoseconds, long endNanoTime) {
+
+        this.count = count;
+        this.totalDurationInNanoseconds = totalDurationInNanoseconds;
+        this.maxDurationInNanoseconds = maxDurationInNanoseconds;
+        this.endNanoTime = endNanoTime;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getTotalDurationInNanoseconds() {
+        return totalDurationInNanoseconds;
+    }
+
+    long getMaxDurationInNanoseconds() {
+        return maxDurationInNanoseconds;
+    }
+
+    long getEndNanoTime() {
+        return endNanoTime;
+    }
+
+    // folded is null if the trace event has not been folded yet, in which case its duration is
+    // that of its one execution
+    static FoldedExecutions add(FoldedExecutions folded, long durationInNanoseconds,
+            long foldedDurationInNanoseconds, long foldedEndNanoTime) {
+
+        if (folded == null) {
+            return new FoldedExecutions(2, durationInNanoseconds + foldedDurationInNanoseconds,
+                    Math.max(durationInNanoseconds, foldedDurationInNanoseconds),
+                    foldedEndNanoTime);
+        } else {
+            return new FoldedExecutions(folded.count + 1, folded.totalDurationInNanoseconds
+                    + foldedDurationInNanoseconds, Math.max(folded.maxDurationInNanoseconds,
+                    foldedDurationInNanoseconds), foldedEndNanoTime);
+        }
+    }
+
+    // executions are only folded together if they are from the same probe (class) and have the
+    // same (non-null) template
+    static boolean isFoldable(ProbeExecution probeExecution, ProbeExecution foldedProbeExecution) {
+        if (!(probeExecution instanceof ProbeExecutionWithTemplate)
+                || probeExecution.getClass() != foldedProbeExecution.getClass()) {
+            return false;
+        }
+        String template = ((ProbeExecutionWithTemplate) probeExecution).getDescriptionTemplate();
+        return template != null
+                && template.equals(((ProbeExecutionWithTemplate) foldedProbeExecution)
+                        .getDescriptionTemplate());
+    }
+
+    // whether the probe execution can be the target of a fold at all
+    static boolean hasTemplate(ProbeExecution probeExecution) {
+        return probeExecution instanceof ProbeExecutionWithTemplate
+                && ((ProbeExecutionWithTemplate) probeExecution).getDescriptionTemplate() != null;
+    }
+
+    // whether an execution with the given template could be folded into the probe execution (this
+    // doesn't compare the probe classes, see isFoldable())
+    static boolean hasTemplate(ProbeExecution foldedProbeExecution, String descriptionTemplate) {
+        return foldedProbeExecution instanceof ProbeExecutionWithTemplate
+                && descriptionTemplate.equals(((ProbeExecutionWithTemplate) foldedProbeExecution)
+                        .getDescriptionTemplate());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Interns stack trace elements (frames) to integer ids, shared by all of the sampled hotspot
+ * trees, so that the trees can match frames by id instead of by
+ * {@link StackTraceElement#equals(Object)} and only hold on to a single instance of each frame.
+ * 
+ * Ids are assigned sequentially from 0 so that the frame for an id is a simple array lookup.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public final class FrameDictionary {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(FrameDictionary.class);
+
+    // used once MAX_FRAMES is reached
+    public static final StackTraceElement OTHER_FRAME =
+            new StackTraceElement("(other)", "(other)", null, -1);
+
+    // frames are expected to be bounded by the loaded code, this just bounds the memory in case of
+    // e.g. a steady stream of generated classes
+    private static final int MAX_FRAMES = 100000;
+
+    private static final FrameDictionary INSTANCE = new FrameDictionary(MAX_FRAMES);
+
+    private final int maxFrames;
+
+    private final ConcurrentMap<StackTraceElement, Integer> frameIds =
+            new ConcurrentHashMap<StackTraceElement, Integer>();
+
+    // indexed by frame id, replaced (never modified other than filling in the next id) when more
+    // room is needed, and always written before the frame id is published in frameIds
+    private volatile StackTraceElement[] frames = new StackTraceElement[1024];
+
+    // guarded by "this"
+    private int frameCount;
+
+    // tests use their own instance with a lower maximum
+    FrameDictionary(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    // this doesn't allocate once the frame has been registered
+    public int getFrameId(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId == null) {
+            return register(frame);
+        } else {
+            return frameId;
+        }
+    }
+
+    // the frame id must have been returned by getFrameId()
+    public StackTraceElement getFrame(int frameId) {
+        return frames[frameId];
+    }
+
+    public int getFrameCount() {
+        synchronized (this) {
+            return frameCount;
+        }
+    }
+
+    private synchronized int register(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId != null) {
+            // registered in the meantime by another thread
+            return frameId;
+        }
+        if (frameCount == maxFrames - 1 && !frame.equals(OTHER_FRAME)) {
+            LOGGER.warn("the maximum number of stack trace frames (" + maxFrames
+                    + ") has been reached, any further frames will be recorded as \""
+                    + OTHER_FRAME + "\"");
+            // reserve the last id for OTHER_FRAME
+            register(OTHER_FRAME);
+        }
+        if (frameCount == maxFrames) {
+            return frameIds.get(OTHER_FRAME);
+        }
+        StackTraceElement[] currentFrames = frames;
+        if (frameCount == currentFrames.length) {
+            StackTraceElement[] newFrames = new StackTraceElement[currentFrames.length * 2];
+            System.arraycopy(currentFrames, 0, newFrames, 0, currentFrames.length);
+            frames = newFrames;
+            currentFrames = newFrames;
+        }
+        currentFrames[frameCount] = frame;
+        frameIds.put(frame, frameCount);
+        return frameCount++;
+    }
+
+    public static FrameDictionary getInstance() {
+        return INSTANCE;
+    }
+}
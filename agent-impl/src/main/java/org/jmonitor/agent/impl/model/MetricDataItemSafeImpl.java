@@ -16,10 +16,14 @@
 
 package org.jmonitor.agent.impl.model;
 
+import org.jmonitor.agent.impl.util.LogLinearHistogram;
+import org.jmonitor.agent.impl.util.StripedTimingAccumulator;
 import org.jmonitor.collector.service.model.MetricDataItem;
 
 /**
- * 
+ * Snapshot of a single key's values in {@link MetricDataSafeImpl}. The values are consistent with
+ * each other (e.g. the average is always the total divided by the count of the same recordings)
+ * but do not update after the snapshot is taken.
  * 
  * @author Trask Stalnaker
  * @since 1.0
@@ -30,13 +34,21 @@ public class MetricDataItemSafeImpl implements MetricDataItem {
 
     // we don't have to worry about nanosecond rollover (292 years) for total time on a single
     // operation
-    private long totalTimeInNanoseconds;
-    private long minimumTimeInNanoseconds = Long.MAX_VALUE;
-    private long maximumTimeInNanoseconds = Long.MIN_VALUE;
-    private long count;
+    private final long count;
+    private final long totalTimeInNanoseconds;
+    private final long minimumTimeInNanoseconds;
+    private final long maximumTimeInNanoseconds;
+
+    // null if histograms are disabled
+    private final LogLinearHistogram histogram;
 
-    public MetricDataItemSafeImpl(String name) {
+    MetricDataItemSafeImpl(String name, StripedTimingAccumulator.Snapshot snapshot) {
         this.name = name;
+        count = snapshot.getCount();
+        totalTimeInNanoseconds = snapshot.getTotalTimeInNanoseconds();
+        minimumTimeInNanoseconds = snapshot.getMinimumTimeInNanoseconds();
+        maximumTimeInNanoseconds = snapshot.getMaximumTimeInNanoseconds();
+        histogram = snapshot.getHistogram();
     }
 
     public String getName() {
@@ -63,14 +75,12 @@ public class MetricDataItemSafeImpl implements MetricDataItem {
         return count;
     }
 
-    public void recordData(long timeInNanoseconds) {
-        if (timeInNanoseconds > maximumTimeInNanoseconds) {
-            maximumTimeInNanoseconds = timeInNanoseconds;
-        }
-        if (timeInNanoseconds < minimumTimeInNanoseconds) {
-            minimumTimeInNanoseconds = timeInNanoseconds;
+    public long getPercentileTimeInNanoseconds(double percentile) {
+        if (histogram == null || histogram.getTotalCount() == 0) {
+            return -1;
+        } else {
+            // the histogram only knows which bucket the value is in, the maximum is exact
+            return Math.min(histogram.getValueAtPercentile(percentile), maximumTimeInNanoseconds);
         }
-        count++;
-        totalTimeInNanoseconds += timeInNanoseconds;
     }
 }
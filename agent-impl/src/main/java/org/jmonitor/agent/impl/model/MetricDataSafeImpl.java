@@ -16,38 +16,93 @@
 
 package org.jmonitor.agent.impl.model;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.jmonitor.agent.impl.util.StripedTimingAccumulator;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.collector.service.model.MetricData;
 
 /**
  * Used to track summary data for a given operation (e.g. total jdbc execution time for a given
  * operation)
  * 
+ * The data is kept in an array indexed by operation summary key id (see
+ * {@link OperationSummaryKey#getId()}), so recording doesn't hash, box or allocate (other than
+ * the first time a given key is recorded for the operation).
+ * 
+ * Recording is thread safe (see {@link StripedTimingAccumulator}) so an operation's data can be
+ * recorded by more than one thread (e.g. worker threads on behalf of the operation), and the
+ * items returned by {@link #getItems()} are consistent snapshots even while the data is being
+ * recorded (e.g. when logging a stuck operation).
+ * 
  * @author Trask Stalnaker
- * @see OperationSafeImpl#recordOperationSummaryData(String, long)
+ * @see OperationSafeImpl#recordOperationSummaryData(int, OperationSummaryKey, long)
  * @since 1.0
  */
 public class MetricDataSafeImpl implements MetricData {
 
-    // store timing info per aggregation key
-    private final ConcurrentMap<String, MetricDataItemSafeImpl> map =
-            new ConcurrentHashMap<String, MetricDataItemSafeImpl>();
-
-    public void recordData(String name, long timeInNanoseconds) {
-        MetricDataItemSafeImpl summaryDataItem = map.get(name);
-        if (summaryDataItem == null) {
-            // it's possible that two threads both instantiate a new OperationSummaryDataItem
-            // but only one of the SummaryDataItems will get set via putIfAbsent which is why we
-            // retrieve the value afterwards
-            map.putIfAbsent(name, new MetricDataItemSafeImpl(name));
-            summaryDataItem = map.get(name);
+    private final boolean histogramsEnabled;
+
+    // copy on write, null for ids that have not been recorded
+    private volatile Item[] items = new Item[0];
+
+    public MetricDataSafeImpl(boolean histogramsEnabled) {
+        this.histogramsEnabled = histogramsEnabled;
+    }
+
+    // stripe is assigned per thread, see AgentThreadContext
+    public void recordData(int stripe, OperationSummaryKey key, long timeInNanoseconds) {
+        Item[] currentItems = items;
+        int id = key.getId();
+        Item item = null;
+        if (id < currentItems.length) {
+            item = currentItems[id];
         }
-        summaryDataItem.recordData(timeInNanoseconds);
+        if (item == null) {
+            item = createItem(key);
+        }
+        item.accumulator.record(stripe, timeInNanoseconds);
     }
 
+    // this is only called when logging, so it's ok to allocate the snapshots here
     public Iterable<MetricDataItemSafeImpl> getItems() {
-        return map.values();
+        List<MetricDataItemSafeImpl> snapshots = new ArrayList<MetricDataItemSafeImpl>();
+        for (Item item : items) {
+            if (item != null) {
+                StripedTimingAccumulator.Snapshot snapshot = item.accumulator.getSnapshot();
+                // the item is published just before its first recording
+                if (snapshot.getCount() > 0) {
+                    snapshots.add(new MetricDataItemSafeImpl(item.key.getName(), snapshot));
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    private synchronized Item createItem(OperationSummaryKey key) {
+        int id = key.getId();
+        Item[] currentItems = items;
+        if (id < currentItems.length && currentItems[id] != null) {
+            // created in the meantime by another thread
+            return currentItems[id];
+        }
+        Item item = new Item(key, new StripedTimingAccumulator(histogramsEnabled));
+        Item[] newItems = new Item[Math.max(currentItems.length, id + 1)];
+        System.arraycopy(currentItems, 0, newItems, 0, currentItems.length);
+        newItems[id] = item;
+        items = newItems;
+        return item;
+    }
+
+    private static class Item {
+
+        private final OperationSummaryKey key;
+        private final StripedTimingAccumulator accumulator;
+
+        private Item(OperationSummaryKey key, StripedTimingAccumulator accumulator) {
+            this.key = key;
+            this.accumulator = accumulator;
+        }
     }
 }
@@ -16,19 +16,27 @@
 
 package org.jmonitor.agent.impl.model;
 
+import java.lang.management.ThreadInfo;
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.jmonitor.agent.impl.aggregate.OperationAggregator;
+import org.jmonitor.agent.impl.util.ThreadResourceUsage;
+import org.jmonitor.agent.impl.util.collection.RegistrationList;
+import org.jmonitor.agent.impl.util.collection.TimingWheel;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
 import org.jmonitor.api.probe.RootProbeExecution;
 import org.jmonitor.collector.service.model.MetricData;
 import org.jmonitor.collector.service.model.Operation;
 import org.jmonitor.collector.service.model.SampledHotspotTree;
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
 import org.jmonitor.collector.service.model.Trace;
+import org.jmonitor.collector.service.model.TraceEvent;
 
 /**
  * Contains all data that the agent has captured for a given tracked operation (e.g. servlet
@@ -47,6 +55,14 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
     // TODO probably this could be int now that we only increment
     private static volatile long uniqueIdCounter = 1;
 
+    // used by operation summaries, see toSummary()
+    // (null root nodes means no stack traces were captured, same as SampledHotspotTreeSafeImpl)
+    private static final SampledHotspotTree EMPTY_SAMPLED_HOTSPOT_TREE = new SampledHotspotTree() {
+        public Iterable<SampledHotspotTreeNode> getRootNodes() {
+            return null;
+        }
+    };
+
     // timing data is tracked in nano seconds which cannot be converted into dates
     // (see javadoc for System.nanoTime())
     // so we also track operation startTimeDate as a date object here
@@ -54,6 +70,46 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
 
     private final AtomicBoolean stuck = new AtomicBoolean();
 
+    // used to group operations for aggregate data, see OperationAggregator
+    private final String operationName;
+
+    // the aggregator entry for the operation name, resolved on the first recording of operation
+    // summary data so that subsequent recordings don't need to look up the operation name
+    // this is only accessed by the operation's thread
+    private OperationAggregator.Entry aggregatorEntry;
+
+    // false if this operation was not selected by trace sampling, in which case only the root
+    // trace event and metric data are captured (stack traces are still captured if the operation
+    // exceeds the stack trace threshold)
+    private final boolean traced;
+
+    // the thread's cpu time and allocated bytes at the start of the operation, -1 if not captured
+    private final long startCpuTime;
+    private final long startAllocatedBytes;
+
+    // captured by the operation's thread once the operation completes, -1 until then (or if not
+    // captured)
+    private volatile long cpuTimeInNanoseconds = -1;
+    private volatile long allocatedBytes = -1;
+
+    // the thread's contention values at the start of the operation, -1 if not captured
+    private final long startBlockedTime;
+    private final long startBlockedCount;
+    private final long startWaitedTime;
+    private final long startWaitedCount;
+
+    // captured by the operation's thread once the operation completes, -1 until then (or if not
+    // captured)
+    private volatile long blockedTimeInMilliseconds = -1;
+    private volatile long blockedCount = -1;
+    private volatile long waitedTimeInMilliseconds = -1;
+    private volatile long waitedCount = -1;
+
+    // estimated trace memory reserved against the agent's trace memory budget, released when the
+    // operation completes
+    // this is only accessed by the operation's thread
+    private long reservedTraceBytes;
+
     // unique id to identify operations across multiple flushed / completed log entries
     // this is lazy created since it is only needed to match an operation if it is flushed
     // prior to completion
@@ -66,10 +122,10 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
     private final Set<String> threadNames = new CopyOnWriteArraySet<String>();
 
     // store timing info so we can report on summary data for a given operation
-    private final MetricDataSafeImpl metricData = new MetricDataSafeImpl();
+    private final MetricDataSafeImpl metricData;
 
     // contextual trace constructed from aspectj pointcuts
-    private final TraceSafeImpl trace;
+    private final AgentTrace trace;
 
     // stack trace data constructed from captured stack trace samplings
     private final SampledHotspotTreeSafeImpl sampledHotspotTree;
@@ -80,18 +136,55 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
     private final WeakReference<Thread> threadHolder =
             new WeakReference<Thread>(Thread.currentThread());
 
-    // these are stored in the operation so that they can be cancelled
-    private volatile ScheduledFuture<?> captureStackTraceScheduledFuture;
-    private volatile ScheduledFuture<?> stuckCommandScheduledFuture;
+    // the timing wheel entry for this operation's stack trace and stuck deadlines
+    // this is only accessed by the agent's timer thread
+    private TimingWheel.Timeout timeout;
+
+    // entry in the agent's active operation registry, stored here so that it can be removed from
+    // the registry in O(1) when the operation completes
+    private volatile RegistrationList.Entry registration;
 
     private final Object lock = new Object();
 
-    public OperationSafeImpl(ProbeExecution probeExecution) {
+    // the trace must have been created by the operation's thread, with the operation's root probe
+    // execution
+    public OperationSafeImpl(AgentTrace trace, boolean traced, boolean metricHistogramsEnabled,
+            boolean resourceUsageEnabled, boolean contentionMonitoringEnabled) {
 
         startTime = new Date();
-        trace = new TraceSafeImpl(probeExecution);
+        this.trace = trace;
+        this.traced = traced;
+        if (resourceUsageEnabled) {
+            startCpuTime = ThreadResourceUsage.getCurrentThreadCpuTime();
+            startAllocatedBytes = ThreadResourceUsage.getCurrentThreadAllocatedBytes();
+        } else {
+            startCpuTime = -1;
+            startAllocatedBytes = -1;
+        }
+        ThreadInfo startContention = null;
+        if (contentionMonitoringEnabled) {
+            startContention = ThreadResourceUsage.getCurrentThreadContention();
+        }
+        if (startContention == null) {
+            startBlockedTime = -1;
+            startBlockedCount = -1;
+            startWaitedTime = -1;
+            startWaitedCount = -1;
+        } else {
+            startBlockedTime = startContention.getBlockedTime();
+            startBlockedCount = startContention.getBlockedCount();
+            startWaitedTime = startContention.getWaitedTime();
+            startWaitedCount = startContention.getWaitedCount();
+        }
+        metricData = new MetricDataSafeImpl(metricHistogramsEnabled);
+        ProbeExecution probeExecution = trace.getRootProbeExecution();
+        if (probeExecution instanceof RootProbeExecution) {
+            operationName = ((RootProbeExecution) probeExecution).getOperationName();
+        } else {
+            operationName = probeExecution.getDescription();
+        }
         sampledHotspotTree = new SampledHotspotTreeSafeImpl();
-        addThreadName(Thread.currentThread());
+        addThreadName(Thread.currentThread().getName());
     }
 
     public Date getStartTime() {
@@ -119,16 +212,48 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
         return trace.isCompleted();
     }
 
+    public long getCpuTimeInNanoseconds() {
+        return cpuTimeInNanoseconds;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getBlockedTimeInMilliseconds() {
+        return blockedTimeInMilliseconds;
+    }
+
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    public long getWaitedTimeInMilliseconds() {
+        return waitedTimeInMilliseconds;
+    }
+
+    public long getWaitedCount() {
+        return waitedCount;
+    }
+
     public boolean isStuck() {
         return stuck.get();
     }
 
+    public boolean isTraced() {
+        return traced;
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
     public boolean getAndSetStuck() {
         return stuck.getAndSet(true);
     }
 
     public String getUsername() {
-        ProbeExecution probeExecution = trace.getRootElement().getProbeExecution();
+        ProbeExecution probeExecution = trace.getRootProbeExecution();
         if (probeExecution instanceof RootProbeExecution) {
             return ((RootProbeExecution) probeExecution).getUsername();
         } else {
@@ -136,7 +261,7 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
         }
     }
 
-    public TraceSafeImpl getTrace() {
+    public AgentTrace getTrace() {
         return trace;
     }
 
@@ -152,16 +277,20 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
         return threadNames;
     }
 
-    public ScheduledFuture<?> getCaptureStackTraceScheduledFuture() {
-        return captureStackTraceScheduledFuture;
-    }
-
     public boolean wasCompletedBy(long nanoTime) {
         return trace.wasCompletedBy(nanoTime);
     }
 
-    public ScheduledFuture<?> getStuckCommandScheduledFuture() {
-        return stuckCommandScheduledFuture;
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    public RegistrationList.Entry getRegistration() {
+        return registration;
+    }
+
+    public long getReservedTraceBytes() {
+        return reservedTraceBytes;
     }
 
     public boolean isPreviouslyFlushed() {
@@ -169,30 +298,88 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
     }
 
     // this is intentionally not synchronized since it can measure very fine
-    // grained actions and can be called very often
-    public void recordOperationSummaryData(String operationSummaryKey, long timeInNanoseconds) {
-        metricData.recordData(operationSummaryKey, timeInNanoseconds);
+    // grained actions and can be called very often (the metric data is thread safe on its own)
+    public void recordOperationSummaryData(int stripe, OperationSummaryKey operationSummaryKey,
+            long timeInNanoseconds) {
+        metricData.recordData(stripe, operationSummaryKey, timeInNanoseconds);
     }
 
-    // this method doesn't need to be synchronized
-    public void setCaptureStackTraceScheduledFuture(ScheduledFuture<?> stackTraceScheduledFuture) {
-        this.captureStackTraceScheduledFuture = stackTraceScheduledFuture;
+    public OperationAggregator.Entry getAggregatorEntry() {
+        return aggregatorEntry;
     }
 
-    // this method doesn't need to be synchronized
-    public void setStuckCommandScheduledFuture(ScheduledFuture<?> stuckCommandScheduledFuture) {
-        this.stuckCommandScheduledFuture = stuckCommandScheduledFuture;
+    // this method doesn't need to be synchronized (only called by the operation's thread)
+    public void setAggregatorEntry(OperationAggregator.Entry aggregatorEntry) {
+        this.aggregatorEntry = aggregatorEntry;
+    }
+
+    // this must be called by the operation's thread once the operation completes (the values are
+    // only captured if resource usage was enabled when the operation started)
+    public void captureResourceUsage() {
+        if (startCpuTime != -1) {
+            long endCpuTime = ThreadResourceUsage.getCurrentThreadCpuTime();
+            if (endCpuTime != -1) {
+                cpuTimeInNanoseconds = endCpuTime - startCpuTime;
+            }
+        }
+        if (startAllocatedBytes != -1) {
+            long endAllocatedBytes = ThreadResourceUsage.getCurrentThreadAllocatedBytes();
+            if (endAllocatedBytes != -1) {
+                allocatedBytes = endAllocatedBytes - startAllocatedBytes;
+            }
+        }
     }
 
-    public void captureStackTrace() {
-        Thread thread = threadHolder.get();
-        if (thread != null) {
-            // TODO gather thread names at different point? maybe during contextual trace?
-            addThreadName(thread);
-            sampledHotspotTree.captureStackTrace(thread);
+    // this must be called by the operation's thread once the operation completes (the values are
+    // only captured if contention monitoring was enabled when the operation started, and is still
+    // enabled)
+    public void captureContention() {
+        if (startBlockedCount == -1) {
+            return;
+        }
+        ThreadInfo endContention = ThreadResourceUsage.getCurrentThreadContentionIfEnabled();
+        if (endContention == null) {
+            return;
+        }
+        blockedCount = endContention.getBlockedCount() - startBlockedCount;
+        waitedCount = endContention.getWaitedCount() - startWaitedCount;
+        // the times are -1 if contention monitoring was disabled at the start or end
+        long endBlockedTime = endContention.getBlockedTime();
+        if (startBlockedTime != -1 && endBlockedTime != -1) {
+            blockedTimeInMilliseconds = endBlockedTime - startBlockedTime;
+        }
+        long endWaitedTime = endContention.getWaitedTime();
+        if (startWaitedTime != -1 && endWaitedTime != -1) {
+            waitedTimeInMilliseconds = endWaitedTime - startWaitedTime;
         }
     }
 
+    // this method doesn't need to be synchronized (only called by the agent's timer thread)
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public void addReservedTraceBytes(long bytes) {
+        reservedTraceBytes += bytes;
+    }
+
+    // this method doesn't need to be synchronized
+    public void setRegistration(RegistrationList.Entry registration) {
+        this.registration = registration;
+    }
+
+    // returns null if the thread has been garbage collected
+    public Thread getThread() {
+        return threadHolder.get();
+    }
+
+    // the thread info must be for this operation's thread
+    public void addStackTrace(ThreadInfo threadInfo) {
+        // TODO gather thread names at different point? maybe during contextual trace?
+        addThreadName(threadInfo.getThreadName());
+        sampledHotspotTree.addStackTrace(threadInfo);
+    }
+
     public Operation flush() {
 
         // TODO synchronize elsewhere appropriately
@@ -207,8 +394,14 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
         }
     }
 
-    private void addThreadName(Thread thread) {
-        String threadName = thread.getName();
+    // returns a copy containing only the operation summary (timings, metric data and the root
+    // trace event) which doesn't reference the rest of the trace or the sampled stack traces, so
+    // that those can be garbage collected while the summary is still waiting to be logged
+    public Operation toSummary() {
+        return new OperationSummary(this);
+    }
+
+    private void addThreadName(String threadName) {
         if (!threadNames.contains(threadName)) {
             // intentionally calling contains first for performance even though add() performs a
             // similar check, this is because of the specific implementation of
@@ -254,6 +447,30 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
             return trace.isCompleted();
         }
 
+        public long getCpuTimeInNanoseconds() {
+            return cpuTimeInNanoseconds;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getBlockedTimeInMilliseconds() {
+            return blockedTimeInMilliseconds;
+        }
+
+        public long getBlockedCount() {
+            return blockedCount;
+        }
+
+        public long getWaitedTimeInMilliseconds() {
+            return waitedTimeInMilliseconds;
+        }
+
+        public long getWaitedCount() {
+            return waitedCount;
+        }
+
         public boolean isStuck() {
             return stuck.get();
         }
@@ -266,6 +483,10 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
             return OperationSafeImpl.this.getUsername();
         }
 
+        public String getOperationName() {
+            return operationName;
+        }
+
         public Trace getTrace() {
             return flushedTrace;
         }
@@ -278,4 +499,127 @@ public class OperationSafeImpl implements Operation { // NOPMD for too many meth
             return metricData;
         }
     }
+
+    // this is intentionally a static nested class so that it doesn't reference the operation
+    private static class OperationSummary implements Operation {
+
+        private final Date startTime;
+        private final long startNanoTime;
+        private final long endNanoTime;
+        private final long cpuTimeInNanoseconds;
+        private final long allocatedBytes;
+        private final long blockedTimeInMilliseconds;
+        private final long blockedCount;
+        private final long waitedTimeInMilliseconds;
+        private final long waitedCount;
+        private final boolean stuck;
+        private final boolean completed;
+        private final long uniqueId;
+        private final Iterable<String> threadNames;
+        private final String username;
+        private final String operationName;
+        private final Trace trace;
+        private final MetricData metricData;
+
+        private OperationSummary(OperationSafeImpl operation) {
+            startTime = operation.getStartTime();
+            startNanoTime = operation.getStartNanoTime();
+            endNanoTime = operation.getEndNanoTime();
+            cpuTimeInNanoseconds = operation.getCpuTimeInNanoseconds();
+            allocatedBytes = operation.getAllocatedBytes();
+            blockedTimeInMilliseconds = operation.getBlockedTimeInMilliseconds();
+            blockedCount = operation.getBlockedCount();
+            waitedTimeInMilliseconds = operation.getWaitedTimeInMilliseconds();
+            waitedCount = operation.getWaitedCount();
+            stuck = operation.isStuck();
+            completed = operation.isCompleted();
+            uniqueId = operation.getUniqueId();
+            threadNames = operation.getThreadNames();
+            username = operation.getUsername();
+            operationName = operation.getOperationName();
+            final TraceEvent rootElement = operation.getTrace().getRootElement();
+            trace = new Trace() {
+                public Iterable<TraceEvent> getEvents() {
+                    return Collections.singletonList(rootElement);
+                }
+            };
+            metricData = operation.getMetricData();
+        }
+
+        public Date getStartTime() {
+            return startTime;
+        }
+
+        public long getStartNanoTime() {
+            return startNanoTime;
+        }
+
+        public long getEndNanoTime() {
+            return endNanoTime;
+        }
+
+        public long getDurationInNanoseconds() {
+            return endNanoTime - startNanoTime;
+        }
+
+        public long getCpuTimeInNanoseconds() {
+            return cpuTimeInNanoseconds;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getBlockedTimeInMilliseconds() {
+            return blockedTimeInMilliseconds;
+        }
+
+        public long getBlockedCount() {
+            return blockedCount;
+        }
+
+        public long getWaitedTimeInMilliseconds() {
+            return waitedTimeInMilliseconds;
+        }
+
+        public long getWaitedCount() {
+            return waitedCount;
+        }
+
+        public boolean isStuck() {
+            return stuck;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public long getUniqueId() {
+            return uniqueId;
+        }
+
+        public Iterable<String> getThreadNames() {
+            return threadNames;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getOperationName() {
+            return operationName;
+        }
+
+        public Trace getTrace() {
+            return trace;
+        }
+
+        public SampledHotspotTree getSampledHotspotTree() {
+            return EMPTY_SAMPLED_HOTSPOT_TREE;
+        }
+
+        public MetricData getMetricData() {
+            return metricData;
+        }
+    }
 }
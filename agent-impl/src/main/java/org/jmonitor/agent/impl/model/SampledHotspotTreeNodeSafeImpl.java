@@ -17,77 +17,123 @@
 package org.jmonitor.agent.impl.model;
 
 import java.lang.Thread.State;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
 
 /**
+ * Node of a {@link SampledHotspotTreeSafeImpl}, identified by its frame id (see
+ * {@link FrameDictionary}).
  * 
+ * Child nodes are kept in insertion order, and are looked up by frame id with a linear scan while
+ * there are only a few of them, after which an open addressing index (keyed by frame id) is built
+ * on the side.
+ * 
+ * Nodes are only updated by a single thread at a time (under the tree's lock), and can be read by
+ * other threads at the same time (e.g. the executing thread for flushing or the alerting thread).
  * 
  * @author Trask Stalnaker
  * @since 1.0
  */
-// TODO may not need volatile or concurrent data structures if all reads are also performed
-// under same lock as writes
 public class SampledHotspotTreeNodeSafeImpl implements SampledHotspotTreeNode {
 
-    private final StackTraceElement stackTraceElement;
-    private final Collection<SampledHotspotTreeNodeSafeImpl> childNodes =
-            new ConcurrentLinkedQueue<SampledHotspotTreeNodeSafeImpl>();
-
-    // these must be volatile since they are updated by one thread (the stack trace sampling
-    // thread) and can be read by another thread (the executing thread for flushing or the
-    // alerting thread)
-    //
-    // since we perform the stack traces under a synchronized lock (above)
-    // we don't need to worry about concurrent updates which avoids the (slight) overhead
-    // of using AtomicInteger
-    // 
-    // TODO maybe we should perform reads under synchronized lock to avoid volatile
-    // and to ensure consistent state of read
-    //
-    private volatile int sampleCount;
-    private volatile Map<State, Integer> leafThreadStateSampleCounts;
-    // optimization for common case where there is just a single thread state recorded
-    // so we don't have to instantiate map unless necessary
-    private volatile State singleLeafState;
+    // most nodes only ever have one or two children, so the index is only worth building once
+    // there are more than this
+    private static final int LINEAR_SEARCH_MAX = 8;
 
-    public SampledHotspotTreeNodeSafeImpl(StackTraceElement stackTraceElement) {
-        this.stackTraceElement = stackTraceElement;
-        sampleCount = 1;
-    }
+    private static final State[] STATES = State.values();
 
-    public void addChildNode(SampledHotspotTreeNodeSafeImpl methodTreeElement) {
-        childNodes.add(methodTreeElement);
-    }
+    private final int frameId;
 
-    public void addLeafSampling(State threadState) {
+    // null until the first child node is added, replaced (never modified other than filling in
+    // the next position) when more room is needed
+    private volatile SampledHotspotTreeNodeSafeImpl[] childNodes;
+
+    // child nodes are published to other threads by the (volatile) child count, after they have
+    // been written to childNodes
+    private volatile int childCount;
+
+    // open addressing index of child node positions (plus one, so that 0 means empty) keyed by
+    // frame id, null until there are more than LINEAR_SEARCH_MAX child nodes
+    // this is only accessed by the updating thread
+    private int[] childIndex;
 
-        if (singleLeafState == null) {
+    // these are volatile since they are read by other threads, but they don't need to be atomic
+    // since there is only a single thread updating them at a time
+    private volatile int sampleCount;
 
-            // first leaf sampling for this node
-            singleLeafState = threadState;
+    // indexed by Thread.State ordinal, lazy created since most nodes are never leaf nodes
+    // the array is re-published (volatile write) after each update
+    private volatile int[] leafThreadStateSampleCounts;
 
-        } else if (!threadState.equals(singleLeafState) && leafThreadStateSampleCounts == null) {
+    public SampledHotspotTreeNodeSafeImpl(int frameId) {
+        this.frameId = frameId;
+        sampleCount = 1;
+    }
 
-            // first leaf sampling of a different state than the single "best guess" state
-            // leaving optimized state, now we have to instantiate the map
-            leafThreadStateSampleCounts = new ConcurrentHashMap<State, Integer>();
-            leafThreadStateSampleCounts.put(singleLeafState, sampleCount);
+    // returns null if there is no child node for the frame id
+    public SampledHotspotTreeNodeSafeImpl getChildNode(int childFrameId) {
+        SampledHotspotTreeNodeSafeImpl[] currentChildNodes = childNodes;
+        if (childIndex == null) {
+            for (int i = 0; i < childCount; i++) {
+                if (currentChildNodes[i].frameId == childFrameId) {
+                    return currentChildNodes[i];
+                }
+            }
+            return null;
         }
+        int mask = childIndex.length - 1;
+        for (int slot = hash(childFrameId) & mask;; slot = (slot + 1) & mask) {
+            int position = childIndex[slot];
+            if (position == 0) {
+                return null;
+            }
+            SampledHotspotTreeNodeSafeImpl childNode = currentChildNodes[position - 1];
+            if (childNode.frameId == childFrameId) {
+                return childNode;
+            }
+        }
+    }
 
-        if (leafThreadStateSampleCounts != null) {
-            Integer count = leafThreadStateSampleCounts.get(threadState);
-            if (count == null) {
-                leafThreadStateSampleCounts.put(threadState, 1);
-            } else {
-                leafThreadStateSampleCounts.put(threadState, count + 1);
+    // the child node's frame id must not already be present (see getChildNode())
+    public void addChildNode(SampledHotspotTreeNodeSafeImpl childNode) {
+        int position = childCount;
+        SampledHotspotTreeNodeSafeImpl[] currentChildNodes = childNodes;
+        if (currentChildNodes == null) {
+            currentChildNodes = new SampledHotspotTreeNodeSafeImpl[2];
+            childNodes = currentChildNodes;
+        } else if (position == currentChildNodes.length) {
+            SampledHotspotTreeNodeSafeImpl[] newChildNodes =
+                    new SampledHotspotTreeNodeSafeImpl[currentChildNodes.length * 2];
+            System.arraycopy(currentChildNodes, 0, newChildNodes, 0, position);
+            childNodes = newChildNodes;
+            currentChildNodes = newChildNodes;
+        }
+        currentChildNodes[position] = childNode;
+        childCount = position + 1;
+
+        if (childIndex != null && (position + 1) * 2 <= childIndex.length) {
+            // keep the index at most half full
+            addToChildIndex(childIndex, childNode.frameId, position);
+        } else if (position + 1 > LINEAR_SEARCH_MAX) {
+            int[] newChildIndex = new int[Integer.highestOneBit(position + 1) * 4];
+            for (int i = 0; i <= position; i++) {
+                addToChildIndex(newChildIndex, currentChildNodes[i].frameId, i);
             }
+            childIndex = newChildIndex;
+        }
+    }
+
+    public void addLeafSampling(State threadState) {
+        int[] counts = leafThreadStateSampleCounts;
+        if (counts == null) {
+            counts = new int[STATES.length];
         }
+        counts[threadState.ordinal()]++;
+        leafThreadStateSampleCounts = counts;
     }
 
     // sampleCount is volatile to ensure visibility, but this method still needs to be called under
@@ -96,12 +142,23 @@ public class SampledHotspotTreeNodeSafeImpl implements SampledHotspotTreeNode {
         sampleCount++;
     }
 
+    // the returned view is not affected by child nodes that are added afterwards
     public Iterable<SampledHotspotTreeNodeSafeImpl> getChildNodes() {
-        return childNodes;
+        // the count must be read before the array
+        int currentChildCount = childCount;
+        if (currentChildCount == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(childNodes).subList(0,
+                currentChildCount));
+    }
+
+    public int getFrameId() {
+        return frameId;
     }
 
     public StackTraceElement getStackTraceElement() {
-        return stackTraceElement;
+        return FrameDictionary.getInstance().getFrame(frameId);
     }
 
     public int getSampleCount() {
@@ -109,13 +166,31 @@ public class SampledHotspotTreeNodeSafeImpl implements SampledHotspotTreeNode {
     }
 
     public Map<State, Integer> getLeafThreadStateSampleCounts() {
-        if (leafThreadStateSampleCounts == null && singleLeafState == null) {
+        int[] counts = leafThreadStateSampleCounts;
+        if (counts == null) {
             return Collections.emptyMap();
-        } else if (leafThreadStateSampleCounts == null) {
-            // optimized for common case with single "best guess" state
-            return Collections.singletonMap(singleLeafState, sampleCount);
-        } else {
-            return leafThreadStateSampleCounts;
         }
+        Map<State, Integer> leafThreadStateSampleCountMap = new EnumMap<State, Integer>(State.class);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                leafThreadStateSampleCountMap.put(STATES[i], counts[i]);
+            }
+        }
+        return leafThreadStateSampleCountMap;
+    }
+
+    private static void addToChildIndex(int[] index, int childFrameId, int position) {
+        int mask = index.length - 1;
+        int slot = hash(childFrameId) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = position + 1;
+    }
+
+    // frame ids are sequential, so they are spread out to avoid clustering
+    private static int hash(int frameId) {
+        int h = frameId * 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
 }
@@ -17,102 +17,125 @@
 package org.jmonitor.agent.impl.model;
 
 import java.lang.Thread.State;
-import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
-import java.lang.management.ThreadMXBean;
-import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jmonitor.collector.service.model.SampledHotspotTree;
 import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
 
 /**
  * Stack trace tree built from stack traces captured by periodic calls to
- * {@link Thread#getStackTrace()}.
+ * {@link java.lang.management.ThreadMXBean#getThreadInfo(long[], int)}.
  * 
  * This can be either thread-specific sampled call tree tied to an operation, or it can be a global
  * sampled call tree across all threads.
  * 
+ * Frames are interned to integer ids (see {@link FrameDictionary}) and child nodes are looked up
+ * by frame id (see {@link SampledHotspotTreeNodeSafeImpl}), so adding a stack trace costs a hash
+ * lookup per frame regardless of how wide the tree has grown.
+ * 
+ * The number of nodes can optionally be capped (the global sampled call tree would otherwise keep
+ * growing with every new code path that is sampled), in which case samples that would need more
+ * nodes are only added down to the deepest frame that is already in the tree.
+ * 
  * @author Trask Stalnaker
  * @since 1.0
  */
 public class SampledHotspotTreeSafeImpl implements SampledHotspotTree {
 
+    public static final int NODE_COUNT_UNLIMITED = -1;
+
+    private final int maxNodeCount;
+
+    // the root nodes are the children of this (frameless) node
     // this is lazy instantiated since most operations won't exceed the
     // threshold for capturing stack traces
     // and so initializing this would use up memory unnecessarily
-    private Collection<SampledHotspotTreeNodeSafeImpl> rootNodes;
+    private volatile SampledHotspotTreeNodeSafeImpl syntheticRootNode;
 
     private final Object lock = new Object();
 
-    // this method returns an iterable with a "weakly consistent" iterator
-    // that will never throw ConcurrentModificationException, see
-    // ConcurrentLinkedQueue.iterator()
+    // guarded by lock
+    private int nodeCount;
+    private int truncatedSampleCount;
+
+    public SampledHotspotTreeSafeImpl() {
+        this(NODE_COUNT_UNLIMITED);
+    }
+
+    public SampledHotspotTreeSafeImpl(int maxNodeCount) {
+        this.maxNodeCount = maxNodeCount;
+    }
+
+    // returns null if no stack traces have been captured
     public Iterable<? extends SampledHotspotTreeNode> getRootNodes() {
-        return rootNodes;
+        SampledHotspotTreeNodeSafeImpl currentSyntheticRootNode = syntheticRootNode;
+        if (currentSyntheticRootNode == null) {
+            return null;
+        } else {
+            return currentSyntheticRootNode.getChildNodes();
+        }
     }
 
-    public void captureStackTrace(Thread thread) {
+    // the thread info is captured by the agent's stack trace sampler which batches the capture of
+    // all operations that are due for a sample into a single ThreadMXBean call
+    //
+    // if the stack trace was truncated (due to the configured max stack trace depth) then the
+    // outermost frames are missing and the sample will be rooted at the outermost captured frame
+    public void addStackTrace(ThreadInfo threadInfo) {
 
         // we could reduce the scope of this lock considerably, but it probably only makes sense to
-        // capture and build a single stack trace at a time anyways
+        // build a single stack trace at a time anyways
         synchronized (lock) {
-
-            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-            ThreadInfo threadInfo = threadBean.getThreadInfo(thread.getId(), Integer.MAX_VALUE);
-
             addToStackTree(threadInfo.getStackTrace(), threadInfo.getThreadState());
         }
     }
 
     private void addToStackTree(StackTraceElement[] stackTraceElements, State threadState) {
 
-        if (rootNodes == null) {
-            rootNodes = new ConcurrentLinkedQueue<SampledHotspotTreeNodeSafeImpl>();
+        if (stackTraceElements.length == 0) {
+            // e.g. the thread has terminated in the meantime
+            return;
+        }
+        if (syntheticRootNode == null) {
+            syntheticRootNode = new SampledHotspotTreeNodeSafeImpl(-1);
         }
 
-        SampledHotspotTreeNodeSafeImpl lastMatchedNode = null;
-        Iterable<SampledHotspotTreeNodeSafeImpl> nextChildNodes = rootNodes;
-        int nextStackTraceIndex = 0;
-
-        // navigate the stack tree nodes
-        // matching the new stack trace as far as possible
-        for (nextStackTraceIndex = stackTraceElements.length - 1; nextStackTraceIndex >= 0; nextStackTraceIndex--) {
-
-            // check all child nodes
-            boolean matchFound = false;
-            for (SampledHotspotTreeNodeSafeImpl childNode : nextChildNodes) {
-                if (stackTraceElements[nextStackTraceIndex].equals(childNode.getStackTraceElement())) {
-                    // match found, update lastMatchedNode and continue
-                    childNode.incrementSampleCount();
-                    lastMatchedNode = childNode;
-                    nextChildNodes = lastMatchedNode.getChildNodes();
-                    matchFound = true;
-                    break;
+        FrameDictionary frameDictionary = FrameDictionary.getInstance();
+        SampledHotspotTreeNodeSafeImpl node = syntheticRootNode;
+        for (int i = stackTraceElements.length - 1; i >= 0; i--) {
+            int frameId = frameDictionary.getFrameId(stackTraceElements[i]);
+            SampledHotspotTreeNodeSafeImpl childNode = node.getChildNode(frameId);
+            if (childNode == null) {
+                if (nodeCount == maxNodeCount) {
+                    // the remaining (inner) frames and the thread state are not added, but the
+                    // sample is still counted by all of the nodes down to here
+                    truncatedSampleCount++;
+                    return;
                 }
+                nodeCount++;
+                // new nodes start out with a sample count of 1
+                childNode = new SampledHotspotTreeNodeSafeImpl(frameId);
+                node.addChildNode(childNode);
+            } else {
+                childNode.incrementSampleCount();
             }
-
-            if (!matchFound) {
-                break;
-            }
+            node = childNode;
         }
 
-        // add remaining stack trace elements
-        for (int i = nextStackTraceIndex; i >= 0; i--) {
-
-            SampledHotspotTreeNodeSafeImpl nextNode =
-                    new SampledHotspotTreeNodeSafeImpl(stackTraceElements[i]);
+        // add leaf sampling
+        node.addLeafSampling(threadState);
+    }
 
-            if (lastMatchedNode == null) {
-                // new root node
-                rootNodes.add(nextNode);
-            } else {
-                lastMatchedNode.addChildNode(nextNode);
-            }
-            lastMatchedNode = nextNode;
+    public int getNodeCount() {
+        synchronized (lock) {
+            return nodeCount;
         }
+    }
 
-        // add leaf sampling
-        lastMatchedNode.addLeafSampling(threadState);
+    // number of samples that were cut short because the max number of nodes had been reached
+    public int getTruncatedSampleCount() {
+        synchronized (lock) {
+            return truncatedSampleCount;
+        }
     }
 }
@@ -36,10 +36,16 @@ public final class TraceEventSafeImpl implements TraceEvent, IndexedElement {
 
     private final long operationStartNanoTime;
     private final long startNanoTime;
+    // this is the end of the trace event's own execution, once executions have been folded into
+    // the trace event it ends where the last folded execution ended (see FoldedExecutions)
     private volatile long endNanoTime;
 
     private volatile boolean completed;
 
+    // null unless executions have been folded into this trace event, replaced as a whole on each
+    // fold so that the count, durations and end time are always read consistently
+    private volatile FoldedExecutions folded;
+
     // index is per operation and starts at 0
     private final int index;
     private final int parentIndex;
@@ -75,7 +81,12 @@ public final class TraceEventSafeImpl implements TraceEvent, IndexedElement {
     }
 
     public long getEndNanoTime() {
-        return endNanoTime;
+        FoldedExecutions currentFolded = folded;
+        if (currentFolded == null) {
+            return endNanoTime;
+        } else {
+            return currentFolded.getEndNanoTime();
+        }
     }
 
     public long getOffsetInNanoseconds() {
@@ -83,7 +94,34 @@ public final class TraceEventSafeImpl implements TraceEvent, IndexedElement {
     }
 
     public long getDurationInNanoseconds() {
-        return endNanoTime - startNanoTime;
+        return getEndNanoTime() - startNanoTime;
+    }
+
+    public int getCount() {
+        FoldedExecutions currentFolded = folded;
+        if (currentFolded == null) {
+            return 1;
+        } else {
+            return currentFolded.getCount();
+        }
+    }
+
+    public long getTotalDurationInNanoseconds() {
+        FoldedExecutions currentFolded = folded;
+        if (currentFolded == null) {
+            return getDurationInNanoseconds();
+        } else {
+            return currentFolded.getTotalDurationInNanoseconds();
+        }
+    }
+
+    public long getMaxDurationInNanoseconds() {
+        FoldedExecutions currentFolded = folded;
+        if (currentFolded == null) {
+            return getDurationInNanoseconds();
+        } else {
+            return currentFolded.getMaxDurationInNanoseconds();
+        }
     }
 
     public boolean isCompleted() {
@@ -91,7 +129,7 @@ public final class TraceEventSafeImpl implements TraceEvent, IndexedElement {
     }
 
     public boolean wasCompletedBy(long nanoTime) {
-        return completed && NanoUtils.isLessThan(endNanoTime, nanoTime);
+        return completed && NanoUtils.isLessThan(getEndNanoTime(), nanoTime);
     }
 
     public boolean wasStartedBy(long nanoTime) {
@@ -117,4 +155,12 @@ public final class TraceEventSafeImpl implements TraceEvent, IndexedElement {
     void setCompleted(boolean completed) {
         this.completed = completed;
     }
+
+    // the trace event now spans up to the end of the folded execution
+    //
+    // this is only called by the operation's thread, and is a single volatile write
+    void fold(long foldedDurationInNanoseconds, long foldedEndNanoTime) {
+        folded = FoldedExecutions.add(folded, endNanoTime - startNanoTime,
+                foldedDurationInNanoseconds, foldedEndNanoTime);
+    }
 }
@@ -17,6 +17,7 @@
 package org.jmonitor.agent.impl.model;
 
 import java.util.LinkedList;
+import java.util.ListIterator;
 
 import org.jmonitor.agent.impl.util.collection.FlushableList;
 import org.jmonitor.api.probe.ProbeExecution;
@@ -33,10 +34,13 @@ import org.slf4j.Logger;
  * {@link TraceEvent}s and tracking if any previously flushed {@link TraceEvent}s are
  * subsequently changes and need to be re-flushed at the next opportunity.
  * 
+ * Each trace event is stored as a {@link TraceEventSafeImpl}, see {@link CompactTraceSafeImpl}
+ * for an implementation which stores them in primitive arrays instead.
+ * 
  * @author Trask Stalnaker
  * @since 1.0
  */
-public class TraceSafeImpl implements Trace {
+public class TraceSafeImpl implements AgentTrace {
 
     private static final Logger LOGGER =
             CollectorServiceLoggerFactory.getLogger(TraceSafeImpl.class);
@@ -61,9 +65,14 @@ public class TraceSafeImpl implements Trace {
 
     private volatile int size;
 
-    public TraceSafeImpl(ProbeExecution probeExecution) {
+    // the most recently completed trace events which have a template, most recent first (see
+    // hasFoldTarget())
+    // this is lazy created and only accessed by the operation's thread
+    private TraceEventSafeImpl[] foldTargets;
+
+    public TraceSafeImpl(ProbeExecution probeExecution, long startNanoTime) {
 
-        startNanoTime = System.nanoTime();
+        this.startNanoTime = startNanoTime;
 
         rootElement = new TraceEventSafeImpl(probeExecution, startNanoTime, startNanoTime, 0, -1, 0);
 
@@ -74,6 +83,10 @@ public class TraceSafeImpl implements Trace {
         return rootElement;
     }
 
+    public ProbeExecution getRootProbeExecution() {
+        return rootElement.getProbeExecution();
+    }
+
     public Iterable<TraceEventSafeImpl> getEvents() {
         return elements;
     }
@@ -87,11 +100,11 @@ public class TraceSafeImpl implements Trace {
         };
     }
 
-    public TraceEventSafeImpl getCurrentElement() {
+    public ProbeExecution getCurrentProbeExecution() {
         if (elementStack.isEmpty()) {
             return null;
         } else {
-            return elementStack.getLast();
+            return elementStack.getLast().getProbeExecution();
         }
     }
 
@@ -99,49 +112,123 @@ public class TraceSafeImpl implements Trace {
         return size;
     }
 
+    // the trace event object (3 longs, 3 ints, a boolean and a reference, plus the object header)
+    // and its slot in the flushable list
+    public int getEstimatedBytesPerElement() {
+        return 64;
+    }
+
     // typically pop() methods don't require the element to pop, but for safety we are passing
     // in the element to pop just to make sure it is the one on top
     // (and if not we pop until we find it, preventing any nasty bugs from a forgotten pop)
     //
     // throws NoSuchElementException if element is not found anywhere on stack
     //
-    public void popElement(TraceEventSafeImpl element, long elementEndNanoTime) {
-
-        element.setEndNanoTime(elementEndNanoTime);
-        element.setCompleted(true);
-        elements.justUpdatedPossiblyFlushedElement(element);
+    public void popElement(int index, long elementEndNanoTime) {
 
         TraceEventSafeImpl pop = elementStack.removeLast();
 
-        if (!pop.equals(element)) {
+        if (pop.getIndex() != index) {
             // maybe 'pop' didn't pop itself correctly so we log it
             LOGGER.error("found " + pop.getDescription()
-                    + " at the top of the stack when expecting " + element.getDescription(),
-                    new IllegalStateException());
-            while (!elementStack.removeLast().equals(element)) {
+                    + " at the top of the stack when expecting the trace event at index "
+                    + index, new IllegalStateException());
+            while (pop.getIndex() != index) {
+                pop = elementStack.removeLast();
             }
         }
 
+        pop.setEndNanoTime(elementEndNanoTime);
+        pop.setCompleted(true);
+        elements.justUpdatedPossiblyFlushedElement(pop);
+        if (FoldedExecutions.hasTemplate(pop.getProbeExecution())) {
+            addFoldTarget(pop);
+        }
+
         if (elementStack.isEmpty()) {
             endNanoTime = elementEndNanoTime;
             completed = true;
         }
     }
 
-    public TraceEventSafeImpl pushElement(ProbeExecution probeExecution) {
+    public int pushElement(ProbeExecution probeExecution, long elementStartNanoTime) {
 
         // pushElement() is only called by a single thread so we don't need to worry about
         // synchronizing updates to the size field
 
         TraceEventSafeImpl element =
-                new TraceEventSafeImpl(probeExecution, startNanoTime, System.nanoTime(), size,
+                new TraceEventSafeImpl(probeExecution, startNanoTime, elementStartNanoTime, size,
                         elementStack.getLast().getIndex(), elementStack.getLast().getLevel() + 1);
 
         pushElementInternal(element);
 
+        return element.getIndex();
+    }
+
+    // the element itself is the holder
+    public TraceEventSafeImpl getElementHolder(int index) {
+        // the element is normally at the top of the stack
+        ListIterator<TraceEventSafeImpl> i = elementStack.listIterator(elementStack.size());
+        while (i.hasPrevious()) {
+            TraceEventSafeImpl element = i.previous();
+            if (element.getIndex() == index) {
+                return element;
+            }
+        }
+        throw new IllegalStateException("trace event at index " + index + " is not on the stack");
+    }
+
+    public boolean hasFoldTarget() {
+        return getFoldTarget(null, null) != null;
+    }
+
+    public boolean hasFoldTarget(String descriptionTemplate) {
+        return getFoldTarget(null, descriptionTemplate) != null;
+    }
+
+    public TraceEventSafeImpl foldElement(ProbeExecution probeExecution,
+            long foldedStartNanoTime, long foldedEndNanoTime) {
+
+        TraceEventSafeImpl element = getFoldTarget(probeExecution, null);
+        if (element == null) {
+            return null;
+        }
+        element.fold(foldedEndNanoTime - foldedStartNanoTime, foldedEndNanoTime);
+        elements.justUpdatedPossiblyFlushedElement(element);
         return element;
     }
 
+    // returns the most recent fold target that is a child of the current trace event and (if the
+    // probe execution is not null) that the probe execution can be folded into and (if the
+    // template is not null) that has the template
+    private TraceEventSafeImpl getFoldTarget(ProbeExecution probeExecution,
+            String descriptionTemplate) {
+
+        if (foldTargets == null || elementStack.isEmpty()) {
+            return null;
+        }
+        int currentIndex = elementStack.getLast().getIndex();
+        for (TraceEventSafeImpl foldTarget : foldTargets) {
+            if (foldTarget != null
+                    && foldTarget.getParentIndex() == currentIndex
+                    && (probeExecution == null || FoldedExecutions.isFoldable(probeExecution,
+                            foldTarget.getProbeExecution()))
+                    && (descriptionTemplate == null || FoldedExecutions.hasTemplate(
+                            foldTarget.getProbeExecution(), descriptionTemplate))) {
+                return foldTarget;
+            }
+        }
+        return null;
+    }
+
+    private void addFoldTarget(TraceEventSafeImpl element) {
+        if (foldTargets == null) {
+            foldTargets = new TraceEventSafeImpl[FoldedExecutions.FOLD_TARGETS];
+        }
+        System.arraycopy(foldTargets, 0, foldTargets, 1, foldTargets.length - 1);
+        foldTargets[0] = element;
+    }
+
     private void pushElementInternal(TraceEventSafeImpl element) {
 
         elementStack.addLast(element);
@@ -176,7 +263,7 @@ public class TraceSafeImpl implements Trace {
 
     // this doesn't require synchronization since flush is designed to be called
     // only by same thread
-    public void justUpdatedCompletedElement(TraceEventSafeImpl element) {
-        elements.justUpdatedPossiblyFlushedElement(element);
+    public void justUpdatedCompletedElement(Object elementHolder) {
+        elements.justUpdatedPossiblyFlushedElement((TraceEventSafeImpl) elementHolder);
     }
 }
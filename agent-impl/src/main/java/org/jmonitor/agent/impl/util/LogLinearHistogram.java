@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util;
+
+/**
+ * Fixed memory histogram of nanosecond times (along the lines of HdrHistogram).
+ *
+ * Values below 16 are counted exactly, and above that each power of two is split into 8 linear
+ * sub-buckets, so reported percentiles are within 1/8 (12.5%) of the actual value and usually
+ * much closer. Values of 2^40 nanoseconds (~18 minutes) and above are counted in the last bucket.
+ * This comes to {@link #BUCKET_COUNT} buckets (~2.5kb) regardless of the number of values
+ * recorded.
+ *
+ * Recording is not thread safe (there should only be a single thread recording at a time, see
+ * {@link StripedTimingAccumulator}), but it can be read by other threads at the same time, in
+ * which case the percentiles may not reflect the most recent values.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+
+    public static final int BUCKET_COUNT = getIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long totalCount;
+
+    public void record(long value) {
+        counts[getIndex(value)]++;
+        totalCount++;
+    }
+
+    // used to harvest counts that were recorded elsewhere (e.g. concurrently into an
+    // AtomicLongArray by index, see getIndex())
+    public void add(int index, long count) {
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    public void merge(LogLinearHistogram histogram) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += histogram.counts[i];
+        }
+        totalCount += histogram.totalCount;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // e.g. 99.9 for the 99.9th percentile, returns the highest value that is counted in the same
+    // bucket as the value at the given percentile, or -1 if no values have been recorded
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount;
+        if (total == 0) {
+            return -1;
+        }
+        long targetCount = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= targetCount) {
+                return getHighestEquivalentValue(i);
+            }
+        }
+        // only reachable while being concurrently recorded into
+        return MAX_TRACKABLE_VALUE;
+    }
+
+    // negative values (which shouldn't happen) are counted as 0
+    public static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        long clampedValue = Math.min(value, MAX_TRACKABLE_VALUE);
+        // position of the highest one bit, at least SUB_BUCKET_BITS
+        int powerOfTwo = 63 - Long.numberOfLeadingZeros(clampedValue);
+        int shift = powerOfTwo - SUB_BUCKET_BITS + 1;
+        // the sub bucket is in the upper half, since the lower half is covered by the previous
+        // power of two
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (clampedValue >>> shift);
+    }
+
+    private static long getHighestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Thread safe accumulator of count, total, minimum and maximum time (and optionally a
+ * {@link LogLinearHistogram}), along the lines of the jdk 8 LongAdder.
+ * 
+ * Values are recorded into cells. There is only a single cell until two threads actually record at
+ * the same time, after which the number of cells is doubled (up to the number of processors) so
+ * that concurrent writers end up in different cells.
+ * 
+ * Histograms (if enabled) are only allocated for the cells that are actually recorded into, and
+ * snapshots only allocate one if a cell has one.
+ * 
+ * Each cell is guarded by a sequence number (a seqlock). A writer claims a cell by moving its
+ * sequence number from even to odd with a single compare-and-set, and if that fails it simply
+ * moves on to another cell, so writers never wait on each other or on readers. Readers retry a
+ * cell until they have read it without a writer claiming it in the meantime, which gives a
+ * consistent snapshot (e.g. the count always matches the total) without locking the writers.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class StripedTimingAccumulator {
+
+    private static final int MAX_CELLS;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int powerOfTwo = 1;
+        while (powerOfTwo < processors) {
+            powerOfTwo <<= 1;
+        }
+        MAX_CELLS = powerOfTwo;
+    }
+
+    private final boolean histogramEnabled;
+
+    // the length is always a power of two, replaced (never modified) when more cells are needed
+    private volatile Cell[] cells;
+
+    public StripedTimingAccumulator(boolean histogramEnabled) {
+        this.histogramEnabled = histogramEnabled;
+        cells = new Cell[] { new Cell(histogramEnabled) };
+    }
+
+    // stripe is a hint for which cell to use, typically assigned per thread so that threads
+    // recording at the same time start out in different cells
+    public void record(int stripe, long timeInNanoseconds) {
+        Cell[] currentCells = cells;
+        Cell cell = currentCells[stripe & (currentCells.length - 1)];
+        if (!cell.tryClaim()) {
+            cell = claimOtherCell(stripe);
+        }
+        try {
+            cell.record(timeInNanoseconds);
+        } finally {
+            cell.release();
+        }
+    }
+
+    // this is intended for the (infrequent) flushing threads, it allocates and may need to retry
+    // while the cells are being written to
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (Cell cell : cells) {
+            snapshot.add(cell);
+        }
+        return snapshot;
+    }
+
+    private Cell claimOtherCell(int stripe) {
+        while (true) {
+            Cell[] currentCells = cells;
+            int mask = currentCells.length - 1;
+            for (int i = 1; i <= currentCells.length; i++) {
+                Cell cell = currentCells[(stripe + i) & mask];
+                if (cell.tryClaim()) {
+                    return cell;
+                }
+            }
+            if (currentCells.length < MAX_CELLS) {
+                expand(currentCells);
+            } else {
+                // every cell is being written to, which can only happen if the writer threads
+                // outnumber the processors
+                Thread.yield();
+            }
+        }
+    }
+
+    private synchronized void expand(Cell[] expectedCells) {
+        if (cells != expectedCells) {
+            // already expanded by another thread
+            return;
+        }
+        Cell[] newCells = new Cell[expectedCells.length * 2];
+        System.arraycopy(expectedCells, 0, newCells, 0, expectedCells.length);
+        for (int i = expectedCells.length; i < newCells.length; i++) {
+            newCells[i] = new Cell(histogramEnabled);
+        }
+        cells = newCells;
+    }
+
+    /**
+     * Consistent view of the accumulated values as of when it was taken.
+     */
+    public static class Snapshot {
+
+        private long count;
+        private long totalTimeInNanoseconds;
+        private long minimumTimeInNanoseconds = Long.MAX_VALUE;
+        private long maximumTimeInNanoseconds = Long.MIN_VALUE;
+
+        // null if histograms are disabled (or nothing has been recorded)
+        private LogLinearHistogram histogram;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTimeInNanoseconds() {
+            return totalTimeInNanoseconds;
+        }
+
+        public long getMinimumTimeInNanoseconds() {
+            return minimumTimeInNanoseconds;
+        }
+
+        public long getMaximumTimeInNanoseconds() {
+            return maximumTimeInNanoseconds;
+        }
+
+        // null if histograms are disabled (or nothing has been recorded)
+        public LogLinearHistogram getHistogram() {
+            return histogram;
+        }
+
+        private void add(Cell cell) {
+            while (true) {
+                int sequence = cell.sequence;
+                if ((sequence & 1) == 1) {
+                    // a writer has claimed the cell
+                    Thread.yield();
+                    continue;
+                }
+                long cellCount = cell.count;
+                long cellTotal = cell.total;
+                long cellMinimum = cell.minimum;
+                long cellMaximum = cell.maximum;
+                LogLinearHistogram cellHistogram = cell.histogram;
+                if (cellHistogram != null) {
+                    // copied since the cell's histogram may be recorded into right after the
+                    // sequence number check below
+                    LogLinearHistogram copy = new LogLinearHistogram();
+                    copy.merge(cellHistogram);
+                    cellHistogram = copy;
+                }
+                // compare-and-set (as opposed to a plain volatile read) so that the reads above
+                // cannot be reordered after the check, it only succeeds if no writer has claimed
+                // the cell since the sequence number was read
+                if (Cell.SEQUENCE_UPDATER.compareAndSet(cell, sequence, sequence)) {
+                    count += cellCount;
+                    totalTimeInNanoseconds += cellTotal;
+                    minimumTimeInNanoseconds = Math.min(minimumTimeInNanoseconds, cellMinimum);
+                    maximumTimeInNanoseconds = Math.max(maximumTimeInNanoseconds, cellMaximum);
+                    if (cellHistogram != null) {
+                        if (histogram == null) {
+                            histogram = cellHistogram;
+                        } else {
+                            histogram.merge(cellHistogram);
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Cell {
+
+        private static final AtomicIntegerFieldUpdater<Cell> SEQUENCE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Cell.class, "sequence");
+
+        // odd while a writer has claimed the cell
+        private volatile int sequence;
+
+        // these are only written by the writer that has claimed the cell, and are published to
+        // readers by the release of the sequence number
+        private long count;
+        private long total;
+        private long minimum = Long.MAX_VALUE;
+        private long maximum = Long.MIN_VALUE;
+        // allocated on the cell's first recording, so that cells (and accumulators) that are
+        // never recorded into don't pay for it
+        private LogLinearHistogram histogram;
+
+        private final boolean histogramEnabled;
+
+        private Cell(boolean histogramEnabled) {
+            this.histogramEnabled = histogramEnabled;
+        }
+
+        private boolean tryClaim() {
+            int current = sequence;
+            return (current & 1) == 0 && SEQUENCE_UPDATER.compareAndSet(this, current, current + 1);
+        }
+
+        private void release() {
+            sequence++;
+        }
+
+        private void record(long timeInNanoseconds) {
+            count++;
+            total += timeInNanoseconds;
+            if (timeInNanoseconds < minimum) {
+                minimum = timeInNanoseconds;
+            }
+            if (timeInNanoseconds > maximum) {
+                maximum = timeInNanoseconds;
+            }
+            if (histogramEnabled) {
+                if (histogram == null) {
+                    histogram = new LogLinearHistogram();
+                }
+                histogram.record(timeInNanoseconds);
+            }
+        }
+    }
+}
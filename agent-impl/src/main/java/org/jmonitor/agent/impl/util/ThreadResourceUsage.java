@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the current thread's cpu time, allocated bytes and contention (blocked and waited time),
+ * where supported by the jvm.
+ * 
+ * Allocated bytes are only available through com.sun.management.ThreadMXBean (sun / oracle jvm
+ * 1.6.0_25 and later), which is only linked once it has been found to be present.
+ * 
+ * Thread contention monitoring is enabled in the jvm the first time the contention is read (it is
+ * disabled by default since it adds some overhead to every contended monitor), and is switched
+ * back off by restoreContentionMonitoring() if it was the agent that enabled it.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public final class ThreadResourceUsage {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME_SUPPORTED =
+            THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+    private static final boolean ALLOCATED_BYTES_SUPPORTED = isAllocatedBytesSupported();
+
+    private static final boolean CONTENTION_MONITORING_SUPPORTED =
+            THREAD_MX_BEAN.isThreadContentionMonitoringSupported();
+
+    // set once contention monitoring has been enabled (or could not be enabled), so that it is
+    // only attempted once (until it is restored)
+    private static volatile boolean contentionMonitoringInitialized;
+    private static volatile boolean contentionMonitoringAvailable;
+
+    // only written under the class lock, true if contention monitoring was disabled in the jvm
+    // before the agent enabled it (so it is only disabled again if the agent enabled it)
+    private static boolean contentionMonitoringEnabledByAgent;
+
+    // utility class
+    private ThreadResourceUsage() {
+    }
+
+    // returns -1 if not supported or disabled
+    public static long getCurrentThreadCpuTime() {
+        if (!CPU_TIME_SUPPORTED) {
+            return -1;
+        }
+        // this also returns -1 if thread cpu time measurement is disabled
+        return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+    }
+
+    // returns -1 if not supported or disabled
+    public static long getCurrentThreadAllocatedBytes() {
+        if (!ALLOCATED_BYTES_SUPPORTED) {
+            return -1;
+        }
+        return SunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // returns null if not supported, otherwise the blocked / waited times are -1 if contention
+    // monitoring has been disabled in the meantime (the counts are always available)
+    //
+    // no stack trace is captured, but this still allocates the thread info
+    public static ThreadInfo getCurrentThreadContention() {
+        if (!CONTENTION_MONITORING_SUPPORTED) {
+            return null;
+        }
+        if (!contentionMonitoringInitialized) {
+            initializeContentionMonitoring();
+        }
+        return getCurrentThreadContentionIfEnabled();
+    }
+
+    // same as getCurrentThreadContention() except that this never enables contention monitoring,
+    // so that operations which were already in flight when contention monitoring was restored
+    // don't enable it again on their way out (returns null in that case)
+    public static ThreadInfo getCurrentThreadContentionIfEnabled() {
+        if (!contentionMonitoringAvailable) {
+            return null;
+        }
+        return THREAD_MX_BEAN.getThreadInfo(Thread.currentThread().getId(), 0);
+    }
+
+    // disables contention monitoring in the jvm again if it was the agent that enabled it, e.g.
+    // once contention monitoring is switched off in the configuration or the agent is shut down
+    //
+    // contention monitoring is enabled again by the next call to getCurrentThreadContention()
+    public static synchronized void restoreContentionMonitoring() {
+        contentionMonitoringAvailable = false;
+        contentionMonitoringInitialized = false;
+        if (!contentionMonitoringEnabledByAgent) {
+            return;
+        }
+        contentionMonitoringEnabledByAgent = false;
+        try {
+            THREAD_MX_BEAN.setThreadContentionMonitoringEnabled(false);
+        } catch (SecurityException e) {
+            // the permission was granted when it was enabled, but the security manager may have
+            // been replaced since then, nothing else can be done about it
+        }
+    }
+
+    private static synchronized void initializeContentionMonitoring() {
+        if (contentionMonitoringInitialized) {
+            return;
+        }
+        try {
+            if (!THREAD_MX_BEAN.isThreadContentionMonitoringEnabled()) {
+                THREAD_MX_BEAN.setThreadContentionMonitoringEnabled(true);
+                contentionMonitoringEnabledByAgent = true;
+            }
+            contentionMonitoringAvailable = true;
+        } catch (SecurityException e) {
+            // no ManagementPermission("control")
+            contentionMonitoringAvailable = false;
+        }
+        contentionMonitoringInitialized = true;
+    }
+
+    private static boolean isAllocatedBytesSupported() {
+        try {
+            Class<?> sunThreadMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+            // the method was only added in 1.6.0_25
+            sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
+            return sunThreadMXBeanClass.isInstance(THREAD_MX_BEAN)
+                    && SunThreadMXBean.isThreadAllocatedMemorySupported();
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // this class is only loaded (and so com.sun.management is only linked) once the checks in
+    // isAllocatedBytesSupported() have passed
+    private static final class SunThreadMXBean {
+
+        private static final com.sun.management.ThreadMXBean BEAN =
+                (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+
+        private static boolean isThreadAllocatedMemorySupported() {
+            return BEAN.isThreadAllocatedMemorySupported();
+        }
+
+        // returns -1 if thread allocated memory measurement is disabled
+        private static long getThreadAllocatedBytes(long threadId) {
+            return BEAN.getThreadAllocatedBytes(threadId);
+        }
+    }
+}
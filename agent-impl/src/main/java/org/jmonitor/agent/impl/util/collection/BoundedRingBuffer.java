@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util.collection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free bounded multi-producer multi-consumer queue backed by a fixed size array.
+ *
+ * Unlike {@link java.util.concurrent.ConcurrentLinkedQueue} this never grows and offer() doesn't
+ * allocate, when the buffer is full offer() simply returns false and it is up to the caller to
+ * decide what to drop.
+ *
+ * @author Trask Stalnaker
+ * @param <E>
+ * @since 1.0
+ */
+public class BoundedRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+
+    // based on the bounded mpmc queue by Dmitry Vyukov
+    // see http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+    //
+    // each slot has a sequence number which tells producers and consumers whether the slot is
+    // ready for them at a given position: a slot is free for the producer at position p when its
+    // sequence is p, and holds an element for the consumer at position p when its sequence is p+1
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> elements;
+
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    // capacity is rounded up to the next power of two
+    public BoundedRingBuffer(int minCapacity) {
+        if (minCapacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int powerOfTwo = 1;
+        while (powerOfTwo < minCapacity) {
+            powerOfTwo <<= 1;
+        }
+        capacity = powerOfTwo;
+        mask = powerOfTwo - 1;
+        sequences = new AtomicLongArray(capacity);
+        elements = new AtomicReferenceArray<E>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // returns false if the buffer is full
+    public boolean offer(E element) {
+
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    // publish the element to consumers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                // the slot still holds the element from one lap ago
+                return false;
+            } else {
+                // another producer claimed this position
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    // returns null if the buffer is empty
+    public E poll() {
+
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    // clear the slot so the element can be garbage collected
+                    elements.set(index, null);
+                    // hand the slot back to producers for the next lap
+                    sequences.set(index, position + capacity);
+                    return element;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                // the slot hasn't been published yet
+                return null;
+            } else {
+                // another consumer claimed this position
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    // this is only an estimate while there are concurrent producers or consumers
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        if (size < 0) {
+            return 0;
+        } else if (size > capacity) {
+            return capacity;
+        } else {
+            return (int) size;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -17,25 +17,40 @@
 package org.jmonitor.agent.impl.util.collection;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
 
 /**
  * Primarily for use by a single thread, but can be iterated over by another thread and can be
  * terminated by another thread.
  * 
+ * The elements added since the last flush are held in a {@link SegmentLog}, which is terminated
+ * and replaced by each flush so that the flushed elements can be garbage collected (other than
+ * the first X and last X elements which are kept for context).
+ * 
  * @author Trask Stalnaker
  * @param <E>
  * @since 1.0
  */
 public class FlushableList<E extends IndexedElement> implements Iterable<E> {
 
-    private final AtomicReference<FlushableHelperList<E>> listReference =
-            new AtomicReference<FlushableHelperList<E>>();
+    private static final Ordering<IndexedElement> INDEXED_ELEMENT_ORDERING =
+            new Ordering<IndexedElement>() {
+                public int compare(IndexedElement element1, IndexedElement element2) {
+                    return element1.getIndex() - element2.getIndex();
+                }
+            };
+
+    private final AtomicReference<Generation<E>> generationReference =
+            new AtomicReference<Generation<E>>();
 
     private final Object flushLock = new Object();
 
@@ -47,7 +62,8 @@ public class FlushableList<E extends IndexedElement> implements Iterable<E> {
     public FlushableList(int nFirstXElements, int nLastXElements) {
         this.nFirstXElements = nFirstXElements;
         this.nLastXElements = nLastXElements;
-        listReference.set(new FlushableHelperList<E>(nLastXElements, null));
+        generationReference.set(new Generation<E>(nLastXElements,
+                Collections.<E> emptyList()));
         firstXElements = new AtomicReferenceArray<E>(nFirstXElements);
     }
 
@@ -59,54 +75,54 @@ public class FlushableList<E extends IndexedElement> implements Iterable<E> {
         }
 
         while (true) {
-            FlushableHelperList<E> list = listReference.get();
-            boolean success = list.add(object);
+            Generation<E> generation = generationReference.get();
+            boolean success = generation.add(object);
             if (success) {
                 break;
             } else {
-                // list has been terminated but not yet reset
-                casNewListUsingCompareValue(list);
+                // generation has been terminated but not yet replaced
+                casNewGenerationUsingCompareValue(generation);
             }
         }
     }
 
     public void justUpdatedPossiblyFlushedElement(E object) {
         while (true) {
-            FlushableHelperList<E> list = listReference.get();
-            boolean success = list.addPossibleUpdatedPriorElement(object);
+            Generation<E> generation = generationReference.get();
+            boolean success = generation.addPossibleUpdatedPriorElement(object);
             if (success) {
                 break;
             } else {
-                casNewListUsingCompareValue(list);
+                casNewGenerationUsingCompareValue(generation);
             }
         }
     }
 
     public Iterator<E> iterator() {
-        return iterablePrependedWithFirstX(listReference.get()).iterator();
+        return iterablePrependedWithFirstX(generationReference.get()).iterator();
     }
 
     public Iterable<E> flush() {
 
         synchronized (flushLock) {
 
-            final FlushableHelperList<E> previousList = listReference.get();
+            final Generation<E> previousGeneration = generationReference.get();
 
             // don't need to check return value since we know this will succeed
             // since we are inside the synchronized block
             // (in which we terminate and re-create each time)
-            previousList.terminate();
+            previousGeneration.terminate();
 
-            casNewListUsingCompareValue(previousList);
+            casNewGenerationUsingCompareValue(previousGeneration);
 
-            return iterablePrependedWithFirstX(previousList);
+            return iterablePrependedWithFirstX(previousGeneration);
         }
     }
 
-    private Iterable<E> iterablePrependedWithFirstX(FlushableHelperList<E> previousList) {
+    private Iterable<E> iterablePrependedWithFirstX(Generation<E> generation) {
 
         // lock down iterable so we can calculate first index
-        Iterable<E> iterable = previousList.iterableWithMinimumConsecutiveElements();
+        Iterable<E> iterable = generation.iterableWithMinimumConsecutiveElements();
 
         // join firstX elements on to the beginning of previousList.iterator()
         int index = iterable.iterator().next().getIndex();
@@ -130,8 +146,128 @@ public class FlushableList<E extends IndexedElement> implements Iterable<E> {
         return firstX;
     }
 
-    private void casNewListUsingCompareValue(FlushableHelperList<E> list) {
-        listReference.compareAndSet(list, new FlushableHelperList<E>(nLastXElements,
-                list.iteratorOverLastXConsecutive(nLastXElements)));
+    private void casNewGenerationUsingCompareValue(Generation<E> generation) {
+        generationReference.compareAndSet(generation, new Generation<E>(nLastXElements,
+                generation.getLastXConsecutive(nLastXElements)));
+    }
+
+    /**
+     * The elements added between two flushes. It's ok if it returns more than nLastXElements in
+     * some cases.
+     */
+    private static class Generation<E extends IndexedElement> {
+
+        private final SegmentLog<E> elements = new SegmentLog<E>();
+
+        // the last X elements of the previous generation, used to pre-fill iterator to return a
+        // minimum number of consecutive elements
+        private final List<E> immediatelyPriorElements;
+        private final int minConsecutiveElements;
+
+        // by lazy instantiation we are trading non-volatile access for reduced memory
+        private volatile ConcurrentHashMap<E, E> updatedPriorElements;
+
+        private Generation(int minConsecutiveElements, List<E> lastXFromPrevious) {
+            this.minConsecutiveElements = minConsecutiveElements;
+            immediatelyPriorElements = lastXFromPrevious;
+        }
+
+        private boolean add(E object) {
+            return elements.add(object);
+        }
+
+        private boolean terminate() {
+            return elements.terminate();
+        }
+
+        private boolean addPossibleUpdatedPriorElement(E object) {
+            E first = null;
+            if (!elements.isEmpty()) {
+                first = elements.getFirst();
+            }
+            if (first == null || object.getIndex() < first.getIndex()) {
+                if (updatedPriorElements == null) {
+                    updatedPriorElements = new ConcurrentHashMap<E, E>();
+                }
+                updatedPriorElements.put(object, object);
+            }
+            return !elements.isTerminated();
+        }
+
+        private List<E> getLastXConsecutive(int lastX) {
+            if (!elements.isTerminated()) {
+                throw new IllegalStateException(
+                        "getLastXConsecutive() can only be called after termination");
+            }
+            List<E> lastXList = new ArrayList<E>();
+            Iterators.addAll(lastXList, elements.iteratorOverLastN(lastX));
+            if (lastXList.size() < lastX) {
+                lastXList.addAll(0, getImmediatelyPriorElementsList(lastX - lastXList.size()));
+            }
+            return lastXList;
+        }
+
+        // guaranteed to return minimum lastX elements (or back to beginning of flushable list if
+        // fewer)
+        private Iterable<E> iterableWithMinimumConsecutiveElements() {
+
+            // first lock down immediately prior elements
+            List<E> immediatelyPriorElementsList = getImmediatelyPriorElementsList(
+                    minConsecutiveElements - Math.min(elements.size(), minConsecutiveElements));
+
+            // next calculate updated prior elements
+            if (immediatelyPriorElementsList.isEmpty()) {
+
+                if (elements.isEmpty()) {
+
+                    // this can only happen if this is the first generation in which case there
+                    // can be no updated prior elements either
+                    return Collections.emptySet();
+
+                } else {
+
+                    List<E> updatedPriorElementsList = getUpdatedPriorElementsWithIndexLessThan(
+                            elements.getFirst().getIndex());
+                    return Iterables.concat(updatedPriorElementsList, elements);
+                }
+
+            } else {
+
+                List<E> updatedPriorElementsList = getUpdatedPriorElementsWithIndexLessThan(
+                        immediatelyPriorElementsList.get(0).getIndex());
+
+                return Iterables.concat(updatedPriorElementsList, immediatelyPriorElementsList,
+                        elements);
+            }
+        }
+
+        private List<E> getImmediatelyPriorElementsList(int lastX) {
+            int size = immediatelyPriorElements.size();
+            if (size <= lastX) {
+                return immediatelyPriorElements;
+            } else {
+                // more than we need in immediatelyPriorElements
+                return immediatelyPriorElements.subList(size - lastX, size);
+            }
+        }
+
+        private List<E> getUpdatedPriorElementsWithIndexLessThan(int priorToIndex) {
+
+            if (updatedPriorElements == null || updatedPriorElements.isEmpty()) {
+                return Collections.emptyList();
+            } else {
+                // there shouldn't be too many "extras"
+                // so it's not bad to make shallow copy of this list
+                List<E> list = INDEXED_ELEMENT_ORDERING.sortedCopy(updatedPriorElements.keySet());
+                for (Iterator<E> i = list.iterator(); i.hasNext();) {
+                    if (i.next().getIndex() < priorToIndex) {
+                        continue;
+                    } else {
+                        i.remove();
+                    }
+                }
+                return list;
+            }
+        }
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util.collection;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free list with O(1) add and O(1) removal that iterates in insertion order.
+ * 
+ * Removal only marks the node, removed nodes are skipped by iterators and cursors and are
+ * reported to a listener and physically unlinked by purge().
+ * 
+ * @author Trask Stalnaker
+ * @param <E>
+ * @since 1.0
+ */
+public class RegistrationList<E> implements Iterable<E> {
+
+    private final Node<E> head = new Node<E>(null);
+
+    private final AtomicReference<Node<E>> tailReference = new AtomicReference<Node<E>>(head);
+
+    // the returned entry is used to remove the element in O(1)
+    public Entry add(E element) {
+
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        Node<E> node = new Node<E>(element);
+
+        // based on non-blocking concurrent enqueue algorithm from
+        // "Simple, Fast, and Practical Non-Blocking and Blocking Concurrent Queue Algorithms"
+        // by Maged M. Michael and Michael L. Scott
+        // see http://www.cs.rochester.edu/u/michael/PODC96.html
+        Node<E> tail;
+        while (true) {
+            tail = tailReference.get();
+            Node<E> next = tail.next;
+            if (tail == tailReference.get()) {
+                if (next == null) {
+                    if (tail.casNext(null, node)) {
+                        break;
+                    }
+                } else {
+                    tailReference.compareAndSet(tail, next);
+                }
+            }
+        }
+
+        tailReference.compareAndSet(tail, node);
+        return node;
+    }
+
+    // reports removed nodes to the listener (once per node) and physically unlinks them
+    //
+    // this must only be called by a single thread (e.g. a background maintenance thread), it is
+    // safe to call concurrently with add(), remove() and iteration
+    //
+    // the last node is never unlinked since add() may be concurrently appending to it, and
+    // unlinked nodes retain their next pointer so that iterators and cursors positioned on them
+    // can continue
+    public void purge(RemovalListener<? super E> listener) {
+        Node<E> previous = head;
+        Node<E> node = head.next;
+        while (node != null) {
+            Node<E> next = node.next;
+            if (node.removed) {
+                E element = node.element;
+                if (element != null) {
+                    // clear element so that it can be collected even if this node can't be
+                    // unlinked yet (and so that the listener is only called once for this node)
+                    node.element = null;
+                    listener.removed(element);
+                }
+            }
+            if (node.removed && next != null) {
+                // previous.next is non-null (it is node) so no concurrent add() can be
+                // modifying it
+                previous.next = next;
+            } else {
+                previous = node;
+            }
+            node = next;
+        }
+    }
+
+    public Iterator<E> iterator() {
+        return new Itr(head.next);
+    }
+
+    // returns a cursor positioned before the first element
+    public Cursor newCursor() {
+        return new Cursor(head);
+    }
+
+    public interface Entry {
+        void remove();
+    }
+
+    public interface RemovalListener<E> {
+        void removed(E element);
+    }
+
+    // unlike an iterator, a cursor that has reached the end of the list will pick up elements that
+    // are added later, which makes it useful for discovering newly added elements
+    //
+    // designed for use by a single thread only
+    public final class Cursor {
+
+        private Node<E> node;
+
+        private Cursor(Node<E> node) {
+            this.node = node;
+        }
+
+        // returns the next element that has not been removed, or null if there are no more
+        // elements (at the moment)
+        public E next() {
+            Node<E> next = node.next;
+            while (next != null) {
+                node = next;
+                E element = next.element;
+                if (!next.removed && element != null) {
+                    return element;
+                }
+                next = next.next;
+            }
+            return null;
+        }
+    }
+
+    private final class Itr implements Iterator<E> {
+
+        // doesn't need to be volatile, this iterator is designed for use by single thread only
+        private Node<E> nextNode;
+        private E nextElement;
+
+        private Itr(Node<E> node) {
+            advance(node);
+        }
+
+        public boolean hasNext() {
+            return nextNode != null;
+        }
+
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            E element = nextElement;
+            advance(nextNode.next);
+            return element;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        // skips over removed nodes, the element is read once up front so that hasNext() and
+        // next() are consistent even if the node is removed in between
+        private void advance(Node<E> node) {
+            while (node != null) {
+                E element = node.element;
+                if (!node.removed && element != null) {
+                    nextNode = node;
+                    nextElement = element;
+                    return;
+                }
+                node = node.next;
+            }
+            nextNode = null;
+            nextElement = null;
+        }
+    }
+
+    private static final class Node<E> implements Entry {
+
+        // not using AtomicReference because that would add memory across all Nodes
+        //
+        // the class literal can only be the raw Node.class, the cast to Class<Node<?>> is safe
+        // since the updater never creates nodes, it only compares and sets existing ones
+        @SuppressWarnings("unchecked")
+        private static final AtomicReferenceFieldUpdater<Node<?>, Node<?>> NEXT_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater((Class<Node<?>>) (Class<?>) Node.class,
+                        (Class<Node<?>>) (Class<?>) Node.class, "next");
+
+        private volatile E element;
+        private volatile boolean removed;
+        private volatile Node<E> next;
+
+        private Node(E element) {
+            this.element = element;
+        }
+
+        public void remove() {
+            removed = true;
+        }
+
+        private boolean casNext(Node<E> cmp, Node<E> val) {
+            return NEXT_UPDATER.compareAndSet(this, cmp, val);
+        }
+    }
+}
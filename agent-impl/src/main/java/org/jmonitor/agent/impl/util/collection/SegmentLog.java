@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util.collection;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Append only list for a single writer thread, which can be iterated over by other threads and
+ * can be terminated by another thread, after which no more elements can be added.
+ * 
+ * Elements are stored in fixed size segments which are never copied, so adding an element only
+ * allocates when it starts a new segment. Elements are published to other threads by the size,
+ * which also carries the terminated flag so that adding an element and terminating the list
+ * (from another thread) are decided by a single compare-and-set.
+ * 
+ * @author Trask Stalnaker
+ * @param <E>
+ * @since 1.0
+ */
+public class SegmentLog<E> implements Iterable<E> {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int TERMINATED = 1 << 31;
+
+    // the class literal can only be the raw SegmentLog.class, the cast is safe since the updater
+    // only reads and writes the int field
+    @SuppressWarnings("unchecked")
+    private static final AtomicIntegerFieldUpdater<SegmentLog<?>> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(
+                    (Class<SegmentLog<?>>) (Class<?>) SegmentLog.class, "state");
+
+    // only written by the writer thread, replaced (never modified other than filling in the next
+    // segment) when more segments are needed
+    private volatile Object[][] segments = new Object[1][];
+
+    // the size, plus the TERMINATED bit once terminated
+    private volatile int state;
+
+    // returns false if the list has been terminated
+    // this must only be called by the writer thread
+    public boolean add(E element) {
+        int size = state;
+        if ((size & TERMINATED) != 0) {
+            return false;
+        }
+        Object[][] currentSegments = segments;
+        int segmentIndex = size >>> SEGMENT_BITS;
+        if (segmentIndex == currentSegments.length) {
+            Object[][] newSegments = new Object[currentSegments.length * 2][];
+            System.arraycopy(currentSegments, 0, newSegments, 0, currentSegments.length);
+            segments = newSegments;
+            currentSegments = newSegments;
+        }
+        Object[] segment = currentSegments[segmentIndex];
+        if (segment == null) {
+            segment = new Object[SEGMENT_SIZE];
+            currentSegments[segmentIndex] = segment;
+        }
+        segment[size & SEGMENT_MASK] = element;
+        // publishes the element, unless the list was terminated in the meantime (the writer is
+        // the only other thread that changes the state)
+        return STATE_UPDATER.compareAndSet(this, size, size + 1);
+    }
+
+    // returns false if the list was already terminated
+    public boolean terminate() {
+        while (true) {
+            int currentState = state;
+            if ((currentState & TERMINATED) != 0) {
+                return false;
+            }
+            if (STATE_UPDATER.compareAndSet(this, currentState, currentState | TERMINATED)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isTerminated() {
+        return (state & TERMINATED) != 0;
+    }
+
+    public int size() {
+        return state & ~TERMINATED;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public E getFirst() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return get(0);
+    }
+
+    public E getLast() {
+        int size = size();
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(size - 1);
+    }
+
+    // iterates over the elements that have been added as of the start of the iteration
+    public Iterator<E> iterator() {
+        return new Itr(0, size());
+    }
+
+    public Iterator<E> iteratorOverLastN(int n) { // NOPMD for short variable name
+
+        if (!isTerminated()) {
+            throw new IllegalStateException(
+                    "iteratorOverLastN() can only be called after termination");
+        }
+        int size = size();
+        return new Itr(Math.max(size - n, 0), size);
+    }
+
+    // the index must be less than a size that has been read by the calling thread
+    @SuppressWarnings("unchecked")
+    private E get(int index) {
+        return (E) segments[index >>> SEGMENT_BITS][index & SEGMENT_MASK];
+    }
+
+    private final class Itr implements Iterator<E> {
+
+        // doesn't need to be volatile, this iterator is designed for use by single thread only
+        private int nextIndex;
+        private final int size;
+
+        private Itr(int nextIndex, int size) {
+            this.nextIndex = nextIndex;
+            this.size = size;
+        }
+
+        public boolean hasNext() {
+            return nextIndex < size;
+        }
+
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return get(nextIndex++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util.collection;
+
+/**
+ * Hashed timing wheel (see "Hashed and Hierarchical Timing Wheels" by George Varghese and Tony
+ * Lauck). Deadlines further out than one rotation of the wheel are handled by counting the
+ * remaining rounds, so there is no limit on the deadline.
+ * 
+ * Scheduling and cancelling are O(1) since timeouts are intrusive doubly-linked nodes.
+ * 
+ * This class is not thread safe, it is designed to be owned by a single timer thread.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TimingWheel {
+
+    private final long tickNanos;
+    private final long startNanoTime;
+
+    // each bucket is a circular doubly-linked list with a sentinel head
+    private final Timeout[] buckets;
+    private final int mask;
+
+    // the next tick to be processed
+    private long tick;
+
+    // ticksPerWheel must be a power of 2
+    public TimingWheel(long tickNanos, int ticksPerWheel, long startNanoTime) {
+        if (Integer.bitCount(ticksPerWheel) != 1) {
+            throw new IllegalArgumentException("ticksPerWheel must be a power of 2");
+        }
+        this.tickNanos = tickNanos;
+        this.startNanoTime = startNanoTime;
+        buckets = new Timeout[ticksPerWheel];
+        for (int i = 0; i < ticksPerWheel; i++) {
+            Timeout head = new Sentinel();
+            head.previous = head;
+            head.next = head;
+            buckets[i] = head;
+        }
+        mask = ticksPerWheel - 1;
+    }
+
+    // re-schedules the timeout if it is already scheduled
+    // deadlines that have already passed expire on the next tick
+    public void schedule(Timeout timeout, long deadlineNanoTime) {
+        cancel(timeout);
+        // round up so that timeouts never expire before their deadline
+        long deadlineTick = (deadlineNanoTime - startNanoTime + tickNanos - 1) / tickNanos;
+        if (deadlineTick < tick) {
+            deadlineTick = tick;
+        }
+        timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+        Timeout head = buckets[(int) (deadlineTick & mask)];
+        timeout.previous = head.previous;
+        timeout.next = head;
+        head.previous.next = timeout;
+        head.previous = timeout;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.next == null) {
+            // not scheduled
+            return;
+        }
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+    // expires all timeouts whose deadline is at or before the given nano time
+    public void advance(long nanoTime) {
+        long lastTick = (nanoTime - startNanoTime) / tickNanos;
+        while (tick <= lastTick) {
+            Timeout head = buckets[(int) (tick++ & mask)];
+            // expired timeouts are unlinked into a separate chain and expired after the bucket has
+            // been processed, so that timeouts that re-schedule themselves from expire() are not
+            // visited again while processing this bucket
+            Timeout expired = null;
+            Timeout timeout = head.next;
+            while (timeout != head) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds == 0) {
+                    cancel(timeout);
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.nextExpired;
+                expired.nextExpired = null;
+                expired.expire();
+                expired = next;
+            }
+        }
+    }
+
+    public long getNextTickNanoTime() {
+        return startNanoTime + tick * tickNanos;
+    }
+
+    public abstract static class Timeout {
+
+        private Timeout previous;
+        private Timeout next;
+        private long remainingRounds;
+        private Timeout nextExpired;
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+
+        // called by the timer thread, the timeout is no longer scheduled at this point and can be
+        // re-scheduled from within this method
+        protected abstract void expire();
+    }
+
+    private static final class Sentinel extends Timeout {
+        @Override
+        protected void expire() {
+        }
+    }
+}
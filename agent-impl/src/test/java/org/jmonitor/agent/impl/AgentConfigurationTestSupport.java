@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Base class for tests that update the (jvm-wide) agent configuration. The configuration is
+ * restored after each test so that tests don't affect each other.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public abstract class AgentConfigurationTestSupport {
+
+    private AgentConfiguration originalConfiguration;
+
+    @Before
+    public void saveAgentConfiguration() {
+        originalConfiguration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+    }
+
+    @After
+    public void restoreAgentConfiguration() {
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(
+                originalConfiguration.copy());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.ProbeExecutionWithTemplate;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.junit.Test;
+
+/**
+ * Verifies that the per-thread context does not outlive the thread's operation, that the thread
+ * keeps its stripe across operations, and that the disabled flag is restored after nested probe
+ * executions.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AgentThreadContextTest extends AgentConfigurationTestSupport {
+
+    private static final OperationSummaryKey OPERATION_SUMMARY_KEY =
+            ProbeExecutionManagerImpl.getInstance().getOperationSummaryKey("thread context test");
+
+    private static final StatelessProbeExecutionCreator<String, Object> PROBE_EXECUTION_CREATOR =
+            new StatelessProbeExecutionCreator<String, Object>() {
+                public ProbeExecution createProbeExecution(String template, Object argument) {
+                    return new TestProbeExecution(template);
+                }
+            };
+
+    @Test
+    public void testRemovedWhenOperationCompletes() throws Throwable {
+
+        updateAgentConfiguration(true, 100, false);
+        final List<Boolean> inside = new ArrayList<Boolean>();
+        execute(new ProceedingJoinPointStub() {
+            public Object proceed() {
+                inside.add(Agent.getInstance().getExistingThreadContext() != null);
+                return null;
+            }
+        }, false);
+        assertEquals(1, inside.size());
+        assertTrue(inside.get(0));
+        assertNull(Agent.getInstance().getExistingThreadContext());
+    }
+
+    @Test
+    public void testRemovedWhenOperationCompletesAbruptly() throws Throwable {
+
+        updateAgentConfiguration(true, 100, false);
+        try {
+            execute(new ProceedingJoinPointStub() {
+                public Object proceed() {
+                    throw new IllegalStateException();
+                }
+            }, false);
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertNull(Agent.getInstance().getExistingThreadContext());
+    }
+
+    @Test
+    public void testSameStripeAcrossOperations() throws Throwable {
+
+        updateAgentConfiguration(true, 100, false);
+        final List<Integer> stripes = new ArrayList<Integer>();
+        ProceedingJoinPoint joinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() {
+                stripes.add(Agent.getInstance().getExistingThreadContext().getStripe());
+                return null;
+            }
+        };
+        execute(joinPoint, false);
+        execute(joinPoint, false);
+        assertEquals(2, stripes.size());
+        assertEquals(stripes.get(0), stripes.get(1));
+        assertEquals((int) Thread.currentThread().getId(), stripes.get(0).intValue());
+    }
+
+    @Test
+    public void testNotCreatedOutsideOfOperation() throws Throwable {
+
+        final ProceedingJoinPoint joinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() {
+                assertNull(Agent.getInstance().getExistingThreadContext());
+                return null;
+            }
+        };
+        updateAgentConfiguration(false, 100, false);
+        execute(joinPoint, false);
+        updateAgentConfiguration(true, 100, false);
+        execute(joinPoint, true);
+        ProbeExecutionManagerImpl.getInstance().proceedAndRecordMetricData(joinPoint,
+                OPERATION_SUMMARY_KEY);
+        assertNull(Agent.getInstance().getExistingThreadContext());
+    }
+
+    @Test
+    public void testDisabledFlagRestoredAfterFold() throws Throwable {
+
+        // the root trace event and the first nested trace event reach the limit
+        updateAgentConfiguration(true, 2, true);
+        final List<Boolean> enabled = new ArrayList<Boolean>();
+        final ProceedingJoinPoint nestedJoinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() {
+                enabled.add(ProbeExecutionManagerImpl.getInstance().isEnabled());
+                return null;
+            }
+        };
+        execute(new ProceedingJoinPointStub() {
+            public Object proceed() throws Throwable {
+                // the first is traced, the others are folded into it
+                for (int i = 0; i < 3; i++) {
+                    execute(nestedJoinPoint, false);
+                    enabled.add(ProbeExecutionManagerImpl.getInstance().isEnabled());
+                }
+                assertNotNull(Agent.getInstance().getExistingThreadContext());
+                return null;
+            }
+        }, false);
+        // nested monitoring is only disabled during the folded executions
+        assertEquals(6, enabled.size());
+        assertTrue(enabled.get(0));
+        assertTrue(enabled.get(1));
+        assertFalse(enabled.get(2));
+        assertTrue(enabled.get(3));
+        assertFalse(enabled.get(4));
+        assertTrue(enabled.get(5));
+        assertNull(Agent.getInstance().getExistingThreadContext());
+    }
+
+    private static void execute(ProceedingJoinPoint joinPoint, boolean requiresExistingOperation)
+            throws Throwable {
+
+        ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, "select 1",
+                null, joinPoint, OPERATION_SUMMARY_KEY, requiresExistingOperation);
+    }
+
+    private static void updateAgentConfiguration(boolean enabled, int maxTraceEventsPerOperation,
+            boolean traceEventFoldingEnabled) {
+
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(enabled);
+        configuration.setTraceSamplingRate(1);
+        configuration.setWarnOnTraceEventOutsideOperation(false);
+        configuration.setMaxTraceEventsPerOperation(maxTraceEventsPerOperation);
+        configuration.setTraceEventFoldingEnabled(traceEventFoldingEnabled);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+
+    private static class TestProbeExecution implements ProbeExecutionWithTemplate {
+
+        private final String template;
+
+        private TestProbeExecution(String template) {
+            this.template = template;
+        }
+
+        public String getDescription() {
+            return template;
+        }
+
+        public String getDescriptionTemplate() {
+            return template;
+        }
+
+        public ProbeExecutionContext createContext() {
+            return null;
+        }
+    }
+}
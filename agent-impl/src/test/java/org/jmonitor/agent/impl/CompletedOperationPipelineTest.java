@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+import org.jmonitor.agent.impl.model.TraceSafeImpl;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.junit.Test;
+
+/**
+ * Verifies the overflow policies of the completed operation queue. The consumer thread is not
+ * started (except for testStop()) so that the queue fills up.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CompletedOperationPipelineTest {
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    @Test
+    public void testDropNewest() {
+        CompletedOperationPipeline pipeline = new CompletedOperationPipeline(4, THREAD_FACTORY);
+        submit(pipeline, 10, AgentConfiguration.OVERFLOW_POLICY_DROP_NEWEST);
+        assertEquals(4, pipeline.getEnqueuedCount());
+        assertEquals(6, pipeline.getDroppedCount());
+        assertEquals(4, pipeline.getQueueSize());
+        assertEquals(0, pipeline.getSummarizedCount());
+    }
+
+    @Test
+    public void testDropOldest() {
+        CompletedOperationPipeline pipeline = new CompletedOperationPipeline(4, THREAD_FACTORY);
+        submit(pipeline, 10, AgentConfiguration.OVERFLOW_POLICY_DROP_OLDEST);
+        // every operation is enqueued, each one past the capacity pushing out the oldest
+        assertEquals(10, pipeline.getEnqueuedCount());
+        assertEquals(6, pipeline.getDroppedCount());
+        assertEquals(4, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void testSummaryOnly() {
+        CompletedOperationPipeline pipeline = new CompletedOperationPipeline(4, THREAD_FACTORY);
+        submit(pipeline, 10, AgentConfiguration.OVERFLOW_POLICY_SUMMARY_ONLY);
+        // the first half of the queue holds full operations, the second half holds summaries,
+        // and the rest are dropped
+        assertEquals(4, pipeline.getEnqueuedCount());
+        assertEquals(2, pipeline.getSummarizedCount());
+        assertEquals(6, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        for (final String overflowPolicy : new String[] {
+                AgentConfiguration.OVERFLOW_POLICY_DROP_NEWEST,
+                AgentConfiguration.OVERFLOW_POLICY_DROP_OLDEST,
+                AgentConfiguration.OVERFLOW_POLICY_SUMMARY_ONLY }) {
+            final CompletedOperationPipeline pipeline =
+                    new CompletedOperationPipeline(64, THREAD_FACTORY);
+            final OperationSafeImpl operation = newOperation();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 10000; j++) {
+                            pipeline.submit(operation, overflowPolicy);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // every submitted operation is either still queued or counted as dropped
+            assertEquals(overflowPolicy, 64, pipeline.getQueueSize());
+            assertEquals(overflowPolicy, 40000, pipeline.getQueueSize()
+                    + pipeline.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testStop() {
+        final Thread[] consumerThread = new Thread[1];
+        CompletedOperationPipeline pipeline =
+                new CompletedOperationPipeline(4, new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        consumerThread[0] = THREAD_FACTORY.newThread(runnable);
+                        return consumerThread[0];
+                    }
+                });
+        pipeline.start();
+        pipeline.stop();
+        assertFalse(consumerThread[0].isAlive());
+    }
+
+    private static void submit(CompletedOperationPipeline pipeline, int count,
+            String overflowPolicy) {
+
+        OperationSafeImpl operation = newOperation();
+        for (int i = 0; i < count; i++) {
+            pipeline.submit(operation, overflowPolicy);
+        }
+    }
+
+    private static OperationSafeImpl newOperation() {
+        ProbeExecution probeExecution = new ProbeExecution() {
+            public String getDescription() {
+                return "test";
+            }
+
+            public ProbeExecutionContext createContext() {
+                return null;
+            }
+        };
+        return new OperationSafeImpl(new TraceSafeImpl(probeExecution, System.nanoTime()), true,
+                false, false, false);
+    }
+}
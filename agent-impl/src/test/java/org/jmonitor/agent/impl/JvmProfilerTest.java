@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class JvmProfilerTest extends AgentConfigurationTestSupport {
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private JvmProfiler jvmProfiler;
+
+    // keeps a thread runnable (as opposed to waiting) so that the profiler has something to sample
+    private volatile boolean spinning;
+    private Thread spinningThread;
+
+    @Before
+    public void setUp() {
+        jvmProfiler = new JvmProfiler(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            }
+        });
+        spinning = true;
+        spinningThread = new Thread(new Runnable() {
+            public void run() {
+                while (spinning) {
+                    spin();
+                }
+            }
+        });
+        spinningThread.setDaemon(true);
+        spinningThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        jvmProfiler.shutdown();
+        spinning = false;
+        spinningThread.join();
+    }
+
+    @Test
+    public void testNotStartedWhileDisabled() {
+        updateAgentConfiguration(false);
+        jvmProfiler.start();
+        assertFalse(jvmProfiler.isRunning());
+        assertTrue(threads.isEmpty());
+    }
+
+    @Test
+    public void testStartedWhenEnabled() throws InterruptedException {
+        updateAgentConfiguration(true);
+        jvmProfiler.start();
+        assertTrue(jvmProfiler.isRunning());
+        assertEquals(1, threads.size());
+        waitForSamples();
+        // the spinning thread is runnable, so the current window's call tree is not empty
+        assertTrue(jvmProfiler.getCurrentNodeCount() > 0);
+    }
+
+    @Test
+    public void testStartedAndStoppedByConfigurationChanges() throws InterruptedException {
+        updateAgentConfiguration(false);
+        jvmProfiler.start();
+        assertFalse(jvmProfiler.isRunning());
+
+        updateAgentConfiguration(true);
+        assertTrue(jvmProfiler.isRunning());
+        waitForSamples();
+
+        updateAgentConfiguration(false);
+        // the profiler thread exits on its own after its current sleep
+        threads.get(0).join(10000);
+        assertFalse(threads.get(0).isAlive());
+        assertFalse(jvmProfiler.isRunning());
+        assertEquals(0, jvmProfiler.getCurrentNodeCount());
+        assertNull(jvmProfiler.getProfileData());
+
+        // and a new thread is started when it is re-enabled
+        updateAgentConfiguration(true);
+        assertTrue(jvmProfiler.isRunning());
+        assertEquals(2, threads.size());
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        updateAgentConfiguration(true);
+        jvmProfiler.start();
+        waitForSamples();
+
+        jvmProfiler.shutdown();
+        assertFalse(threads.get(0).isAlive());
+        assertFalse(jvmProfiler.isRunning());
+
+        // configuration changes no longer start the profiler
+        updateAgentConfiguration(false);
+        updateAgentConfiguration(true);
+        assertFalse(jvmProfiler.isRunning());
+        assertEquals(1, threads.size());
+    }
+
+    private void waitForSamples() throws InterruptedException {
+        long sampleCount = jvmProfiler.getSampleCount();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (jvmProfiler.getSampleCount() < sampleCount + 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(jvmProfiler.getSampleCount() >= sampleCount + 2);
+    }
+
+    private static void spin() {
+        long value = 0;
+        for (int i = 0; i < 1000; i++) {
+            value += i * (long) i;
+        }
+        if (value == 42) {
+            // never true, just so that the loop isn't optimized away
+            Thread.yield();
+        }
+    }
+
+    private static void updateAgentConfiguration(boolean jvmProfilerEnabled) {
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(true);
+        configuration.setJvmProfilerEnabled(jvmProfilerEnabled);
+        // fast enough to keep the test short, and the window never completes during the test
+        configuration.setJvmProfilerIntervalMillis(10);
+        configuration.setJvmProfilerWindowSeconds(600);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class OperationSummaryKeyRegistryTest {
+
+    @Test
+    public void testSequentialIds() {
+        OperationSummaryKeyRegistry registry = new OperationSummaryKeyRegistry(10);
+        OperationSummaryKey a = registry.getOperationSummaryKey("a");
+        OperationSummaryKey b = registry.getOperationSummaryKey("b");
+        assertEquals(0, a.getId());
+        assertEquals(1, b.getId());
+        assertSame(a, registry.getOperationSummaryKey("a"));
+        assertEquals(2, registry.getKeyCount());
+    }
+
+    @Test
+    public void testOverflow() {
+        OperationSummaryKeyRegistry registry = new OperationSummaryKeyRegistry(3);
+        OperationSummaryKey a = registry.getOperationSummaryKey("a");
+        OperationSummaryKey b = registry.getOperationSummaryKey("b");
+        // the last id is reserved for the overflow bucket
+        OperationSummaryKey c = registry.getOperationSummaryKey("c");
+        OperationSummaryKey d = registry.getOperationSummaryKey("d");
+        assertEquals(0, a.getId());
+        assertEquals(1, b.getId());
+        assertEquals(OperationSummaryKeyRegistry.OTHER_NAME, c.getName());
+        assertEquals(2, c.getId());
+        assertSame(c, d);
+        assertEquals(3, registry.getKeyCount());
+        // keys registered before the cap was reached are unaffected
+        assertSame(a, registry.getOperationSummaryKey("a"));
+        assertSame(c, registry.getOperationSummaryKey(OperationSummaryKeyRegistry.OTHER_NAME));
+    }
+
+    @Test
+    public void testOverflowBucketRegisteredByName() {
+        OperationSummaryKeyRegistry registry = new OperationSummaryKeyRegistry(2);
+        OperationSummaryKey other =
+                registry.getOperationSummaryKey(OperationSummaryKeyRegistry.OTHER_NAME);
+        OperationSummaryKey a = registry.getOperationSummaryKey("a");
+        // the overflow bucket already has an id, so the reserved id is given to the next key
+        assertEquals(0, other.getId());
+        assertEquals(1, a.getId());
+        assertSame(other, registry.getOperationSummaryKey("b"));
+        assertEquals(2, registry.getKeyCount());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.ProbeExecutionManager;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that the probe paths which don't end up capturing a trace event (monitoring disabled,
+ * operation not selected by trace sampling, trace limit exceeded) don't allocate anything.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ProbeExecutionManagerAllocationTest extends AgentConfigurationTestSupport {
+
+    private static final int WARMUP_ITERATIONS = 100000;
+    private static final int ITERATIONS = 100000;
+
+    private static final OperationSummaryKey OPERATION_SUMMARY_KEY =
+            ProbeExecutionManagerImpl.getInstance().getOperationSummaryKey("allocation test");
+
+    private static final StatelessProbeExecutionCreator<Object, Object> PROBE_EXECUTION_CREATOR =
+            new StatelessProbeExecutionCreator<Object, Object>() {
+                public ProbeExecution createProbeExecution(Object target, Object argument) {
+                    return new TestProbeExecution();
+                }
+            };
+
+    private static final ProceedingJoinPoint NOOP_JOIN_POINT = new ProceedingJoinPointStub() {
+        public Object proceed() {
+            return null;
+        }
+    };
+
+    // set by the nested measurement inside of the root operation
+    private long allocatedBytesPerCall;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(isThreadAllocatedMemorySupported());
+    }
+
+    @Test
+    public void testDisabled() throws Throwable {
+
+        updateAgentConfiguration(false, 1, 1000);
+
+        assertEquals(0, measureAllocatedBytesPerCall());
+    }
+
+    @Test
+    public void testOperationNotSampled() throws Throwable {
+
+        updateAgentConfiguration(true, 0, 1000);
+
+        assertEquals(0, measureAllocatedBytesPerCallInsideOperation());
+    }
+
+    @Test
+    public void testTraceLimitExceeded() throws Throwable {
+
+        // the root trace event alone reaches the limit
+        updateAgentConfiguration(true, 1, 1);
+
+        assertEquals(0, measureAllocatedBytesPerCallInsideOperation());
+    }
+
+    private long measureAllocatedBytesPerCallInsideOperation() throws Throwable {
+
+        ProceedingJoinPoint rootJoinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() throws Throwable {
+                allocatedBytesPerCall = measureAllocatedBytesPerCall();
+                return null;
+            }
+        };
+        ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, null, null,
+                rootJoinPoint, (OperationSummaryKey) null, false);
+        return allocatedBytesPerCall;
+    }
+
+    private static long measureAllocatedBytesPerCall() throws Throwable {
+
+        ProbeExecutionManager probeExecutionManager = ProbeExecutionManagerImpl.getInstance();
+
+        // warm up so that one-time allocations (e.g. thread locals, first metric data for the key)
+        // are not counted
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            probeExecutionManager.execute(PROBE_EXECUTION_CREATOR, null, null, NOOP_JOIN_POINT,
+                    OPERATION_SUMMARY_KEY, false);
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            probeExecutionManager.execute(PROBE_EXECUTION_CREATOR, null, null, NOOP_JOIN_POINT,
+                    OPERATION_SUMMARY_KEY, false);
+        }
+        long endAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        // getThreadAllocatedBytes() itself may allocate a few bytes, which disappear in the
+        // integer division
+        return (endAllocatedBytes - startAllocatedBytes) / ITERATIONS;
+    }
+
+    private static void updateAgentConfiguration(boolean enabled, double traceSamplingRate,
+            int maxTraceEventsPerOperation) {
+
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(enabled);
+        configuration.setTraceSamplingRate(traceSamplingRate);
+        configuration.setMaxTraceEventsPerOperation(maxTraceEventsPerOperation);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+
+    private static boolean isThreadAllocatedMemorySupported() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            return false;
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        return true;
+    }
+
+    private static class TestProbeExecution implements ProbeExecution {
+
+        public String getDescription() {
+            return "allocation test";
+        }
+
+        public ProbeExecutionContext createContext() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.model.AgentTrace;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.ProbeExecutionWithTemplate;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreatorWithTemplate;
+import org.jmonitor.collector.service.model.TraceEvent;
+import org.junit.Test;
+
+/**
+ * Verifies the trace limit (including no limit) and the folding of repeated executions once the
+ * limit is reached, for both trace implementations.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ProbeExecutionManagerTraceLimitTest extends AgentConfigurationTestSupport {
+
+    private static final OperationSummaryKey OPERATION_SUMMARY_KEY =
+            ProbeExecutionManagerImpl.getInstance().getOperationSummaryKey("trace limit test");
+
+    private static final StatelessProbeExecutionCreator<String, Object> PROBE_EXECUTION_CREATOR =
+            new StatelessProbeExecutionCreator<String, Object>() {
+                public ProbeExecution createProbeExecution(String template, Object argument) {
+                    return new TestProbeExecution(template);
+                }
+            };
+
+    private static final ProceedingJoinPoint NOOP_JOIN_POINT = new ProceedingJoinPointStub() {
+        public Object proceed() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testLimit() throws Throwable {
+        for (boolean compactTrace : new boolean[] { false, true }) {
+            updateAgentConfiguration(5, false, compactTrace);
+            List<TraceEvent> events = executeInsideOperation(10, "select 1");
+            assertEquals(5, events.size());
+        }
+    }
+
+    @Test
+    public void testLimitDisabled() throws Throwable {
+        for (boolean compactTrace : new boolean[] { false, true }) {
+            updateAgentConfiguration(AgentConfiguration.TRACE_EVENTS_LIMIT_DISABLED, false,
+                    compactTrace);
+            List<TraceEvent> events = executeInsideOperation(10, "select 1");
+            // the root trace event plus the 10 nested trace events
+            assertEquals(11, events.size());
+        }
+    }
+
+    @Test
+    public void testFolding() throws Throwable {
+        for (boolean compactTrace : new boolean[] { false, true }) {
+            // the root trace event and the first nested trace event reach the limit
+            updateAgentConfiguration(2, true, compactTrace);
+            List<TraceEvent> events = executeInsideOperation(10, "select 1");
+            assertEquals(2, events.size());
+            TraceEvent folded = events.get(1);
+            assertEquals(10, folded.getCount());
+            assertTrue(folded.getMaxDurationInNanoseconds() <= folded
+                    .getTotalDurationInNanoseconds());
+            // the trace event spans from the start of its own execution to the end of the last
+            // folded execution
+            assertTrue(folded.getTotalDurationInNanoseconds() <= folded
+                    .getDurationInNanoseconds());
+        }
+    }
+
+    @Test
+    public void testFoldingMatchesTemplateBeforeCreating() throws Throwable {
+        for (boolean compactTrace : new boolean[] { false, true }) {
+            updateAgentConfiguration(2, true, compactTrace);
+            final AtomicInteger createdCount = new AtomicInteger();
+            final StatelessProbeExecutionCreatorWithTemplate<String, Object> creator =
+                    new StatelessProbeExecutionCreatorWithTemplate<String, Object>() {
+                        public ProbeExecution createProbeExecution(String template,
+                                Object argument) {
+                            createdCount.incrementAndGet();
+                            return new TestProbeExecution(template);
+                        }
+
+                        public String getDescriptionTemplate(String template, Object argument) {
+                            return template;
+                        }
+                    };
+            final List<TraceEvent> events = new ArrayList<TraceEvent>();
+            ProceedingJoinPoint rootJoinPoint = new ProceedingJoinPointStub() {
+                public Object proceed() throws Throwable {
+                    // reaches the limit
+                    execute(creator, "select 1", 1);
+                    // past the limit, and can't be folded
+                    execute(creator, "select 2", 5);
+                    // past the limit, and folded
+                    execute(creator, "select 1", 5);
+                    AgentTrace trace = Agent.getInstance().getCurrentOperation().getTrace();
+                    for (TraceEvent event : trace.getEvents()) {
+                        events.add(event);
+                    }
+                    return null;
+                }
+            };
+            ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, "root",
+                    null, rootJoinPoint, (OperationSummaryKey) null, false);
+            assertEquals(2, events.size());
+            assertEquals(6, events.get(1).getCount());
+            assertEquals(6, createdCount.get());
+        }
+    }
+
+    @Test
+    public void testFoldingDisabled() throws Throwable {
+        for (boolean compactTrace : new boolean[] { false, true }) {
+            updateAgentConfiguration(2, false, compactTrace);
+            List<TraceEvent> events = executeInsideOperation(10, "select 1");
+            assertEquals(2, events.size());
+            assertEquals(1, events.get(1).getCount());
+        }
+    }
+
+    // executes the given number of probe executions inside of an operation, and returns the
+    // operation's trace events as of the end of the operation (before the root trace event is
+    // popped)
+    private static List<TraceEvent> executeInsideOperation(final int count,
+            final String template) throws Throwable {
+
+        final List<TraceEvent> events = new ArrayList<TraceEvent>();
+        ProceedingJoinPoint rootJoinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() throws Throwable {
+                execute(PROBE_EXECUTION_CREATOR, template, count);
+                AgentTrace trace = Agent.getInstance().getCurrentOperation().getTrace();
+                for (TraceEvent event : trace.getEvents()) {
+                    events.add(event);
+                }
+                return null;
+            }
+        };
+        ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, "root", null,
+                rootJoinPoint, (OperationSummaryKey) null, false);
+        return events;
+    }
+
+    private static void execute(StatelessProbeExecutionCreator<String, Object> creator,
+            String template, int count) throws Throwable {
+
+        for (int i = 0; i < count; i++) {
+            ProbeExecutionManagerImpl.getInstance().execute(creator, template, null,
+                    NOOP_JOIN_POINT, OPERATION_SUMMARY_KEY, false);
+        }
+    }
+
+    private static void updateAgentConfiguration(int maxTraceEventsPerOperation,
+            boolean traceEventFoldingEnabled, boolean compactTraceEnabled) {
+
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(true);
+        configuration.setTraceSamplingRate(1);
+        configuration.setMaxTraceEventsPerOperation(maxTraceEventsPerOperation);
+        configuration.setTraceEventFoldingEnabled(traceEventFoldingEnabled);
+        configuration.setCompactTraceEnabled(compactTraceEnabled);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+
+    private static class TestProbeExecution implements ProbeExecutionWithTemplate {
+
+        private final String template;
+
+        private TestProbeExecution(String template) {
+            this.template = template;
+        }
+
+        public String getDescription() {
+            return template;
+        }
+
+        public String getDescriptionTemplate() {
+            return template;
+        }
+
+        public ProbeExecutionContext createContext() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ProbeExecutionManagerTraceSamplingTest extends AgentConfigurationTestSupport {
+
+    private static final StatelessProbeExecutionCreator<String, Object> PROBE_EXECUTION_CREATOR =
+            new StatelessProbeExecutionCreator<String, Object>() {
+                public ProbeExecution createProbeExecution(final String description,
+                        Object argument) {
+                    return new ProbeExecution() {
+                        public String getDescription() {
+                            return description;
+                        }
+                        public ProbeExecutionContext createContext() {
+                            return null;
+                        }
+                    };
+                }
+            };
+
+    private static final ProceedingJoinPoint NOOP_JOIN_POINT = new ProceedingJoinPointStub() {
+        public Object proceed() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testAlwaysSampled() throws Throwable {
+        updateTraceSamplingRate(1);
+        for (boolean traced : executeOperations(10)) {
+            assertTrue(traced);
+        }
+    }
+
+    // operations that are not sampled are still registered, with just the root trace event
+    @Test
+    public void testNeverSampled() throws Throwable {
+        updateTraceSamplingRate(0);
+        for (boolean traced : executeOperations(10)) {
+            assertFalse(traced);
+        }
+    }
+
+    // sampling is evenly spaced, so any 100 consecutive operations contain exactly 25 sampled
+    // ones, and no two sampled operations are adjacent
+    @Test
+    public void testEvenlySpaced() throws Throwable {
+        updateTraceSamplingRate(0.25);
+        List<Boolean> traced = executeOperations(100);
+        int sampledCount = 0;
+        for (int i = 0; i < traced.size(); i++) {
+            if (traced.get(i)) {
+                sampledCount++;
+                if (i > 0) {
+                    assertFalse(traced.get(i - 1));
+                }
+            }
+        }
+        assertEquals(25, sampledCount);
+    }
+
+    // returns whether each operation was traced
+    private static List<Boolean> executeOperations(int count) throws Throwable {
+        final List<Boolean> traced = new ArrayList<Boolean>();
+        ProceedingJoinPoint rootJoinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() throws Throwable {
+                for (int i = 0; i < 3; i++) {
+                    execute("nested", NOOP_JOIN_POINT);
+                }
+                OperationSafeImpl operation = Agent.getInstance().getCurrentOperation();
+                int size = operation.getTrace().getSize();
+                if (operation.isTraced()) {
+                    assertEquals(4, size);
+                } else {
+                    assertEquals(1, size);
+                }
+                traced.add(operation.isTraced());
+                return null;
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            execute("root", rootJoinPoint);
+        }
+        assertEquals(count, traced.size());
+        return traced;
+    }
+
+    private static void execute(String description, ProceedingJoinPoint joinPoint)
+            throws Throwable {
+
+        ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, description,
+                null, joinPoint, (OperationSummaryKey) null, false);
+    }
+
+    private static void updateTraceSamplingRate(double traceSamplingRate) {
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(true);
+        configuration.setTraceSamplingRate(traceSamplingRate);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.configuration.ProbeConfiguration;
+import org.jmonitor.api.probe.IntegerProbeProperty;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ProbePropertyRegistryTest {
+
+    private ProbeConfiguration originalConfiguration;
+
+    @Before
+    public void saveProbeConfiguration() {
+        originalConfiguration =
+                AgentConfigurationServiceFactory.getService().getProbeConfiguration();
+    }
+
+    @After
+    public void restoreProbeConfiguration() {
+        AgentConfigurationServiceFactory.getService().updateProbeConfiguration(
+                originalConfiguration.copy());
+    }
+
+    @Test
+    public void testSameHandle() {
+        ProbePropertyRegistry registry = ProbePropertyRegistry.getInstance();
+        assertSame(registry.getStringProperty("test", "same"), registry.getStringProperty("test",
+                "same"));
+        assertSame(registry.getIntegerProperty("test", "same", 1), registry.getIntegerProperty(
+                "test", "same", 1));
+        // the default value is what an unparseable value falls back to
+        assertNotSame(registry.getIntegerProperty("test", "same", 1), registry
+                .getIntegerProperty("test", "same", 2));
+    }
+
+    @Test
+    public void testUpdate() {
+        ProbePropertyRegistry registry = ProbePropertyRegistry.getInstance();
+        StringProbeProperty stringProperty = registry.getStringProperty("test", "update");
+        IntegerProbeProperty integerProperty =
+                registry.getIntegerProperty("test", "update-int", 5);
+        assertEquals("", stringProperty.get());
+        assertEquals(5, integerProperty.get());
+        setProperties("abc", "7");
+        assertEquals("abc", stringProperty.get());
+        assertEquals(7, integerProperty.get());
+        setProperties("def", "x");
+        assertEquals("def", stringProperty.get());
+        assertEquals(5, integerProperty.get());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final StringProbeProperty property =
+                ProbePropertyRegistry.getInstance().getStringProperty("test", "update");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int threadNum = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        setProperties(threadNum + ":" + j, "");
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // notifications can complete out of order, but the handle ends up at the latest snapshot
+        assertEquals(AgentConfigurationServiceFactory.getService().getProbeConfiguration()
+                .getProperty("test", "update"), property.get());
+    }
+
+    private static void setProperties(String value, String intValue) {
+        ProbeConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getProbeConfiguration().copy();
+        configuration.setProperty("test", "update", value);
+        configuration.setProperty("test", "update-int", intValue);
+        // the registry is notified before this returns
+        AgentConfigurationServiceFactory.getService().updateProbeConfiguration(configuration);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.SourceLocation;
+import org.aspectj.runtime.internal.AroundClosure;
+
+/**
+ * Join point for driving {@link ProbeExecutionManagerImpl} directly from tests, subclasses only
+ * implement {@link #proceed()}.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+abstract class ProceedingJoinPointStub implements ProceedingJoinPoint {
+
+    public Object proceed(Object[] args) throws Throwable {
+        throw new UnsupportedOperationException();
+    }
+
+    public void set$AroundClosure(AroundClosure arc) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String toShortString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String toLongString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object getThis() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object getTarget() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object[] getArgs() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Signature getSignature() {
+        throw new UnsupportedOperationException();
+    }
+
+    public SourceLocation getSourceLocation() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String getKind() {
+        throw new UnsupportedOperationException();
+    }
+
+    public StaticPart getStaticPart() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.impl.model.OperationSafeImpl;
+import org.jmonitor.agent.impl.model.TraceSafeImpl;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class StackTraceSamplerTest {
+
+    private OperationThread first;
+    private OperationThread second;
+
+    @Before
+    public void before() throws InterruptedException {
+        first = new OperationThread();
+        second = new OperationThread();
+        first.start();
+        second.start();
+        first.awaitOperation();
+        second.awaitOperation();
+    }
+
+    @After
+    public void after() throws InterruptedException {
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testBatch() {
+        StackTraceSampler sampler = new StackTraceSampler();
+        sampler.add(first.operation);
+        sampler.add(second.operation);
+        sampler.capturePending(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+        // each operation gets its own thread's stack trace
+        assertEquals(1, getSampleCount(first.operation));
+        assertEquals(1, getSampleCount(second.operation));
+    }
+
+    @Test
+    public void testPendingClearedAfterCapture() {
+        StackTraceSampler sampler = new StackTraceSampler();
+        sampler.add(first.operation);
+        sampler.capturePending(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+        sampler.capturePending(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+        assertEquals(1, getSampleCount(first.operation));
+        sampler.add(first.operation);
+        sampler.capturePending(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+        assertEquals(2, getSampleCount(first.operation));
+    }
+
+    @Test
+    public void testMaxDepth() {
+        StackTraceSampler sampler = new StackTraceSampler();
+        sampler.add(first.operation);
+        sampler.capturePending(3);
+        // a single chain of the 3 innermost frames
+        assertEquals(3, first.operation.getSampledHotspotTree().getNodeCount());
+    }
+
+    @Test
+    public void testTerminatedThread() throws InterruptedException {
+        OperationThread terminated = new OperationThread();
+        terminated.start();
+        terminated.awaitOperation();
+        terminated.release();
+        StackTraceSampler sampler = new StackTraceSampler();
+        sampler.add(terminated.operation);
+        sampler.add(first.operation);
+        sampler.capturePending(AgentConfiguration.STACK_TRACE_DEPTH_UNLIMITED);
+        // the terminated thread is skipped, the others are still sampled
+        assertNull(terminated.operation.getSampledHotspotTree().getRootNodes());
+        assertNotNull(first.operation.getSampledHotspotTree().getRootNodes());
+    }
+
+    private static int getSampleCount(OperationSafeImpl operation) {
+        int sampleCount = 0;
+        for (SampledHotspotTreeNode rootNode : operation.getSampledHotspotTree().getRootNodes()) {
+            sampleCount += rootNode.getSampleCount();
+        }
+        return sampleCount;
+    }
+
+    // creates an operation on its own thread (operations are sampled on the thread that created
+    // them) and then waits until it is released
+    private class OperationThread extends Thread {
+
+        private final CountDownLatch created = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile OperationSafeImpl operation;
+
+        @Override
+        public void run() {
+            ProbeExecution probeExecution = new ProbeExecution() {
+                public String getDescription() {
+                    return "test";
+                }
+
+                public ProbeExecutionContext createContext() {
+                    return null;
+                }
+            };
+            operation = new OperationSafeImpl(new TraceSafeImpl(probeExecution, System
+                    .nanoTime()), true, false, false, false);
+            created.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void awaitOperation() throws InterruptedException {
+            assertTrue(created.await(10, TimeUnit.SECONDS));
+        }
+
+        // returns once the thread has terminated
+        private void release() throws InterruptedException {
+            released.countDown();
+            join();
+        }
+    }
+}
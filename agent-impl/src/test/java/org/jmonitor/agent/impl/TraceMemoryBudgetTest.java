@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TraceMemoryBudgetTest extends AgentConfigurationTestSupport {
+
+    private static final StatelessProbeExecutionCreator<String, Object> PROBE_EXECUTION_CREATOR =
+            new StatelessProbeExecutionCreator<String, Object>() {
+                public ProbeExecution createProbeExecution(final String description,
+                        Object argument) {
+                    return new ProbeExecution() {
+                        public String getDescription() {
+                            return description;
+                        }
+                        public ProbeExecutionContext createContext() {
+                            return null;
+                        }
+                    };
+                }
+            };
+
+    private static final ProceedingJoinPoint NOOP_JOIN_POINT = new ProceedingJoinPointStub() {
+        public Object proceed() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testLevels() {
+        // the soft limit is 50kb, and levels are only lowered 10% below the watermark that raised
+        // them
+        updateAgentConfiguration(100, 50);
+        TraceMemoryBudget budget = new TraceMemoryBudget();
+        budget.reserve(50 * 1024 - 1);
+        assertLevel(TraceMemoryBudget.NORMAL, budget);
+        budget.reserve(1);
+        assertLevel(TraceMemoryBudget.METRICS_ONLY, budget);
+        budget.reserve(50 * 1024);
+        assertLevel(TraceMemoryBudget.NO_CAPTURE, budget);
+        assertEquals(1, budget.getMetricsOnlyTransitionCount());
+        assertEquals(1, budget.getNoCaptureTransitionCount());
+
+        // 91kb
+        budget.release(9 * 1024);
+        assertLevel(TraceMemoryBudget.NO_CAPTURE, budget);
+        // 89kb
+        budget.release(2 * 1024);
+        assertLevel(TraceMemoryBudget.METRICS_ONLY, budget);
+        // 46kb
+        budget.release(43 * 1024);
+        assertLevel(TraceMemoryBudget.METRICS_ONLY, budget);
+        // 44kb
+        budget.release(2 * 1024);
+        assertLevel(TraceMemoryBudget.NORMAL, budget);
+
+        // straight from normal to no capture
+        budget.reserve(56 * 1024);
+        assertLevel(TraceMemoryBudget.NO_CAPTURE, budget);
+        assertEquals(1, budget.getMetricsOnlyTransitionCount());
+        assertEquals(2, budget.getNoCaptureTransitionCount());
+        budget.release(100 * 1024);
+        assertLevel(TraceMemoryBudget.NORMAL, budget);
+        assertEquals(0, budget.getEstimatedBytes());
+    }
+
+    @Test
+    public void testUnlimited() {
+        updateAgentConfiguration(AgentConfiguration.TRACE_MEMORY_BUDGET_UNLIMITED, 50);
+        TraceMemoryBudget budget = new TraceMemoryBudget();
+        budget.reserve(Integer.MAX_VALUE);
+        assertLevel(TraceMemoryBudget.NORMAL, budget);
+        budget.release(Integer.MAX_VALUE);
+    }
+
+    // the first nested trace event reserves enough to exceed a 1kb budget (see
+    // Agent.pushTraceEvent()), after which the operation stops adding trace events and new
+    // operations are not captured until it completes
+    @Test
+    public void testDegradation() throws Throwable {
+
+        updateAgentConfiguration(1, 50);
+        final TraceMemoryBudget budget = Agent.getInstance().getTraceMemoryBudget();
+        final long skippedOperationCount = budget.getSkippedOperationCount();
+        final List<Integer> traceSizes = new ArrayList<Integer>();
+        final AtomicReference<Object> otherThreadOperation = new AtomicReference<Object>();
+        ProceedingJoinPoint rootJoinPoint = new ProceedingJoinPointStub() {
+            public Object proceed() throws Throwable {
+                for (int i = 0; i < 10; i++) {
+                    execute("nested", NOOP_JOIN_POINT);
+                }
+                traceSizes.add(Agent.getInstance().getCurrentOperation().getTrace().getSize());
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            execute("other root", new ProceedingJoinPointStub() {
+                                public Object proceed() {
+                                    otherThreadOperation.set(Agent.getInstance()
+                                            .getCurrentOperation());
+                                    return null;
+                                }
+                            });
+                        } catch (Throwable t) {
+                            throw new IllegalStateException(t);
+                        }
+                    }
+                };
+                thread.start();
+                thread.join();
+                return null;
+            }
+        };
+        execute("root", rootJoinPoint);
+
+        assertEquals(1, traceSizes.size());
+        // the root and the first nested trace event
+        assertEquals(2, traceSizes.get(0).intValue());
+        assertNull(otherThreadOperation.get());
+        assertEquals(skippedOperationCount + 1, budget.getSkippedOperationCount());
+        // everything was released when the operation completed
+        assertEquals(0, budget.getEstimatedBytes());
+        assertLevel(TraceMemoryBudget.NORMAL, budget);
+    }
+
+    private static void execute(String description, ProceedingJoinPoint joinPoint)
+            throws Throwable {
+
+        ProbeExecutionManagerImpl.getInstance().execute(PROBE_EXECUTION_CREATOR, description,
+                null, joinPoint, (OperationSummaryKey) null, false);
+    }
+
+    private static void assertLevel(int expectedLevel, TraceMemoryBudget budget) {
+        assertEquals(expectedLevel, budget.getLevel());
+    }
+
+    private static void updateAgentConfiguration(int traceMemoryBudgetKilobytes,
+            int traceMemorySoftLimitPercent) {
+
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setEnabled(true);
+        configuration.setTraceSamplingRate(1);
+        configuration.setTraceMemoryBudgetKilobytes(traceMemoryBudgetKilobytes);
+        configuration.setTraceMemorySoftLimitPercent(traceMemorySoftLimitPercent);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+}
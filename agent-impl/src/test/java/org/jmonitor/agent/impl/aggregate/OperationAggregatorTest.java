@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.aggregate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.impl.AgentConfigurationTestSupport;
+import org.jmonitor.agent.impl.OperationSummaryKeyRegistry;
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class OperationAggregatorTest extends AgentConfigurationTestSupport {
+
+    private static final OperationSummaryKey ROOT_KEY =
+            OperationSummaryKeyRegistry.getInstance().getOperationSummaryKey("aggregator root");
+    private static final OperationSummaryKey NESTED_KEY =
+            OperationSummaryKeyRegistry.getInstance().getOperationSummaryKey("aggregator nested");
+
+    @Test
+    public void testOtherEntryOnceLimitReached() {
+
+        OperationAggregator aggregator = new OperationAggregator();
+        List<OperationAggregator.Entry> entries = new ArrayList<OperationAggregator.Entry>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(aggregator.getEntry("/" + i));
+        }
+        assertEquals(1000, aggregator.getOperationNameCount());
+        OperationAggregator.Entry otherEntry =
+                aggregator.getEntry(OperationAggregator.OTHER_OPERATION_NAME);
+        assertSame(otherEntry, aggregator.getEntry("/1000"));
+        assertSame(otherEntry, aggregator.getEntry("/1001"));
+        assertEquals(1000, aggregator.getOperationNameCount());
+        // existing operation names still get their own entry
+        assertSame(entries.get(5), aggregator.getEntry("/5"));
+    }
+
+    @Test
+    public void testStripedAccumulatorSingleThread() {
+
+        StripedAccumulator accumulator = new StripedAccumulator("/a", "key", 8);
+        for (int i = 1; i <= 100; i++) {
+            // the stripe hint doesn't matter until there is contention
+            accumulator.record(i, 10, i);
+        }
+        accumulator.record(0, 11, 1000);
+        assertEquals(1, accumulator.getStripeCount());
+
+        AggregateItem item = accumulator.harvest(10, null);
+        assertEquals(100, item.getCount());
+        assertEquals(5050, item.getTotalTimeInNanoseconds());
+        assertEquals(1, item.getMinimumTimeInNanoseconds());
+        assertEquals(100, item.getMaximumTimeInNanoseconds());
+        // the slot was reset by the harvest
+        assertNull(accumulator.harvest(10, null));
+        assertNull(accumulator.harvest(12, null));
+
+        // the other slot was not affected
+        item = accumulator.harvest(11, null);
+        assertEquals(1, item.getCount());
+        assertEquals(1000, item.getTotalTimeInNanoseconds());
+    }
+
+    @Test
+    public void testStripedAccumulatorMultipleThreads() throws InterruptedException {
+
+        final StripedAccumulator accumulator = new StripedAccumulator("/a", "key", 4);
+        final int threadCount = 8;
+        final int recordingsPerThread = 100000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final int stripe = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 1; j <= recordingsPerThread; j++) {
+                        accumulator.record(stripe, 10, j);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // whether the stripes expanded depends on how the threads were scheduled, but never
+        // beyond the maximum, and no recordings are lost either way
+        assertTrue(accumulator.getStripeCount() <= 4);
+        AggregateItem item = accumulator.harvest(10, null);
+        assertEquals(threadCount * recordingsPerThread, item.getCount());
+        assertEquals(threadCount * (recordingsPerThread * (recordingsPerThread + 1L) / 2),
+                item.getTotalTimeInNanoseconds());
+        assertEquals(1, item.getMinimumTimeInNanoseconds());
+        assertEquals(recordingsPerThread, item.getMaximumTimeInNanoseconds());
+    }
+
+    @Test
+    public void testHistogramOnlyForRootKey() {
+
+        updateMetricHistogramsEnabled(true);
+        OperationAggregator aggregator = new OperationAggregator();
+        OperationAggregator.Entry entry = aggregator.getEntry("/a");
+        for (int i = 1; i <= 100; i++) {
+            entry.record(0, NESTED_KEY, i * 1000);
+            entry.recordRoot(0, ROOT_KEY, i * 1000000);
+        }
+
+        List<AggregateItem> items = harvestCurrentBucket(entry);
+        assertEquals(2, items.size());
+        for (AggregateItem item : items) {
+            assertEquals(100, item.getCount());
+            if (item.getName().equals(ROOT_KEY.getName())) {
+                long p50 = item.getPercentileTimeInNanoseconds(50);
+                // the histogram buckets are within a few percent
+                assertTrue(p50 >= 45000000 && p50 <= 55000000);
+                assertEquals(100000000, item.getPercentileTimeInNanoseconds(100));
+            } else {
+                assertEquals(-1, item.getPercentileTimeInNanoseconds(50));
+            }
+        }
+    }
+
+    @Test
+    public void testHistogramDisabled() {
+
+        updateMetricHistogramsEnabled(false);
+        OperationAggregator aggregator = new OperationAggregator();
+        OperationAggregator.Entry entry = aggregator.getEntry("/a");
+        entry.recordRoot(0, ROOT_KEY, 1000000);
+
+        List<AggregateItem> items = harvestCurrentBucket(entry);
+        assertEquals(1, items.size());
+        assertEquals(-1, items.get(0).getPercentileTimeInNanoseconds(50));
+    }
+
+    @Test
+    public void testRecordValue() {
+
+        OperationAggregator aggregator = new OperationAggregator();
+        OperationAggregator.Entry entry = aggregator.getEntry("/a");
+        entry.recordValue(0, OperationAggregator.ALLOCATED_BYTES, 1024);
+        entry.recordValue(0, OperationAggregator.ALLOCATED_BYTES, 3072);
+        entry.recordValue(0, OperationAggregator.BLOCKED_COUNT, 0);
+
+        long bucket = System.currentTimeMillis() / OperationAggregator.BUCKET_MILLIS;
+        List<AggregateValue> valueItems = new ArrayList<AggregateValue>();
+        entry.harvestValues(bucket - 1, valueItems);
+        entry.harvestValues(bucket, valueItems);
+        AggregateValue allocatedBytes = valueItems.get(0);
+        AggregateValue blockedCount = valueItems.get(valueItems.size() - 1);
+        if (valueItems.size() == 3) {
+            // the test ran across a bucket boundary
+            allocatedBytes = allocatedBytes.merge(valueItems.get(1));
+        }
+        assertEquals("allocated bytes", allocatedBytes.getName());
+        assertEquals("bytes", allocatedBytes.getUnit());
+        assertEquals(2, allocatedBytes.getCount());
+        assertEquals(4096, allocatedBytes.getTotal());
+        assertEquals(1024, allocatedBytes.getMinimum());
+        assertEquals(3072, allocatedBytes.getMaximum());
+        assertEquals(2048, allocatedBytes.getAverage(), 0);
+        assertEquals("blocked count", blockedCount.getName());
+        assertEquals("", blockedCount.getUnit());
+        assertEquals(1, blockedCount.getCount());
+        assertEquals(0, blockedCount.getTotal());
+
+        // values don't show up as operation summary data
+        List<AggregateItem> items = new ArrayList<AggregateItem>();
+        entry.harvest(bucket - 1, items);
+        entry.harvest(bucket, items);
+        assertEquals(0, items.size());
+    }
+
+    // harvests the current and the previous bucket, in case the recordings above ran across a
+    // bucket boundary
+    private static List<AggregateItem> harvestCurrentBucket(OperationAggregator.Entry entry) {
+        long bucket = System.currentTimeMillis() / OperationAggregator.BUCKET_MILLIS;
+        List<AggregateItem> previousItems = new ArrayList<AggregateItem>();
+        entry.harvest(bucket - 1, previousItems);
+        List<AggregateItem> items = new ArrayList<AggregateItem>();
+        entry.harvest(bucket, items);
+        return merge(previousItems, items);
+    }
+
+    private static List<AggregateItem> merge(List<AggregateItem> items1,
+            List<AggregateItem> items2) {
+
+        List<AggregateItem> items = new ArrayList<AggregateItem>(items2);
+        for (AggregateItem item1 : items1) {
+            boolean merged = false;
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i).getName().equals(item1.getName())) {
+                    items.set(i, item1.merge(items.get(i)));
+                    merged = true;
+                }
+            }
+            if (!merged) {
+                items.add(item1);
+            }
+        }
+        return items;
+    }
+
+    private static void updateMetricHistogramsEnabled(boolean metricHistogramsEnabled) {
+        AgentConfiguration configuration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration().copy();
+        configuration.setMetricHistogramsEnabled(metricHistogramsEnabled);
+        AgentConfigurationServiceFactory.getService().updateAgentConfiguration(configuration);
+    }
+}
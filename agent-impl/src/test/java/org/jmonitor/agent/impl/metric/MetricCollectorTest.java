@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.jmonitor.api.metric.Metric;
+import org.jmonitor.api.metric.MetricPool;
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class MetricCollectorTest {
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            }
+        };
+        List<Metric> metrics = new ArrayList<Metric>();
+        metrics.add(new TestMetric("fast", MetricPool.FAST));
+        metrics.add(new TestMetric("slow", MetricPool.SLOW));
+        MetricCollector metricCollector = new MetricCollector(metrics, threadFactory);
+        metricCollector.start();
+
+        // both pools are collected right away
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((metricCollector.getSeries("fast").getSize() == 0
+                || metricCollector.getSeries("slow").getSize() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(42, metricCollector.getSeries("fast").getLatestValue(), 0);
+        assertEquals(42, metricCollector.getSeries("slow").getLatestValue(), 0);
+        assertEquals(2, threads.size());
+
+        metricCollector.shutdown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        // the samples are retained
+        assertTrue(metricCollector.getSeries("fast").getSize() > 0);
+    }
+
+    @Test
+    public void testShutdownWithoutMetrics() {
+        MetricCollector metricCollector =
+                new MetricCollector(new ArrayList<Metric>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        throw new AssertionError("no threads are needed without metrics");
+                    }
+                });
+        metricCollector.start();
+        metricCollector.shutdown();
+    }
+
+    private static class TestMetric implements Metric {
+
+        private final String name;
+        private final MetricPool pool;
+
+        private TestMetric(String name, MetricPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return "";
+        }
+
+        public MetricPool getPool() {
+            return pool;
+        }
+
+        public double collect() {
+            return 42;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class MetricSeriesTest {
+
+    @Test
+    public void testEmpty() {
+        MetricSeries series = new MetricSeries("cpu", "", 4);
+        assertEquals(0, series.getSize());
+        assertTrue(Double.isNaN(series.getLatestValue()));
+        assertTrue(Double.isNaN(series.getAverage(Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(0, series.getSnapshot().getSize());
+    }
+
+    @Test
+    public void testRollover() {
+        MetricSeries series = new MetricSeries("cpu", "", 4);
+        for (int i = 0; i < 3; i++) {
+            series.add(1000 + i, i);
+        }
+        assertSnapshot(series.getSnapshot(), 0, 1, 2);
+
+        // the 5th and 6th samples overwrite the 1st and 2nd
+        for (int i = 3; i < 6; i++) {
+            series.add(1000 + i, i);
+        }
+        assertEquals(4, series.getSize());
+        assertEquals(4, series.getCapacity());
+        assertEquals(5, series.getLatestValue(), 0);
+        assertSnapshot(series.getSnapshot(), 2, 3, 4, 5);
+
+        // wraps around several times
+        for (int i = 6; i < 103; i++) {
+            series.add(1000 + i, i);
+        }
+        assertEquals(4, series.getSize());
+        assertEquals(102, series.getLatestValue(), 0);
+        assertSnapshot(series.getSnapshot(), 99, 100, 101, 102);
+    }
+
+    @Test
+    public void testAverageAfterRollover() {
+        MetricSeries series = new MetricSeries("cpu", "", 4);
+        for (int i = 0; i < 6; i++) {
+            series.add(1000 + i, i);
+        }
+        // only the retained samples (2, 3, 4, 5) count
+        assertEquals(3.5, series.getAverage(Long.MIN_VALUE, Long.MAX_VALUE), 0);
+        // the range is [from, to)
+        assertEquals(3.5, series.getAverage(1003, 1005), 0);
+        assertTrue(Double.isNaN(series.getAverage(1000, 1002)));
+
+        // samples that could not be collected are excluded
+        series.add(1006, Double.NaN);
+        assertEquals(4, series.getAverage(1003, 1007), 0);
+        assertTrue(Double.isNaN(series.getLatestValue()));
+    }
+
+    private static void assertSnapshot(MetricSeries.Snapshot snapshot, int... expectedValues) {
+        assertEquals(expectedValues.length, snapshot.getSize());
+        for (int i = 0; i < expectedValues.length; i++) {
+            assertEquals(1000 + expectedValues[i], snapshot.getCaptureTime(i));
+            assertEquals(expectedValues[i], snapshot.getValue(i), 0);
+        }
+    }
+}
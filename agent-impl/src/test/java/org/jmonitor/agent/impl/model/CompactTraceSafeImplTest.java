@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.ProbeExecutionWithTemplate;
+import org.jmonitor.collector.service.model.TraceEvent;
+import org.junit.Test;
+
+/**
+ * Runs randomized push/pop/fold/update/flush sequences against CompactTraceSafeImpl, comparing
+ * the trace events with TraceSafeImpl (while nothing has been flushed, after which the two only
+ * agree on the contents of each trace event, see FlushableListTest) and comparing which trace
+ * events are flushed with a model of the first X / updated / last X rules.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CompactTraceSafeImplTest {
+
+    private static final String[] TEMPLATES = { "select a", "select b", null };
+
+    @Test
+    public void testSameEventsAsTraceSafeImpl() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            long nanoTime = random.nextLong();
+            ProbeExecution root = new TestProbeExecution("root", null);
+            TraceSafeImpl trace = new TraceSafeImpl(root, nanoTime);
+            CompactTraceSafeImpl compactTrace = new CompactTraceSafeImpl(root, nanoTime);
+            List<Integer> stack = new ArrayList<Integer>();
+            stack.add(0);
+            for (int op = 0; op < 500 && !stack.isEmpty(); op++) {
+                String description = "seed " + seed + ", op " + op;
+                nanoTime += random.nextInt(1000);
+                int n = random.nextInt(100);
+                if (n < 45) {
+                    ProbeExecution probeExecution = newRandomProbeExecution(random);
+                    int index = trace.pushElement(probeExecution, nanoTime);
+                    assertEquals(description, index,
+                            compactTrace.pushElement(probeExecution, nanoTime));
+                    stack.add(index);
+                } else if (n < 85 && stack.size() > 1) {
+                    int index = stack.remove(stack.size() - 1);
+                    trace.popElement(index, nanoTime);
+                    compactTrace.popElement(index, nanoTime);
+                } else {
+                    assertEquals(description, trace.hasFoldTarget(),
+                            compactTrace.hasFoldTarget());
+                    if (trace.hasFoldTarget()) {
+                        ProbeExecution probeExecution = newRandomProbeExecution(random);
+                        long startNanoTime = nanoTime;
+                        nanoTime += random.nextInt(1000);
+                        TraceEventSafeImpl folded =
+                                trace.foldElement(probeExecution, startNanoTime, nanoTime);
+                        Integer compactFolded =
+                                compactTrace.foldElement(probeExecution, startNanoTime, nanoTime);
+                        if (folded == null) {
+                            assertNull(description, compactFolded);
+                        } else {
+                            assertEquals(description, folded.getIndex(),
+                                    compactFolded.intValue());
+                        }
+                    }
+                }
+                assertEquals(description, trace.getSize(), compactTrace.getSize());
+                assertSame(description, trace.getCurrentProbeExecution(),
+                        compactTrace.getCurrentProbeExecution());
+                if (op % 50 == 0) {
+                    assertSameEvents(description, trace.getEvents(), compactTrace.getEvents());
+                }
+            }
+            // pop the rest, including the root
+            while (!stack.isEmpty()) {
+                nanoTime += random.nextInt(1000);
+                int index = stack.remove(stack.size() - 1);
+                trace.popElement(index, nanoTime);
+                compactTrace.popElement(index, nanoTime);
+            }
+            String description = "seed " + seed;
+            assertTrue(compactTrace.isCompleted());
+            assertEquals(description, trace.getDurationInNanoseconds(),
+                    compactTrace.getDurationInNanoseconds());
+            assertNull(compactTrace.getCurrentProbeExecution());
+            assertSameEvents(description, trace.getEvents(), compactTrace.getEvents());
+            assertSameEvent(description, trace.getRootElement(), compactTrace.getRootElement());
+        }
+    }
+
+    @Test
+    public void testFlush() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            long nanoTime = 0;
+            CompactTraceSafeImpl compactTrace =
+                    new CompactTraceSafeImpl(new TestProbeExecution("root", null), nanoTime);
+            List<Integer> stack = new ArrayList<Integer>();
+            stack.add(0);
+            // the model
+            int flushedSize = 0;
+            SortedSet<Integer> updated = new TreeSet<Integer>();
+            for (int op = 0; op < 2000; op++) {
+                String description = "seed " + seed + ", op " + op;
+                nanoTime += 1 + random.nextInt(1000);
+                int n = random.nextInt(100);
+                if (n < 45) {
+                    stack.add(compactTrace.pushElement(newRandomProbeExecution(random),
+                            nanoTime));
+                } else if (n < 85 && stack.size() > 1) {
+                    int index = stack.remove(stack.size() - 1);
+                    compactTrace.popElement(index, nanoTime);
+                    if (index < flushedSize) {
+                        updated.add(index);
+                    }
+                } else if (n < 90) {
+                    Integer folded = compactTrace.foldElement(newRandomProbeExecution(random),
+                            nanoTime - 1, nanoTime);
+                    if (folded != null && folded < flushedSize) {
+                        updated.add(folded);
+                    }
+                } else if (n < 95) {
+                    assertEquals(description,
+                            getExpectedIndexes(flushedSize, compactTrace.getSize(), updated),
+                            getIndexes(compactTrace.flush().getEvents()));
+                    flushedSize = compactTrace.getSize();
+                    updated.clear();
+                } else {
+                    assertEquals(description,
+                            getExpectedIndexes(flushedSize, compactTrace.getSize(), updated),
+                            getIndexes(compactTrace.getEvents()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeepStack() {
+        CompactTraceSafeImpl compactTrace =
+                new CompactTraceSafeImpl(new TestProbeExecution("root", null), 0);
+        // spans several chunks and grows the stack several times
+        for (int i = 1; i <= 200; i++) {
+            assertEquals(i, compactTrace.pushElement(new TestProbeExecution("" + i, null), i));
+        }
+        for (int i = 200; i >= 0; i--) {
+            compactTrace.popElement(i, 1000 - i);
+        }
+        int expectedIndex = 0;
+        for (TraceEvent event : compactTrace.getEvents()) {
+            assertEquals(expectedIndex, event.getIndex());
+            assertEquals(expectedIndex, event.getLevel());
+            assertEquals(expectedIndex - 1, event.getParentIndex());
+            assertEquals(expectedIndex, event.getOffsetInNanoseconds());
+            assertEquals(1000 - 2 * expectedIndex, event.getDurationInNanoseconds());
+            assertTrue(event.isCompleted());
+            expectedIndex++;
+        }
+        assertEquals(201, expectedIndex);
+    }
+
+    // see CompactTraceSafeImpl.getEventsSince()
+    private static List<Integer> getExpectedIndexes(int flushedSize, int size,
+            SortedSet<Integer> updated) {
+
+        int consecutiveStart = Math.max(Math.min(flushedSize, size - 10), 0);
+        int firstXEnd = Math.min(10, consecutiveStart);
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < firstXEnd; i++) {
+            indexes.add(i);
+        }
+        indexes.addAll(updated.subSet(firstXEnd, Math.max(consecutiveStart, firstXEnd)));
+        for (int i = consecutiveStart; i < size; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    private static List<Integer> getIndexes(Iterable<? extends TraceEvent> events) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (TraceEvent event : events) {
+            indexes.add(event.getIndex());
+        }
+        return indexes;
+    }
+
+    private static void assertSameEvents(String description,
+            Iterable<? extends TraceEvent> expectedEvents, Iterable<TraceEvent> events) {
+
+        List<TraceEvent> expectedList = new ArrayList<TraceEvent>();
+        for (TraceEvent event : expectedEvents) {
+            expectedList.add(event);
+        }
+        List<TraceEvent> list = new ArrayList<TraceEvent>();
+        for (TraceEvent event : events) {
+            list.add(event);
+        }
+        assertEquals(description, expectedList.size(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertSameEvent(description + ", event " + i, expectedList.get(i), list.get(i));
+        }
+    }
+
+    private static void assertSameEvent(String description, TraceEvent expected,
+            TraceEvent event) {
+
+        assertEquals(description, expected.getIndex(), event.getIndex());
+        assertEquals(description, expected.getParentIndex(), event.getParentIndex());
+        assertEquals(description, expected.getLevel(), event.getLevel());
+        assertEquals(description, expected.getDescription(), event.getDescription());
+        assertEquals(description, expected.getOffsetInNanoseconds(),
+                event.getOffsetInNanoseconds());
+        assertEquals(description, expected.isCompleted(), event.isCompleted());
+        if (expected.isCompleted()) {
+            // only meaningful once completed
+            assertEquals(description, expected.getDurationInNanoseconds(),
+                    event.getDurationInNanoseconds());
+            assertEquals(description, expected.getCount(), event.getCount());
+            assertEquals(description, expected.getTotalDurationInNanoseconds(),
+                    event.getTotalDurationInNanoseconds());
+            assertEquals(description, expected.getMaxDurationInNanoseconds(),
+                    event.getMaxDurationInNanoseconds());
+        }
+    }
+
+    private static ProbeExecution newRandomProbeExecution(Random random) {
+        String template = TEMPLATES[random.nextInt(TEMPLATES.length)];
+        return new TestProbeExecution(template + " " + random.nextInt(3), template);
+    }
+
+    private static class TestProbeExecution implements ProbeExecutionWithTemplate {
+
+        private final String description;
+        private final String template;
+
+        private TestProbeExecution(String description, String template) {
+            this.description = description;
+            this.template = template;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getDescriptionTemplate() {
+            return template;
+        }
+
+        public ProbeExecutionContext createContext() {
+            return null;
+        }
+    }
+}
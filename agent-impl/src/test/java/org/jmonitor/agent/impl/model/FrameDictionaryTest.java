@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class FrameDictionaryTest {
+
+    @Test
+    public void testInterning() {
+        FrameDictionary frameDictionary = new FrameDictionary(100000);
+        StackTraceElement frame = newFrame(1);
+        int frameId = frameDictionary.getFrameId(frame);
+        assertEquals(0, frameId);
+        // equal frames get the same id and resolve to the first instance
+        assertEquals(frameId, frameDictionary.getFrameId(newFrame(1)));
+        assertSame(frame, frameDictionary.getFrame(frameId));
+        assertEquals(1, frameDictionary.getFrameId(newFrame(2)));
+        assertEquals(2, frameDictionary.getFrameCount());
+    }
+
+    @Test
+    public void testGrowth() {
+        FrameDictionary frameDictionary = new FrameDictionary(100000);
+        // well past the initial capacity
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, frameDictionary.getFrameId(newFrame(i)));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(newFrame(i), frameDictionary.getFrame(i));
+            assertEquals(i, frameDictionary.getFrameId(newFrame(i)));
+        }
+    }
+
+    @Test
+    public void testMaxFrames() {
+        FrameDictionary frameDictionary = new FrameDictionary(10);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i, frameDictionary.getFrameId(newFrame(i)));
+        }
+        // the last id is reserved for the other frame
+        int otherFrameId = frameDictionary.getFrameId(newFrame(9));
+        assertEquals(9, otherFrameId);
+        assertSame(FrameDictionary.OTHER_FRAME, frameDictionary.getFrame(otherFrameId));
+        assertEquals(otherFrameId, frameDictionary.getFrameId(newFrame(10)));
+        assertEquals(otherFrameId, frameDictionary.getFrameId(FrameDictionary.OTHER_FRAME));
+        assertEquals(10, frameDictionary.getFrameCount());
+        // frames registered before the limit keep their ids
+        assertEquals(5, frameDictionary.getFrameId(newFrame(5)));
+    }
+
+    // threads register overlapping frames at the same time, and every thread must see the same id
+    // for the same frame
+    @Test
+    public void testConcurrentRegistration() throws InterruptedException {
+        final FrameDictionary frameDictionary = new FrameDictionary(100000);
+        final int threadCount = 4;
+        final int frameCount = 3000;
+        final int[][] frameIds = new int[threadCount][frameCount];
+        final boolean[] unreadable = new boolean[threadCount];
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int[] threadFrameIds = frameIds[t];
+            final int threadNum = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < frameCount; i++) {
+                        threadFrameIds[i] = frameDictionary.getFrameId(newFrame(i));
+                        // the frame is readable as soon as the id has been returned
+                        if (!newFrame(i).equals(frameDictionary.getFrame(threadFrameIds[i]))) {
+                            unreadable[threadNum] = true;
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < threadCount; t++) {
+            assertFalse(unreadable[t]);
+        }
+        Set<Integer> distinctFrameIds = new HashSet<Integer>();
+        for (int i = 0; i < frameCount; i++) {
+            for (int t = 1; t < threadCount; t++) {
+                assertEquals(frameIds[0][i], frameIds[t][i]);
+            }
+            distinctFrameIds.add(frameIds[0][i]);
+        }
+        assertEquals(frameCount, distinctFrameIds.size());
+        assertEquals(frameCount, frameDictionary.getFrameCount());
+        for (int frameId : distinctFrameIds) {
+            assertTrue(frameId >= 0 && frameId < frameCount);
+        }
+    }
+
+    private static StackTraceElement newFrame(int i) {
+        return new StackTraceElement("org.example.Frame" + i, "method", "Frame" + i + ".java", i);
+    }
+}
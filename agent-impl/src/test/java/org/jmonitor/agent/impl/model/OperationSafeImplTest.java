@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.jmonitor.agent.impl.util.ThreadResourceUsage;
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class OperationSafeImplTest {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private boolean contentionMonitoringEnabled;
+
+    // allocated by the operations so that the allocations can't be optimized away
+    private List<byte[]> allocations;
+
+    @Before
+    public void setUp() {
+        if (threadMXBean.isThreadContentionMonitoringSupported()) {
+            contentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ThreadResourceUsage.restoreContentionMonitoring();
+        if (threadMXBean.isThreadContentionMonitoringSupported()) {
+            threadMXBean.setThreadContentionMonitoringEnabled(contentionMonitoringEnabled);
+        }
+    }
+
+    @Test
+    public void testNothingCapturedWhenDisabled() {
+        OperationSafeImpl operation = newOperation(false, false);
+        allocate();
+        operation.captureResourceUsage();
+        assertEquals(-1, operation.getCpuTimeInNanoseconds());
+        assertEquals(-1, operation.getAllocatedBytes());
+        operation.captureContention();
+        assertEquals(-1, operation.getBlockedTimeInMilliseconds());
+        assertEquals(-1, operation.getBlockedCount());
+        assertEquals(-1, operation.getWaitedTimeInMilliseconds());
+        assertEquals(-1, operation.getWaitedCount());
+    }
+
+    @Test
+    public void testCpuTime() {
+        Assume.assumeTrue(ThreadResourceUsage.getCurrentThreadCpuTime() != -1);
+        OperationSafeImpl operation = newOperation(true, false);
+        long startCpuTime = ThreadResourceUsage.getCurrentThreadCpuTime();
+        // spin until the thread's cpu time has visibly moved on (its granularity varies by os)
+        while (ThreadResourceUsage.getCurrentThreadCpuTime() == startCpuTime) {
+        }
+        operation.captureResourceUsage();
+        assertTrue(operation.getCpuTimeInNanoseconds() > 0);
+    }
+
+    @Test
+    public void testAllocatedBytes() {
+        Assume.assumeTrue(ThreadResourceUsage.getCurrentThreadAllocatedBytes() != -1);
+        OperationSafeImpl operation = newOperation(true, false);
+        allocate();
+        operation.captureResourceUsage();
+        assertTrue(operation.getAllocatedBytes() >= 1024 * 1024);
+    }
+
+    @Test
+    public void testBlocked() throws Exception {
+        Assume.assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        OperationSafeImpl operation = newOperation(false, true);
+        final Object monitor = new Object();
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                synchronized (monitor) {
+                    locked.countDown();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        thread.start();
+        locked.await();
+        synchronized (monitor) {
+            // blocked until the other thread releases the monitor
+        }
+        thread.join();
+        operation.captureContention();
+        // other monitors (e.g. class loading) may have been contended in the meantime too
+        assertTrue(operation.getBlockedCount() >= 1);
+        assertTrue(operation.getBlockedTimeInMilliseconds() >= 0);
+        // awaiting the latch and joining the thread are counted as waits
+        assertTrue(operation.getWaitedCount() >= 1);
+    }
+
+    @Test
+    public void testWaited() throws Exception {
+        Assume.assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        OperationSafeImpl operation = newOperation(false, true);
+        Object monitor = new Object();
+        synchronized (monitor) {
+            monitor.wait(10);
+        }
+        operation.captureContention();
+        assertTrue(operation.getWaitedCount() >= 1);
+        assertTrue(operation.getWaitedTimeInMilliseconds() >= 0);
+    }
+
+    @Test
+    public void testContentionNotCapturedOnceRestored() throws Exception {
+        Assume.assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        OperationSafeImpl operation = newOperation(false, true);
+        ThreadResourceUsage.restoreContentionMonitoring();
+        operation.captureContention();
+        assertEquals(-1, operation.getBlockedCount());
+        assertEquals(-1, operation.getWaitedCount());
+    }
+
+    private void allocate() {
+        allocations = new ArrayList<byte[]>();
+        for (int i = 0; i < 1024; i++) {
+            allocations.add(new byte[1024]);
+        }
+    }
+
+    private static OperationSafeImpl newOperation(boolean resourceUsageEnabled,
+            boolean contentionMonitoringEnabled) {
+
+        ProbeExecution probeExecution = new ProbeExecution() {
+            public String getDescription() {
+                return "test";
+            }
+
+            public ProbeExecutionContext createContext() {
+                return null;
+            }
+        };
+        return new OperationSafeImpl(new TraceSafeImpl(probeExecution, System.nanoTime()), false,
+                false, resourceUsageEnabled, contentionMonitoringEnabled);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.Thread.State;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class SampledHotspotTreeNodeSafeImplTest {
+
+    // adds child nodes one at a time (across the switch from linear search to the index and
+    // several resizes of the index), checking every lookup after each add
+    @Test
+    public void testChildNodeLookup() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            SampledHotspotTreeNodeSafeImpl node = new SampledHotspotTreeNodeSafeImpl(0);
+            List<SampledHotspotTreeNodeSafeImpl> childNodes =
+                    new ArrayList<SampledHotspotTreeNodeSafeImpl>();
+            Set<Integer> frameIds = new HashSet<Integer>();
+            for (int i = 0; i < 200; i++) {
+                int frameId;
+                do {
+                    // sequential ids some of the time, since that is how they are assigned
+                    frameId = seed % 2 == 0 ? i : random.nextInt(Integer.MAX_VALUE);
+                } while (!frameIds.add(frameId));
+                SampledHotspotTreeNodeSafeImpl childNode =
+                        new SampledHotspotTreeNodeSafeImpl(frameId);
+                assertNull(node.getChildNode(frameId));
+                node.addChildNode(childNode);
+                childNodes.add(childNode);
+                for (SampledHotspotTreeNodeSafeImpl expected : childNodes) {
+                    assertSame("seed " + seed + ", child " + i, expected,
+                            node.getChildNode(expected.getFrameId()));
+                }
+                assertNull(node.getChildNode(-1));
+            }
+            // insertion order is kept
+            assertEquals(childNodes, toList(node.getChildNodes()));
+        }
+    }
+
+    @Test
+    public void testChildNodesView() {
+        SampledHotspotTreeNodeSafeImpl node = new SampledHotspotTreeNodeSafeImpl(0);
+        assertTrue(toList(node.getChildNodes()).isEmpty());
+        node.addChildNode(new SampledHotspotTreeNodeSafeImpl(1));
+        node.addChildNode(new SampledHotspotTreeNodeSafeImpl(2));
+        Iterable<SampledHotspotTreeNodeSafeImpl> view = node.getChildNodes();
+        // not affected by child nodes added afterwards (including ones that grow the array)
+        for (int i = 3; i < 20; i++) {
+            node.addChildNode(new SampledHotspotTreeNodeSafeImpl(i));
+        }
+        assertEquals(2, toList(view).size());
+        assertEquals(19, toList(node.getChildNodes()).size());
+    }
+
+    @Test
+    public void testCounts() {
+        SampledHotspotTreeNodeSafeImpl node = new SampledHotspotTreeNodeSafeImpl(0);
+        assertEquals(1, node.getSampleCount());
+        assertTrue(node.getLeafThreadStateSampleCounts().isEmpty());
+        node.incrementSampleCount();
+        node.addLeafSampling(State.RUNNABLE);
+        node.addLeafSampling(State.RUNNABLE);
+        node.addLeafSampling(State.BLOCKED);
+        assertEquals(2, node.getSampleCount());
+        Map<State, Integer> counts = node.getLeafThreadStateSampleCounts();
+        assertEquals(2, counts.size());
+        assertEquals(2, counts.get(State.RUNNABLE).intValue());
+        assertEquals(1, counts.get(State.BLOCKED).intValue());
+    }
+
+    private static List<SampledHotspotTreeNodeSafeImpl> toList(
+            Iterable<SampledHotspotTreeNodeSafeImpl> iterable) {
+
+        List<SampledHotspotTreeNodeSafeImpl> list =
+                new ArrayList<SampledHotspotTreeNodeSafeImpl>();
+        for (SampledHotspotTreeNodeSafeImpl node : iterable) {
+            list.add(node);
+        }
+        return list;
+    }
+}
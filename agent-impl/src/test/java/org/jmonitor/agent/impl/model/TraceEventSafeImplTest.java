@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jmonitor.api.probe.ProbeExecution;
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TraceEventSafeImplTest {
+
+    private static final ProbeExecution PROBE_EXECUTION = new ProbeExecution() {
+        public String getDescription() {
+            return "test";
+        }
+        public ProbeExecutionContext createContext() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testNotFolded() {
+        TraceEventSafeImpl traceEvent = newCompletedTraceEvent(100, 150);
+        assertEquals(1, traceEvent.getCount());
+        assertEquals(150, traceEvent.getEndNanoTime());
+        assertEquals(50, traceEvent.getDurationInNanoseconds());
+        assertEquals(50, traceEvent.getTotalDurationInNanoseconds());
+        assertEquals(50, traceEvent.getMaxDurationInNanoseconds());
+    }
+
+    @Test
+    public void testFold() {
+        TraceEventSafeImpl traceEvent = newCompletedTraceEvent(100, 150);
+        traceEvent.fold(30, 200);
+        assertEquals(2, traceEvent.getCount());
+        assertEquals(80, traceEvent.getTotalDurationInNanoseconds());
+        assertEquals(50, traceEvent.getMaxDurationInNanoseconds());
+        // the trace event now spans up to the end of the folded execution
+        assertEquals(200, traceEvent.getEndNanoTime());
+        assertEquals(100, traceEvent.getDurationInNanoseconds());
+        assertTrue(traceEvent.wasCompletedBy(200));
+        assertFalse(traceEvent.wasCompletedBy(199));
+
+        traceEvent.fold(70, 300);
+        assertEquals(3, traceEvent.getCount());
+        assertEquals(150, traceEvent.getTotalDurationInNanoseconds());
+        assertEquals(70, traceEvent.getMaxDurationInNanoseconds());
+        assertEquals(300, traceEvent.getEndNanoTime());
+        assertEquals(200, traceEvent.getDurationInNanoseconds());
+    }
+
+    private static TraceEventSafeImpl newCompletedTraceEvent(long startNanoTime,
+            long endNanoTime) {
+
+        TraceEventSafeImpl traceEvent =
+                new TraceEventSafeImpl(PROBE_EXECUTION, 0, startNanoTime, 1, 0, 1);
+        traceEvent.setEndNanoTime(endNanoTime);
+        traceEvent.setCompleted(true);
+        return traceEvent;
+    }
+}
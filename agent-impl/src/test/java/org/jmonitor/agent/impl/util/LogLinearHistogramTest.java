@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class LogLinearHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(-1, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, LogLinearHistogram.getIndex(i));
+            histogram.record(i);
+        }
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(7, histogram.getValueAtPercentile(50));
+        assertEquals(15, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testIndexes() {
+        // negative values are counted as 0
+        assertEquals(0, LogLinearHistogram.getIndex(-5));
+        // indexes are contiguous and increasing
+        int previousIndex = 0;
+        for (long value = 1; value < 1 << 16; value++) {
+            int index = LogLinearHistogram.getIndex(value);
+            assertTrue(index == previousIndex || index == previousIndex + 1);
+            previousIndex = index;
+        }
+        // values beyond the trackable range go into the last bucket
+        assertEquals(LogLinearHistogram.BUCKET_COUNT - 1,
+                LogLinearHistogram.getIndex(Long.MAX_VALUE));
+        assertEquals(LogLinearHistogram.BUCKET_COUNT - 1,
+                LogLinearHistogram.getIndex((1L << 40) - 1));
+    }
+
+    // the reported value is the top of the bucket holding the exact percentile value, so it is
+    // never below the exact value and at most 1/8 above it
+    @Test
+    public void testPercentileAccuracy() {
+        Random random = new Random(0);
+        long[] values = new long[10000];
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 0; i < values.length; i++) {
+            // spread over several orders of magnitude
+            values[i] = (long) Math.pow(10, 2 + random.nextDouble() * 7);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, histogram.getTotalCount());
+        for (double percentile : new double[] { 1, 10, 50, 90, 99, 99.9, 100 }) {
+            long exact =
+                    values[(int) Math.max(Math.ceil(percentile / 100 * values.length), 1) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " > " + exact, reported <= exact * 1.125);
+        }
+    }
+
+    @Test
+    public void testMergeAndAdd() {
+        LogLinearHistogram histogram1 = new LogLinearHistogram();
+        LogLinearHistogram histogram2 = new LogLinearHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram1.record(1000);
+            histogram2.record(1000000);
+        }
+        histogram1.merge(histogram2);
+        assertEquals(200, histogram1.getTotalCount());
+        long p50 = histogram1.getValueAtPercentile(50);
+        assertTrue(p50 >= 1000 && p50 < 1125);
+        long p51 = histogram1.getValueAtPercentile(51);
+        assertTrue(p51 >= 1000000 && p51 < 1125000);
+        // the merged histogram is unchanged
+        assertEquals(100, histogram2.getTotalCount());
+
+        LogLinearHistogram histogram3 = new LogLinearHistogram();
+        histogram3.add(LogLinearHistogram.getIndex(1000), 100);
+        histogram3.add(LogLinearHistogram.getIndex(1000000), 100);
+        assertEquals(200, histogram3.getTotalCount());
+        assertEquals(p50, histogram3.getValueAtPercentile(50));
+        assertEquals(p51, histogram3.getValueAtPercentile(51));
+    }
+}
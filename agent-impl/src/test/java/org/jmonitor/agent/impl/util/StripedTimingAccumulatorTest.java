@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class StripedTimingAccumulatorTest {
+
+    @Test
+    public void testEmpty() {
+        StripedTimingAccumulator.Snapshot snapshot =
+                new StripedTimingAccumulator(true).getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getTotalTimeInNanoseconds());
+        // the histogram isn't allocated until something is recorded
+        assertNull(snapshot.getHistogram());
+    }
+
+    @Test
+    public void testHistogramDisabled() {
+        StripedTimingAccumulator accumulator = new StripedTimingAccumulator(false);
+        accumulator.record(0, 100);
+        StripedTimingAccumulator.Snapshot snapshot = accumulator.getSnapshot();
+        assertEquals(1, snapshot.getCount());
+        assertNull(snapshot.getHistogram());
+    }
+
+    @Test
+    public void testHistogramEnabled() {
+        StripedTimingAccumulator accumulator = new StripedTimingAccumulator(true);
+        for (int i = 1; i <= 10; i++) {
+            accumulator.record(i, i);
+        }
+        StripedTimingAccumulator.Snapshot snapshot = accumulator.getSnapshot();
+        assertEquals(10, snapshot.getCount());
+        assertEquals(55, snapshot.getTotalTimeInNanoseconds());
+        assertEquals(1, snapshot.getMinimumTimeInNanoseconds());
+        assertEquals(10, snapshot.getMaximumTimeInNanoseconds());
+        assertEquals(10, snapshot.getHistogram().getTotalCount());
+        // values below 16 are counted exactly
+        assertEquals(5, snapshot.getHistogram().getValueAtPercentile(50));
+
+        // the snapshot is a copy
+        accumulator.record(0, 11);
+        assertEquals(10, snapshot.getHistogram().getTotalCount());
+        assertEquals(11, accumulator.getSnapshot().getHistogram().getTotalCount());
+    }
+
+    // all writers record the same value into the same stripe (so that they contend for the same
+    // cells), which makes a torn read of a cell visible as a total that doesn't match the count
+    @Test
+    public void testSnapshotsConsistentWhileRecording() throws Throwable {
+
+        final StripedTimingAccumulator accumulator = new StripedTimingAccumulator(true);
+        final int threadCount = 4;
+        final int recordingsPerThread = 200000;
+        final long value = 1000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < recordingsPerThread; j++) {
+                        accumulator.record(0, value);
+                    }
+                    doneLatch.countDown();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        final AtomicReference<Throwable> readerFailure = new AtomicReference<Throwable>();
+        final List<Long> counts = new ArrayList<Long>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (doneLatch.getCount() > 0) {
+                        StripedTimingAccumulator.Snapshot snapshot = accumulator.getSnapshot();
+                        long count = snapshot.getCount();
+                        assertEquals(count * value, snapshot.getTotalTimeInNanoseconds());
+                        if (count > 0) {
+                            assertEquals(value, snapshot.getMinimumTimeInNanoseconds());
+                            assertEquals(value, snapshot.getMaximumTimeInNanoseconds());
+                            assertEquals(count, snapshot.getHistogram().getTotalCount());
+                        }
+                        counts.add(count);
+                    }
+                } catch (Throwable t) {
+                    readerFailure.set(t);
+                }
+            }
+        };
+        reader.start();
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reader.join();
+        if (readerFailure.get() != null) {
+            throw readerFailure.get();
+        }
+        // the counts seen by the (single) reader never go backwards
+        for (int i = 1; i < counts.size(); i++) {
+            assertTrue(counts.get(i) >= counts.get(i - 1));
+        }
+
+        // and no recordings are lost
+        StripedTimingAccumulator.Snapshot snapshot = accumulator.getSnapshot();
+        assertEquals(threadCount * recordingsPerThread, snapshot.getCount());
+        assertEquals(threadCount * recordingsPerThread * value,
+                snapshot.getTotalTimeInNanoseconds());
+        assertEquals(threadCount * recordingsPerThread, snapshot.getHistogram().getTotalCount());
+        long p100 = snapshot.getHistogram().getValueAtPercentile(100);
+        assertTrue(p100 >= value && p100 < value * 1.125);
+    }
+}
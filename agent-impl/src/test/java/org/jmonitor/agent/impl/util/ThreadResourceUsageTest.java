@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ThreadResourceUsageTest {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private boolean contentionMonitoringEnabled;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        contentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+        ThreadResourceUsage.restoreContentionMonitoring();
+    }
+
+    @After
+    public void tearDown() {
+        ThreadResourceUsage.restoreContentionMonitoring();
+        threadMXBean.setThreadContentionMonitoringEnabled(contentionMonitoringEnabled);
+    }
+
+    @Test
+    public void testRestoreDisablesWhatTheAgentEnabled() {
+        threadMXBean.setThreadContentionMonitoringEnabled(false);
+        assertNotNull(ThreadResourceUsage.getCurrentThreadContention());
+        assertTrue(threadMXBean.isThreadContentionMonitoringEnabled());
+        ThreadResourceUsage.restoreContentionMonitoring();
+        assertFalse(threadMXBean.isThreadContentionMonitoringEnabled());
+        // and it can be enabled again afterwards
+        assertNotNull(ThreadResourceUsage.getCurrentThreadContention());
+        assertTrue(threadMXBean.isThreadContentionMonitoringEnabled());
+    }
+
+    @Test
+    public void testRestoreLeavesWhatWasAlreadyEnabled() {
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+        assertNotNull(ThreadResourceUsage.getCurrentThreadContention());
+        ThreadResourceUsage.restoreContentionMonitoring();
+        assertTrue(threadMXBean.isThreadContentionMonitoringEnabled());
+    }
+
+    @Test
+    public void testReadAfterRestoreDoesNotEnable() {
+        threadMXBean.setThreadContentionMonitoringEnabled(false);
+        assertNotNull(ThreadResourceUsage.getCurrentThreadContention());
+        ThreadResourceUsage.restoreContentionMonitoring();
+        assertNull(ThreadResourceUsage.getCurrentThreadContentionIfEnabled());
+        assertFalse(threadMXBean.isThreadContentionMonitoringEnabled());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class BoundedRingBufferTest {
+
+    @Test
+    public void testCapacityRoundedUp() {
+        assertEquals(1, new BoundedRingBuffer<String>(1).getCapacity());
+        assertEquals(8, new BoundedRingBuffer<String>(5).getCapacity());
+        assertEquals(8, new BoundedRingBuffer<String>(8).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCapacity() {
+        new BoundedRingBuffer<String>(0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testOfferNull() {
+        new BoundedRingBuffer<String>(4).offer(null);
+    }
+
+    @Test
+    public void testOverflow() {
+        BoundedRingBuffer<String> buffer = new BoundedRingBuffer<String>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        // full, nothing is overwritten
+        assertFalse(buffer.offer("c"));
+        assertEquals(2, buffer.size());
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("d"));
+        assertEquals("b", buffer.poll());
+        assertEquals("d", buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testWrapAround() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(4);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(buffer.offer(i));
+            assertTrue(buffer.offer(-i));
+            assertEquals(i, buffer.poll().intValue());
+            assertEquals(-i, buffer.poll().intValue());
+        }
+        assertNull(buffer.poll());
+    }
+
+    // every element that is accepted is polled exactly once
+    @Test
+    public void testConcurrentProducersAndConsumers() throws InterruptedException {
+        final int producerCount = 4;
+        final int elementsPerProducer = 100000;
+        final BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(64);
+        final BitSet offered = new BitSet();
+        final BitSet polled = new BitSet();
+        final AtomicInteger duplicateCount = new AtomicInteger();
+        final CountDownLatch producersDone = new CountDownLatch(producerCount);
+        Thread[] threads = new Thread[producerCount * 2];
+        for (int i = 0; i < producerCount; i++) {
+            final int producerNum = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    BitSet accepted = new BitSet();
+                    for (int j = 0; j < elementsPerProducer; j++) {
+                        int element = producerNum * elementsPerProducer + j;
+                        if (buffer.offer(element)) {
+                            accepted.set(element);
+                        }
+                    }
+                    synchronized (offered) {
+                        offered.or(accepted);
+                    }
+                    producersDone.countDown();
+                }
+            };
+            threads[producerCount + i] = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        Integer element = buffer.poll();
+                        if (element == null) {
+                            if (producersDone.getCount() == 0 && buffer.size() == 0) {
+                                return;
+                            }
+                            continue;
+                        }
+                        synchronized (polled) {
+                            if (polled.get(element)) {
+                                duplicateCount.incrementAndGet();
+                            }
+                            polled.set(element);
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, duplicateCount.get());
+        assertEquals(offered, polled);
+        assertNull(buffer.poll());
+    }
+}
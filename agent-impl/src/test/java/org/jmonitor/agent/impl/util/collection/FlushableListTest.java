@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.util.collection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Runs randomized push/pop/update/flush sequences (the way TraceSafeImpl uses the list) against
+ * both FlushableList and a straightforward model of it built on plain lists.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class FlushableListTest {
+
+    @Test
+    public void testRandomSequences() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            int nFirstXElements = random.nextInt(12);
+            int nLastXElements = 1 + random.nextInt(12);
+            runRandomSequence(random, nFirstXElements, nLastXElements, 2000, "seed " + seed);
+        }
+    }
+
+    @Test
+    public void testTraceSizes() {
+        // the sizes used by TraceSafeImpl, with flushes far enough apart to span several
+        // SegmentLog segments
+        Random random = new Random(0);
+        runRandomSequence(random, 10, 10, 20000, "trace sizes");
+    }
+
+    private static void runRandomSequence(Random random, int nFirstXElements,
+            int nLastXElements, int operationCount, String description) {
+
+        FlushableList<TestElement> list =
+                new FlushableList<TestElement>(nFirstXElements, nLastXElements);
+        Model model = new Model(nFirstXElements, nLastXElements);
+        // the elements that have been pushed but not yet popped
+        List<TestElement> stack = new ArrayList<TestElement>();
+        // flush less frequently in some sequences so that generations get large
+        int flushPercent = 1 + random.nextInt(10);
+        for (int i = 0; i < operationCount; i++) {
+            int n = random.nextInt(100);
+            if (model.isEmpty() || n < 40) {
+                // push
+                TestElement element = new TestElement(model.size());
+                list.add(element);
+                model.add(element);
+                stack.add(element);
+            } else if (n < 70 && !stack.isEmpty()) {
+                // pop
+                TestElement element = stack.remove(stack.size() - 1);
+                list.justUpdatedPossiblyFlushedElement(element);
+                model.justUpdatedPossiblyFlushedElement(element);
+            } else if (n < 80) {
+                // update of a prior element, e.g. the jdbc row count of a completed trace event
+                TestElement element = model.get(random.nextInt(model.size()));
+                list.justUpdatedPossiblyFlushedElement(element);
+                model.justUpdatedPossiblyFlushedElement(element);
+            } else if (n < 80 + flushPercent) {
+                assertEquals(description + ", operation " + i, model.flush(), toList(list
+                        .flush()));
+            } else {
+                assertEquals(description + ", operation " + i, model.iterate(), toList(list));
+            }
+        }
+        assertEquals(description, model.iterate(), toList(list));
+        assertEquals(description, model.flush(), toList(list.flush()));
+    }
+
+    private static List<TestElement> toList(Iterable<TestElement> iterable) {
+        List<TestElement> list = new ArrayList<TestElement>();
+        for (TestElement element : iterable) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    // what FlushableList returns, in terms of all of the elements that have been added
+    private static class Model {
+
+        private final int nFirstXElements;
+        private final int nLastXElements;
+
+        private final List<TestElement> elements = new ArrayList<TestElement>();
+        // the number of elements added before the last flush
+        private int flushedCount;
+        // updates since the last flush to elements that preceded the elements added since the last
+        // flush (at the time of the update)
+        private final Set<TestElement> updatedPriorElements = new LinkedHashSet<TestElement>();
+
+        private Model(int nFirstXElements, int nLastXElements) {
+            this.nFirstXElements = nFirstXElements;
+            this.nLastXElements = nLastXElements;
+        }
+
+        private void add(TestElement element) {
+            elements.add(element);
+        }
+
+        private void justUpdatedPossiblyFlushedElement(TestElement element) {
+            if (flushedCount == elements.size()
+                    || element.getIndex() < elements.get(flushedCount).getIndex()) {
+                updatedPriorElements.add(element);
+            }
+        }
+
+        private List<TestElement> iterate() {
+            List<TestElement> newElements = elements.subList(flushedCount, elements.size());
+            // topped up to nLastXElements with the elements immediately preceding them
+            int priorCount = nLastXElements - Math.min(newElements.size(), nLastXElements);
+            List<TestElement> consecutive = new ArrayList<TestElement>();
+            consecutive.addAll(elements.subList(Math.max(flushedCount - priorCount, 0),
+                    flushedCount));
+            consecutive.addAll(newElements);
+            int startIndex = consecutive.get(0).getIndex();
+
+            List<TestElement> updated = new ArrayList<TestElement>();
+            for (TestElement element : updatedPriorElements) {
+                if (element.getIndex() < startIndex) {
+                    updated.add(element);
+                }
+            }
+            Collections.sort(updated, new Comparator<TestElement>() {
+                public int compare(TestElement element1, TestElement element2) {
+                    return element1.getIndex() - element2.getIndex();
+                }
+            });
+            // the first X elements are prepended up to the first element returned, which may be
+            // one of the updated prior elements
+            int firstIndex = updated.isEmpty() ? startIndex : updated.get(0).getIndex();
+            List<TestElement> expected = new ArrayList<TestElement>();
+            for (int i = 0; i < Math.min(nFirstXElements, firstIndex); i++) {
+                expected.add(elements.get(i));
+            }
+            expected.addAll(updated);
+            expected.addAll(consecutive);
+            return expected;
+        }
+
+        private List<TestElement> flush() {
+            List<TestElement> flushed = iterate();
+            flushedCount = elements.size();
+            updatedPriorElements.clear();
+            return flushed;
+        }
+
+        private boolean isEmpty() {
+            return elements.isEmpty();
+        }
+
+        private int size() {
+            return elements.size();
+        }
+
+        private TestElement get(int index) {
+            return elements.get(index);
+        }
+    }
+
+    // identity equality, the same as trace events
+    private static class TestElement implements IndexedElement {
+
+        private final int index;
+
+        private TestElement(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(index);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class RegistrationListTest {
+
+    @Test
+    public void testAddAndRemove() {
+        RegistrationList<String> list = new RegistrationList<String>();
+        RegistrationList.Entry a = list.add("a");
+        list.add("b");
+        RegistrationList.Entry c = list.add("c");
+        assertEquals(toList("a", "b", "c"), toList(list));
+        a.remove();
+        assertEquals(toList("b", "c"), toList(list));
+        c.remove();
+        // removing twice is harmless
+        c.remove();
+        assertEquals(toList("b"), toList(list));
+        list.add("d");
+        assertEquals(toList("b", "d"), toList(list));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testAddNull() {
+        new RegistrationList<String>().add(null);
+    }
+
+    @Test
+    public void testPurge() {
+        RegistrationList<String> list = new RegistrationList<String>();
+        list.add("a").remove();
+        list.add("b");
+        list.add("c").remove();
+        List<String> removed = new ArrayList<String>();
+        list.purge(new CollectingRemovalListener<String>(removed));
+        // the last node is reported even though it can't be unlinked yet
+        assertEquals(toList("a", "c"), removed);
+        assertEquals(toList("b"), toList(list));
+
+        // each removed element is only reported once
+        list.add("d");
+        list.purge(new CollectingRemovalListener<String>(removed));
+        assertEquals(toList("a", "c"), removed);
+        assertEquals(toList("b", "d"), toList(list));
+    }
+
+    @Test
+    public void testIteratorPositionedOnPurgedNode() {
+        RegistrationList<String> list = new RegistrationList<String>();
+        list.add("a");
+        RegistrationList.Entry b = list.add("b");
+        list.add("c");
+        Iterator<String> i = list.iterator();
+        assertEquals("a", i.next());
+        // the iterator has already read ahead to "b"
+        b.remove();
+        list.purge(new CollectingRemovalListener<String>(new ArrayList<String>()));
+        assertEquals("b", i.next());
+        assertEquals("c", i.next());
+        assertFalse(i.hasNext());
+    }
+
+    @Test
+    public void testCursor() {
+        RegistrationList<String> list = new RegistrationList<String>();
+        RegistrationList<String>.Cursor cursor = list.newCursor();
+        assertNull(cursor.next());
+        list.add("a");
+        RegistrationList.Entry b = list.add("b");
+        assertEquals("a", cursor.next());
+        // cursors skip removed elements
+        b.remove();
+        assertNull(cursor.next());
+        // and pick up elements added after reaching the end
+        list.add("c");
+        assertEquals("c", cursor.next());
+        assertNull(cursor.next());
+
+        // a cursor positioned on a node that gets unlinked can still continue
+        RegistrationList.Entry d = list.add("d");
+        list.add("e");
+        assertEquals("d", cursor.next());
+        d.remove();
+        list.purge(new CollectingRemovalListener<String>(new ArrayList<String>()));
+        list.add("f");
+        assertEquals("e", cursor.next());
+        assertEquals("f", cursor.next());
+        assertNull(cursor.next());
+    }
+
+    // adds from several threads, removals of every other element by the adding threads, and
+    // purges from a single maintenance thread, all at the same time
+    @Test
+    public void testConcurrent() throws InterruptedException {
+
+        final RegistrationList<Integer> list = new RegistrationList<Integer>();
+        final int threadCount = 4;
+        final int addsPerThread = 20000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        final ConcurrentLinkedQueue<Integer> removed = new ConcurrentLinkedQueue<Integer>();
+        final List<Integer> purged = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * addsPerThread;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < addsPerThread; i++) {
+                        RegistrationList.Entry entry = list.add(base + i);
+                        if (i % 2 == 0) {
+                            entry.remove();
+                            removed.add(base + i);
+                        }
+                    }
+                    doneLatch.countDown();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        Thread purger = new Thread() {
+            @Override
+            public void run() {
+                CollectingRemovalListener<Integer> listener =
+                        new CollectingRemovalListener<Integer>(purged);
+                try {
+                    startLatch.await();
+                    while (doneLatch.getCount() > 0) {
+                        list.purge(listener);
+                        // iteration concurrent with everything else
+                        for (Integer element : list) {
+                            assertTrue(element != null);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        purger.start();
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        purger.join();
+        list.purge(new CollectingRemovalListener<Integer>(purged));
+
+        Set<Integer> expected = new HashSet<Integer>();
+        for (int i = 0; i < threadCount * addsPerThread; i++) {
+            if (i % 2 == 1) {
+                expected.add(i);
+            }
+        }
+        List<Integer> remaining = toList(list);
+        assertEquals(expected.size(), remaining.size());
+        assertEquals(expected, new HashSet<Integer>(remaining));
+        // every removed element is reported exactly once
+        assertEquals(removed.size(), purged.size());
+        assertEquals(new HashSet<Integer>(removed), new HashSet<Integer>(purged));
+    }
+
+    private static <E> List<E> toList(Iterable<E> iterable) {
+        List<E> list = new ArrayList<E>();
+        for (E element : iterable) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    private static List<String> toList(String... elements) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, elements);
+        return list;
+    }
+
+    private static class CollectingRemovalListener<E> implements
+            RegistrationList.RemovalListener<E> {
+
+        private final List<E> removed;
+
+        private CollectingRemovalListener(List<E> removed) {
+            this.removed = removed;
+        }
+
+        public void removed(E element) {
+            removed.add(element);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class SegmentLogTest {
+
+    @Test
+    public void testAddAcrossSegments() {
+        SegmentLog<Integer> log = new SegmentLog<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(log.add(i));
+        }
+        assertEquals(1000, log.size());
+        assertEquals(0, log.getFirst().intValue());
+        assertEquals(999, log.getLast().intValue());
+        int expected = 0;
+        for (Integer element : log) {
+            assertEquals(expected++, element.intValue());
+        }
+        assertEquals(1000, expected);
+    }
+
+    @Test
+    public void testTerminate() {
+        SegmentLog<Integer> log = new SegmentLog<Integer>();
+        for (int i = 0; i < 100; i++) {
+            log.add(i);
+        }
+        assertTrue(log.terminate());
+        assertFalse(log.terminate());
+        assertTrue(log.isTerminated());
+        assertFalse(log.add(100));
+        assertEquals(100, log.size());
+        assertEquals(toList(96, 97, 98, 99), toList(log.iteratorOverLastN(4)));
+        assertEquals(100, toList(log.iteratorOverLastN(1000)).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIteratorOverLastNBeforeTermination() {
+        new SegmentLog<Integer>().iteratorOverLastN(1);
+    }
+
+    @Test
+    public void testIteratorIsSnapshotOfSize() {
+        SegmentLog<Integer> log = new SegmentLog<Integer>();
+        log.add(0);
+        Iterator<Integer> i = log.iterator();
+        log.add(1);
+        assertEquals(0, i.next().intValue());
+        assertFalse(i.hasNext());
+    }
+
+    // the elements that were added successfully are exactly the elements that are visible after
+    // termination
+    @Test
+    public void testConcurrentTerminate() throws InterruptedException {
+        for (int run = 0; run < 200; run++) {
+            final SegmentLog<Integer> log = new SegmentLog<Integer>();
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final AtomicInteger addedCount = new AtomicInteger();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; log.add(i); i++) {
+                        addedCount.set(i + 1);
+                    }
+                }
+            };
+            writer.start();
+            startLatch.countDown();
+            // give the writer a head start some of the time
+            if (run % 2 == 0) {
+                Thread.yield();
+            }
+            assertTrue(log.terminate());
+            writer.join();
+            assertEquals(addedCount.get(), log.size());
+            int expected = 0;
+            for (Integer element : log) {
+                assertEquals(expected++, element.intValue());
+            }
+            assertEquals(addedCount.get(), expected);
+        }
+    }
+
+    private static List<Integer> toList(Integer... elements) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer element : elements) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    private static List<Integer> toList(Iterator<Integer> iterator) {
+        List<Integer> list = new ArrayList<Integer>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+}
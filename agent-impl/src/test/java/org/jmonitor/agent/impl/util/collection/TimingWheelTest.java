@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jmonitor.agent.impl.util.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * 
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TimingWheelTest {
+
+    private static final long START = 1000000;
+    private static final long TICK = 100;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTicksPerWheelNotPowerOfTwo() {
+        new TimingWheel(TICK, 6, START);
+    }
+
+    @Test
+    public void testNeverExpiresEarly() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, START);
+        List<TestTimeout> expired = new ArrayList<TestTimeout>();
+        TestTimeout timeout = new TestTimeout(expired);
+        // the deadline is rounded up to the next tick
+        wheel.schedule(timeout, START + 250);
+        wheel.advance(START + 249);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 299);
+        assertTrue(expired.isEmpty());
+        assertTrue(timeout.isScheduled());
+        wheel.advance(START + 300);
+        assertEquals(1, expired.size());
+        assertFalse(timeout.isScheduled());
+        assertEquals(START + 400, wheel.getNextTickNanoTime());
+    }
+
+    @Test
+    public void testPastDeadlineExpiresOnNextTick() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, START);
+        wheel.advance(START + 1000);
+        List<TestTimeout> expired = new ArrayList<TestTimeout>();
+        wheel.schedule(new TestTimeout(expired), START);
+        wheel.advance(START + 1099);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 1100);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testMultipleRounds() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, START);
+        List<TestTimeout> expired = new ArrayList<TestTimeout>();
+        // lands in the same bucket as tick 2, but 3 rotations later
+        wheel.schedule(new TestTimeout(expired), START + 26 * TICK);
+        wheel.advance(START + 25 * TICK);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 26 * TICK);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, START);
+        List<TestTimeout> expired = new ArrayList<TestTimeout>();
+        TestTimeout timeout1 = new TestTimeout(expired);
+        TestTimeout timeout2 = new TestTimeout(expired);
+        wheel.schedule(timeout1, START + 2 * TICK);
+        wheel.schedule(timeout2, START + 2 * TICK);
+        wheel.cancel(timeout1);
+        // cancelling twice is harmless
+        wheel.cancel(timeout1);
+        assertFalse(timeout1.isScheduled());
+        // re-scheduling moves the timeout
+        wheel.schedule(timeout2, START + 5 * TICK);
+        wheel.advance(START + 4 * TICK);
+        assertTrue(expired.isEmpty());
+        wheel.advance(START + 5 * TICK);
+        assertEquals(1, expired.size());
+        assertEquals(timeout2, expired.get(0));
+    }
+
+    @Test
+    public void testRescheduleFromExpire() {
+        final TimingWheel wheel = new TimingWheel(TICK, 8, START);
+        final List<Long> expirations = new ArrayList<Long>();
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout() {
+            @Override
+            protected void expire() {
+                long nanoTime = wheel.getNextTickNanoTime() - TICK;
+                expirations.add(nanoTime);
+                // re-schedules into the bucket currently being processed (one rotation later),
+                // which must not be visited again in the same advance()
+                wheel.schedule(this, nanoTime + 8 * TICK);
+            }
+        };
+        wheel.schedule(timeout, START + TICK);
+        wheel.advance(START + 20 * TICK);
+        assertEquals(3, expirations.size());
+        assertEquals(START + TICK, expirations.get(0).longValue());
+        assertEquals(START + 9 * TICK, expirations.get(1).longValue());
+        assertEquals(START + 17 * TICK, expirations.get(2).longValue());
+    }
+
+    // random schedules, cancels and advances against a model that tracks each timeout's
+    // (rounded up) deadline tick
+    @Test
+    public void testRandom() {
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            TimingWheel wheel = new TimingWheel(TICK, 16, START);
+            List<TestTimeout> expired = new ArrayList<TestTimeout>();
+            List<TestTimeout> timeouts = new ArrayList<TestTimeout>();
+            for (int i = 0; i < 20; i++) {
+                timeouts.add(new TestTimeout(expired));
+            }
+            long[] deadlineTicks = new long[timeouts.size()];
+            boolean[] scheduled = new boolean[timeouts.size()];
+            long nanoTime = START;
+            // the next tick to be processed
+            long tick = 0;
+            for (int op = 0; op < 2000; op++) {
+                int i = random.nextInt(timeouts.size());
+                int n = random.nextInt(10);
+                if (n < 4) {
+                    // up to 5 rotations out, and sometimes in the past
+                    long deadline = nanoTime + random.nextInt(16 * 5 * (int) TICK) - 2 * TICK;
+                    wheel.schedule(timeouts.get(i), deadline);
+                    deadlineTicks[i] =
+                            Math.max((deadline - START + TICK - 1) / TICK, tick);
+                    scheduled[i] = true;
+                } else if (n < 5) {
+                    wheel.cancel(timeouts.get(i));
+                    scheduled[i] = false;
+                } else {
+                    nanoTime += random.nextInt(3 * (int) TICK);
+                    long lastTick = (nanoTime - START) / TICK;
+                    Set<TestTimeout> expected = new HashSet<TestTimeout>();
+                    for (int j = 0; j < timeouts.size(); j++) {
+                        if (scheduled[j] && deadlineTicks[j] <= lastTick) {
+                            expected.add(timeouts.get(j));
+                            scheduled[j] = false;
+                        }
+                    }
+                    expired.clear();
+                    wheel.advance(nanoTime);
+                    tick = Math.max(tick, lastTick + 1);
+                    assertEquals("seed " + seed + ", op " + op, expected,
+                            new HashSet<TestTimeout>(expired));
+                    assertEquals(expected.size(), expired.size());
+                }
+                for (int j = 0; j < timeouts.size(); j++) {
+                    assertEquals(scheduled[j], timeouts.get(j).isScheduled());
+                }
+            }
+        }
+    }
+
+    private static class TestTimeout extends TimingWheel.Timeout {
+
+        private final List<TestTimeout> expired;
+
+        private TestTimeout(List<TestTimeout> expired) {
+            this.expired = expired;
+        }
+
+        @Override
+        protected void expire() {
+            expired.add(this);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.impl.AgentConfigurationServiceImpl;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 
 /**
@@ -159,7 +160,8 @@ public class ConfigurationAspect {
     private AgentConfiguration getMutableAgentConfiguration() {
         AgentConfiguration configuration =
                 AgentConfigurationServiceImpl.getInstance().getAgentConfiguration();
-        return AgentConfigurationHelper.copyOf(configuration);
+        // the service returns an immutable snapshot
+        return configuration.copy();
     }
 
     private CollectorConfiguration getMutableCollectorConfiguration() {
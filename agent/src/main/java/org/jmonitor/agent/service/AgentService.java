@@ -22,6 +22,7 @@ import org.jmonitor.agent.configuration.AgentConfiguration;
 import org.jmonitor.agent.configuration.MetricConfiguration;
 import org.jmonitor.agent.configuration.ProbeConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
 
 /**
  * 
@@ -33,6 +34,10 @@ public interface AgentService {
 
 	Collection<? extends Operation> getOperationsExceptCurrent();
 
+	// the jvm profiler's most recently completed window, null if the profiler
+	// is disabled or hasn't completed a window yet
+	ProfileData getProfileData();
+
 	// agent service needs to cache its configuration for performance
 	// (at least when pulling its configuration from jmonitor central)
 	// and this method allows it to be notified (by jmonitor central) of changes
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.api.probe;
+
+/**
+ * {@link StatelessProbeExecutionCreator} for probe executions with a template (see
+ * {@link ProbeExecutionWithTemplate}). Once an operation reaches its trace limit, the template is
+ * compared against the trace events that it could be folded into before the probe execution is
+ * created, so that executions which can't be folded don't allocate (e.g. copy the jdbc bind
+ * parameters).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface StatelessProbeExecutionCreatorWithTemplate<T, A> extends
+        StatelessProbeExecutionCreator<T, A> {
+
+    // returns the template of the probe execution that createProbeExecution() would create for
+    // the same target and argument, or null if it should not be folded
+    //
+    // this should not allocate
+    String getDescriptionTemplate(T target, A argument);
+}
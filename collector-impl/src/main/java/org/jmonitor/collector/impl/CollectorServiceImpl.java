@@ -16,14 +16,35 @@
 
 package org.jmonitor.collector.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.jmonitor.agent.configuration.AgentConfiguration;
+import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
 import org.jmonitor.collector.configuration.CollectorConfigurationServiceFactory;
 import org.jmonitor.collector.impl.common.AlertDestination;
+import org.jmonitor.collector.impl.common.AsyncAlertDestination;
+import org.jmonitor.collector.impl.common.AsyncDataDestination;
 import org.jmonitor.collector.impl.common.DataDestination;
+import org.jmonitor.collector.impl.common.DestinationWorker;
 import org.jmonitor.collector.impl.common.ErrorDestination;
 import org.jmonitor.collector.impl.file.FileDataDestination;
+import org.jmonitor.collector.impl.timeseries.TimeSeriesStore;
 import org.jmonitor.collector.service.CollectorService;
+import org.jmonitor.collector.service.model.AggregateData;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
+import org.jmonitor.collector.service.model.SystemData;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
 
 /**
  * 
@@ -33,12 +54,35 @@ import org.jmonitor.collector.service.model.Operation;
  */
 public final class CollectorServiceImpl implements CollectorService {
 
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(CollectorServiceImpl.class);
+
+    // max number of system and aggregate data items waiting for the time series store, these only
+    // arrive once per interval
+    private static final int TIME_SERIES_QUEUE_CAPACITY = 1000;
+
+    private static final String DESTINATION_WORKER_OBJECT_NAME_PREFIX =
+            "org.jmonitor:type=DestinationWorker,name=";
+
+    private static final String TIME_SERIES_STORE_OBJECT_NAME =
+            "org.jmonitor:type=TimeSeriesStore";
+
     private static final CollectorServiceImpl INSTANCE = new CollectorServiceImpl();
 
     private final DataDestination dataDestination;
     private final ErrorDestination errorDestination;
     private final AlertDestination alertDestination;
 
+    // null if disabled or if it could not be opened
+    private final TimeSeriesStore timeSeriesStore;
+    // all appends to the time series store are run on this worker
+    private final DestinationWorker timeSeriesWorker;
+
+    private final List<DestinationWorker> workers = new ArrayList<DestinationWorker>();
+
+    // only accessed under lock on this
+    private final List<ObjectName> registeredMBeanNames = new ArrayList<ObjectName>();
+
     private volatile CollectorConfiguration configuration;
 
     private CollectorServiceImpl() {
@@ -50,9 +94,51 @@ public final class CollectorServiceImpl implements CollectorService {
 
         FileDataDestination fileDataDestination = new FileDataDestination(configuration);
 
-        dataDestination = fileDataDestination;
+        // the operation destination queues have the same bound and overflow policy as the agent's
+        // completed operation queue that feeds them, so that backing up from a slow destination
+        // is bounded the same way (these are only read at startup, same as in the agent)
+        AgentConfiguration agentConfiguration =
+                AgentConfigurationServiceFactory.getService().getAgentConfiguration();
+        int operationQueueCapacity =
+                Math.max(agentConfiguration.getCompletedOperationQueueCapacity(), 1);
+        // SUMMARY_ONLY has no meaning here (the summary has already been recorded by the agent)
+        // so it drops the newest the same as DROP_NEWEST
+        boolean dropOldest =
+                AgentConfiguration.OVERFLOW_POLICY_DROP_OLDEST.equals(agentConfiguration
+                        .getCompletedOperationOverflowPolicy());
+
+        // each destination runs on its own worker so that a slow destination (e.g. unresponsive
+        // smtp server) doesn't hold up the others, the file destination still receives
+        // operations in order since it has a single worker
+        DestinationWorker dataWorker =
+                new DestinationWorker("file-data-destination", operationQueueCapacity,
+                        dropOldest);
+        dataDestination = new AsyncDataDestination(fileDataDestination, dataWorker);
         errorDestination = fileDataDestination;
-        alertDestination = new EmailAlertDestination();
+        DestinationWorker alertWorker =
+                new DestinationWorker("email-alert-destination", operationQueueCapacity,
+                        dropOldest);
+        alertDestination = new AsyncAlertDestination(new EmailAlertDestination(), alertWorker);
+        workers.add(dataWorker);
+        workers.add(alertWorker);
+
+        // the time series store is only configured at startup
+        timeSeriesStore = createTimeSeriesStore(configuration);
+        if (timeSeriesStore == null) {
+            timeSeriesWorker = null;
+        } else {
+            timeSeriesWorker =
+                    new DestinationWorker("time-series-store", TIME_SERIES_QUEUE_CAPACITY, false);
+            workers.add(timeSeriesWorker);
+        }
+
+        for (DestinationWorker worker : workers) {
+            registerMBean(worker, DESTINATION_WORKER_OBJECT_NAME_PREFIX + worker.getName());
+        }
+        if (timeSeriesStore != null) {
+            // this is how the history is read back (scans don't interfere with the appends)
+            registerMBean(timeSeriesStore, TIME_SERIES_STORE_OBJECT_NAME);
+        }
     }
 
     public void collect(Operation operation) {
@@ -65,6 +151,45 @@ public final class CollectorServiceImpl implements CollectorService {
         alertDestination.collectFirstStuck(operation);
     }
 
+    public void collectSystemData(final SystemData systemData) {
+        if (timeSeriesStore == null) {
+            return;
+        }
+        timeSeriesWorker.execute(new Runnable() {
+            public void run() {
+                try {
+                    timeSeriesStore.append(systemData);
+                } catch (IOException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    public void collectAggregateData(final AggregateData aggregateData) {
+        if (timeSeriesStore == null) {
+            return;
+        }
+        timeSeriesWorker.execute(new Runnable() {
+            public void run() {
+                try {
+                    timeSeriesStore.append(aggregateData);
+                } catch (IOException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    public void collectProfileData(ProfileData profileData) {
+        dataDestination.collectProfileData(profileData);
+    }
+
+    // returns null if the time series store is disabled or could not be opened
+    public TimeSeriesStore getTimeSeriesStore() {
+        return timeSeriesStore;
+    }
+
     public void collectError(String message) {
         errorDestination.logError(message);
     }
@@ -78,6 +203,72 @@ public final class CollectorServiceImpl implements CollectorService {
         dataDestination.updateConfiguration(configuration);
     }
 
+    // anything still queued is dropped
+    public void shutdown() {
+        // first, so that the time series store is no longer read through jmx once it is closed
+        unregisterMBeans();
+        boolean timeSeriesWorkerStopped = true;
+        for (DestinationWorker worker : workers) {
+            boolean stopped = worker.shutdown();
+            if (worker == timeSeriesWorker) {
+                timeSeriesWorkerStopped = stopped;
+            }
+        }
+        if (timeSeriesStore != null && timeSeriesWorkerStopped) {
+            // the time series worker has stopped so this is now the only thread using the store
+            try {
+                timeSeriesStore.close();
+            } catch (IOException e) {
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private synchronized void registerMBean(Object mbean, String objectName) {
+        try {
+            ObjectInstance objectInstance =
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                            new ObjectName(objectName));
+            registeredMBeanNames.add(objectInstance.getObjectName());
+        } catch (JMException e) {
+            // e.g. another instance of the collector was already registered in this jvm
+            LOGGER.warn("could not register mbean " + objectName + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void unregisterMBeans() {
+        for (ObjectName objectName : registeredMBeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.warn("could not unregister mbean " + objectName + ": " + e.getMessage());
+            }
+        }
+        registeredMBeanNames.clear();
+    }
+
+    private static TimeSeriesStore createTimeSeriesStore(CollectorConfiguration configuration) {
+        if (configuration.getTimeSeriesRetentionDays() <= 0) {
+            return null;
+        }
+        File directory = new File(configuration.getTimeSeriesDirectory());
+        if (!directory.isAbsolute()) {
+            // a relative directory would end up wherever the monitored jvm happens to be started
+            // from (e.g. the application server's bin directory)
+            LOGGER.error("time series directory must be an absolute path, but was \""
+                    + configuration.getTimeSeriesDirectory() + "\"");
+            return null;
+        }
+        try {
+            return new TimeSeriesStore(directory, configuration.getTimeSeriesRetentionDays());
+        } catch (IOException e) {
+            // e.g. no write access
+            LOGGER.error("could not open time series store in " + directory.getAbsolutePath()
+                    + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
     public static CollectorServiceImpl getInstance() {
         return INSTANCE;
     }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.common;
+
+import org.jmonitor.collector.service.model.Operation;
+
+/**
+ * Runs an {@link AlertDestination} on its own {@link DestinationWorker}.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AsyncAlertDestination implements AlertDestination {
+
+    private final AlertDestination alertDestination;
+
+    private final DestinationWorker worker;
+
+    public AsyncAlertDestination(AlertDestination alertDestination, DestinationWorker worker) {
+        this.alertDestination = alertDestination;
+        this.worker = worker;
+    }
+
+    public void collectFirstStuck(final Operation operation) {
+        worker.execute(new Runnable() {
+            public void run() {
+                alertDestination.collectFirstStuck(operation);
+            }
+        });
+    }
+
+    public void collect(final Operation operation) {
+        worker.execute(new Runnable() {
+            public void run() {
+                alertDestination.collect(operation);
+            }
+        });
+    }
+
+    public DestinationWorker getWorker() {
+        return worker;
+    }
+}
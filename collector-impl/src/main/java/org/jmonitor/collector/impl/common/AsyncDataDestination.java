@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.common;
+
+import org.jmonitor.collector.service.model.CollectorConfiguration;
+import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
+
+/**
+ * Runs a {@link DataDestination} on its own {@link DestinationWorker}, operations are still
+ * passed to the underlying destination in order.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class AsyncDataDestination implements DataDestination {
+
+    private final DataDestination dataDestination;
+
+    private final DestinationWorker worker;
+
+    public AsyncDataDestination(DataDestination dataDestination, DestinationWorker worker) {
+        this.dataDestination = dataDestination;
+        this.worker = worker;
+    }
+
+    public void collectFirstStuck(final Operation operation) {
+        worker.execute(new Runnable() {
+            public void run() {
+                dataDestination.collectFirstStuck(operation);
+            }
+        });
+    }
+
+    public void collect(final Operation operation) {
+        worker.execute(new Runnable() {
+            public void run() {
+                dataDestination.collect(operation);
+            }
+        });
+    }
+
+    public void collectProfileData(final ProfileData profileData) {
+        worker.execute(new Runnable() {
+            public void run() {
+                dataDestination.collectProfileData(profileData);
+            }
+        });
+    }
+
+    // configuration updates are not queued since they must not be dropped
+    public void updateConfiguration(CollectorConfiguration configuration) {
+        dataDestination.updateConfiguration(configuration);
+    }
+
+    public DestinationWorker getWorker() {
+        return worker;
+    }
+}
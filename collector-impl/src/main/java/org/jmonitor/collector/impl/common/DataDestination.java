@@ -18,6 +18,7 @@ package org.jmonitor.collector.impl.common;
 
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
 
 /**
  * 
@@ -31,5 +32,7 @@ public interface DataDestination {
 
     void collect(Operation operation);
 
+    void collectProfileData(ProfileData profileData);
+
     void updateConfiguration(CollectorConfiguration configuration);
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Single thread with its own bounded queue, used to run the work for one destination so that a
+ * slow destination (e.g. an unresponsive smtp server) doesn't hold up the other destinations.
+ * 
+ * Tasks are run one at a time in submission order. Submitting never blocks, if the queue is full
+ * either the new task or the oldest queued task is dropped (and counted).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class DestinationWorker implements DestinationWorkerMBean {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(DestinationWorker.class);
+
+    // drops are logged on the first drop and then every so often
+    private static final int DROPPED_LOG_INTERVAL = 100;
+
+    // bounds how long shutdown() waits for the task that is currently running
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    private final String name;
+
+    private final int queueCapacity;
+
+    private final boolean dropOldest;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public DestinationWorker(String name, int queueCapacity, boolean dropOldest) {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.dropOldest = dropOldest;
+        executor =
+                new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory(
+                                "jmonitor-" + name), new DropPolicy());
+    }
+
+    public void execute(final Runnable task) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) { // NOPMD for catching Throwable
+                    // log and continue with the next task, also for errors (e.g. a
+                    // NoClassDefFoundError for javax.mail) since anything thrown from here would
+                    // kill the worker thread (which the executor would then silently replace)
+                    LOGGER.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    // queued tasks are discarded, and the running task is interrupted
+    //
+    // returns false if the running task did not finish in time
+    public boolean shutdown() {
+        executor.shutdownNow();
+        try {
+            if (executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            LOGGER.warn(name + " did not stop within " + SHUTDOWN_TIMEOUT_MILLIS
+                    + " milliseconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    private class DropPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                // not counted as a drop
+                return;
+            }
+            if (dropOldest) {
+                // same as ThreadPoolExecutor.DiscardOldestPolicy, the dropped (and counted) item
+                // is the oldest queued one instead of the new one
+                executor.getQueue().poll();
+                executor.execute(task);
+            }
+            long count = droppedCount.incrementAndGet();
+            if (count % DROPPED_LOG_INTERVAL == 1) {
+                LOGGER.warn(name + " queue is full, " + count
+                        + " items have been dropped so far");
+            }
+        }
+    }
+
+    // use daemon threads so that they will not prevent JVM from exiting normally
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String threadName;
+
+        private DaemonThreadFactory(String threadName) {
+            this.threadName = threadName;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
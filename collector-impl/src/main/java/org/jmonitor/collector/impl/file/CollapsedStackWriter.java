@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.file;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jmonitor.collector.service.model.SampledHotspotTree;
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
+
+/**
+ * Writes sampled hotspot trees in the folded / collapsed stack format used by flame graph tools
+ * (e.g. flamegraph.pl), one line per distinct stack with its frames from the outermost to the
+ * innermost separated by semicolons, followed by a space and the number of samples that ended in
+ * that stack:
+ * 
+ * <pre>
+ * java.lang.Thread.run;com.example.Worker.run;com.example.Worker.process 42
+ * </pre>
+ * 
+ * Frames are written as class name and method name (without the line number, so that samples at
+ * different lines of the same method end up in the same flame graph frame). Lines are streamed
+ * straight from the tree to the writer, the frames of the current path are kept in a single
+ * reusable array so no strings are built per path.
+ * 
+ * The format is additive (lines with the same stack are summed up by the flame graph tools), so
+ * multiple trees can be written one after another, e.g. with the operation name as the root
+ * frame so that operations with the same name are merged.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CollapsedStackWriter {
+
+    private final Writer out;
+
+    // the frames from the outermost down to the node currently being written, grown as needed
+    private StackTraceElement[] path = new StackTraceElement[64];
+
+    public CollapsedStackWriter(Writer out) {
+
+        if (out == null) {
+            throw new IllegalArgumentException("out must be not null.");
+        }
+
+        this.out = out;
+    }
+
+    // rootFrame is written as the outermost frame of every line, or null for none
+    public void write(SampledHotspotTree sampledHotspotTree, String rootFrame) throws IOException {
+
+        Iterable<? extends SampledHotspotTreeNode> rootNodes = sampledHotspotTree.getRootNodes();
+        if (rootNodes == null) {
+            // no stack traces have been captured
+            return;
+        }
+        for (SampledHotspotTreeNode rootNode : rootNodes) {
+            writeNode(rootNode, 0, rootFrame);
+        }
+    }
+
+    private void writeNode(SampledHotspotTreeNode node, int depth, String rootFrame)
+            throws IOException {
+
+        if (depth == path.length) {
+            StackTraceElement[] newPath = new StackTraceElement[path.length * 2];
+            System.arraycopy(path, 0, newPath, 0, path.length);
+            path = newPath;
+        }
+        path[depth] = node.getStackTraceElement();
+
+        // samples that ended at this node (as opposed to one of its child nodes)
+        int selfSampleCount = node.getSampleCount();
+        for (SampledHotspotTreeNode childNode : node.getChildNodes()) {
+            selfSampleCount -= childNode.getSampleCount();
+            writeNode(childNode, depth + 1, rootFrame);
+        }
+        if (selfSampleCount > 0) {
+            writeLine(depth, rootFrame, selfSampleCount);
+        }
+    }
+
+    private void writeLine(int depth, String rootFrame, int sampleCount) throws IOException {
+
+        if (rootFrame != null) {
+            writeFrameText(rootFrame);
+            out.write(';');
+        }
+        for (int i = 0; i <= depth; i++) {
+            if (i > 0) {
+                out.write(';');
+            }
+            writeFrameText(path[i].getClassName());
+            out.write('.');
+            writeFrameText(path[i].getMethodName());
+        }
+        out.write(' ');
+        out.write(Integer.toString(sampleCount));
+        out.write('\n');
+    }
+
+    // semicolons and line breaks would corrupt the format (e.g. a request uri with ;jsessionid=)
+    private void writeFrameText(String text) throws IOException {
+        if (text.indexOf(';') == -1 && text.indexOf('\n') == -1 && text.indexOf('\r') == -1) {
+            // the common case
+            out.write(text);
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ';' || c == '\n' || c == '\r') {
+                out.write('_');
+            } else {
+                out.write(c);
+            }
+        }
+    }
+}
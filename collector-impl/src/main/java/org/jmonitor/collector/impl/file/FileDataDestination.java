@@ -24,6 +24,7 @@ import org.jmonitor.collector.impl.common.ErrorDestination;
 import org.jmonitor.collector.impl.file.AtomicLogger.LoggerCallback;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
 
 /**
  * 
@@ -74,6 +75,15 @@ public class FileDataDestination implements DataDestination, ErrorDestination {
         collect(operation);
     }
 
+    public void collectProfileData(final ProfileData profileData) {
+
+        atomicLogger.execute(new LoggerCallback() {
+            public void doWithLogger(PrintWriter logger) {
+                new ProfilePrinter(logger).collect(profileData);
+            }
+        });
+    }
+
     public void logError(String message) {
         atomicLogger.logError(message);
     }
@@ -17,9 +17,9 @@
 package org.jmonitor.collector.impl.file;
 
 import java.io.PrintWriter;
-import java.lang.Thread.State;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -29,7 +29,6 @@ import java.util.concurrent.TimeUnit;
 import org.jmonitor.api.probe.ProbeExecutionContext;
 import org.jmonitor.collector.service.model.MetricDataItem;
 import org.jmonitor.collector.service.model.Operation;
-import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
 import org.jmonitor.collector.service.model.TraceEvent;
 
 import com.google.common.collect.Lists;
@@ -56,13 +55,9 @@ class OperationPrinterHelper { // NOPMD for too many methods
 	private static final String MAXIMUM_HEADER = "maximum";
 	private static final String COUNT_HEADER = "count";
 
-	private static final Ordering<SampledHotspotTreeNode> SAMPLED_CALL_TREE_NODE_ORDERING = new Ordering<SampledHotspotTreeNode>() {
-		public int compare(SampledHotspotTreeNode node1,
-				SampledHotspotTreeNode node2) {
-			// reverse sort
-			return node2.getSampleCount() - node1.getSampleCount();
-		}
-	};
+	private static final double[] PERCENTILES = new double[] { 50, 95, 99, 99.9 };
+	private static final String[] PERCENTILE_HEADERS = new String[] { "p50",
+			"p95", "p99", "p99.9" };
 
 	private static final Ordering<MetricDataItem> METRIC_DATA_ITEM_ORDERING = new Ordering<MetricDataItem>() {
 		public int compare(MetricDataItem item1, MetricDataItem item2) {
@@ -70,21 +65,10 @@ class OperationPrinterHelper { // NOPMD for too many methods
 		}
 	};
 
-	private static final Ordering<Map.Entry<State, Integer>> THREAD_STATE_ORDERING = new Ordering<Map.Entry<State, Integer>>() {
-		public int compare(Map.Entry<State, Integer> entry1,
-				Map.Entry<State, Integer> entry2) {
-			return entry1.getValue() - entry2.getValue();
-		}
-	};
-
 	private final Operation operation;
 	private final PrintWriter out;
 	private long logNanoTime;
 
-	private int totalSampleCount;
-
-	private int percentageColumnWidth;
-
 	public OperationPrinterHelper(Operation operation, PrintWriter out) {
 		this.operation = operation;
 		this.out = out;
@@ -135,6 +119,27 @@ class OperationPrinterHelper { // NOPMD for too many methods
 		out.print("duration:      ");
 		out.print(formatDurationInSeconds());
 		out.println(" seconds");
+		// only captured once the operation completes (and only if enabled)
+		if (operation.getCpuTimeInNanoseconds() != -1) {
+			out.print("cpu time:      ");
+			out.print(FormatUtils.formatNanosecondsAsSeconds(operation
+					.getCpuTimeInNanoseconds()));
+			out.println(" seconds");
+		}
+		if (operation.getAllocatedBytes() != -1) {
+			out.print("allocated:     ");
+			out.print(operation.getAllocatedBytes() / 1024);
+			out.println(" KB");
+		}
+		// only captured once the operation completes (and only if enabled)
+		if (operation.getBlockedCount() != -1) {
+			out.print("blocked:       ");
+			printContention(operation.getBlockedTimeInMilliseconds(),
+					operation.getBlockedCount());
+			out.print("waited:        ");
+			printContention(operation.getWaitedTimeInMilliseconds(),
+					operation.getWaitedCount());
+		}
 		if (operation.getUsername() != null) {
 			out.print("username:      ");
 			out.println(operation.getUsername());
@@ -169,7 +174,24 @@ class OperationPrinterHelper { // NOPMD for too many methods
 		writeTrace(maxTraceEvents);
 
 		// write sampled hotspot tree
-		writeSampledHotspotTree();
+		new SampledHotspotTreePrinter(out, 0).write("call tree", operation
+				.getSampledHotspotTree().getRootNodes());
+	}
+
+	// the time is -1 if thread contention monitoring was disabled in the
+	// meantime
+	private void printContention(long timeInMilliseconds, long count) {
+		if (timeInMilliseconds != -1) {
+			out.print(FormatUtils.formatNanosecondsAsSeconds(TimeUnit.MILLISECONDS
+					.toNanos(timeInMilliseconds)));
+			out.print(" seconds, ");
+		}
+		out.print(count);
+		if (count == 1) {
+			out.println(" time");
+		} else {
+			out.println(" times");
+		}
 	}
 
 	private String formatDurationInSeconds() {
@@ -271,7 +293,20 @@ class OperationPrinterHelper { // NOPMD for too many methods
 
 			// print description
 			out.print("  ");
-			out.println(traceEvent.getDescription());
+			out.print(traceEvent.getDescription());
+			if (traceEvent.getCount() > 1) {
+				// repeated executions that were folded into this trace event
+				out.print("  [");
+				out.print(traceEvent.getCount());
+				out.print(" executions, total ");
+				out.print(FormatUtils.formatNanosecondsAsMilliseconds(traceEvent
+						.getTotalDurationInNanoseconds()));
+				out.print(", max ");
+				out.print(FormatUtils.formatNanosecondsAsMilliseconds(traceEvent
+						.getMaxDurationInNanoseconds()));
+				out.print("]");
+			}
+			out.println();
 		}
 
 		out.println();
@@ -304,123 +339,6 @@ class OperationPrinterHelper { // NOPMD for too many methods
 		}
 	}
 
-	public void writeSampledHotspotTree() {
-
-		Iterable<? extends SampledHotspotTreeNode> rootNodes = operation
-				.getSampledHotspotTree().getRootNodes();
-
-		// TODO this conditional may not be needed in the future if
-		// SampledHotspotTree itself
-		// is lazy instantiated
-		if (rootNodes == null) {
-			return;
-		}
-
-		List<? extends SampledHotspotTreeNode> sortedRootNodes = SAMPLED_CALL_TREE_NODE_ORDERING
-				.sortedCopy(rootNodes);
-
-		totalSampleCount = 0;
-		for (SampledHotspotTreeNode rootNode : sortedRootNodes) {
-			totalSampleCount += rootNode.getSampleCount();
-		}
-		// the percentage of the first root node is the largest and longest
-		// (since we just sorted
-		// the list) so this is what we base the width on
-		double largestPercentage = sortedRootNodes.get(0).getSampleCount()
-				/ (double) totalSampleCount;
-		percentageColumnWidth = FormatUtils.formatPercentage(largestPercentage)
-				.length();
-
-		FormatUtils.printHeader(out, "call tree", "created from "
-				+ totalSampleCount + " stack trace samples");
-
-		for (SampledHotspotTreeNode rootNode : sortedRootNodes) {
-			writeSampledTreeCallNode(rootNode, "", "");
-		}
-
-		out.println();
-	}
-
-	private void writeSampledTreeCallNode(SampledHotspotTreeNode node,
-			String indent, String recurseIndent) {
-
-		printSampledHotspotTreePercentageColumn(node.getSampleCount());
-		out.print(indent);
-		out.println(node.getStackTraceElement());
-
-		if (!node.getLeafThreadStateSampleCounts().isEmpty()) {
-			printLeafNode(node, indent);
-		}
-
-		// order nodes by leafTotalCount (descending) so the "hotspots" should
-		// be listed first
-		List<? extends SampledHotspotTreeNode> sortedChildNodes = SAMPLED_CALL_TREE_NODE_ORDERING
-				.sortedCopy(node.getChildNodes());
-
-		if (sortedChildNodes.isEmpty()) {
-			return;
-		}
-
-		// recurse (depth-first)
-		String newIndent;
-		String newRecurseIndent;
-		String lastNodeRecurseIndent;
-		if (sortedChildNodes.size() > 1) {
-			// indent an additional level at each split in the tree
-			newIndent = recurseIndent + "+- ";
-			newRecurseIndent = recurseIndent + "|  ";
-			lastNodeRecurseIndent = recurseIndent + "   ";
-		} else {
-			newIndent = recurseIndent;
-			newRecurseIndent = recurseIndent;
-			lastNodeRecurseIndent = recurseIndent;
-		}
-
-		for (Iterator<? extends SampledHotspotTreeNode> i = sortedChildNodes
-				.iterator(); i.hasNext();) {
-			SampledHotspotTreeNode childNode = i.next();
-			if (i.hasNext()) {
-				// not at the last child node for this parent
-				writeSampledTreeCallNode(childNode, newIndent, newRecurseIndent);
-			} else {
-				// last applicable child node for this parent (based on
-				// logNanoTime)
-				writeSampledTreeCallNode(childNode, newIndent,
-						lastNodeRecurseIndent);
-			}
-		}
-	}
-
-	private void printLeafNode(SampledHotspotTreeNode leafNode, String indent) {
-
-		List<Map.Entry<State, Integer>> sortedEntries = THREAD_STATE_ORDERING
-				.sortedCopy(leafNode.getLeafThreadStateSampleCounts()
-						.entrySet());
-
-		String additionalIndent = "";
-		if (sortedEntries.size() > 1) {
-			additionalIndent = "   ";
-		}
-
-		for (Map.Entry<State, Integer> entry : sortedEntries) {
-			// print percentage
-			printSampledHotspotTreePercentageColumn(entry.getValue());
-			out.print(indent);
-			out.print(additionalIndent);
-			// print thread state
-			out.println(entry.getKey());
-		}
-	}
-
-	private void printSampledHotspotTreePercentageColumn(int leafCount) {
-		String percentageText = FormatUtils.formatPercentage(leafCount
-				/ (double) totalSampleCount);
-		FormatUtils.printPadding(out,
-				percentageColumnWidth - percentageText.length());
-		out.print(percentageText);
-		out.print("  ");
-	}
-
 	public void writeMetricDataItems(Iterable<? extends MetricDataItem> items) {
 
 		FormatUtils
@@ -444,8 +362,23 @@ class OperationPrinterHelper { // NOPMD for too many methods
 			nameWidth = Math.max(nameWidth, item.getName().length());
 		}
 
-		String[] headers = new String[] { TOTAL_HEADER, AVERAGE_HEADER,
-				MINIMUM_HEADER, MAXIMUM_HEADER, COUNT_HEADER };
+		// percentile columns are only printed if percentiles are tracked (see
+		// MetricDataItem.getPercentileTimeInNanoseconds())
+		boolean percentilesTracked = false;
+		for (MetricDataItem item : sortedItems) {
+			if (item.getPercentileTimeInNanoseconds(PERCENTILES[0]) != -1) {
+				percentilesTracked = true;
+				break;
+			}
+		}
+
+		List<String> headerList = Lists.newArrayList(TOTAL_HEADER,
+				AVERAGE_HEADER, MINIMUM_HEADER, MAXIMUM_HEADER);
+		if (percentilesTracked) {
+			headerList.addAll(Arrays.asList(PERCENTILE_HEADERS));
+		}
+		headerList.add(COUNT_HEADER);
+		String[] headers = headerList.toArray(new String[headerList.size()]);
 		// +1 for the number of rows because the first row is the header row
 		// +1 for the number of columns because the first column is the metric
 		// data item label
@@ -471,6 +404,18 @@ class OperationPrinterHelper { // NOPMD for too many methods
 			rows[i][j++] = millisecondsFormat.format(item
 					.getMaximumTimeInNanoseconds()
 					/ NANOSECONDS_PER_MILLISECOND);
+			if (percentilesTracked) {
+				for (double percentile : PERCENTILES) {
+					long percentileTime = item
+							.getPercentileTimeInNanoseconds(percentile);
+					if (percentileTime == -1) {
+						rows[i][j++] = "-";
+					} else {
+						rows[i][j++] = millisecondsFormat.format(percentileTime
+								/ NANOSECONDS_PER_MILLISECOND);
+					}
+				}
+			}
 			rows[i][j++] = Long.toString(item.getCount());
 			i++;
 		}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.file;
+
+import java.io.PrintWriter;
+import java.util.Date;
+
+import org.jmonitor.collector.service.model.ProfileData;
+
+/**
+ * Prints the jvm profiler's call tree for a single window.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class ProfilePrinter {
+
+    // the profile covers all threads over a whole window, so the long tail of nodes is left out
+    private static final double MINIMUM_PERCENTAGE = 0.001;
+
+    private final PrintWriter out;
+
+    public ProfilePrinter(PrintWriter out) {
+
+        if (out == null) {
+            throw new IllegalArgumentException("out must be not null.");
+        }
+
+        this.out = out;
+    }
+
+    public void collect(ProfileData profileData) {
+
+        out.println(OperationPrinter.HEADING1);
+        out.println("JVM PROFILE");
+        out.print("start time:    ");
+        out.println(FormatUtils.formatWithMilliseconds(profileData.getStartTime()));
+        out.print("end time:      ");
+        out.println(FormatUtils.formatWithMilliseconds(new Date(profileData.getStartTime()
+                .getTime() + profileData.getDurationMillis())));
+        out.print("samples:       ");
+        out.println(profileData.getSampleCount());
+        if (profileData.getTruncatedSampleCount() > 0) {
+            out.print("truncated:     ");
+            out.print(profileData.getTruncatedSampleCount());
+            out.println(" (the call tree reached its max number of nodes)");
+        }
+        out.println(OperationPrinter.HEADING1);
+        out.println();
+
+        new SampledHotspotTreePrinter(out, MINIMUM_PERCENTAGE).write("call tree", profileData
+                .getSampledHotspotTree().getRootNodes());
+        out.flush();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.file;
+
+import java.io.PrintWriter;
+import java.lang.Thread.State;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * Prints a sampled hotspot tree (either an operation's or the jvm profiler's) as an indented call
+ * tree with the percentage of samples in front of each frame.
+ * 
+ * Nodes below the minimum percentage are left out (the jvm profiler's call tree covers all
+ * threads over a whole window, so printing every node would be too much for the log file), in
+ * which case a single line sums up the percentage that was left out under each parent.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+// package protected
+class SampledHotspotTreePrinter {
+
+	private static final Ordering<SampledHotspotTreeNode> SAMPLED_CALL_TREE_NODE_ORDERING = new Ordering<SampledHotspotTreeNode>() {
+		public int compare(SampledHotspotTreeNode node1,
+				SampledHotspotTreeNode node2) {
+			// reverse sort
+			return node2.getSampleCount() - node1.getSampleCount();
+		}
+	};
+
+	private static final Ordering<Map.Entry<State, Integer>> THREAD_STATE_ORDERING = new Ordering<Map.Entry<State, Integer>>() {
+		public int compare(Map.Entry<State, Integer> entry1,
+				Map.Entry<State, Integer> entry2) {
+			return entry1.getValue() - entry2.getValue();
+		}
+	};
+
+	private final PrintWriter out;
+
+	// e.g. 0.001 means that nodes with less than 0.1% of the samples are left out
+	private final double minimumPercentage;
+
+	private int totalSampleCount;
+
+	private int minimumSampleCount;
+
+	private int percentageColumnWidth;
+
+	SampledHotspotTreePrinter(PrintWriter out, double minimumPercentage) {
+		this.out = out;
+		this.minimumPercentage = minimumPercentage;
+	}
+
+	// rootNodes is null if no stack traces have been captured, in which case nothing is printed
+	void write(String heading,
+			Iterable<? extends SampledHotspotTreeNode> rootNodes) {
+
+		if (rootNodes == null) {
+			return;
+		}
+
+		List<? extends SampledHotspotTreeNode> sortedRootNodes = SAMPLED_CALL_TREE_NODE_ORDERING
+				.sortedCopy(rootNodes);
+
+		if (sortedRootNodes.isEmpty()) {
+			return;
+		}
+
+		totalSampleCount = 0;
+		for (SampledHotspotTreeNode rootNode : sortedRootNodes) {
+			totalSampleCount += rootNode.getSampleCount();
+		}
+		minimumSampleCount = (int) Math.ceil(totalSampleCount
+				* minimumPercentage);
+		// the percentage of the first root node is the largest and longest
+		// (since we just sorted
+		// the list) so this is what we base the width on
+		double largestPercentage = sortedRootNodes.get(0).getSampleCount()
+				/ (double) totalSampleCount;
+		percentageColumnWidth = FormatUtils.formatPercentage(largestPercentage)
+				.length();
+
+		FormatUtils.printHeader(out, heading, "created from "
+				+ totalSampleCount + " stack trace samples");
+
+		List<SampledHotspotTreeNode> printedRootNodes = new ArrayList<SampledHotspotTreeNode>();
+		int omittedSampleCount = removeBelowMinimum(sortedRootNodes,
+				printedRootNodes);
+		for (SampledHotspotTreeNode rootNode : printedRootNodes) {
+			writeSampledTreeCallNode(rootNode, "", "");
+		}
+		if (omittedSampleCount > 0) {
+			printOmitted(omittedSampleCount, "");
+		}
+
+		out.println();
+	}
+
+	private void writeSampledTreeCallNode(SampledHotspotTreeNode node,
+			String indent, String recurseIndent) {
+
+		printSampledHotspotTreePercentageColumn(node.getSampleCount());
+		out.print(indent);
+		out.println(node.getStackTraceElement());
+
+		if (!node.getLeafThreadStateSampleCounts().isEmpty()) {
+			printLeafNode(node, indent);
+		}
+
+		// order nodes by leafTotalCount (descending) so the "hotspots" should
+		// be listed first
+		List<? extends SampledHotspotTreeNode> sortedChildNodes = SAMPLED_CALL_TREE_NODE_ORDERING
+				.sortedCopy(node.getChildNodes());
+
+		List<SampledHotspotTreeNode> printedChildNodes = new ArrayList<SampledHotspotTreeNode>();
+		int omittedSampleCount = removeBelowMinimum(sortedChildNodes,
+				printedChildNodes);
+
+		if (printedChildNodes.isEmpty() && omittedSampleCount == 0) {
+			return;
+		}
+
+		// recurse (depth-first)
+		String newIndent;
+		String newRecurseIndent;
+		String lastNodeRecurseIndent;
+		if (sortedChildNodes.size() > 1) {
+			// indent an additional level at each split in the tree
+			newIndent = recurseIndent + "+- ";
+			newRecurseIndent = recurseIndent + "|  ";
+			lastNodeRecurseIndent = recurseIndent + "   ";
+		} else {
+			newIndent = recurseIndent;
+			newRecurseIndent = recurseIndent;
+			lastNodeRecurseIndent = recurseIndent;
+		}
+
+		for (Iterator<? extends SampledHotspotTreeNode> i = printedChildNodes
+				.iterator(); i.hasNext();) {
+			SampledHotspotTreeNode childNode = i.next();
+			if (i.hasNext() || omittedSampleCount > 0) {
+				// not at the last child node for this parent
+				writeSampledTreeCallNode(childNode, newIndent, newRecurseIndent);
+			} else {
+				// last applicable child node for this parent (based on
+				// logNanoTime)
+				writeSampledTreeCallNode(childNode, newIndent,
+						lastNodeRecurseIndent);
+			}
+		}
+		if (omittedSampleCount > 0) {
+			printOmitted(omittedSampleCount, newIndent);
+		}
+	}
+
+	private void printLeafNode(SampledHotspotTreeNode leafNode, String indent) {
+
+		List<Map.Entry<State, Integer>> sortedEntries = THREAD_STATE_ORDERING
+				.sortedCopy(leafNode.getLeafThreadStateSampleCounts()
+						.entrySet());
+
+		String additionalIndent = "";
+		if (sortedEntries.size() > 1) {
+			additionalIndent = "   ";
+		}
+
+		for (Map.Entry<State, Integer> entry : sortedEntries) {
+			// print percentage
+			printSampledHotspotTreePercentageColumn(entry.getValue());
+			out.print(indent);
+			out.print(additionalIndent);
+			// print thread state
+			out.println(entry.getKey());
+		}
+	}
+
+	private void printOmitted(int omittedSampleCount, String indent) {
+		printSampledHotspotTreePercentageColumn(omittedSampleCount);
+		out.print(indent);
+		out.println("(nodes below " + FormatUtils.formatPercentage(minimumPercentage)
+				+ ")");
+	}
+
+	private void printSampledHotspotTreePercentageColumn(int leafCount) {
+		String percentageText = FormatUtils.formatPercentage(leafCount
+				/ (double) totalSampleCount);
+		FormatUtils.printPadding(out,
+				percentageColumnWidth - percentageText.length());
+		out.print(percentageText);
+		out.print("  ");
+	}
+
+	// copies the nodes at or above the minimum sample count (the nodes are sorted so these are
+	// at the front) and returns the total sample count of the remaining nodes
+	private int removeBelowMinimum(List<? extends SampledHotspotTreeNode> sortedNodes,
+			List<SampledHotspotTreeNode> printedNodes) {
+
+		int omittedSampleCount = 0;
+		for (SampledHotspotTreeNode node : sortedNodes) {
+			if (node.getSampleCount() >= minimumSampleCount) {
+				printedNodes.add(node);
+			} else {
+				omittedSampleCount += node.getSampleCount();
+			}
+		}
+		return omittedSampleCount;
+	}
+}
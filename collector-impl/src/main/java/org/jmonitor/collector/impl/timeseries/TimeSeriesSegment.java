@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single fixed size segment file of a {@link TimeSeriesTable}, laid out in columns so that scans
+ * only touch the columns they need.
+ * 
+ * The layout is a {@link #HEADER_SIZE} byte header, followed by the timestamp column (one long
+ * per row), the series id column (one int per row, padded out to a multiple of 8 bytes) and then
+ * each of the table's long and double value columns. The row count in the header is written after
+ * the row itself, so a segment that was not closed cleanly (e.g. the jvm was killed) is still
+ * readable up to its last complete row.
+ * 
+ * Segments are memory-mapped lazily. Only the segment that is currently being appended to holds
+ * on to a writable mapping (until it is closed on rollover), older segments are only mapped for
+ * the duration of a scan. There is no way to unmap a buffer explicitly, so a mapping that is no
+ * longer referenced still takes up address space (but not heap) until it is garbage collected.
+ * 
+ * Rows are only appended by a single thread, and can be read by other threads at the same time
+ * straight from a mapping of the file (using absolute gets only, which don't modify the buffer's
+ * state).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+class TimeSeriesSegment {
+
+    private static final int MAGIC = 0x4A4D5453; // "JMTS"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int LONG_COLUMN_COUNT_OFFSET = 12;
+    private static final int DOUBLE_COLUMN_COUNT_OFFSET = 16;
+    private static final int ROW_COUNT_OFFSET = 20;
+    private static final int FIRST_TIMESTAMP_OFFSET = 24;
+    private static final int LAST_TIMESTAMP_OFFSET = 32;
+
+    static final int HEADER_SIZE = 64;
+
+    private final File file;
+
+    // writable mapping, only mapped (and only retained) while this segment is appended to, see
+    // close()
+    private volatile MappedByteBuffer buffer;
+
+    private final int capacity;
+    private final int longColumnCount;
+    private final int doubleColumnCount;
+
+    private final int seriesIdColumnOffset;
+    private final int longColumnsOffset;
+    private final int doubleColumnsOffset;
+
+    // written by the appending thread after the row is complete, so readers never see a partial
+    // row
+    private volatile int rowCount;
+    private volatile long firstTimestamp;
+    private volatile long lastTimestamp;
+
+    private TimeSeriesSegment(File file, int capacity, int longColumnCount,
+            int doubleColumnCount) {
+
+        this.file = file;
+        this.capacity = capacity;
+        this.longColumnCount = longColumnCount;
+        this.doubleColumnCount = doubleColumnCount;
+        seriesIdColumnOffset = HEADER_SIZE + capacity * 8;
+        // pad the int column so that the long and double columns stay 8 byte aligned
+        longColumnsOffset = seriesIdColumnOffset + (capacity * 4 + 7) / 8 * 8;
+        doubleColumnsOffset = longColumnsOffset + longColumnCount * capacity * 8;
+    }
+
+    static TimeSeriesSegment create(File file, int capacity, int longColumnCount,
+            int doubleColumnCount) throws IOException {
+
+        TimeSeriesSegment segment =
+                new TimeSeriesSegment(file, capacity, longColumnCount, doubleColumnCount);
+        // the file is created at its full size up front, but it is sparse on most file systems
+        // until the rows are written
+        MappedByteBuffer buffer = segment.getWritableBuffer();
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(LONG_COLUMN_COUNT_OFFSET, longColumnCount);
+        buffer.putInt(DOUBLE_COLUMN_COUNT_OFFSET, doubleColumnCount);
+        buffer.putInt(ROW_COUNT_OFFSET, 0);
+        return segment;
+    }
+
+    // throws IOException if the file is not a segment with the given columns
+    static TimeSeriesSegment open(File file, int longColumnCount, int doubleColumnCount)
+            throws IOException {
+
+        if (file.length() < HEADER_SIZE) {
+            throw new IOException("file is too short");
+        }
+        // only the header is read here, the rows are not mapped until they are scanned or
+        // appended to
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.readFully(header.array());
+        } finally {
+            randomAccessFile.close();
+        }
+        if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("unexpected segment header");
+        }
+        if (header.getInt(LONG_COLUMN_COUNT_OFFSET) != longColumnCount
+                || header.getInt(DOUBLE_COLUMN_COUNT_OFFSET) != doubleColumnCount) {
+            throw new IOException("unexpected segment columns");
+        }
+        int capacity = header.getInt(CAPACITY_OFFSET);
+        int rowCount = header.getInt(ROW_COUNT_OFFSET);
+        if (capacity <= 0 || rowCount < 0 || rowCount > capacity
+                || file.length() != getFileSize(capacity, longColumnCount, doubleColumnCount)) {
+            throw new IOException("unexpected segment size");
+        }
+        TimeSeriesSegment segment =
+                new TimeSeriesSegment(file, capacity, longColumnCount, doubleColumnCount);
+        segment.firstTimestamp = header.getLong(FIRST_TIMESTAMP_OFFSET);
+        segment.lastTimestamp = header.getLong(LAST_TIMESTAMP_OFFSET);
+        segment.rowCount = rowCount;
+        return segment;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    boolean isFull() {
+        return rowCount == capacity;
+    }
+
+    // only meaningful if the row count is not zero
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    // only meaningful if the row count is not zero
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    // only called by the appending thread, the caller must check isFull() first and must append
+    // timestamps in non-decreasing order (see TimeSeriesTable)
+    void append(long timestamp, int seriesId, long[] longValues, double[] doubleValues)
+            throws IOException {
+
+        MappedByteBuffer buffer = getWritableBuffer();
+        int row = rowCount;
+        buffer.putLong(HEADER_SIZE + row * 8, timestamp);
+        buffer.putInt(seriesIdColumnOffset + row * 4, seriesId);
+        for (int i = 0; i < longColumnCount; i++) {
+            buffer.putLong(getLongIndex(i, row), longValues[i]);
+        }
+        for (int i = 0; i < doubleColumnCount; i++) {
+            buffer.putDouble(getDoubleIndex(i, row), doubleValues[i]);
+        }
+        if (row == 0) {
+            buffer.putLong(FIRST_TIMESTAMP_OFFSET, timestamp);
+            firstTimestamp = timestamp;
+        }
+        buffer.putLong(LAST_TIMESTAMP_OFFSET, timestamp);
+        lastTimestamp = timestamp;
+        // the row count is the commit point for both the file and the readers
+        buffer.putInt(ROW_COUNT_OFFSET, row + 1);
+        rowCount = row + 1;
+    }
+
+    // visits the rows for the given series id with timestamps in [from, to)
+    void scan(int seriesId, long from, long to, TimeSeriesVisitor visitor) {
+        int count = rowCount;
+        if (count == 0 || from > lastTimestamp || to <= firstTimestamp) {
+            return;
+        }
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            try {
+                // the mapping is not retained, it is unmapped once it is garbage collected
+                buffer = map(FileChannel.MapMode.READ_ONLY);
+            } catch (IOException e) {
+                // e.g. the segment expired and was deleted in the meantime (see TimeSeriesTable)
+                return;
+            }
+        }
+        long[] longValues = new long[longColumnCount];
+        double[] doubleValues = new double[doubleColumnCount];
+        for (int row = getFirstRowAtOrAfter(buffer, from, count); row < count; row++) {
+            long timestamp = buffer.getLong(HEADER_SIZE + row * 8);
+            if (timestamp >= to) {
+                return;
+            }
+            if (buffer.getInt(seriesIdColumnOffset + row * 4) != seriesId) {
+                continue;
+            }
+            for (int i = 0; i < longColumnCount; i++) {
+                longValues[i] = buffer.getLong(getLongIndex(i, row));
+            }
+            for (int i = 0; i < doubleColumnCount; i++) {
+                doubleValues[i] = buffer.getDouble(getDoubleIndex(i, row));
+            }
+            visitor.visit(timestamp, longValues, doubleValues);
+        }
+    }
+
+    // writes the mapped pages out to the file and drops the reference to the writable mapping
+    // (which is then unmapped once it is garbage collected), e.g. when the segment is rolled over
+    // (it is re-mapped if it is appended to again)
+    void close() {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer.force();
+            this.buffer = null;
+        }
+    }
+
+    // only called by the appending thread
+    private MappedByteBuffer getWritableBuffer() throws IOException {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            buffer = map(FileChannel.MapMode.READ_WRITE);
+            this.buffer = buffer;
+        }
+        return buffer;
+    }
+
+    // binary search on the timestamp column, which is sorted
+    private int getFirstRowAtOrAfter(ByteBuffer buffer, long timestamp, int count) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(HEADER_SIZE + middle * 8) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int getLongIndex(int column, int row) {
+        return longColumnsOffset + (column * capacity + row) * 8;
+    }
+
+    private int getDoubleIndex(int column, int row) {
+        return doubleColumnsOffset + (column * capacity + row) * 8;
+    }
+
+    static long getFileSize(int capacity, int longColumnCount, int doubleColumnCount) {
+        return HEADER_SIZE + capacity * 8L + (capacity * 4L + 7) / 8 * 8
+                + (longColumnCount + doubleColumnCount) * capacity * 8L;
+    }
+
+    private MappedByteBuffer map(FileChannel.MapMode mode) throws IOException {
+        long size = getFileSize(capacity, longColumnCount, doubleColumnCount);
+        RandomAccessFile randomAccessFile =
+                new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY && randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+            // the mapping remains valid after the file is closed
+            return randomAccessFile.getChannel().map(mode, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jmonitor.collector.service.model.AggregateData;
+import org.jmonitor.collector.service.model.AggregateDataItem;
+import org.jmonitor.collector.service.model.AggregateValueItem;
+import org.jmonitor.collector.service.model.SystemData;
+import org.jmonitor.collector.service.model.SystemDataItem;
+
+/**
+ * Persistent history of the agent's periodic data (metric values and per operation name
+ * aggregates of times and of other values), see {@link TimeSeriesTable} for how it is stored.
+ * 
+ * Appends are only performed by a single thread (see CollectorServiceImpl, which runs them on
+ * their own worker so that they never block the caller), while scans can be performed by any
+ * thread at the same time.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TimeSeriesStore implements TimeSeriesStoreMBean {
+
+    // double column of the system data rows
+    public static final int SYSTEM_VALUE = 0;
+
+    // long columns of the aggregate data rows
+    public static final int AGGREGATE_COUNT = 0;
+    public static final int AGGREGATE_TOTAL_TIME = 1;
+    public static final int AGGREGATE_MINIMUM_TIME = 2;
+    public static final int AGGREGATE_MAXIMUM_TIME = 3;
+
+    // long columns of the aggregate value rows (e.g. allocated bytes), see AggregateValueItem
+    public static final int VALUE_COUNT = 0;
+    public static final int VALUE_TOTAL = 1;
+    public static final int VALUE_MINIMUM = 2;
+    public static final int VALUE_MAXIMUM = 3;
+
+    // names of the aggregate (and aggregate value) columns for the jmx view, in column order
+    private static final String[] LONG_COLUMN_NAMES =
+            new String[] { "count", "total", "minimum", "maximum" };
+
+    private static final long[] NO_LONG_VALUES = new long[0];
+    private static final double[] NO_DOUBLE_VALUES = new double[0];
+
+    // a segment spans at most a day (see TimeSeriesTable), these are ~320kb and ~2.8mb files
+    // which hold ~6 hours of one minute data for ~45 metrics and a day of one minute data for ~45
+    // operation name / operation summary key pairs, busier segments are just rolled over sooner
+    // (segments are only referenced while they are appended to or scanned, so having more of
+    // them doesn't cost heap, see TimeSeriesSegment)
+    private static final int SYSTEM_SEGMENT_CAPACITY = 16 * 1024;
+    private static final int AGGREGATE_SEGMENT_CAPACITY = 64 * 1024;
+
+    private final TimeSeriesTable systemTable;
+    private final TimeSeriesTable aggregateTable;
+    private final TimeSeriesTable valueTable;
+
+    // only used by the appending thread
+    private final double[] systemValues = new double[1];
+    private final long[] aggregateValues = new long[4];
+    private final long[] valueValues = new long[4];
+
+    public TimeSeriesStore(File directory, int retentionDays) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create directory " + directory);
+        }
+        long retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        systemTable =
+                new TimeSeriesTable(directory, "system", SYSTEM_SEGMENT_CAPACITY, 0, 1,
+                        retentionMillis);
+        aggregateTable =
+                new TimeSeriesTable(directory, "aggregate", AGGREGATE_SEGMENT_CAPACITY, 4, 0,
+                        retentionMillis);
+        // the values are only recorded when resource usage / contention monitoring is enabled,
+        // and there are fewer of them, so the same capacity as the system table is plenty
+        valueTable =
+                new TimeSeriesTable(directory, "aggregate-value", SYSTEM_SEGMENT_CAPACITY, 4, 0,
+                        retentionMillis);
+    }
+
+    public void append(SystemData systemData) throws IOException {
+        long timestamp = systemData.getStartTime().getTime();
+        for (SystemDataItem item : systemData.getItems()) {
+            systemValues[SYSTEM_VALUE] = item.getValue();
+            systemTable.append(timestamp, item.getName(), NO_LONG_VALUES, systemValues);
+        }
+    }
+
+    public void append(AggregateData aggregateData) throws IOException {
+        long timestamp = aggregateData.getStartTime().getTime();
+        for (AggregateDataItem item : aggregateData.getItems()) {
+            aggregateValues[AGGREGATE_COUNT] = item.getCount();
+            aggregateValues[AGGREGATE_TOTAL_TIME] = item.getTotalTimeInNanoseconds();
+            aggregateValues[AGGREGATE_MINIMUM_TIME] = item.getMinimumTimeInNanoseconds();
+            aggregateValues[AGGREGATE_MAXIMUM_TIME] = item.getMaximumTimeInNanoseconds();
+            aggregateTable.append(timestamp,
+                    getAggregateSeriesName(item.getOperationName(), item.getName()),
+                    aggregateValues, NO_DOUBLE_VALUES);
+        }
+        for (AggregateValueItem item : aggregateData.getValueItems()) {
+            valueValues[VALUE_COUNT] = item.getCount();
+            valueValues[VALUE_TOTAL] = item.getTotal();
+            valueValues[VALUE_MINIMUM] = item.getMinimum();
+            valueValues[VALUE_MAXIMUM] = item.getMaximum();
+            valueTable.append(timestamp,
+                    getAggregateSeriesName(item.getOperationName(), item.getName()),
+                    valueValues, NO_DOUBLE_VALUES);
+        }
+    }
+
+    // visits the metric's values with timestamps (interval start times) in [from, to), see
+    // SYSTEM_VALUE
+    public void scanSystemData(String metricName, long from, long to, TimeSeriesVisitor visitor) {
+        systemTable.scan(metricName, from, to, visitor);
+    }
+
+    // visits the aggregates with timestamps (interval start times) in [from, to), see
+    // AGGREGATE_COUNT, etc
+    public void scanAggregateData(String operationName, String operationSummaryKey, long from,
+            long to, TimeSeriesVisitor visitor) {
+
+        aggregateTable.scan(getAggregateSeriesName(operationName, operationSummaryKey), from, to,
+                visitor);
+    }
+
+    // visits the aggregate values (e.g. "allocated bytes") with timestamps (interval start times)
+    // in [from, to), see VALUE_COUNT, etc
+    public void scanAggregateValueData(String operationName, String valueName, long from,
+            long to, TimeSeriesVisitor visitor) {
+
+        valueTable.scan(getAggregateSeriesName(operationName, valueName), from, to, visitor);
+    }
+
+    public String[] getMetricNames() {
+        List<String> metricNames = new ArrayList<String>();
+        for (String metricName : systemTable.getSeriesNames()) {
+            metricNames.add(metricName);
+        }
+        return metricNames.toArray(new String[metricNames.size()]);
+    }
+
+    public String[] readSystemData(String metricName, long from, long to) {
+        RowCollector rowCollector = new RowCollector(new String[0], new String[] { "value" });
+        scanSystemData(metricName, from, to, rowCollector);
+        return rowCollector.getRows();
+    }
+
+    public String[] readAggregateData(String operationName, String operationSummaryKey,
+            long from, long to) {
+
+        RowCollector rowCollector = new RowCollector(LONG_COLUMN_NAMES, new String[0]);
+        scanAggregateData(operationName, operationSummaryKey, from, to, rowCollector);
+        return rowCollector.getRows();
+    }
+
+    public String[] readAggregateValueData(String operationName, String valueName, long from,
+            long to) {
+
+        RowCollector rowCollector = new RowCollector(LONG_COLUMN_NAMES, new String[0]);
+        scanAggregateValueData(operationName, valueName, from, to, rowCollector);
+        return rowCollector.getRows();
+    }
+
+    // only called by the appending thread, or once the appending thread has stopped
+    public void close() throws IOException {
+        systemTable.close();
+        aggregateTable.close();
+        valueTable.close();
+    }
+
+    private static String getAggregateSeriesName(String operationName,
+            String operationSummaryKey) {
+
+        // the dictionary file splits on the first tab, so a tab here is fine
+        return operationName + "\t" + operationSummaryKey;
+    }
+
+    // formats the scanned rows for the jmx view
+    private static class RowCollector implements TimeSeriesVisitor {
+
+        private final String[] longColumnNames;
+        private final String[] doubleColumnNames;
+        private final List<String> rows = new ArrayList<String>();
+
+        private RowCollector(String[] longColumnNames, String[] doubleColumnNames) {
+            this.longColumnNames = longColumnNames;
+            this.doubleColumnNames = doubleColumnNames;
+        }
+
+        public void visit(long timestamp, long[] longValues, double[] doubleValues) {
+            StringBuilder row = new StringBuilder();
+            row.append(timestamp);
+            for (int i = 0; i < longValues.length; i++) {
+                row.append(' ').append(longColumnNames[i]).append('=').append(longValues[i]);
+            }
+            for (int i = 0; i < doubleValues.length; i++) {
+                row.append(' ').append(doubleColumnNames[i]).append('=').append(doubleValues[i]);
+            }
+            rows.add(row.toString());
+        }
+
+        private String[] getRows() {
+            return rows.toArray(new String[rows.size()]);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+/**
+ * JMX view of the history in {@link TimeSeriesStore}.
+ * 
+ * Timestamps are interval start times in milliseconds since the epoch, the rows that are returned
+ * are the ones with timestamps in [from, to).
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface TimeSeriesStoreMBean {
+
+    String[] getMetricNames();
+
+    // e.g. "1287000000000 value=0.25"
+    String[] readSystemData(String metricName, long from, long to);
+
+    // e.g. "1287000000000 count=3 total=1500 minimum=200 maximum=800", times are in nanoseconds
+    String[] readAggregateData(String operationName, String operationSummaryKey, long from,
+            long to);
+
+    // e.g. "1287000000000 count=3 total=1500 minimum=200 maximum=800"
+    String[] readAggregateValueData(String operationName, String valueName, long from, long to);
+}
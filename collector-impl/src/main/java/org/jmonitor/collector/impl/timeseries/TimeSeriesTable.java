@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Time series rows (timestamp, series, a fixed number of long and double values) kept in a
+ * rolling set of lazily memory-mapped {@link TimeSeriesSegment} files, so that the retained
+ * history doesn't take up heap.
+ * 
+ * A new segment is started once the current segment is full or spans more than
+ * {@link #SEGMENT_DURATION_MILLIS}, and whole segments are deleted once all of their rows are
+ * older than the retention period. Series names are mapped to int ids, which are appended to a
+ * small dictionary file next to the segments.
+ * 
+ * Rows are only appended by a single thread, while scans can be performed by any thread at the
+ * same time.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+class TimeSeriesTable {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(TimeSeriesTable.class);
+
+    static final long SEGMENT_DURATION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SERIES_SUFFIX = ".series";
+
+    private final File directory;
+    private final String name;
+    private final int segmentCapacity;
+    private final int longColumnCount;
+    private final int doubleColumnCount;
+    private final long retentionMillis;
+
+    // oldest first, only modified by the appending thread
+    private final List<TimeSeriesSegment> segments =
+            new CopyOnWriteArrayList<TimeSeriesSegment>();
+
+    // keyed by the sanitized series name (see sanitize()), which is what the dictionary file
+    // holds, so that the ids are looked up the same way before and after a restart
+    private final ConcurrentMap<String, Integer> seriesIds =
+            new ConcurrentHashMap<String, Integer>();
+
+    // only accessed by the appending thread
+    private TimeSeriesSegment currentSegment;
+    private final Writer seriesWriter;
+    private int nextSeriesId;
+    // expired segment files that could not be deleted yet, see deleteExpiredSegments()
+    private final List<File> undeletedFiles = new ArrayList<File>();
+
+    TimeSeriesTable(File directory, String name, int segmentCapacity, int longColumnCount,
+            int doubleColumnCount, long retentionMillis) throws IOException {
+
+        if (TimeSeriesSegment.getFileSize(segmentCapacity, longColumnCount, doubleColumnCount)
+                > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segment capacity is too large to be mapped");
+        }
+        this.directory = directory;
+        this.name = name;
+        this.segmentCapacity = segmentCapacity;
+        this.longColumnCount = longColumnCount;
+        this.doubleColumnCount = doubleColumnCount;
+        this.retentionMillis = retentionMillis;
+        readSeriesIds();
+        seriesWriter =
+                new OutputStreamWriter(new FileOutputStream(getSeriesFile(), true), "UTF-8");
+        openSegments();
+        deleteExpiredSegments(System.currentTimeMillis());
+    }
+
+    // only called by the appending thread
+    void append(long timestamp, String seriesName, long[] longValues, double[] doubleValues)
+            throws IOException {
+
+        TimeSeriesSegment segment = currentSegment;
+        if (segment == null || segment.isFull()
+                || segment.getRowCount() > 0
+                && (timestamp - segment.getFirstTimestamp() >= SEGMENT_DURATION_MILLIS
+                // the timestamp column must stay sorted for the binary search, this can only
+                // happen if the clock is set back
+                || timestamp < segment.getLastTimestamp())) {
+
+            segment = rollover(timestamp);
+        }
+        segment.append(timestamp, getOrCreateSeriesId(seriesName), longValues, doubleValues);
+    }
+
+    // visits the rows for the given series with timestamps in [from, to), in timestamp order
+    // (other than after the clock has been set back)
+    void scan(String seriesName, long from, long to, TimeSeriesVisitor visitor) {
+        Integer seriesId = seriesIds.get(sanitize(seriesName));
+        if (seriesId == null) {
+            return;
+        }
+        for (TimeSeriesSegment segment : segments) {
+            segment.scan(seriesId, from, to, visitor);
+        }
+    }
+
+    Iterable<String> getSeriesNames() {
+        return seriesIds.keySet();
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    // only called by the appending thread, the table can be re-opened afterwards by creating a
+    // new instance on the same directory
+    void close() throws IOException {
+        if (currentSegment != null) {
+            currentSegment.close();
+        }
+        seriesWriter.close();
+    }
+
+    private TimeSeriesSegment rollover(long timestamp) throws IOException {
+        if (currentSegment != null) {
+            currentSegment.close();
+        }
+        deleteExpiredSegments(timestamp);
+        File file = new File(directory, name + "-" + timestamp + SEGMENT_SUFFIX);
+        for (int i = 1; file.exists(); i++) {
+            // e.g. rolled over twice within the same millisecond after the clock was set back
+            file = new File(directory, name + "-" + timestamp + "-" + i + SEGMENT_SUFFIX);
+        }
+        currentSegment =
+                TimeSeriesSegment.create(file, segmentCapacity, longColumnCount,
+                        doubleColumnCount);
+        segments.add(currentSegment);
+        return currentSegment;
+    }
+
+    private void deleteExpiredSegments(long now) {
+        for (TimeSeriesSegment segment : segments) {
+            if (segment != currentSegment
+                    && (segment.getRowCount() == 0
+                    || segment.getLastTimestamp() < now - retentionMillis)) {
+                segments.remove(segment);
+                // the mapping (and so any scan that is still in progress) remains valid after the
+                // file is deleted, except on windows where the delete fails until the mapping has
+                // been garbage collected, in which case it is retried on later rollovers
+                undeletedFiles.add(segment.getFile());
+            }
+        }
+        for (Iterator<File> i = undeletedFiles.iterator(); i.hasNext();) {
+            File file = i.next();
+            if (file.delete() || !file.exists()) {
+                i.remove();
+            } else {
+                LOGGER.debug("could not delete expired segment " + file);
+            }
+        }
+    }
+
+    private void openSegments() {
+        File[] files = listSegmentFiles();
+        // the timestamp in the file names orders the segments
+        Arrays.sort(files);
+        List<TimeSeriesSegment> openedSegments = new ArrayList<TimeSeriesSegment>();
+        for (File file : files) {
+            try {
+                openedSegments.add(TimeSeriesSegment.open(file, longColumnCount,
+                        doubleColumnCount));
+            } catch (IOException e) {
+                LOGGER.warn("ignoring time series segment " + file + ": " + e.getMessage());
+            }
+        }
+        segments.addAll(openedSegments);
+        if (!openedSegments.isEmpty()) {
+            // continue appending to the latest segment (rollover checks whether it is full or
+            // too old)
+            currentSegment = openedSegments.get(openedSegments.size() - 1);
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(name + "-") && filename.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        return files;
+    }
+
+    private int getOrCreateSeriesId(String seriesName) throws IOException {
+        String sanitizedSeriesName = sanitize(seriesName);
+        Integer seriesId = seriesIds.get(sanitizedSeriesName);
+        if (seriesId != null) {
+            return seriesId;
+        }
+        // only the appending thread creates ids
+        int newSeriesId = nextSeriesId++;
+        seriesWriter.write(newSeriesId + "\t" + sanitizedSeriesName + "\n");
+        seriesWriter.flush();
+        seriesIds.put(sanitizedSeriesName, newSeriesId);
+        return newSeriesId;
+    }
+
+    // line breaks would break up the dictionary file (this doesn't allocate unless the name
+    // actually contains a line break)
+    private static String sanitize(String seriesName) {
+        return seriesName.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private void readSeriesIds() throws IOException {
+        File file = getSeriesFile();
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf('\t');
+                if (index == -1) {
+                    // e.g. partial last line
+                    continue;
+                }
+                try {
+                    int seriesId = Integer.parseInt(line.substring(0, index));
+                    seriesIds.put(line.substring(index + 1), seriesId);
+                    nextSeriesId = Math.max(nextSeriesId, seriesId + 1);
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("ignoring invalid line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private File getSeriesFile() {
+        return new File(directory, name + SERIES_SUFFIX);
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.collector.configuration.CollectorConfigurationServiceImpl;
+import org.jmonitor.collector.impl.common.AsyncAlertDestination;
+import org.jmonitor.collector.impl.common.AsyncDataDestination;
+import org.jmonitor.collector.impl.common.DataDestination;
+import org.jmonitor.collector.impl.common.DestinationWorker;
+import org.jmonitor.collector.service.model.CollectorConfiguration;
+import org.jmonitor.collector.service.model.MetricData;
+import org.jmonitor.collector.service.model.MetricDataItem;
+import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
+import org.jmonitor.collector.service.model.SampledHotspotTree;
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
+import org.jmonitor.collector.service.model.Trace;
+import org.jmonitor.collector.service.model.TraceEvent;
+import org.junit.Test;
+
+/**
+ * Verifies that an unresponsive smtp server doesn't hold up the data destination.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class SlowAlertDestinationTest {
+
+    private static final int OPERATION_COUNT = 5;
+
+    @Test
+    public void testUnresponsiveSmtpServer() throws Exception {
+
+        // smtp stand-in which accepts connections but never sends the smtp greeting, so sending an
+        // email blocks indefinitely
+        UnresponsiveSmtpServer smtpServer = new UnresponsiveSmtpServer();
+        smtpServer.start();
+
+        CollectorConfiguration configuration =
+                CollectorConfigurationServiceImpl.getInstance().getCollectorConfiguration();
+        String originalEmailHost = configuration.getEmailHost();
+        int originalEmailSmtpPort = configuration.getEmailSmtpPort();
+        String originalEmailFromAddress = configuration.getEmailFromAddress();
+        List<String> originalEmailToAddresses = configuration.getEmailToAddresses();
+        try {
+            configuration.setEmailHost("localhost");
+            configuration.setEmailSmtpPort(smtpServer.getPort());
+            configuration.setEmailFromAddress("jmonitor@localhost");
+            configuration.setEmailToAddresses(Collections.singletonList("test@localhost"));
+            CollectorConfigurationServiceImpl.getInstance().updateCollectorConfiguration(
+                    configuration);
+
+            RecordingDataDestination dataDestination = new RecordingDataDestination();
+            AsyncDataDestination asyncDataDestination =
+                    new AsyncDataDestination(dataDestination, new DestinationWorker("test-data",
+                            OPERATION_COUNT, false));
+            // queue capacity of 1
+            AsyncAlertDestination asyncAlertDestination =
+                    new AsyncAlertDestination(new EmailAlertDestination(), new DestinationWorker(
+                            "test-alert", 1, false));
+
+            for (int i = 1; i <= OPERATION_COUNT; i++) {
+                OperationStub operation = new OperationStub(i);
+                asyncAlertDestination.collectFirstStuck(operation);
+                asyncDataDestination.collectFirstStuck(operation);
+            }
+
+            assertTrue("smtp server was not contacted", smtpServer.awaitConnection(10,
+                    TimeUnit.SECONDS));
+            assertTrue("data destination was held up", dataDestination.await(10,
+                    TimeUnit.SECONDS));
+            // data destination receives the operations in order
+            List<Long> expectedIds = new ArrayList<Long>();
+            for (long i = 1; i <= OPERATION_COUNT; i++) {
+                expectedIds.add(i);
+            }
+            assertEquals(expectedIds, dataDestination.getIds());
+            // the first alert is stuck sending the email, the second is queued and the rest are
+            // dropped
+            assertEquals(OPERATION_COUNT - 2, asyncAlertDestination.getWorker().getDroppedCount());
+
+        } finally {
+            configuration.setEmailHost(originalEmailHost);
+            configuration.setEmailSmtpPort(originalEmailSmtpPort);
+            configuration.setEmailFromAddress(originalEmailFromAddress);
+            configuration.setEmailToAddresses(originalEmailToAddresses);
+            CollectorConfigurationServiceImpl.getInstance().updateCollectorConfiguration(
+                    configuration);
+            // this also releases the blocked email send
+            smtpServer.close();
+        }
+    }
+
+    private static class UnresponsiveSmtpServer extends Thread {
+
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+        private final CountDownLatch connectionLatch = new CountDownLatch(1);
+
+        private UnresponsiveSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // hold on to the connection without ever responding
+                    sockets.add(serverSocket.accept());
+                    connectionLatch.countDown();
+                }
+            } catch (IOException e) {
+                // server socket was closed
+            }
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private boolean awaitConnection(long timeout, TimeUnit unit) throws InterruptedException {
+            return connectionLatch.await(timeout, unit);
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static class RecordingDataDestination implements DataDestination {
+
+        private final List<Long> ids = new CopyOnWriteArrayList<Long>();
+        private final CountDownLatch latch = new CountDownLatch(OPERATION_COUNT);
+
+        public void collectFirstStuck(Operation operation) {
+            collect(operation);
+        }
+
+        public void collect(Operation operation) {
+            ids.add(operation.getUniqueId());
+            latch.countDown();
+        }
+
+        public void collectProfileData(ProfileData profileData) {
+        }
+
+        public void updateConfiguration(CollectorConfiguration configuration) {
+        }
+
+        private boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return latch.await(timeout, unit);
+        }
+
+        private List<Long> getIds() {
+            return ids;
+        }
+    }
+
+    private static class OperationStub implements Operation {
+
+        private final long uniqueId;
+        private final Date startTime = new Date();
+        private final long startNanoTime = System.nanoTime();
+
+        private OperationStub(long uniqueId) {
+            this.uniqueId = uniqueId;
+        }
+
+        public Date getStartTime() {
+            return startTime;
+        }
+
+        public long getStartNanoTime() {
+            return startNanoTime;
+        }
+
+        public long getEndNanoTime() {
+            return startNanoTime;
+        }
+
+        public long getDurationInNanoseconds() {
+            return 0;
+        }
+
+        public long getCpuTimeInNanoseconds() {
+            return -1;
+        }
+
+        public long getAllocatedBytes() {
+            return -1;
+        }
+
+        public long getBlockedTimeInMilliseconds() {
+            return -1;
+        }
+
+        public long getBlockedCount() {
+            return -1;
+        }
+
+        public long getWaitedTimeInMilliseconds() {
+            return -1;
+        }
+
+        public long getWaitedCount() {
+            return -1;
+        }
+
+        public boolean isStuck() {
+            return true;
+        }
+
+        public boolean isCompleted() {
+            return false;
+        }
+
+        public long getUniqueId() {
+            return uniqueId;
+        }
+
+        public Iterable<String> getThreadNames() {
+            return Collections.singletonList("test");
+        }
+
+        public String getUsername() {
+            return null;
+        }
+
+        public String getOperationName() {
+            return "test";
+        }
+
+        public Trace getTrace() {
+            return new Trace() {
+                public Iterable<TraceEventStub> getEvents() {
+                    return Collections.singletonList(new TraceEventStub());
+                }
+            };
+        }
+
+        public SampledHotspotTree getSampledHotspotTree() {
+            return new SampledHotspotTree() {
+                public Iterable<SampledHotspotTreeNode> getRootNodes() {
+                    return null;
+                }
+            };
+        }
+
+        public MetricData getMetricData() {
+            return new MetricData() {
+                public Iterable<MetricDataItem> getItems() {
+                    return Collections.emptyList();
+                }
+            };
+        }
+    }
+
+    private static class TraceEventStub implements TraceEvent {
+
+        public String getDescription() {
+            return "test";
+        }
+
+        public ProbeExecutionContext getContext() {
+            return new ProbeExecutionContext();
+        }
+
+        public long getOffsetInNanoseconds() {
+            return 0;
+        }
+
+        public long getDurationInNanoseconds() {
+            return 0;
+        }
+
+        public int getCount() {
+            return 1;
+        }
+
+        public long getTotalDurationInNanoseconds() {
+            return 0;
+        }
+
+        public long getMaxDurationInNanoseconds() {
+            return 0;
+        }
+
+        public boolean isCompleted() {
+            return false;
+        }
+
+        public int getIndex() {
+            return 0;
+        }
+
+        public int getParentIndex() {
+            return -1;
+        }
+
+        public int getLevel() {
+            return 0;
+        }
+    }
+}
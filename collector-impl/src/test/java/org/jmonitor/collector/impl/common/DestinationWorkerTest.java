@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class DestinationWorkerTest {
+
+    @Test
+    public void shouldDropNewest() throws Exception {
+        List<Integer> ran = runWithBlockedWorker(false);
+        // the first task was running, the second was queued and the rest were dropped
+        assertEquals(2, ran.size());
+        assertEquals(0, ran.get(0).intValue());
+        assertEquals(1, ran.get(1).intValue());
+    }
+
+    @Test
+    public void shouldDropOldest() throws Exception {
+        List<Integer> ran = runWithBlockedWorker(true);
+        // the first task was running and each later task replaced the queued one
+        assertEquals(2, ran.size());
+        assertEquals(0, ran.get(0).intValue());
+        assertEquals(4, ran.get(1).intValue());
+    }
+
+    @Test
+    public void shouldStopOnShutdown() throws Exception {
+        DestinationWorker worker = new DestinationWorker("test", 1, false);
+        final CountDownLatch started = new CountDownLatch(1);
+        worker.execute(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    // interrupted by shutdown
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(worker.shutdown());
+        // tasks executed after shutdown are not counted as drops
+        worker.execute(new Runnable() {
+            public void run() {}
+        });
+        assertEquals(0, worker.getDroppedCount());
+    }
+
+    // submits 5 tasks to a worker with queue capacity 1 while the first task is still running
+    private static List<Integer> runWithBlockedWorker(boolean dropOldest) throws Exception {
+        DestinationWorker worker = new DestinationWorker("test", 1, dropOldest);
+        final List<Integer> ran = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        worker.execute(new Runnable() {
+            public void run() {
+                ran.add(0);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < 5; i++) {
+            final int id = i;
+            worker.execute(new Runnable() {
+                public void run() {
+                    ran.add(id);
+                }
+            });
+        }
+        assertEquals(1, worker.getQueueSize());
+        assertEquals(3, worker.getDroppedCount());
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ran.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        worker.shutdown();
+        return ran;
+    }
+}
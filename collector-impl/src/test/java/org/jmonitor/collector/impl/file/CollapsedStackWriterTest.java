@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.Thread.State;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jmonitor.collector.service.model.SampledHotspotTree;
+import org.jmonitor.collector.service.model.SampledHotspotTreeNode;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class CollapsedStackWriterTest {
+
+    @Test
+    public void shouldWriteSelfSamplesPerStack() throws IOException {
+        Node root = new Node("com.example.Worker", "run", 10);
+        Node child = root.addChild(new Node("com.example.Worker", "process", 7));
+        child.addChild(new Node("java.io.FileInputStream", "read", 4));
+        root.addChild(new Node("com.example.Worker", "flush", 1));
+
+        assertEquals("com.example.Worker.run;com.example.Worker.process;"
+                + "java.io.FileInputStream.read 4\n"
+                + "com.example.Worker.run;com.example.Worker.process 3\n"
+                + "com.example.Worker.run;com.example.Worker.flush 1\n"
+                + "com.example.Worker.run 2\n", write(root, null));
+    }
+
+    @Test
+    public void shouldWriteRootFrame() throws IOException {
+        Node root = new Node("com.example.Worker", "run", 2);
+        assertEquals("/checkout;com.example.Worker.run 2\n", write(root, "/checkout"));
+    }
+
+    @Test
+    public void shouldReplaceSeparators() throws IOException {
+        Node root = new Node("com.example.Worker", "run", 1);
+        assertEquals("/checkout_jsessionid=1_x;com.example.Worker.run 1\n", write(root,
+                "/checkout;jsessionid=1\nx"));
+    }
+
+    @Test
+    public void shouldWriteNothingWithoutSamples() throws IOException {
+        StringWriter out = new StringWriter();
+        new CollapsedStackWriter(out).write(new SampledHotspotTree() {
+            public Iterable<? extends SampledHotspotTreeNode> getRootNodes() {
+                return null;
+            }
+        }, "/checkout");
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    public void shouldWriteDeepStacks() throws IOException {
+        Node root = new Node("Frame", "m0", 1);
+        Node node = root;
+        StringBuilder expected = new StringBuilder("Frame.m0");
+        for (int i = 1; i < 200; i++) {
+            node = node.addChild(new Node("Frame", "m" + i, 1));
+            expected.append(";Frame.m").append(i);
+        }
+        expected.append(" 1\n");
+        assertEquals(expected.toString(), write(root, null));
+    }
+
+    private static String write(final Node root, String rootFrame) throws IOException {
+        StringWriter out = new StringWriter();
+        new CollapsedStackWriter(out).write(new SampledHotspotTree() {
+            public Iterable<? extends SampledHotspotTreeNode> getRootNodes() {
+                return Collections.singletonList(root);
+            }
+        }, rootFrame);
+        return out.toString();
+    }
+
+    private static class Node implements SampledHotspotTreeNode {
+
+        private final StackTraceElement stackTraceElement;
+        private final int sampleCount;
+        private final List<Node> childNodes = new ArrayList<Node>();
+
+        private Node(String className, String methodName, int sampleCount) {
+            stackTraceElement = new StackTraceElement(className, methodName, null, -1);
+            this.sampleCount = sampleCount;
+        }
+
+        private Node addChild(Node childNode) {
+            childNodes.add(childNode);
+            return childNode;
+        }
+
+        public Iterable<? extends SampledHotspotTreeNode> getChildNodes() {
+            return childNodes;
+        }
+
+        public StackTraceElement getStackTraceElement() {
+            return stackTraceElement;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public Map<State, Integer> getLeafThreadStateSampleCounts() {
+            return Collections.emptyMap();
+        }
+    }
+}
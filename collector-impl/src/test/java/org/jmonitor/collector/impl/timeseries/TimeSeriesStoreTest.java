@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.jmonitor.collector.service.model.SystemData;
+import org.jmonitor.collector.service.model.SystemDataItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TimeSeriesStoreTest {
+
+    private File directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = File.createTempFile("jmonitor-timeseries", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testReadSystemData() throws IOException {
+        long now = System.currentTimeMillis();
+        TimeSeriesStore store = new TimeSeriesStore(directory, 7);
+        store.append(newSystemData(now, "cpu", 0.25));
+        store.append(newSystemData(now + 60000, "cpu", 0.5));
+        assertArrayEquals(new String[] { "cpu" }, store.getMetricNames());
+        assertArrayEquals(new String[] { now + " value=0.25", (now + 60000) + " value=0.5" },
+                store.readSystemData("cpu", now, now + 120000));
+        // to is exclusive
+        assertArrayEquals(new String[] { now + " value=0.25" }, store.readSystemData("cpu", now,
+                now + 60000));
+        assertEquals(0, store.readSystemData("heap", now, now + 120000).length);
+        assertEquals(0, store.readAggregateData("/home", "jdbc execute", now, now + 120000).length);
+        store.close();
+    }
+
+    private static SystemData newSystemData(final long startTime, final String name,
+            final double value) {
+
+        final SystemDataItem item = new SystemDataItem() {
+            public String getName() {
+                return name;
+            }
+
+            public double getValue() {
+                return value;
+            }
+        };
+        return new SystemData() {
+            public Date getStartTime() {
+                return new Date(startTime);
+            }
+
+            public long getDurationMillis() {
+                return 60000;
+            }
+
+            public Iterable<? extends SystemDataItem> getItems() {
+                return Collections.singletonList(item);
+            }
+        };
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.impl.timeseries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public class TimeSeriesTableTest {
+
+    private static final long DAY_MILLIS = TimeSeriesTable.SEGMENT_DURATION_MILLIS;
+
+    private File directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = File.createTempFile("jmonitor-timeseries", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 7);
+        append(table, now, "a", 1);
+        append(table, now, "b", 2);
+        append(table, now + 1, "a", 3);
+        table.close();
+
+        table = newTable(1000, 7);
+        assertEquals(1, table.getSegmentCount());
+        assertRows(table, "a", now, 1, now + 1, 3);
+        assertRows(table, "b", now, 2);
+
+        // appends continue in the same segment, and new series don't reuse existing ids
+        append(table, now + 2, "c", 4);
+        append(table, now + 2, "a", 5);
+        assertEquals(1, table.getSegmentCount());
+        assertRows(table, "a", now, 1, now + 1, 3, now + 2, 5);
+        assertRows(table, "b", now, 2);
+        assertRows(table, "c", now + 2, 4);
+        table.close();
+    }
+
+    @Test
+    public void testPartiallyWrittenRow() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 7);
+        append(table, now, "a", 1);
+        append(table, now + 1, "a", 2);
+        table.close();
+
+        // simulate the jvm being killed in the middle of appending the third row, after its
+        // timestamp and series id were written but before the row count was updated
+        File[] files = listSegmentFiles();
+        assertEquals(1, files.length);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(files[0], "rw");
+        try {
+            randomAccessFile.seek(TimeSeriesSegment.HEADER_SIZE + 2 * 8);
+            randomAccessFile.writeLong(now + 2);
+            randomAccessFile.seek(TimeSeriesSegment.HEADER_SIZE + 1000 * 8 + 2 * 4);
+            randomAccessFile.writeInt(0);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        table = newTable(1000, 7);
+        assertRows(table, "a", now, 1, now + 1, 2);
+        // the partial row is overwritten by the next append
+        append(table, now + 3, "a", 3);
+        assertRows(table, "a", now, 1, now + 1, 2, now + 3, 3);
+        table.close();
+    }
+
+    @Test
+    public void testRolloverWhenFull() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(10, 7);
+        for (int i = 0; i < 25; i++) {
+            append(table, now + i, "a", i);
+        }
+        assertEquals(3, table.getSegmentCount());
+        assertEquals(3, listSegmentFiles().length);
+        List<Long> values = scan(table, "a", now, now + 25);
+        assertEquals(50, values.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(now + i, values.get(2 * i).longValue());
+            assertEquals(i, values.get(2 * i + 1).longValue());
+        }
+        table.close();
+    }
+
+    @Test
+    public void testRetention() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 1);
+        append(table, now, "a", 1);
+        append(table, now + DAY_MILLIS / 2, "a", 2);
+        assertEquals(1, table.getSegmentCount());
+        // rolls over since the segment spans more than a day
+        append(table, now + DAY_MILLIS, "a", 3);
+        assertEquals(2, table.getSegmentCount());
+        // the first segment's last row is still within the retention period
+        assertRows(table, "a", now, 1, now + DAY_MILLIS / 2, 2, now + DAY_MILLIS, 3);
+
+        // rolls over again, and now all of the rows in the first segment have expired
+        append(table, now + 2 * DAY_MILLIS, "a", 4);
+        assertEquals(2, table.getSegmentCount());
+        assertEquals(2, listSegmentFiles().length);
+        assertRows(table, "a", now + DAY_MILLIS, 3, now + 2 * DAY_MILLIS, 4);
+        table.close();
+    }
+
+    @Test
+    public void testRetentionOnReopen() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 7);
+        append(table, now - 3 * DAY_MILLIS, "a", 1);
+        append(table, now - 2 * DAY_MILLIS, "a", 2);
+        append(table, now, "a", 3);
+        table.close();
+        assertEquals(3, listSegmentFiles().length);
+
+        // reopen with a shorter retention period
+        table = newTable(1000, 1);
+        // the latest segment is kept since it is the one that appends continue in
+        assertEquals(1, table.getSegmentCount());
+        assertEquals(1, listSegmentFiles().length);
+        assertRows(table, "a", now, 3);
+        table.close();
+    }
+
+    @Test
+    public void testTimestampRanges() throws IOException {
+
+        long start = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 7);
+        // three rows per timestamp (two for "a" and one for "b") so that the binary search has to
+        // find the first of several equal timestamps
+        long[] timestamps = new long[300];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = start + i / 3 * 10;
+            append(table, timestamps[i], i % 3 == 2 ? "b" : "a", i);
+        }
+        long end = timestamps[timestamps.length - 1];
+        long[] boundaries =
+                new long[] { start - 100, start - 1, start, start + 1, start + 10, start + 15,
+                        start + 500, start + 505, end - 10, end - 1, end, end + 1, end + 100 };
+        for (long from : boundaries) {
+            for (long to : boundaries) {
+                List<Long> expected = new ArrayList<Long>();
+                for (int i = 0; i < timestamps.length; i++) {
+                    if (i % 3 != 2 && timestamps[i] >= from && timestamps[i] < to) {
+                        expected.add(timestamps[i]);
+                        expected.add((long) i);
+                    }
+                }
+                assertEquals("[" + from + ", " + to + ")", expected, scan(table, "a", from, to));
+            }
+        }
+        table.close();
+    }
+
+    @Test
+    public void testSeriesNameWithLineBreak() throws IOException {
+
+        long now = System.currentTimeMillis();
+        TimeSeriesTable table = newTable(1000, 7);
+        append(table, now, "a\nb", 1);
+        assertRows(table, "a\nb", now, 1);
+        table.close();
+
+        table = newTable(1000, 7);
+        assertRows(table, "a\nb", now, 1);
+        append(table, now + 1, "a\nb", 2);
+        assertRows(table, "a\nb", now, 1, now + 1, 2);
+        int seriesCount = 0;
+        for (String seriesName : table.getSeriesNames()) {
+            assertEquals("a b", seriesName);
+            seriesCount++;
+        }
+        assertEquals(1, seriesCount);
+        table.close();
+    }
+
+    private TimeSeriesTable newTable(int segmentCapacity, int retentionDays) throws IOException {
+        return new TimeSeriesTable(directory, "test", segmentCapacity, 1, 0, retentionDays
+                * DAY_MILLIS);
+    }
+
+    private File[] listSegmentFiles() {
+        return directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    private static void append(TimeSeriesTable table, long timestamp, String seriesName,
+            long value) throws IOException {
+
+        table.append(timestamp, seriesName, new long[] { value }, new double[0]);
+    }
+
+    // returns timestamp, value, timestamp, value, ...
+    private static List<Long> scan(TimeSeriesTable table, String seriesName, long from, long to) {
+        final List<Long> values = new ArrayList<Long>();
+        table.scan(seriesName, from, to, new TimeSeriesVisitor() {
+            public void visit(long timestamp, long[] longValues, double[] doubleValues) {
+                values.add(timestamp);
+                values.add(longValues[0]);
+            }
+        });
+        return values;
+    }
+
+    // expectedValues are timestamp, value, timestamp, value, ...
+    private static void assertRows(TimeSeriesTable table, String seriesName,
+            long... expectedValues) {
+
+        List<Long> values = scan(table, seriesName, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(expectedValues.length, values.size());
+        for (int i = 0; i < expectedValues.length; i++) {
+            assertEquals("index " + i, expectedValues[i], values.get(i).longValue());
+        }
+    }
+}
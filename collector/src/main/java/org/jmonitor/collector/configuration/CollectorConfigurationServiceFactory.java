@@ -30,7 +30,7 @@ public final class CollectorConfigurationServiceFactory {
 	// TODO break "cyclic" dependency by getting impl class name from
 	// META-INF/services/org.jmonitor.collector.configuration.CollectorConfigurationService
 	// ??
-	private static final String COLLECTOR_CONFIGURATION_SERVICE_IMPL = "org.jmonitor.collector.configuration.impl.CollectorConfigurationImpl";
+	private static final String COLLECTOR_CONFIGURATION_SERVICE_IMPL = "org.jmonitor.collector.configuration.CollectorConfigurationServiceImpl";
 
 	// cached for performance
 	private static final CollectorConfigurationService SERVICE = createService();
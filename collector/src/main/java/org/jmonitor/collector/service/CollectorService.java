@@ -16,8 +16,11 @@
 
 package org.jmonitor.collector.service;
 
+import org.jmonitor.collector.service.model.AggregateData;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
+import org.jmonitor.collector.service.model.SystemData;
 
 /**
  * 
@@ -42,11 +45,20 @@ public interface CollectorService {
 
     // void collectMetricData(StackTraceData stackTraceData)
 
-    // void collectSystemData(SystemData systemData)
+    // these are collected once per interval (e.g. once a minute) and must not block the caller
+    void collectSystemData(SystemData systemData);
+
+    void collectAggregateData(AggregateData aggregateData);
+
+    // this is collected once per profiler window and must not block the caller
+    void collectProfileData(ProfileData profileData);
 
     void collectError(String msg);
 
     void collectError(String msg, Throwable t); // NOPMD for short variable name
 
     void updateConfiguration(CollectorConfiguration configuration);
+
+    // stops the collector's threads, called when the agent is shut down
+    void shutdown();
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.service.model;
+
+/**
+ * Per-operation value other than a time, aggregated across all operations with the same
+ * operation name, e.g. the bytes allocated by each operation or the number of times each
+ * operation was blocked on a monitor. The name (see {@link #getName()}) is the name of the value,
+ * e.g. "allocated bytes".
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface AggregateValueItem {
+
+    String getOperationName();
+
+    String getName();
+
+    // e.g. "bytes", or "" for plain counts
+    String getUnit();
+
+    // the number of operations that the value was recorded for
+    long getCount();
+
+    long getTotal();
+
+    long getMinimum();
+
+    long getMaximum();
+
+    double getAverage();
+}
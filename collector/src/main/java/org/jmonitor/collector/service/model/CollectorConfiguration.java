@@ -62,6 +62,14 @@ public class CollectorConfiguration implements Serializable {
             + "-1 means no limit")
     private int maxTraceEventsPerEmail = 100;
 
+    @Comment("directory of the memory-mapped history of metric values and per operation name"
+            + " aggregates, this must be an absolute path")
+    private String timeSeriesDirectory = "";
+
+    @Comment("number of days of metric values and per operation name aggregates to retain,"
+            + " 0 means don't retain any (and don't create the time series directory)")
+    private int timeSeriesRetentionDays;
+
 	public String getLogArchiveFilenamePattern() {
 		return logArchiveFilenamePattern;
 	}
@@ -149,4 +157,20 @@ public class CollectorConfiguration implements Serializable {
 	public void setMaxTraceEventsPerEmail(int maxTraceEventsPerEmail) {
 		this.maxTraceEventsPerEmail = maxTraceEventsPerEmail;
 	}
+
+	public String getTimeSeriesDirectory() {
+		return timeSeriesDirectory;
+	}
+
+	public void setTimeSeriesDirectory(String timeSeriesDirectory) {
+		this.timeSeriesDirectory = timeSeriesDirectory;
+	}
+
+	public int getTimeSeriesRetentionDays() {
+		return timeSeriesRetentionDays;
+	}
+
+	public void setTimeSeriesRetentionDays(int timeSeriesRetentionDays) {
+		this.timeSeriesRetentionDays = timeSeriesRetentionDays;
+	}
 }
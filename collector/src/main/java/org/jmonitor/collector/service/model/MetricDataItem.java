@@ -35,4 +35,7 @@ public interface MetricDataItem {
     long getAverageTimeInNanoseconds();
 
     long getCount();
+
+    // e.g. 99.9 for the 99.9th percentile, returns -1 if percentiles are not being tracked
+    long getPercentileTimeInNanoseconds(double percentile);
 }
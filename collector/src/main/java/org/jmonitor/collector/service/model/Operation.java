@@ -32,6 +32,24 @@ public interface Operation {
     long getEndNanoTime();
     long getDurationInNanoseconds();
 
+    // cpu time consumed by the operation's thread, -1 if not captured (e.g. not enabled or the
+    // operation has not completed yet)
+    long getCpuTimeInNanoseconds();
+
+    // bytes allocated by the operation's thread, -1 if not captured
+    long getAllocatedBytes();
+
+    // time the operation's thread spent blocked entering a monitor (synchronized block or method)
+    // and the number of times it was blocked, -1 if not captured (e.g. not enabled or the
+    // operation has not completed yet)
+    long getBlockedTimeInMilliseconds();
+    long getBlockedCount();
+
+    // time the operation's thread spent waiting (e.g. Object.wait(), Thread.join() or
+    // LockSupport.park()) and the number of times it waited, -1 if not captured
+    long getWaitedTimeInMilliseconds();
+    long getWaitedCount();
+
     boolean isStuck();
 
     boolean isCompleted();
@@ -42,6 +60,9 @@ public interface Operation {
 
     String getUsername();
 
+    // used to group operations (e.g. the request uri), see RootProbeExecution.getOperationName()
+    String getOperationName();
+
     Trace getTrace();
 
     SampledHotspotTree getSampledHotspotTree();
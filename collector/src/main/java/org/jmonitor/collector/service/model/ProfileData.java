@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.collector.service.model;
+
+import java.util.Date;
+
+/**
+ * Stack traces of all live threads (not only those of operations) sampled at a fixed interval and
+ * merged into a single call tree over a fixed time window.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface ProfileData {
+
+    Date getStartTime();
+
+    long getDurationMillis();
+
+    // number of times the live threads were sampled (each of which adds a stack trace to the call
+    // tree for every thread that was running or blocked at the time)
+    int getSampleCount();
+
+    // number of samples that were cut short (only their outermost frames were added) because the
+    // call tree had reached its max number of nodes
+    int getTruncatedSampleCount();
+
+    SampledHotspotTree getSampledHotspotTree();
+}
@@ -34,6 +34,17 @@ public interface TraceEvent {
     long getOffsetInNanoseconds();
     long getDurationInNanoseconds();
 
+    // repeated executions can be folded into a single trace event once the operation reaches its
+    // trace limit (see ProbeExecutionWithTemplate), in which case the duration spans from the
+    // start of the first to the end of the last execution, and these return the number of
+    // executions and their total and maximum duration
+    //
+    // for a trace event that has not been folded, the count is 1 and the total and maximum are the
+    // duration
+    int getCount();
+    long getTotalDurationInNanoseconds();
+    long getMaxDurationInNanoseconds();
+
     boolean isCompleted();
 
     // index is per operation and starts at 0
@@ -17,8 +17,11 @@
 package org.jmonitor.collector.shared.logging;
 
 import org.jmonitor.collector.service.CollectorService;
+import org.jmonitor.collector.service.model.AggregateData;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
+import org.jmonitor.collector.service.model.SystemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,7 +52,23 @@ public class StderrCollectorServiceImpl implements CollectorService {
         throw new UnsupportedOperationException();
     }
 
+    public void collectSystemData(SystemData systemData) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void collectAggregateData(AggregateData aggregateData) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void collectProfileData(ProfileData profileData) {
+        throw new UnsupportedOperationException();
+    }
+
     public void updateConfiguration(CollectorConfiguration configuration) {
         throw new UnsupportedOperationException();
     }
+
+    public void shutdown() {
+        // no threads to stop
+    }
 }
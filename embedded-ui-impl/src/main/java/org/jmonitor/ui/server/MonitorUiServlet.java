@@ -31,11 +31,15 @@ import javax.servlet.http.HttpSession;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jmonitor.agent.configuration.AgentConfigurationServiceFactory;
+import org.jmonitor.agent.service.AgentService;
 import org.jmonitor.agent.service.AgentServiceFactory;
+import org.jmonitor.collector.impl.file.CollapsedStackWriter;
+import org.jmonitor.collector.impl.file.ProfilePrinter;
 import org.jmonitor.collector.configuration.CollectorConfigurationServiceFactory;
 import org.jmonitor.collector.service.CollectorServiceFactory;
 import org.jmonitor.collector.service.model.CollectorConfiguration;
 import org.jmonitor.collector.service.model.Operation;
+import org.jmonitor.collector.service.model.ProfileData;
 import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
 import org.jmonitor.ui.client.UiService;
 import org.jmonitor.ui.configuration.UiConfiguration;
@@ -53,6 +57,11 @@ import org.slf4j.Logger;
  * view current in-flight operations that are being tracked (including those
  * that have not yet met the configured threshold).
  * 
+ * The stack traces captured for the in-flight operations (or with
+ * ?source=profile, the latest jvm profile) can also be viewed as a flame graph
+ * at /flamegraph, and downloaded in collapsed stack format at
+ * /flamegraph/collapsed. Both require the same login as the rest of the ui.
+ * 
  * @author Trask Stalnaker
  * @since 1.0
  */
@@ -69,6 +78,8 @@ public class MonitorUiServlet extends ClassLoaderBasedGwtRpcServlet implements
 
 	private static final String AUTHENTICATED_SESSION_ATTRIBUTE_NAME = "jmonitorSessionAuthenticated";
 
+	private static final String FLAME_GRAPH_RESOURCE_PATH = "org/jmonitor/ui/server/flamegraph.html";
+
 	private static final Map<String, String> CONTENT_TYPE_MAP = new HashMap<String, String>();
 
 	static {
@@ -117,6 +128,23 @@ public class MonitorUiServlet extends ClassLoaderBasedGwtRpcServlet implements
 
 			writeResource(response, resourcePath);
 
+		} else if (request.getPathInfo().equals("/flamegraph")) {
+
+			if (isAuthenticated(request)) {
+				preventCaching(response);
+				writeResource(response, FLAME_GRAPH_RESOURCE_PATH);
+			} else {
+				response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			}
+
+		} else if (request.getPathInfo().equals("/flamegraph/collapsed")) {
+
+			if (isAuthenticated(request)) {
+				writeCollapsedStacks(request, response);
+			} else {
+				response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			}
+
 		} else {
 
 			// return page not found
@@ -190,6 +218,49 @@ public class MonitorUiServlet extends ClassLoaderBasedGwtRpcServlet implements
 		out.println("</html>");
 	}
 
+	// source=profile writes the latest jvm profile, otherwise the in-flight
+	// operations are written (optionally only those with the given name, or
+	// the one with the given unique id)
+	private void writeCollapsedStacks(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+
+		response.setContentType("text/plain; charset=UTF-8");
+		preventCaching(response);
+
+		PrintWriter out = response.getWriter();
+		CollapsedStackWriter collapsedStackWriter = new CollapsedStackWriter(
+				out);
+		AgentService agentService = AgentServiceFactory.getService();
+
+		if ("profile".equals(request.getParameter("source"))) {
+			ProfileData profileData = agentService.getProfileData();
+			if (profileData != null) {
+				collapsedStackWriter.write(profileData.getSampledHotspotTree(),
+						null);
+			}
+		} else {
+			String operationName = request.getParameter("name");
+			String uniqueId = request.getParameter("id");
+			for (Operation operation : agentService
+					.getOperationsExceptCurrent()) {
+				if (operationName != null
+						&& !operationName.equals(operation.getOperationName())) {
+					continue;
+				}
+				if (uniqueId != null
+						&& !uniqueId.equals(Long.toString(operation
+								.getUniqueId()))) {
+					continue;
+				}
+				// the operation name is the root frame so that operations with
+				// the same name (e.g. the same url) are merged into one tree
+				collapsedStackWriter.write(operation.getSampledHotspotTree(),
+						operation.getOperationName());
+			}
+		}
+		out.flush();
+	}
+
 	public String authenticate(String username, String password)
 			throws BadCredentialsException {
 
@@ -219,14 +290,21 @@ public class MonitorUiServlet extends ClassLoaderBasedGwtRpcServlet implements
 		int maxTraceEventsPerOperation = configuration
 				.getMaxTraceEventsPerEmail();
 
-		Collection<? extends Operation> operations = AgentServiceFactory
-				.getService().getOperationsExceptCurrent();
+		AgentService agentService = AgentServiceFactory.getService();
+		Collection<? extends Operation> operations = agentService
+				.getOperationsExceptCurrent();
 		StringWriter stringWriter = new StringWriter();
-		OperationPrinter operationHelper = new OperationPrinter(
-				new PrintWriter(stringWriter), maxTraceEventsPerOperation);
+		PrintWriter out = new PrintWriter(stringWriter);
+		OperationPrinter operationHelper = new OperationPrinter(out,
+				maxTraceEventsPerOperation);
 		for (Operation operation : operations) {
 			operationHelper.collect(operation);
 		}
+		// the latest jvm profile follows the in-flight operations
+		ProfileData profileData = agentService.getProfileData();
+		if (profileData != null) {
+			new ProfilePrinter(out).collect(profileData);
+		}
 		return stringWriter.toString();
 	}
 
@@ -375,6 +453,14 @@ public class MonitorUiServlet extends ClassLoaderBasedGwtRpcServlet implements
 				"This is a test generated by the jmonitor administrator.");
 	}
 
+	// the flame graph is requested by the browser directly (not via gwt rpc),
+	// so only the session itself can be checked
+	private static boolean isAuthenticated(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		return session != null
+				&& session.getAttribute(AUTHENTICATED_SESSION_ATTRIBUTE_NAME) != null;
+	}
+
 	private void checkSessionIdFromGwtRpc(String sessionId)
 			throws NotAuthenticated {
 
@@ -29,8 +29,30 @@ public interface ProbeExecutionManager {
 
     String getProperty(String probeName, String propertyName);
 
+    // the methods below return handles that are resolved once (e.g. stored in a static field)
+    // the property value is parsed up front and re-parsed only when the probe configuration
+    // changes, so reading the value on the request path is just a field read
+
+    BooleanProbeProperty getBooleanProperty(String probeName, String propertyName);
+
+    // defaultValue is used if the property is empty or not a valid integer
+    IntegerProbeProperty getIntegerProperty(String probeName, String propertyName,
+            int defaultValue);
+
+    StringProbeProperty getStringProperty(String probeName, String propertyName);
+
+    // property value is parsed as a comma-separated list
+    StringSetProbeProperty getStringSetProperty(String probeName, String propertyName);
+
     Logger getProbeLogger(Class<?> clazz);
 
+    // like the property handles above, operation summary keys should be resolved once (e.g.
+    // stored in a static field), after which metric data is recorded by id instead of looking up
+    // the name on every call
+    //
+    // the same handle is returned for the same name
+    OperationSummaryKey getOperationSummaryKey(String name);
+
     Object execute(ProbeExecutionCreator probeExecutionCreator, ProceedingJoinPoint joinPoint)
             throws Throwable;
 
@@ -40,9 +62,24 @@ public interface ProbeExecutionManager {
     Object execute(ProbeExecutionCreator probeExecutionCreator, ProceedingJoinPoint joinPoint,
             String operationSummaryKey, boolean requiresExistingOperation) throws Throwable;
 
+    // unlike the methods above, this method does not require a new creator instance per call, so
+    // nothing is allocated unless the call actually ends up being traced
+    <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target,
+            A argument, ProceedingJoinPoint joinPoint, String operationSummaryKey,
+            boolean requiresExistingOperation) throws Throwable;
+
+    // same as above, but without the operation summary key lookup
+    <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target,
+            A argument, ProceedingJoinPoint joinPoint, OperationSummaryKey operationSummaryKey,
+            boolean requiresExistingOperation) throws Throwable;
+
     Object proceedAndRecordMetricData(ProceedingJoinPoint joinPoint, String operationSummaryKey)
             throws Throwable;
 
+    // same as above, but without the operation summary key lookup
+    Object proceedAndRecordMetricData(ProceedingJoinPoint joinPoint,
+            OperationSummaryKey operationSummaryKey) throws Throwable;
+
     void handleProbeExecutionUpdate(ProbeExecutionWithUpdate probeExecution);
 
     // TODO convert return type to RootProbeExecution?
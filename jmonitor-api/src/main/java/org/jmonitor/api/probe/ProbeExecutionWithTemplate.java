@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.api.probe;
+
+/**
+ * Probe execution whose description is made up of a fixed template (e.g. the sql) and values that
+ * change from execution to execution (e.g. the bind parameters).
+ * 
+ * Once an operation reaches its trace limit, repeated executions with the same template (e.g. the
+ * same sql in a loop) are folded into a single trace event which carries their count, total and
+ * maximum duration, instead of being dropped from the trace.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public interface ProbeExecutionWithTemplate extends ProbeExecution {
+
+    // returns null if the execution should not be folded
+    //
+    // this is compared (using equals) against the template of the previous execution, so it
+    // should not allocate
+    String getDescriptionTemplate();
+}
@@ -26,4 +26,8 @@ package org.jmonitor.api.probe;
 public interface RootProbeExecution extends ProbeExecution {
 
     String getUsername();
+
+    // used to group operations for aggregate (throughput and response time) data, so it should
+    // not contain anything request specific other than e.g. the request uri
+    String getOperationName();
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.api.probe;
+
+/**
+ * Allocation-free alternative to {@link ProbeExecutionCreator}. Instead of capturing the call state
+ * in a new (anonymous) instance per call, a single instance is created up front (e.g. stored in a
+ * static field) and the call state is passed in as the target and argument.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+// used to lazy create ProbeExecution only if it is really needed
+public interface StatelessProbeExecutionCreator<T, A> {
+
+    ProbeExecution createProbeExecution(T target, A argument);
+}
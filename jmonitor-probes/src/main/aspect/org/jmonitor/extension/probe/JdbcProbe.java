@@ -29,9 +29,11 @@ import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.annotation.SuppressAjWarnings;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
-import org.jmonitor.api.probe.ProbeExecutionCreator;
 import org.jmonitor.api.probe.ProbeExecutionManagerFactory;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreatorWithTemplate;
 import org.jmonitor.extension.probe.JdbcProbeExecution;
 import org.jmonitor.extension.probe.PreparedStatementMirror;
 import org.jmonitor.extension.probe.StatementMirror;
@@ -57,12 +59,90 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
     private static final Logger LOGGER =
             ProbeExecutionManagerFactory.getManager().getProbeLogger(JdbcProbe.class);
 
-    private static final String JDBC_PREPARE_SUMMARY_KEY = "jdbc prepare";
-    private static final String JDBC_EXECUTE_SUMMARY_KEY = "jdbc execute";
-    private static final String JDBC_NEXT_SUMMARY_KEY = "jdbc next";
+    // registered once here so that recording metric data (in particular for every
+    // ResultSet.next()) doesn't need to look up the key by name
+    private static final OperationSummaryKey JDBC_PREPARE_SUMMARY_KEY =
+            ProbeExecutionManagerFactory.getManager().getOperationSummaryKey("jdbc prepare");
+    private static final OperationSummaryKey JDBC_EXECUTE_SUMMARY_KEY =
+            ProbeExecutionManagerFactory.getManager().getOperationSummaryKey("jdbc execute");
+    private static final OperationSummaryKey JDBC_NEXT_SUMMARY_KEY =
+            ProbeExecutionManagerFactory.getManager().getOperationSummaryKey("jdbc next");
 
     private static StatementMirrorCache statementMirrorCache = new StatementMirrorCache();
 
+    // the probe execution creators are shared across all calls (the call state is passed in as
+    // arguments) so that nothing is allocated when the call doesn't end up being traced, and
+    // (for the creators with a template) when it can't be folded into the trace either, the
+    // templates must match JdbcProbeExecution.getDescriptionTemplate()
+
+    private static final StatelessProbeExecutionCreatorWithTemplate<StatementMirror, String>
+            STATEMENT_EXECUTE_CREATOR =
+            new StatelessProbeExecutionCreatorWithTemplate<StatementMirror, String>() {
+                public ProbeExecution createProbeExecution(StatementMirror statementMirror,
+                        String sql) {
+                    JdbcProbeExecution probeExecution = new JdbcProbeExecution(sql);
+                    statementMirror.setLastProbeExecution(probeExecution);
+                    return probeExecution;
+                }
+
+                public String getDescriptionTemplate(StatementMirror statementMirror, String sql) {
+                    return sql;
+                }
+            };
+
+    private static final StatelessProbeExecutionCreatorWithTemplate<PreparedStatementMirror, Void>
+            PREPARED_STATEMENT_EXECUTE_CREATOR =
+            new StatelessProbeExecutionCreatorWithTemplate<PreparedStatementMirror, Void>() {
+                public ProbeExecution createProbeExecution(PreparedStatementMirror info,
+                        Void argument) {
+                    JdbcProbeExecution probeExecution =
+                            new JdbcProbeExecution(info.getSql(), info.getParametersCopy());
+                    info.setLastProbeExecution(probeExecution);
+                    return probeExecution;
+                }
+
+                public String getDescriptionTemplate(PreparedStatementMirror info,
+                        Void argument) {
+                    return info.getSql();
+                }
+            };
+
+    private static final StatelessProbeExecutionCreator<StatementMirror, Void>
+            STATEMENT_EXECUTE_BATCH_CREATOR =
+            new StatelessProbeExecutionCreator<StatementMirror, Void>() {
+                public ProbeExecution createProbeExecution(StatementMirror statementMirror,
+                        Void argument) {
+                    JdbcProbeExecution probeExecution =
+                            new JdbcProbeExecution(statementMirror.getBatchedSqlCopy());
+                    statementMirror.setLastProbeExecution(probeExecution);
+                    return probeExecution;
+                }
+            };
+
+    private static final StatelessProbeExecutionCreator<PreparedStatementMirror, Void>
+            PREPARED_STATEMENT_EXECUTE_BATCH_CREATOR =
+            new StatelessProbeExecutionCreator<PreparedStatementMirror, Void>() {
+                public ProbeExecution createProbeExecution(PreparedStatementMirror info,
+                        Void argument) {
+                    JdbcProbeExecution probeExecution;
+                    if (info.isUsingBatchedParameters()) {
+                        // make a copy of batchedArrays
+                        probeExecution =
+                                new JdbcProbeExecution(info.getSql(),
+                                        info.getBatchedParametersCopy());
+                    } else {
+                        // TODO is this branch necessary? are you allowed to call
+                        // executeBatch() if you haven't called addBatch() at least once?
+                        LOGGER.warn("executeBatch() was called on a PreparedStatement"
+                                + " without calling addBatch() first");
+                        probeExecution =
+                                new JdbcProbeExecution(info.getSql(), info.getParametersCopy());
+                    }
+                    info.setLastProbeExecution(probeExecution);
+                    return probeExecution;
+                }
+            };
+
     @Pointcut("if()")
     public static boolean inOperation() {
         return ProbeExecutionManagerFactory.getManager().getRootProbeExecution() != null;
@@ -187,26 +267,18 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
     @Around("isProbeEnabled()"
             + " && statementExecutePointcut() && !cflowbelow(statementExecutePointcut())"
             + " && target(statement) && args(sql)")
-    public Object statementExecuteAdvice(ProceedingJoinPoint joinPoint, final Statement statement,
-            final String sql) throws Throwable {
+    public Object statementExecuteAdvice(ProceedingJoinPoint joinPoint, Statement statement,
+            String sql) throws Throwable {
 
-        final StatementMirror statementMirror = statementMirrorCache.getStatementMirror(statement);
+        StatementMirror statementMirror = statementMirrorCache.getStatementMirror(statement);
 
         // clear it out since it may not be populated below if the probe execution is
         // short-circuited for some reason
         // TODO remove this (and line above) once we clear it on close()
         statementMirror.setLastProbeExecution(null);
 
-        ProbeExecutionCreator probeExecution = new ProbeExecutionCreator() {
-            public ProbeExecution createProbeExecution() {
-                JdbcProbeExecution probeExecution = new JdbcProbeExecution(sql);
-                statementMirror.setLastProbeExecution(probeExecution);
-                return probeExecution;
-            }
-        };
-
-        return ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint,
-                JDBC_EXECUTE_SUMMARY_KEY, true);
+        return ProbeExecutionManagerFactory.getManager().execute(STATEMENT_EXECUTE_CREATOR,
+                statementMirror, sql, joinPoint, JDBC_EXECUTE_SUMMARY_KEY, true);
     }
 
     // record trace element and summary data for Statement.execute()
@@ -214,9 +286,9 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
             + " && preparedStatementExecutePointcut() && !cflowbelow(preparedStatementExecutePointcut())"
             + " && target(preparedStatement)")
     public Object preparedStatementExecuteAdvice(ProceedingJoinPoint joinPoint,
-            final PreparedStatement preparedStatement) throws Throwable {
+            PreparedStatement preparedStatement) throws Throwable {
 
-        final PreparedStatementMirror info =
+        PreparedStatementMirror info =
                 statementMirrorCache.getPreparedStatementMirror(preparedStatement);
 
         // clear it out since it may not be populated below if the probe execution is
@@ -224,16 +296,8 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
         // TODO remove this (and line above) once we clear it on close()
         info.setLastProbeExecution(null);
 
-        ProbeExecutionCreator probeExecution = new ProbeExecutionCreator() {
-            public ProbeExecution createProbeExecution() {
-                JdbcProbeExecution probeExecution =
-                        new JdbcProbeExecution(info.getSql(), info.getParametersCopy());
-                info.setLastProbeExecution(probeExecution);
-                return probeExecution;
-            }
-        };
-
-        return ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint,
+        return ProbeExecutionManagerFactory.getManager().execute(
+                PREPARED_STATEMENT_EXECUTE_CREATOR, info, null, joinPoint,
                 JDBC_EXECUTE_SUMMARY_KEY, true);
     }
 
@@ -252,24 +316,15 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
     public Object statementExecuteBatchAdvice(ProceedingJoinPoint joinPoint, Statement statement)
             throws Throwable {
 
-        final StatementMirror statementMirror = statementMirrorCache.getStatementMirror(statement);
+        StatementMirror statementMirror = statementMirrorCache.getStatementMirror(statement);
 
         // clear it out since it may not be populated below if the probe execution is
         // short-circuited for some reason
         // TODO remove this (and line above) once we clear it on close()
         statementMirror.setLastProbeExecution(null);
 
-        ProbeExecutionCreator probeExecution = new ProbeExecutionCreator() {
-            public ProbeExecution createProbeExecution() {
-                JdbcProbeExecution probeExecution =
-                        new JdbcProbeExecution(statementMirror.getBatchedSqlCopy());
-                statementMirror.setLastProbeExecution(probeExecution);
-                return probeExecution;
-            }
-        };
-
-        return ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint,
-                JDBC_EXECUTE_SUMMARY_KEY, true);
+        return ProbeExecutionManagerFactory.getManager().execute(STATEMENT_EXECUTE_BATCH_CREATOR,
+                statementMirror, null, joinPoint, JDBC_EXECUTE_SUMMARY_KEY, true);
     }
 
     @Around("isProbeEnabled() && inOperation()"
@@ -278,7 +333,7 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
     public Object preparedStatementExecuteBatchAdvice(ProceedingJoinPoint joinPoint,
             PreparedStatement preparedStatement) throws Throwable {
 
-        final PreparedStatementMirror info =
+        PreparedStatementMirror info =
                 statementMirrorCache.getPreparedStatementMirror(preparedStatement);
 
         // clear it out since it may not be populated below if the probe execution is
@@ -286,27 +341,8 @@ public class JdbcProbe { // NOPMD for too many methods, many are just AspectJ po
         // TODO remove this (and line above) once we clear it on close()
         info.setLastProbeExecution(null);
 
-        ProbeExecutionCreator probeExecution = new ProbeExecutionCreator() {
-            public ProbeExecution createProbeExecution() {
-                JdbcProbeExecution probeExecution;
-                if (info.isUsingBatchedParameters()) {
-                    // make a copy of batchedArrays
-                    probeExecution =
-                            new JdbcProbeExecution(info.getSql(), info.getBatchedParametersCopy());
-                } else {
-                    // TODO is this branch necessary? are you allowed to call
-                    // executeBatch() if you haven't called addBatch() at least once?
-                    LOGGER.warn("executeBatch() was called on a PreparedStatement"
-                            + " without calling addBatch() first");
-                    probeExecution =
-                            new JdbcProbeExecution(info.getSql(), info.getParametersCopy());
-                }
-                info.setLastProbeExecution(probeExecution);
-                return probeExecution;
-            }
-        };
-
-        return ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint,
+        return ProbeExecutionManagerFactory.getManager().execute(
+                PREPARED_STATEMENT_EXECUTE_BATCH_CREATOR, info, null, joinPoint,
                 JDBC_EXECUTE_SUMMARY_KEY, true);
     }
 
@@ -36,9 +36,10 @@ import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.annotation.SuppressAjWarnings;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
-import org.jmonitor.api.probe.ProbeExecutionCreator;
 import org.jmonitor.api.probe.ProbeExecutionManagerFactory;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
 import org.jmonitor.configuration.service.model.AgentConfiguration;
 import org.jmonitor.extension.probe.ServletProbeExecution;
 import org.jmonitor.extension.probe.ServletProbePropertyUtils;
@@ -64,6 +65,19 @@ public class ServletProbe { // NOPMD for too many methods, many are just AspectJ
     private static final String ROOT_PROBE_EXECUTION_ATTRIBUTE_NAME =
             "jmonitor.probe.servlet.RootProbeExecution";
 
+    private static final OperationSummaryKey HTTP_REQUEST_SUMMARY_KEY =
+            ProbeExecutionManagerFactory.getManager().getOperationSummaryKey("http request");
+
+    // shared across all calls (the target and request are passed in as arguments) so that nothing
+    // is allocated when the request doesn't end up being traced
+    private final StatelessProbeExecutionCreator<Object, HttpServletRequest> probeExecutionCreator =
+            new StatelessProbeExecutionCreator<Object, HttpServletRequest>() {
+                public ProbeExecution createProbeExecution(Object target,
+                        HttpServletRequest request) {
+                    return createServletProbeExecution(target, request);
+                }
+            };
+
     @Pointcut("execution(void javax.servlet.Filter.doFilter(javax.servlet.ServletRequest,"
             + " javax.servlet.ServletResponse, javax.servlet.FilterChain))")
     void filterPointcut() {
@@ -112,54 +126,55 @@ public class ServletProbe { // NOPMD for too many methods, many are just AspectJ
         }
     }
 
-    private void aroundServletPointcutInternal(ProceedingJoinPoint joinPoint, final Object target,
-            final HttpServletRequest request) throws Throwable {
-
-        ProbeExecutionCreator probeExecution = new ProbeExecutionCreator() {
-            public ProbeExecution createProbeExecution() {
-                ServletProbeExecution probeExecution;
-                if (ProbeExecutionManagerFactory.getManager().getRootProbeExecution() == null) {
-                    // capture more expensive data (request parameter map and session info)
-                    // only for root trace elements since that is where this detailed
-                    // info is logged
-
-                    // be careful not to pass "false" so it won't create session if request doesn't
-                    // already have one
-                    HttpSession session = request.getSession(false);
-                    if (session == null) {
-                        probeExecution =
-                                new ServletProbeExecution(target.getClass(), request.getMethod(),
-                                        request.getRequestURI());
-                    } else {
-
-                        String username =
-                                getSessionAttributeTextValue(session,
-                                        ServletProbePropertyUtils.getUsernameSessionAttributePath());
-
-                        probeExecution =
-                                new ServletProbeExecution(target.getClass(), request.getMethod(),
-                                        request.getRequestURI(), username, session.getId(),
-                                        getSessionAttributes(session));
-                    }
-                    // TODO doc this as potentially invasive
-                    request.setAttribute(ROOT_PROBE_EXECUTION_ATTRIBUTE_NAME, probeExecution);
-                } else {
-                    probeExecution =
-                            new ServletProbeExecution(target.getClass(), request.getMethod(),
-                                    request.getRequestURI());
-                }
-                return probeExecution;
-            }
-        };
+    private void aroundServletPointcutInternal(ProceedingJoinPoint joinPoint, Object target,
+            HttpServletRequest request) throws Throwable {
 
+        // only record aggregate timing data for the top most servlet or filter
+        OperationSummaryKey operationSummaryKey = null;
         if (ProbeExecutionManagerFactory.getManager().getRootProbeExecution() == null) {
-            // only record aggregate timing data for the top most servlet or filter
-            ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint,
-                    "http request");
+            operationSummaryKey = HTTP_REQUEST_SUMMARY_KEY;
+        }
+        ProbeExecutionManagerFactory.getManager().execute(probeExecutionCreator, target, request,
+                joinPoint, operationSummaryKey, false);
+    }
+
+    private ServletProbeExecution createServletProbeExecution(Object target,
+            HttpServletRequest request) {
+
+        ServletProbeExecution probeExecution;
+        if (ProbeExecutionManagerFactory.getManager().getRootProbeExecution() == null) {
+            // capture more expensive data (request parameter map and session info)
+            // only for root trace elements since that is where this detailed
+            // info is logged
+
+            // be careful not to pass "false" so it won't create session if request doesn't
+            // already have one
+            HttpSession session = request.getSession(false);
+            if (session == null) {
+                probeExecution =
+                        new ServletProbeExecution(target.getClass(), request.getMethod(),
+                                request.getRequestURI());
+            } else {
+
+                String username =
+                        getSessionAttributeTextValue(session,
+                                ServletProbePropertyUtils.getUsernameSessionAttributePath());
+
+                probeExecution =
+                        new ServletProbeExecution(target.getClass(), request.getMethod(),
+                                request.getRequestURI(), username, session.getId(),
+                                getSessionAttributes(session));
+            }
+            // TODO doc this as potentially invasive
+            request.setAttribute(ROOT_PROBE_EXECUTION_ATTRIBUTE_NAME, probeExecution);
         } else {
-            ProbeExecutionManagerFactory.getManager().execute(probeExecution, joinPoint);
+            probeExecution =
+                    new ServletProbeExecution(target.getClass(), request.getMethod(),
+                            request.getRequestURI());
         }
+        return probeExecution;
     }
+
     /*
      * ================== Http Servlet Request Parameters ==================
      */
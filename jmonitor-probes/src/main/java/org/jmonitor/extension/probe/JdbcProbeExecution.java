@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.jmonitor.api.probe.ProbeExecutionContext;
+import org.jmonitor.api.probe.ProbeExecutionWithTemplate;
 import org.jmonitor.api.probe.ProbeExecutionWithUpdate;
 
 import com.google.common.base.Function;
@@ -53,7 +54,7 @@ import com.google.common.collect.Collections2;
  * @author Trask Stalnaker
  * @since 1.0
  */
-public class JdbcProbeExecution implements ProbeExecutionWithUpdate {
+public class JdbcProbeExecution implements ProbeExecutionWithUpdate, ProbeExecutionWithTemplate {
 
     public static final Object NULL_PARAMETER = new Object();
 
@@ -139,6 +140,15 @@ public class JdbcProbeExecution implements ProbeExecutionWithUpdate {
         return description.toString();
     }
 
+    // executions of the same sql (with or without parameters) are folded together, batches are
+    // not since their descriptions are made up of more than just the one sql
+    public String getDescriptionTemplate() {
+        if (batchedSqls != null || batchedParameters != null) {
+            return null;
+        }
+        return sql;
+    }
+
     // TODO put row num and bind parameters in context map?
     public ProbeExecutionContext createContext() {
         return null;
@@ -112,6 +112,10 @@ public class ServletProbeExecution implements RootProbeExecution {
         return username;
     }
 
+    public String getOperationName() {
+        return requestURI;
+    }
+
     public boolean isRequestParameterMapCaptured() {
         return requestParameterMap != null;
     }
@@ -16,11 +16,12 @@
 
 package org.jmonitor.extension.probe;
 
-import java.util.HashSet;
 import java.util.Set;
 
-import org.apache.commons.lang.StringUtils;
+import org.jmonitor.api.probe.BooleanProbeProperty;
 import org.jmonitor.api.probe.ProbeExecutionManagerFactory;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.jmonitor.api.probe.StringSetProbeProperty;
 
 /**
  * 
@@ -45,45 +46,33 @@ public final class ServletProbePropertyUtils {
 
     private static final String CAPTURE_NESTED_EXECUTIONS_PROPERTY_NAME = "captureNestedExecutions";
 
-    // optimization
-    private static volatile Set<String> cachedSessionAttributes;
-    private static volatile String cachedSessionAttributesText;
+    // property handles are resolved once and are kept up to date by the probe execution manager
+    // so reading them on the request path is just a field read
+    private static final BooleanProbeProperty CAPTURE_NESTED_EXECUTIONS =
+            ProbeExecutionManagerFactory.getManager().getBooleanProperty(SERVLET_PROBE_NAME,
+                    CAPTURE_NESTED_EXECUTIONS_PROPERTY_NAME);
+
+    private static final StringProbeProperty USERNAME_SESSION_ATTRIBUTE_PATH =
+            ProbeExecutionManagerFactory.getManager().getStringProperty(SERVLET_PROBE_NAME,
+                    USERNAME_SESSION_ATTRIBUTE_PATH_PROPERTY_NAME);
+
+    private static final StringSetProbeProperty SESSION_ATTRIBUTE_PATHS =
+            ProbeExecutionManagerFactory.getManager().getStringSetProperty(SERVLET_PROBE_NAME,
+                    SESSION_ATTRIBUTE_PATHS_PROPERTY_NAME);
 
     // utility class
     private ServletProbePropertyUtils() {
     }
 
     public static boolean isCaptureNestedExecutions() {
-        return Boolean.valueOf(getProperty(CAPTURE_NESTED_EXECUTIONS_PROPERTY_NAME));
+        return CAPTURE_NESTED_EXECUTIONS.get();
     }
 
     public static String getUsernameSessionAttributePath() {
-        return getProperty(USERNAME_SESSION_ATTRIBUTE_PATH_PROPERTY_NAME);
+        return USERNAME_SESSION_ATTRIBUTE_PATH.get();
     }
 
     public static Set<String> getSessionAttributePaths() {
-
-        String sessionAttributesText = getProperty(SESSION_ATTRIBUTE_PATHS_PROPERTY_NAME);
-
-        if (!sessionAttributesText.equals(cachedSessionAttributesText)) {
-            String[] sessionAttributesArray = StringUtils.split(sessionAttributesText, ',');
-
-            Set<String> sessionAttributes = new HashSet<String>();
-            for (String sessionAttribute : sessionAttributesArray) {
-                sessionAttributes.add(sessionAttribute);
-            }
-
-            // update cachedSessionAttributes first so that another thread cannot come into this
-            // method and get a positive match for text but then get the old cached attributes
-            cachedSessionAttributes = sessionAttributes;
-            cachedSessionAttributesText = sessionAttributesText;
-        }
-
-        return cachedSessionAttributes;
-    }
-
-    private static String getProperty(String propertyName) {
-        return ProbeExecutionManagerFactory.getManager().getProperty(SERVLET_PROBE_NAME,
-                propertyName);
+        return SESSION_ATTRIBUTE_PATHS.get();
     }
 }
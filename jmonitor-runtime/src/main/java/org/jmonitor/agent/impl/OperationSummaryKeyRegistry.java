@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jmonitor.api.probe.OperationSummaryKey;
+import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Assigns the operation summary key ids handed out by ProbeExecutionManagerImpl.
+ *
+ * Ids are assigned sequentially from 0 (the same as in agent-impl), although metric data is still
+ * recorded by name here.
+ *
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public final class OperationSummaryKeyRegistry {
+
+    private static final Logger LOGGER =
+            CollectorServiceLoggerFactory.getLogger(OperationSummaryKeyRegistry.class);
+
+    // used once MAX_KEYS is reached
+    public static final String OTHER_NAME = "(other)";
+
+    // operation summary keys are expected to be constants, this just bounds the size of the
+    // metric data arrays in case a probe passes in names that are built at runtime
+    private static final int MAX_KEYS = 1000;
+
+    private static final OperationSummaryKeyRegistry INSTANCE = new OperationSummaryKeyRegistry();
+
+    private final ConcurrentMap<String, OperationSummaryKey> keys =
+            new ConcurrentHashMap<String, OperationSummaryKey>();
+
+    // guarded by "this"
+    private int keyCount;
+
+    private OperationSummaryKeyRegistry() {
+    }
+
+    // this is also used by the ProbeExecutionManager methods which accept the name, so it doesn't
+    // allocate once the name has been registered
+    public OperationSummaryKey getOperationSummaryKey(String name) {
+        OperationSummaryKey key = keys.get(name);
+        if (key == null) {
+            return register(name);
+        } else {
+            return key;
+        }
+    }
+
+    public int getKeyCount() {
+        synchronized (this) {
+            return keyCount;
+        }
+    }
+
+    private synchronized OperationSummaryKey register(String name) {
+        OperationSummaryKey key = keys.get(name);
+        if (key != null) {
+            // registered in the meantime by another thread
+            return key;
+        }
+        if (keyCount == MAX_KEYS - 1 && !name.equals(OTHER_NAME)) {
+            LOGGER.warn("the maximum number of operation summary keys (" + MAX_KEYS
+                    + ") has been reached, any further keys will be recorded as \"" + OTHER_NAME
+                    + "\"");
+            // reserve the last id for OTHER_NAME
+            register(OTHER_NAME);
+        }
+        if (keyCount == MAX_KEYS) {
+            return keys.get(OTHER_NAME);
+        }
+        key = new OperationSummaryKeyImpl(keyCount++, name);
+        keys.put(name, key);
+        return key;
+    }
+
+    public static OperationSummaryKeyRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private static final class OperationSummaryKeyImpl implements OperationSummaryKey {
+
+        private final int id;
+        private final String name;
+
+        private OperationSummaryKeyImpl(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
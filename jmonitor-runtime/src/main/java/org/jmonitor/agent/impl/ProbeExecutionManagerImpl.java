@@ -19,10 +19,16 @@ package org.jmonitor.agent.impl;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.jmonitor.agent.impl.model.OperationSafeImpl;
 import org.jmonitor.agent.impl.model.TraceEventSafeImpl;
+import org.jmonitor.api.probe.BooleanProbeProperty;
+import org.jmonitor.api.probe.IntegerProbeProperty;
+import org.jmonitor.api.probe.OperationSummaryKey;
 import org.jmonitor.api.probe.ProbeExecution;
 import org.jmonitor.api.probe.ProbeExecutionCreator;
 import org.jmonitor.api.probe.ProbeExecutionManager;
 import org.jmonitor.api.probe.ProbeExecutionWithUpdate;
+import org.jmonitor.api.probe.StatelessProbeExecutionCreator;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.jmonitor.api.probe.StringSetProbeProperty;
 import org.jmonitor.collector.shared.logging.CollectorServiceLoggerFactory;
 import org.jmonitor.collector.shared.logging.LoggerImpl;
 import org.jmonitor.configuration.client.ConfigurationServiceFactory;
@@ -43,15 +49,46 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
 
     private static final ProbeExecutionManagerImpl INSTANCE = new ProbeExecutionManagerImpl();
 
+    // the creator-based execute() methods pass the creator itself as the target
+    private static final StatelessProbeExecutionCreator<ProbeExecutionCreator, Void> ADAPTER =
+            new StatelessProbeExecutionCreator<ProbeExecutionCreator, Void>() {
+                public ProbeExecution createProbeExecution(ProbeExecutionCreator target,
+                        Void argument) {
+                    return target.createProbeExecution();
+                }
+            };
+
     public String getProperty(String probeName, String propertyName) {
         return ConfigurationServiceFactory.getService().getProbeConfiguration().getProperty(
                 probeName, propertyName);
     }
 
+    public BooleanProbeProperty getBooleanProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getBooleanProperty(probeName, propertyName);
+    }
+
+    public IntegerProbeProperty getIntegerProperty(String probeName, String propertyName,
+            int defaultValue) {
+        return ProbePropertyRegistry.getInstance().getIntegerProperty(probeName, propertyName,
+                defaultValue);
+    }
+
+    public StringProbeProperty getStringProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getStringProperty(probeName, propertyName);
+    }
+
+    public StringSetProbeProperty getStringSetProperty(String probeName, String propertyName) {
+        return ProbePropertyRegistry.getInstance().getStringSetProperty(probeName, propertyName);
+    }
+
     public Logger getProbeLogger(Class<?> clazz) {
         return new LoggerImpl(LoggerFactory.getLogger(clazz));
     }
 
+    public OperationSummaryKey getOperationSummaryKey(String name) {
+        return OperationSummaryKeyRegistry.getInstance().getOperationSummaryKey(name);
+    }
+
     public Object execute(ProbeExecutionCreator probeExecutionCreator, ProceedingJoinPoint joinPoint)
             throws Throwable {
 
@@ -68,6 +105,23 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
             ProceedingJoinPoint joinPoint, String operationSummaryKey,
             boolean requiresExistingOperation) throws Throwable {
 
+        return execute(ADAPTER, probeExecutionCreator, null, joinPoint, operationSummaryKey,
+                requiresExistingOperation);
+    }
+
+    public <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator,
+            T target, A argument, ProceedingJoinPoint joinPoint,
+            OperationSummaryKey operationSummaryKey, boolean requiresExistingOperation)
+            throws Throwable {
+
+        return execute(probeExecutionCreator, target, argument, joinPoint,
+                getName(operationSummaryKey), requiresExistingOperation);
+    }
+
+    public <T, A> Object execute(StatelessProbeExecutionCreator<T, A> probeExecutionCreator,
+            T target, A argument, ProceedingJoinPoint joinPoint, String operationSummaryKey,
+            boolean requiresExistingOperation) throws Throwable {
+
         AgentConfiguration configuration =
                 ConfigurationServiceFactory.getService().getAgentConfiguration();
 
@@ -90,22 +144,26 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
             return proceedAndRecordMetricData(joinPoint, operationSummaryKey);
         }
 
-        // TODO fix this very long line below
         OperationSafeImpl currentOperation = Agent.getInstance().getCurrentOperation();
+        int maxTraceEvents = configuration.getMaxTraceEventsPerOperation();
         if (currentOperation != null
-                && currentOperation.getTrace().getSize() >= configuration.getMaxTraceEventsPerOperation()) {
+                && maxTraceEvents != AgentConfiguration.TRACE_EVENTS_LIMIT_DISABLED
+                && currentOperation.getTrace().getSize() >= maxTraceEvents) {
             // trace limit has been exceeded
             // we still gather metric data
             return proceedAndRecordMetricData(joinPoint, operationSummaryKey);
         }
 
-        return proceedAndTrace(probeExecutionCreator, joinPoint, operationSummaryKey);
+        return proceedAndTrace(probeExecutionCreator, target, argument, joinPoint,
+                operationSummaryKey);
     }
 
-    private Object proceedAndTrace(ProbeExecutionCreator probeExecutionCreator,
+    private <T, A> Object proceedAndTrace(
+            StatelessProbeExecutionCreator<T, A> probeExecutionCreator, T target, A argument,
             ProceedingJoinPoint joinPoint, String operationSummaryKey) throws Throwable {
 
-        ProbeExecution probeExecution = probeExecutionCreator.createProbeExecution();
+        ProbeExecution probeExecution =
+                probeExecutionCreator.createProbeExecution(target, argument);
 
         // start trace element
         TraceEventSafeImpl traceEvent =
@@ -151,6 +209,12 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
         }
     }
 
+    public Object proceedAndRecordMetricData(ProceedingJoinPoint joinPoint,
+            OperationSummaryKey operationSummaryKey) throws Throwable {
+
+        return proceedAndRecordMetricData(joinPoint, getName(operationSummaryKey));
+    }
+
     public void handleProbeExecutionUpdate(ProbeExecutionWithUpdate probeExecution) {
 
         Agent.getInstance().getCurrentOperation().getTrace().justUpdatedCompletedElement(
@@ -170,6 +234,15 @@ public class ProbeExecutionManagerImpl implements ProbeExecutionManager {
         return Agent.getInstance().isEnabled() && !Agent.getInstance().isCurrentOperationDisabled();
     }
 
+    // operation summary data is still recorded by name in this module
+    private static String getName(OperationSummaryKey operationSummaryKey) {
+        if (operationSummaryKey == null) {
+            return null;
+        } else {
+            return operationSummaryKey.getName();
+        }
+    }
+
     private boolean isInOperation() {
         return Agent.getInstance().getCurrentOperation() != null;
     }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jmonitor.agent.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jmonitor.api.probe.BooleanProbeProperty;
+import org.jmonitor.api.probe.IntegerProbeProperty;
+import org.jmonitor.api.probe.StringProbeProperty;
+import org.jmonitor.api.probe.StringSetProbeProperty;
+import org.jmonitor.configuration.client.ConfigurationServiceFactory;
+import org.jmonitor.configuration.service.model.ProbeConfiguration;
+
+/**
+ * Creates the typed probe property handles handed out by ProbeExecutionManagerImpl.
+ * 
+ * The configuration service publishes a new immutable probe configuration instance on every
+ * update, so each handle re-parses its value only when it sees a different instance.
+ * 
+ * @author Trask Stalnaker
+ * @since 1.0
+ */
+public final class ProbePropertyRegistry {
+
+    private static final ProbePropertyRegistry INSTANCE = new ProbePropertyRegistry();
+
+    private ProbePropertyRegistry() {
+    }
+
+    public BooleanProbeProperty getBooleanProperty(String probeName, String propertyName) {
+        return new BooleanProbePropertyImpl(probeName, propertyName);
+    }
+
+    public IntegerProbeProperty getIntegerProperty(String probeName, String propertyName,
+            int defaultValue) {
+        return new IntegerProbePropertyImpl(probeName, propertyName, defaultValue);
+    }
+
+    public StringProbeProperty getStringProperty(String probeName, String propertyName) {
+        return new StringProbePropertyImpl(probeName, propertyName);
+    }
+
+    public StringSetProbeProperty getStringSetProperty(String probeName, String propertyName) {
+        return new StringSetProbePropertyImpl(probeName, propertyName);
+    }
+
+    public static ProbePropertyRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private abstract static class ProbePropertyBase<T> {
+
+        private final String probeName;
+        private final String propertyName;
+
+        // the parsed value is published together with the configuration instance that it was
+        // parsed from, so that readers never see one without the other
+        private volatile ParsedValue<T> parsedValue;
+
+        private ProbePropertyBase(String probeName, String propertyName) {
+            this.probeName = probeName;
+            this.propertyName = propertyName;
+        }
+
+        protected T getValue() {
+            ProbeConfiguration configuration =
+                    ConfigurationServiceFactory.getService().getProbeConfiguration();
+            ParsedValue<T> parsedValue = this.parsedValue;
+            if (parsedValue == null || parsedValue.configuration != configuration) {
+                // racing threads can both parse, which is harmless since they parse the same value
+                parsedValue = new ParsedValue<T>(configuration, parse(configuration.getProperty(
+                        probeName, propertyName)));
+                this.parsedValue = parsedValue;
+            }
+            return parsedValue.value;
+        }
+
+        // value is never null
+        protected abstract T parse(String value);
+    }
+
+    private static final class ParsedValue<T> {
+
+        private final ProbeConfiguration configuration;
+        private final T value;
+
+        private ParsedValue(ProbeConfiguration configuration, T value) {
+            this.configuration = configuration;
+            this.value = value;
+        }
+    }
+
+    private static final class BooleanProbePropertyImpl extends ProbePropertyBase<Boolean>
+            implements BooleanProbeProperty {
+
+        private BooleanProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public boolean get() {
+            return getValue();
+        }
+
+        @Override
+        protected Boolean parse(String value) {
+            return Boolean.valueOf(value);
+        }
+    }
+
+    private static final class IntegerProbePropertyImpl extends ProbePropertyBase<Integer>
+            implements IntegerProbeProperty {
+
+        private final int defaultValue;
+
+        private IntegerProbePropertyImpl(String probeName, String propertyName, int defaultValue) {
+            super(probeName, propertyName);
+            this.defaultValue = defaultValue;
+        }
+
+        public int get() {
+            return getValue();
+        }
+
+        @Override
+        protected Integer parse(String value) {
+            try {
+                return Integer.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    private static final class StringProbePropertyImpl extends ProbePropertyBase<String>
+            implements StringProbeProperty {
+
+        private StringProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public String get() {
+            return getValue();
+        }
+
+        @Override
+        protected String parse(String value) {
+            return value;
+        }
+    }
+
+    private static final class StringSetProbePropertyImpl extends ProbePropertyBase<Set<String>>
+            implements StringSetProbeProperty {
+
+        private StringSetProbePropertyImpl(String probeName, String propertyName) {
+            super(probeName, propertyName);
+        }
+
+        public Set<String> get() {
+            return getValue();
+        }
+
+        @Override
+        protected Set<String> parse(String value) {
+            Set<String> values = new HashSet<String>();
+            for (String item : StringUtils.split(value, ',')) {
+                values.add(item.trim());
+            }
+            return Collections.unmodifiableSet(values);
+        }
+    }
+}
@@ -63,6 +63,11 @@ public final class ConfigurationUtils {
 
         for (PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(declaredClass)) {
 
+            if (descriptor.getWriteMethod() == null) {
+                // read-only properties (e.g. class and version) are not persisted
+                continue;
+            }
+
             String propertyName = descriptor.getName();
             Class<?> propertyType = UncheckedPropertyUtils.getPropertyType(object, propertyName);
 
@@ -96,6 +101,11 @@ public final class ConfigurationUtils {
         boolean saveIsNecessary = false;
         for (PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(declaredClass)) {
 
+            if (descriptor.getWriteMethod() == null) {
+                // read-only properties (e.g. class and version) are not persisted
+                continue;
+            }
+
             String propertyName = descriptor.getName();
 
             Object newValue = UncheckedPropertyUtils.getProperty(object, propertyName);